@@ -157,6 +157,34 @@ public class KVClient implements IKVClient {
 
             }
 
+        } else if (tokens[0].equals("putttl")) {
+            if (tokens.length >= 4) {
+                if (kvStore != null && kvStore.isRunning()) {
+                    String key = tokens[1];
+                    try {
+                        long ttlMs = Long.parseLong(tokens[2]) * 1000;
+                        // Value is everything after the TTL
+                        String value = cmdLine.trim().split("\\s+", 4)[3];
+                        KVMessage receivedMsg = kvStore.put(key, value, ttlMs);
+                        if (receivedMsg.getStatus() == StatusType.SERVER_STOPPED) {
+                            logger.info("server is not functioning, values not stored");
+                        } else {
+                            logger.info("kvclient Update database " + " with Key: " + key + " and values:" + value
+                                    + " expiring in " + tokens[2] + " s");
+                        }
+                    } catch (NumberFormatException nfe) {
+                        printError("TTL must be a number of seconds!");
+                        logger.error("Unable to parse argument <ttl>", nfe);
+                    } catch (Exception e) {
+                        logger.error("kvclient putttl exception", e);
+                    }
+                } else {
+                    printError("Not connected!");
+                }
+            } else {
+                printError("Error Missing key, TTL or value!");
+            }
+
         } else if (tokens[0].equals("get")) {
             if (tokens.length >= 1) {
                 if (kvStore != null && kvStore.isRunning()) {
@@ -235,6 +263,8 @@ public class KVClient implements IKVClient {
         sb.append(PROMPT).append("put <key> <value>");
         sb.append(
                 "\t\t\t update the current value with the gven value if key already in server. Or will delete the entry for the given key is <value> is null \n");
+        sb.append(PROMPT).append("putttl <key> <seconds> <value>");
+        sb.append("\t put that the servers delete after the given number of seconds \n");
         sb.append(PROMPT).append("get <key>");
         sb.append("\t\t\t retrieve storage server value for the given key \n");
 
@@ -39,6 +39,7 @@ import ecs.HashRing;
 import logger.LogSetup;
 import shared.communication.AdminMessage;
 import shared.communication.AdminMessage.MessageType;
+import shared.ByteSize;
 import shared.DebugHelper;
 import shared.Metadata;
 
@@ -162,8 +163,21 @@ public class ECSClient implements IECSClient {
 
     @Override
     public ECSNode addNode(String cacheStrategy, int cacheSize, boolean isFailure) {
+        return addNode(cacheStrategy, cacheSize, 0, isFailure);
+    }
+
+    /**
+     * Add one node whose cache may be bounded by bytes instead of entries.
+     * 
+     * @param cacheStrategy
+     * @param cacheSize     Cache entries, used if cacheBytes is 0
+     * @param cacheBytes    Cache byte budget, 0 to count entries
+     * @param isFailure
+     * @return Node added
+     */
+    public ECSNode addNode(String cacheStrategy, int cacheSize, long cacheBytes, boolean isFailure) {
         DebugHelper.logFuncEnter(logger);
-        List<ECSNode> nodesAdded = addNodes(1, cacheStrategy, cacheSize, isFailure);
+        List<ECSNode> nodesAdded = addNodes(1, cacheStrategy, cacheSize, cacheBytes, isFailure);
         DebugHelper.logFuncExit(logger);
 
         return nodesAdded.get(0);
@@ -183,6 +197,21 @@ public class ECSClient implements IECSClient {
 
     @Override
     public List<ECSNode> addNodes(int count, String cacheStrategyStr, int cacheSize, boolean isFailure) {
+        return addNodes(count, cacheStrategyStr, cacheSize, 0, isFailure);
+    }
+
+    /**
+     * Add nodes whose caches may be bounded by bytes instead of entries.
+     * 
+     * @param count
+     * @param cacheStrategyStr
+     * @param cacheSize        Cache entries, used if cacheBytes is 0
+     * @param cacheBytes       Cache byte budget, 0 to count entries
+     * @param isFailure
+     * @return Nodes added
+     */
+    public List<ECSNode> addNodes(int count, String cacheStrategyStr, int cacheSize, long cacheBytes,
+            boolean isFailure) {
         DebugHelper.logFuncEnter(logger);
 
         if (unavailableServers.size() == serverStatusInfo.size()) {
@@ -220,9 +249,14 @@ public class ECSClient implements IECSClient {
                 List<String> newServerInfoList = new ArrayList<String>();
                 newServerInfoList.add(newServerInfo);
                 // Creates and adds node to hash ring
-                nodesAdded.addAll(hashRing.initHashRing(newServerInfoList, cacheStrategyEnum, cacheSize));
+                List<ECSNode> newNodes = hashRing.initHashRing(newServerInfoList, cacheStrategyEnum, cacheSize);
+                for (ECSNode newNode : newNodes) {
+                    newNode.setCacheBytes(cacheBytes);
+                }
+                nodesAdded.addAll(newNodes);
             } else {
                 ECSNode newNode = hashRing.createECSNode(newServerInfo, cacheStrategyEnum, cacheSize);
+                newNode.setCacheBytes(cacheBytes);
                 hashRing.addNode(newNode);
                 nodesAdded.add(newNode);
             }
@@ -305,6 +339,7 @@ public class ECSClient implements IECSClient {
         serversToUpdate.removeAll(serversToSetup);
 
         if (isFailure) {
+            seedFromSnapshots(serversToSetup);
             awaitTime(40000);
         }
 
@@ -315,6 +350,44 @@ public class ECSClient implements IECSClient {
         return null;
     }
 
+    /**
+     * Ask the successor of each replacement node, which holds its range as a
+     * replica, to export that range to a snapshot file for the new node to
+     * bulk-load. Transfers and replicas still follow and fill in any gaps; the
+     * import skips keys they already wrote or deleted, so they need not wait
+     * for it.
+     * 
+     * @param serversToSetup serverName:ip:port of each replacement node
+     */
+    private void seedFromSnapshots(List<String> serversToSetup) {
+        HashMap<String, Metadata> allMetadata = hashRing.getAllMetadata();
+        for (String serverInfo : serversToSetup) {
+            Metadata metadata = allMetadata.get(getHostAndPort(serverInfo));
+            if (metadata == null || metadata.getNextNode() == null) {
+                continue;
+            }
+            ECSNode replica = metadata.getNextNode();
+            String replicaPath = String.format("%s/%s:%s", ZK_ROOT_PATH, replica.getNodeHost(),
+                    replica.getNodePort());
+            String zkNodePath = buildZkNodePath(serverInfo);
+            if (replicaPath.equals(zkNodePath)) {
+                // Only node in the ring, nothing to seed from
+                continue;
+            }
+
+            Map<String, String> range = new HashMap<String, String>();
+            range.put("hashStart", metadata.getHashStart().toString());
+            range.put("hashStop", metadata.getHashStop().toString());
+            AdminMessage msg = new AdminMessage(MessageType.SNAPSHOT_REQUEST, null, range, zkNodePath);
+            try {
+                logger.info(String.format("Requesting snapshot for %s from %s", zkNodePath, replicaPath));
+                zk.setData(replicaPath, msg.toBytes(), zk.exists(replicaPath, false).getVersion());
+            } catch (Exception e) {
+                logger.error("Unable to request snapshot for " + zkNodePath, e);
+            }
+        }
+    }
+
     @Override
     /**
      * Keep waiting a specified amount of time until a certain number of servers
@@ -406,15 +479,17 @@ public class ECSClient implements IECSClient {
                     ECSNode failedNode = hashRing.getNodeByServerInfo(serverInfo);
                     CacheStrategy oldCacheStrategy = failedNode.getCacheStrategy();
                     int oldCacheSize = failedNode.getCacheSize();
+                    long oldCacheBytes = failedNode.getCacheBytes();
                     unavailableServers.remove(serverInfo);
                     NodeStatus oldStatus = serverStatusInfo.get(serverInfo);
                     List<String> failedNodeList = new ArrayList<String>();
-                    logger.debug(String.format("Old cache: %s, %d", oldCacheStrategy.toString(), oldCacheSize));
+                    logger.debug(String.format("Old cache: %s, %d, %d bytes", oldCacheStrategy.toString(), oldCacheSize,
+                            oldCacheBytes));
                     logger.debug(String.format("Old status: %s", oldStatus.toString()));
                     failedNodeList.add(serverInfo);
                     removeNodes(failedNodeList, true);
                     // Start up replacement
-                    addNode(oldCacheStrategy.toString(), oldCacheSize, true);
+                    addNode(oldCacheStrategy.toString(), oldCacheSize, oldCacheBytes, true);
 
                     if (oldStatus == NodeStatus.ONLINE) {
                         start();
@@ -607,7 +682,7 @@ public class ECSClient implements IECSClient {
     }
 
     /**
-     * Remove all *.properties files from the data folder.
+     * Remove all *.properties files and log segments from the data folder.
      */
     public void cleanData() {
         File dir = new File("data");
@@ -616,7 +691,8 @@ public class ECSClient implements IECSClient {
         for (int i = 0; i < fList.length; i++) {
             String f = fList[i].toString();
 
-            if (f.endsWith(".out") || f.endsWith(".properties")) {
+            if (f.endsWith(".out") || f.endsWith(".properties") || f.endsWith(".data") || f.endsWith(".manifest")
+                    || f.endsWith(".bloom") || f.endsWith(".snapshot")) {
                 boolean succ = new File(f).delete();
 
                 if (!succ) {
@@ -922,8 +998,12 @@ public class ECSClient implements IECSClient {
                 try {
                     int count = Integer.parseInt(tokens[1]);
                     String cacheStrategy = tokens[2];
-                    int cacheSize = Integer.parseInt(tokens[3]);
-                    addNodes(count, cacheStrategy, cacheSize);
+                    // A size with a unit (e.g. 256MB) is a byte budget, a bare number counts entries
+                    if (ByteSize.hasUnit(tokens[3])) {
+                        addNodes(count, cacheStrategy, 0, ByteSize.parse(tokens[3]), false);
+                    } else {
+                        addNodes(count, cacheStrategy, Integer.parseInt(tokens[3]));
+                    }
                 } catch (Exception e) {
                     throw new Exception("Unable to parse input.");
                 }
@@ -939,8 +1019,11 @@ public class ECSClient implements IECSClient {
 
                 try {
                     String cacheStrategy = tokens[1];
-                    int cacheSize = Integer.parseInt(tokens[2]);
-                    addNode(cacheStrategy, cacheSize, false);
+                    if (ByteSize.hasUnit(tokens[2])) {
+                        addNode(cacheStrategy, 0, ByteSize.parse(tokens[2]), false);
+                    } else {
+                        addNode(cacheStrategy, Integer.parseInt(tokens[2]), false);
+                    }
                 } catch (Exception e) {
                     throw new Exception("Unable to parse input.");
                 }
@@ -1075,6 +1158,10 @@ public class ECSClient implements IECSClient {
         sb.append("::::::::::::::::::::::::::::::::\n");
         sb.append(PROMPT).append("addnodes <num> <cacheStrategy> <cacheSize>");
         sb.append("\t Choose <num> nodes from available machines and start them \n");
+        sb.append(PROMPT).append("\t\t\t\t\t ");
+        sb.append("<cacheStrategy>: FIFO | LRU | LFU | TINYLFU | ARC \n");
+        sb.append(PROMPT).append("\t\t\t\t\t ");
+        sb.append("<cacheSize>: entries (e.g. 500) or bytes with a unit (e.g. 64KB, 256MB, 1GB) \n");
 
         sb.append(PROMPT).append("addnode <cacheStrategy> <cacheSize>");
         sb.append("\t Create new KVServer and add it to the storage service at an arbitrary position \n");
@@ -1100,7 +1187,7 @@ public class ECSClient implements IECSClient {
         sb.append("\t\t\t\t\t Clean all *.out and *.log files from the logs folder \n");
 
         sb.append(PROMPT).append("cleandata");
-        sb.append("\t\t\t\t\t Clean all *.properties files from the data folder \n");
+        sb.append("\t\t\t\t\t Clean all *.properties and *.data files from the data folder \n");
 
         sb.append(PROMPT).append("cleanall");
         sb.append("\t\t\t\t\t Run all clean* commands \n");
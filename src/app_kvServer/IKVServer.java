@@ -9,7 +9,9 @@ public interface IKVServer {
         None,
         LRU,
         LFU,
-        FIFO
+        FIFO,
+        TINYLFU,
+        ARC
     };
 
     // For Milestone 2 - status of KVServer
@@ -50,6 +52,21 @@ public interface IKVServer {
      */
     public int getCacheSize();
 
+    /**
+     * Get the cache byte budget
+     * 
+     * @return max bytes of cached keys and values, 0 if the cache size counts
+     *         entries
+     */
+    public long getCacheBytes();
+
+    /**
+     * Get the bytes currently held by the cache
+     * 
+     * @return bytes of the cached keys and values
+     */
+    public long getCacheBytesUsed();
+
     /**
      * Check if key is in storage.
      * NOTE: does not modify any other properties
@@ -83,6 +100,15 @@ public interface IKVServer {
      */
     public void putKV(String key, String value) throws Exception;
 
+    /**
+     * Put the key-value pair into storage, deleting it again after ttlMs
+     * 
+     * @param ttlMs milliseconds until the key expires, 0 for never
+     * @throws Exception
+     *                   when key not in the key range of the server
+     */
+    public void putKV(String key, String value, long ttlMs) throws Exception;
+
     /**
      * Clear the local cache of the server
      */
@@ -174,6 +200,20 @@ public interface IKVServer {
      */
     public void confirmDataTransfer(String adminMessageString);
 
+    /**
+     * Export a hash range to a snapshot file for a node being seeded
+     * 
+     * @param adminMessageString
+     */
+    public void processSnapshotRequest(String adminMessageString);
+
+    /**
+     * Bulk-load a snapshot file exported by another server
+     * 
+     * @param adminMessageString
+     */
+    public void processSnapshotReady(String adminMessageString);
+
     public Metadata getLocalMetadata();
 
     public Map<String, Metadata> getAllMetadata();
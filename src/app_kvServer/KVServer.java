@@ -12,17 +12,29 @@ import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import logger.LogSetup;
 import shared.communication.KVCommunicationServer;
+import persistent_storage.IPersistentStorage;
 import persistent_storage.PersistentStorage;
+import persistent_storage.RangeSnapshotFile;
+import persistent_storage.StorageFactory;
+import persistent_storage.StorageType;
+import persistent_storage.VersionedStorage;
 
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.server.quorum.QuorumPeerConfig.ConfigException;
@@ -35,6 +47,7 @@ import java.math.BigInteger;
 import java.util.concurrent.CountDownLatch;
 import shared.communication.AdminMessage;
 import shared.communication.KVMessage;
+import shared.ByteSize;
 import shared.DebugHelper;
 import shared.Metadata;
 import shared.communication.AdminMessage.MessageType;
@@ -48,6 +61,8 @@ public class KVServer implements IKVServer, Runnable {
     // M2 Cache implementation
     // Set to unitialized values for now
     private int cacheSize;
+    // Byte budget of the cache, 0 if cacheSize counts entries
+    private long cacheBytes = 0;
     private kvCacheOperator cache = null;
     private String strategy = null;
 
@@ -55,7 +70,9 @@ public class KVServer implements IKVServer, Runnable {
     private ServerSocket serverSocket;
     private boolean running;
 
-    private PersistentStorage storage;
+    // Versioned so replication and transfers read snapshots while clients write
+    private VersionedStorage storage;
+    private StorageType storageType;
     private ArrayList<Thread> threadList;
     private Thread newThread;
 
@@ -75,8 +92,8 @@ public class KVServer implements IKVServer, Runnable {
     private String name;
     private String hashedName;
     private boolean distributedMode;
-    // Write lock
-    private boolean locked;
+    // Write lock, only held while the server is stopped
+    private volatile boolean locked;
     private ServerStatus status;
 
     // Latch to wait for completed action
@@ -102,8 +119,42 @@ public class KVServer implements IKVServer, Runnable {
 
 
     // Milestone 4 Modifications
-    // For sequential consistency - keep track of how many confirmation messages we need
-    private int replicaConfirmationWaitCount = 0;
+    // For sequential consistency - keep track of how many confirmation messages we need,
+    // per replication message. Client threads and the ZooKeeper thread both replicate.
+    private final AtomicLong replicaSequence = new AtomicLong();
+    private final ConcurrentHashMap<Long, AtomicInteger> replicaConfirmationWaitCounts = new ConcurrentHashMap<Long, AtomicInteger>();
+    // Sequence of the replicate() chunk in flight, 0 if none. Single entries
+    // replicated by client writes are confirmed on their own.
+    private long replicationChunkSequence = 0;
+    private final Object replicationStreamLock = new Object();
+
+    // Range handoff and replication stream entries from storage in chunks that
+    // fit in a single ZooKeeper node (jute.maxbuffer defaults to 1MB). The next
+    // chunk is only sent once the previous one has been confirmed.
+    private static final int TRANSFER_CHUNK_BYTES = 512 * 1024;
+    private Iterator<Map.Entry<String, String>> transferCursor;
+    private Map<String, String> transferChunk;
+    // Sent keys written after the snapshot was taken, sent again once the
+    // snapshot has been streamed
+    private Set<String> transferResend = new HashSet<String>();
+    private String transferServerName;
+    private Iterator<Map.Entry<String, String>> replicationCursor;
+    // Storage versions the ongoing transfer and replication stream from
+    private VersionedStorage.Snapshot transferSnapshot;
+    private VersionedStorage.Snapshot replicationSnapshot;
+
+    // Per-key TTLs: the wheel fires expiries, the deadlines are persisted in
+    // their own store so they survive restarts. The store is only opened once
+    // a key has a TTL, servers that never see one do not pay for it.
+    private static final String EXPIRY_SUFFIX = ".ttl";
+    // Range snapshots exported for a replacement node: <name>.range-<ms>.snapshot
+    private static final String EXPORT_INFIX = ".range-";
+    private static final String EXPORT_SUFFIX = ".snapshot";
+    private static final int EXPIRY_LOCK_STRIPES = 64;
+    private TimingWheel expiryWheel;
+    private volatile IPersistentStorage expiryStorage;
+    // Orders writes of a key against its expiry
+    private final Object[] expiryLocks = new Object[EXPIRY_LOCK_STRIPES];
 
 
     /**
@@ -116,9 +167,37 @@ public class KVServer implements IKVServer, Runnable {
      *                  is full and there is a GET- or PUT-request on a key that is
      *                  currently not contained in the cache. Options are "FIFO",
      *                  "LRU",
-     *                  and "LFU".
+     *                  "LFU", "TINYLFU" and "ARC".
      */
     public KVServer(int port, int cacheSize, String strategy) {
+        this(port, cacheSize, strategy, StorageType.PROPERTIES);
+    }
+
+    /**
+     * M1: Start KV Server at given port with a specific storage backend.
+     * 
+     * @param port        given port for storage server to operate
+     * @param cacheSize   specifies how many key-value pairs the server is allowed
+     *                    to keep in-memory
+     * @param strategy    specifies the cache replacement strategy
+     * @param storageType specifies the persistent storage backend
+     */
+    public KVServer(int port, int cacheSize, String strategy, StorageType storageType) {
+        this(port, cacheSize, 0, strategy, storageType);
+    }
+
+    /**
+     * M1: Start KV Server at given port with a cache bounded by bytes.
+     * 
+     * @param port        given port for storage server to operate
+     * @param cacheSize   specifies how many key-value pairs the server is allowed
+     *                    to keep in-memory, used if cacheBytes is 0
+     * @param cacheBytes  specifies how many bytes of keys and values the server
+     *                    is allowed to keep in-memory, 0 to count entries
+     * @param strategy    specifies the cache replacement strategy
+     * @param storageType specifies the persistent storage backend
+     */
+    public KVServer(int port, int cacheSize, long cacheBytes, String strategy, StorageType storageType) {
         // Store list of client threads
         this.threadList = new ArrayList<Thread>();
         this.port = port;
@@ -126,23 +205,19 @@ public class KVServer implements IKVServer, Runnable {
 
         // M2 Cache implementation
         this.cacheSize = cacheSize;
+        this.cacheBytes = cacheBytes;
         this.strategy = strategy;
-        this.cache = new kvCacheOperator(cacheSize, strategy);
+        this.cache = new kvCacheOperator(cacheSize, cacheBytes, strategy);
 
         this.name = getHostname() + ":" + getPort();
 
         // Not running as distributed system
         this.distributedMode = false;
 
-        // Check if file directory exists
-        File testFile = new File(dataDirectory);
-        if (!testFile.exists()) {
-            this.storage = new PersistentStorage(name);
-        }
-        // if exists, load into persistentStorage
-        else {
-            this.storage = new PersistentStorage(databaseName);
-        }
+        this.storageType = storageType;
+        this.storage = new VersionedStorage(
+                StorageFactory.createStorage(storageType, name, dataDirectory, databaseName));
+        initExpiry();
 
         // // Start main thread
         // newThread = new Thread(this);
@@ -157,6 +232,18 @@ public class KVServer implements IKVServer, Runnable {
      * @param zooHost ZK host
      */
     public KVServer(String name, int zooPort, String zooHost) {
+        this(name, zooPort, zooHost, StorageType.PROPERTIES);
+    }
+
+    /**
+     * M2: Initialize KVServer in distributed mode with a specific storage backend
+     * 
+     * @param name        Name of the KVServer (ipaddress:port)
+     * @param zooPort     ZK port
+     * @param zooHost     ZK host
+     * @param storageType Persistent storage backend
+     */
+    public KVServer(String name, int zooPort, String zooHost, StorageType storageType) {
         // Running as distributed system
         this.distributedMode = true;
         // TODO Check: Start as stopped status
@@ -170,15 +257,11 @@ public class KVServer implements IKVServer, Runnable {
         // Split server name to get port (provided in ipaddr:port format)
         this.port = Integer.parseInt(name.split(":")[1]);
 
-        // Check if file directory exists
-        File testFile = new File(dataDirectory);
-        if (!testFile.exists()) {
-            this.storage = new PersistentStorage(name);
-        }
-        // if exists, load into persistentStorage
-        else {
-            this.storage = new PersistentStorage(name, databaseName);
-        }
+        this.storageType = storageType;
+        this.storage = new VersionedStorage(
+                StorageFactory.createStorage(storageType, name, dataDirectory, databaseName));
+        initExpiry();
+        deleteStaleExports();
 
         // Hashed server name
         this.hashedName = storage.MD5Hash(name).toString();
@@ -457,6 +540,10 @@ public class KVServer implements IKVServer, Runnable {
                 return IKVServer.CacheStrategy.LFU;
             case "FIFO":
                 return IKVServer.CacheStrategy.FIFO;
+            case "TINYLFU":
+                return IKVServer.CacheStrategy.TINYLFU;
+            case "ARC":
+                return IKVServer.CacheStrategy.ARC;
             default:
                 return IKVServer.CacheStrategy.None;
         }
@@ -468,6 +555,25 @@ public class KVServer implements IKVServer, Runnable {
         return this.cacheSize;
     }
 
+    @Override
+    public long getCacheBytes() {
+        return this.cacheBytes;
+    }
+
+    @Override
+    public long getCacheBytesUsed() {
+        return cache != null ? cache.getBytesUsed() : 0;
+    }
+
+    /**
+     * Get the persistent storage backend of the server
+     * 
+     * @return storage type
+     */
+    public StorageType getStorageType() {
+        return this.storageType;
+    }
+
     @Override
     public boolean inStorage(String key) {
         // need method in persistent storage class
@@ -486,8 +592,139 @@ public class KVServer implements IKVServer, Runnable {
         }
     }
 
+    /** Load persisted TTLs, if there are any, and start expiring keys */
+    private void initExpiry() {
+        for (int i = 0; i < EXPIRY_LOCK_STRIPES; i++) {
+            expiryLocks[i] = new Object();
+        }
+        this.expiryWheel = new TimingWheel(TimingWheel.DEFAULT_TICK_MS, new TimingWheel.ExpiryListener() {
+            public void expired(List<String> keys) {
+                expireKeys(keys);
+            }
+        });
+        if (PersistentStorage.exists(name + EXPIRY_SUFFIX, databaseName)) {
+            // Keys that expired while the server was down go on the first tick
+            for (Map.Entry<String, String> entry : expiryStorage().returnAllEntries().entrySet()) {
+                expiryWheel.schedule(entry.getKey(), Long.parseLong(entry.getValue()));
+            }
+        }
+        logger.info("Loaded " + expiryWheel.size() + " key expiries");
+        expiryWheel.start();
+    }
+
+    /** @return The TTL store, opened on first use */
+    private IPersistentStorage expiryStorage() {
+        IPersistentStorage opened = this.expiryStorage;
+        if (opened == null) {
+            synchronized (expiryLocks) {
+                if (this.expiryStorage == null) {
+                    this.expiryStorage = new PersistentStorage(name + EXPIRY_SUFFIX, databaseName);
+                }
+                opened = this.expiryStorage;
+            }
+        }
+        return opened;
+    }
+
+    private Object expiryLockFor(String key) {
+        return expiryLocks[(key.hashCode() & 0x7fffffff) % EXPIRY_LOCK_STRIPES];
+    }
+
+    /**
+     * Set or clear the TTL of a key. Call with the key's expiry lock held.
+     *
+     * @param key        Key that was written
+     * @param deadlineMs Wall clock expiry in ms, or 0 if the key does not expire
+     */
+    private void setExpiry(String key, long deadlineMs) {
+        if (deadlineMs > 0) {
+            try {
+                expiryStorage().put(key, String.valueOf(deadlineMs));
+            } catch (Exception e) {
+                // Still expires on time unless the server restarts first
+                logger.error("Failed to persist expiry of key: " + key, e);
+            }
+            expiryWheel.schedule(key, deadlineMs);
+        } else if (expiryWheel.getDeadline(key) != null) {
+            expiryWheel.cancel(key);
+            expiryStorage().delete(key);
+        }
+    }
+
+    /**
+     * Delete keys whose TTL ran out, from storage, the cache and the TTL store.
+     * Replicas hold the same deadlines and expire their copies themselves.
+     *
+     * @param keys Keys fired by the timing wheel
+     */
+    private void expireKeys(List<String> keys) {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (String key : keys) {
+            synchronized (expiryLockFor(key)) {
+                // Skip keys written again since the wheel fired
+                if (!expiryWheel.isExpired(key, now)) {
+                    continue;
+                }
+                expiryWheel.cancel(key);
+                expiryStorage().delete(key);
+                storage.delete(key);
+                if (cache != null && cache.cacheActiveStatus() && cache.inCache(key)) {
+                    cache.delete(key);
+                }
+                expired++;
+            }
+        }
+        logger.info("Expired " + expired + " keys");
+    }
+
+    /**
+     * Wall clock expiry of the given keys that have a TTL, to send along with
+     * them.
+     *
+     * @param entries KV pairs about to be sent
+     * @return Key -> expiry in ms, or null if none of the keys expire
+     */
+    private Map<String, Long> expiriesOf(Map<String, String> entries) {
+        if (expiryWheel.size() == 0) {
+            return null;
+        }
+        Map<String, Long> expiries = new HashMap<String, Long>();
+        for (String key : entries.keySet()) {
+            Long deadline = expiryWheel.getDeadline(key);
+            if (deadline != null) {
+                expiries.put(key, deadline);
+            }
+        }
+        return expiries.isEmpty() ? null : expiries;
+    }
+
+    /**
+     * Take over the TTLs of received KV pairs. Keys sent without one lose any
+     * TTL they had here.
+     *
+     * @param entries  Received KV pairs, a blank or "null" value deletes the key
+     * @param expiries Key -> expiry in ms, may be null
+     */
+    private void applyExpiries(Map<String, String> entries, Map<String, Long> expiries) {
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            boolean deleted = value == null || value.isEmpty() || value.equals("null");
+            Long deadline = expiries == null ? null : expiries.get(key);
+            synchronized (expiryLockFor(key)) {
+                setExpiry(key, deleted || deadline == null ? 0 : deadline);
+            }
+        }
+    }
+
     @Override
     public String getKV(String key) throws Exception {
+        if (expiryWheel.isExpired(key, System.currentTimeMillis())) {
+            // Due, the wheel deletes it on its next tick
+            logger.error("Key: " + key + " has expired!");
+            throw new Exception("Failed to find key in storage!");
+        }
         String value = null;
         // Check cache first
         if (cache.cacheActiveStatus() == true) {
@@ -515,10 +752,24 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public void putKV(String key, String value) throws Exception {
+        putKV(key, value, 0);
+    }
+
+    @Override
+    public void putKV(String key, String value, long ttlMs) throws Exception {
+        synchronized (expiryLockFor(key)) {
+            putKVLocked(key, value);
+            // A delete or a write without a TTL clears any earlier TTL
+            setExpiry(key, value.isEmpty() || ttlMs <= 0 ? 0 : System.currentTimeMillis() + ttlMs);
+        }
+    }
+
+    /** Write or delete a KV pair, with the key's expiry lock held */
+    private void putKVLocked(String key, String value) throws Exception {
         // System.out.println("RECEIVED A PUT"+value);
         // If value was blank, delete
         if (value.equals("") || value == null) {
-            if (inStorage(key)) {
+            if (inStorage(key) && !expiryWheel.isExpired(key, System.currentTimeMillis())) {
                 // System.out.println("****A blank value was PUT, delete key: "+key);
                 // Delete key if no value was provided in put
                 storage.delete(key);
@@ -560,6 +811,40 @@ public class KVServer implements IKVServer, Runnable {
         // }
     }
 
+    /**
+     * Write a chunk of transferred or replicated KV pairs with one storage
+     * batch, then bring the cache in line.
+     * 
+     * @param entries KV pairs, a blank or "null" value deletes the key
+     * @return True if storage applied the batch
+     */
+    private boolean putBatchKV(Map<String, String> entries) {
+        Map<String, String> batch = new HashMap<String, String>(entries.size() * 2);
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String value = entry.getValue();
+            if (value == null || value.equals("null")) {
+                value = "";
+            }
+            batch.put(entry.getKey(), value);
+        }
+        if (!storage.applyBatch(batch)) {
+            return false;
+        }
+        if (cache.cacheActiveStatus()) {
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    // Deleting a missing key would throw off the cache's load count
+                    if (cache.inCache(entry.getKey())) {
+                        cache.delete(entry.getKey());
+                    }
+                } else {
+                    cache.putCache(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public void clearCache() {
         if (cache.cacheActiveStatus()) {
@@ -570,6 +855,10 @@ public class KVServer implements IKVServer, Runnable {
     @Override
     public void clearStorage() {
         storage.wipeStorage();
+        if (expiryStorage != null) {
+            expiryStorage.wipeStorage();
+        }
+        expiryWheel.clear();
         clearCache();
     }
 
@@ -635,6 +924,8 @@ public class KVServer implements IKVServer, Runnable {
     @Override
     public void close() {
         running = false;
+        expiryWheel.stop();
+        logger.info(String.format("Cache held %d bytes of keys and values", getCacheBytesUsed()));
         try {
             // Stop running threads gracefully
             for (int i = 0; i < threadList.size(); i++) {
@@ -646,6 +937,11 @@ public class KVServer implements IKVServer, Runnable {
             logger.error("Error! " +
                     "Unable to close socket on port: " + port, e);
         }
+        // Flush and stop the storage's background threads
+        storage.close();
+        if (expiryStorage != null) {
+            expiryStorage.close();
+        }
     }
 
     // ********************** Milestone 2 Modifications **********************
@@ -678,6 +974,11 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public void start() {
+        if (storage.isImportExpected()) {
+            // No snapshot before clients write, transfers and replicas fill in
+            storage.endImport();
+            logger.info("No snapshot arrived before START, a later one is ignored");
+        }
         status = ServerStatus.START;
         // Unlock server for writing
         locked = false;
@@ -739,6 +1040,10 @@ public class KVServer implements IKVServer, Runnable {
 
         // Set status to STOPPED - prevent client requests for now
         this.status = ServerStatus.STOP;
+
+        // A replacement node is seeded from a snapshot that may arrive after
+        // the transfers and replicas, which must keep their writes
+        storage.beginImport();
     }
 
     /**
@@ -762,9 +1067,12 @@ public class KVServer implements IKVServer, Runnable {
 
         logger.info("UPDATED hash ranges! New Begin: " + begin.toString() + " New End: " + end.toString());
 
-        // Acquire write lock - prevent further writing to this server since data is
-        // stale
-        lockWrite();
+        // Stream the entries to move from a snapshot instead of locking writes.
+        // Keys leaving the range are already rejected as not responsible, the
+        // rest keep being served.
+        releaseSnapshot(transferSnapshot);
+        transferSnapshot = storage.openSnapshot();
+        transferResend.clear();
 
         // REMOVE NODE - Check if the hash start and stop are 0,0
         // If so, this is a REMOVE update and all entries should be transferred away
@@ -773,87 +1081,108 @@ public class KVServer implements IKVServer, Runnable {
             logger.info("**** REMOVE SERVER (0,0 hash range): KVServer marked as to be deleted!");
             this.toBeDeleted = true;
 
-            // Get all entries to be transferred
-            Map<String, String> moveAllEntries = storage.returnAllEntries();
-            String unreachableEntriesString = null;
-            for (Map.Entry<String, String> entry : moveAllEntries.entrySet()) {
-                unreachableEntriesString += (entry.getKey() + '[' + entry.getValue() + ']');
-            }
-            logger.info("Removing node! Move all entries: " + unreachableEntriesString);
+            // Stream all entries to the successor
+            Iterator<Map.Entry<String, String>> moveAllEntries = transferSnapshot.entryIterator();
 
             // If no unreachable entries, no need to transfer entries to successor
-            if (moveAllEntries == null || moveAllEntries.isEmpty()) {
+            if (!moveAllEntries.hasNext()) {
                 logger.info("No unreachable entries in this TO BE REMOVED node!");
-                unLockWrite();
+                transferSnapshot = releaseSnapshot(transferSnapshot);
                 shutDown();
             }
 
-            // Some entries need to be moved. Send message to successor node.
+            // Some entries need to be moved. Send first chunk to successor node.
             else {
-                // Get the next node
-                ECSNode nextNode = localMetadata.getNextNode();
-
-                // Get metadata of destination server
-                Metadata transferServerMetadata = allMetadata
-                        .get(nextNode.getNodeHost() + ":" + nextNode.getNodePort());
-                // Build destination server name
-                String transferServerName = zooPathRoot + "/" + transferServerMetadata.getHost() + ":"
-                        + transferServerMetadata.getPort();
-                try {
-                    // Send admin message to destination
-                    // Message Type, metadata, data, to_server, from_server (allows recipient to
-                    // send confirmation back later)
-                    sendMessage(MessageType.TRANSFER_DATA, null, moveAllEntries, transferServerName, zooPathServer);
-                    logger.info("Sent a TRANSFER_DATA request to: " + transferServerName + " from " + zooPathServer);
-                } catch (InterruptedException | KeeperException e) {
-                    logger.error("Failed to send admin message with unreachable entries: ", e);
-                }
+                logger.info("Removing node! Moving all entries to successor..");
+                startDataTransfer(moveAllEntries);
             }
         }
 
         // UPDATE WITHOUT REMOVING NODE
         // Check if there are any unreachable entries and move to appropriate server
         else {
-            // Get unreachable entries based on current hash range
-            Map<String, String> unreachableEntries = storage.hashUnreachable(begin, end);
-            String unreachableEntriesString = null;
-            for (Map.Entry<String, String> entry : unreachableEntries.entrySet()) {
-                unreachableEntriesString += (entry.getKey() + '[' + entry.getValue() + ']');
-            }
-            logger.info("Updating metdata, not removing node. Move entries: " + unreachableEntriesString);
+            // Stream unreachable entries based on current hash range
+            Iterator<Map.Entry<String, String>> unreachableEntries = transferSnapshot.rangeIterator(begin, end, false);
 
             // If no unreachable entries, no need to transfer entries to successor
-            if (unreachableEntries == null || unreachableEntries.isEmpty()) {
+            if (!unreachableEntries.hasNext()) {
                 logger.info("No unreachable entries after hash range update..");
-                unLockWrite();
+                transferSnapshot = releaseSnapshot(transferSnapshot);
             }
             // If there are unreachable entries, send them to the next node
             else {
                 logger.info("Some unreachable entries found after hash range update..moving..");
+                startDataTransfer(unreachableEntries);
+                // The snapshot is released once the last TRANSFER_DATA_COMPLETE comes back in
+            }
+        }
 
-                // Get the next node
-                ECSNode nextNode = localMetadata.getNextNode();
+    }
 
-                // Get metadata of destination server
-                Metadata transferServerMetadata = allMetadata
-                        .get(nextNode.getNodeHost() + ":" + nextNode.getNodePort());
-                // Build destination server name
-                String transferServerName = zooPathRoot + "/" + transferServerMetadata.getHost() + ":"
-                        + transferServerMetadata.getPort();
-                try {
-                    // Send admin message to destination
-                    // Message Type, metadata, data, to_server, from_server (allows recipient to
-                    // send confirmation back later)
-                    sendMessage(MessageType.TRANSFER_DATA, null, unreachableEntries, transferServerName, zooPathServer);
-                    logger.info("Sent a TRANSFER_DATA request to: " + transferServerName + " from " + zooPathServer);
-                } catch (InterruptedException | KeeperException e) {
-                    logger.error("Failed to send admin message with unreachable entries: ", e);
-                }
-                // Don't release write lock until TRANSFER_DATA_COMPLETE comes back in
-                // unLockWrite();
-            }
+    /**
+     * Let go of a storage snapshot, if there is one.
+     *
+     * @param snapshot Snapshot to release, may be null
+     * @return Always null, to clear the field holding the snapshot
+     */
+    private VersionedStorage.Snapshot releaseSnapshot(VersionedStorage.Snapshot snapshot) {
+        if (snapshot != null) {
+            snapshot.release();
+        }
+        return null;
+    }
+
+    /**
+     * Start streaming entries to the successor node, one chunk at a time.
+     *
+     * @param entries Entries to move away from this server
+     */
+    private void startDataTransfer(Iterator<Map.Entry<String, String>> entries) {
+        // Get the next node
+        ECSNode nextNode = localMetadata.getNextNode();
+
+        // Get metadata of destination server
+        Metadata transferServerMetadata = allMetadata
+                .get(nextNode.getNodeHost() + ":" + nextNode.getNodePort());
+        // Build destination server name
+        this.transferServerName = zooPathRoot + "/" + transferServerMetadata.getHost() + ":"
+                + transferServerMetadata.getPort();
+        this.transferCursor = entries;
+        sendTransferChunk();
+    }
+
+    /** Send the next chunk of the current data transfer to the successor */
+    private void sendTransferChunk() {
+        transferChunk = nextChunk(transferCursor);
+        try {
+            // Send admin message to destination
+            // Message Type, metadata, data, to_server, from_server (allows recipient to
+            // send confirmation back later)
+            sendMessage(MessageType.TRANSFER_DATA, null, transferChunk, expiriesOf(transferChunk), transferServerName,
+                    zooPathServer);
+            logger.info("Sent a TRANSFER_DATA request with " + transferChunk.size() + " entries to: "
+                    + transferServerName + " from " + zooPathServer);
+        } catch (InterruptedException | KeeperException e) {
+            logger.error("Failed to send admin message with unreachable entries: ", e);
         }
+    }
 
+    /**
+     * Pull entries off a cursor until the chunk reaches TRANSFER_CHUNK_BYTES.
+     *
+     * @param cursor Storage cursor, advanced past the returned entries
+     * @return Next chunk of entries, at least one if the cursor has any left
+     */
+    private Map<String, String> nextChunk(Iterator<Map.Entry<String, String>> cursor) {
+        Map<String, String> chunk = new HashMap<String, String>();
+        int chunkBytes = 0;
+        while (cursor.hasNext() && chunkBytes < TRANSFER_CHUNK_BYTES) {
+            Map.Entry<String, String> entry = cursor.next();
+            chunk.put(entry.getKey(), entry.getValue());
+            chunkBytes += entry.getKey().getBytes(StandardCharsets.UTF_8).length
+                    + entry.getValue().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return chunk;
     }
 
 
@@ -873,85 +1202,96 @@ public class KVServer implements IKVServer, Runnable {
         }
         logger.info("Replicating single entry: " + reachableEntriesString);
 
-        // Acquire write lock - prevent further writing to this server for now
-        lockWrite();
-
-        // If no reachable entries, no need to transfer entries to successor
+        // No write lock: the entry is sent as written, later writes follow in
+        // their own replication
         if (reachableEntries == null || reachableEntries.isEmpty()) {
             logger.info("No reachable entries to replicate. Done...");
-            unLockWrite();
         }
         // If there are reachable entries, send them to the next, prev node
         else {
             logger.info("Single entry found...replicating!");
+            sendReplicas(reachableEntries);
+        }
+    }
 
-            if (allMetadata.size() == 2){
-                // Wait for prev server to confirm
-                replicaConfirmationWaitCount = 1;
-            }
-            else if (allMetadata.size() >= 3){
-                // Wait for prev and next server to confirm
-                replicaConfirmationWaitCount = 2;
+    /**
+     * Send entries to the previous and next servers and set how many
+     * confirmations to wait for.
+     *
+     * @param reachableEntries Entries to replicate
+     * @return Sequence of the replication message, 0 if there is no replica
+     *         to send it to
+     */
+    private long sendReplicas(Map<String, String> reachableEntries) {
+        int waitCount = 0;
+        if (allMetadata.size() == 2){
+            // Wait for prev server to confirm
+            waitCount = 1;
+        }
+        else if (allMetadata.size() >= 3){
+            // Wait for prev and next server to confirm
+            waitCount = 2;
+        }
+        if (waitCount == 0) {
+            return 0;
+        }
+        long sequence = replicaSequence.incrementAndGet();
+        replicaConfirmationWaitCounts.put(sequence, new AtomicInteger(waitCount));
+
+        logger.info("Now waiting on: " + Integer.toString(waitCount) + " servers to confirm replicate " + sequence + ".");
+
+        // If there are at least 2 servers, send to prev
+        if (allMetadata.size() >= 2){
+            // Get the prev node
+            ECSNode prevNode = localMetadata.getPrevNode();
+            // Get metadata of destination server
+            Metadata transferServerMetadata = allMetadata
+                    .get(prevNode.getNodeHost() + ":" + prevNode.getNodePort());
+            // Build prev server name
+            String transferServerName = zooPathRootPrev + "/" + transferServerMetadata.getHost() + ":"
+                    + transferServerMetadata.getPort();
+            try {
+                // Send admin message to destination
+                // Message Type, metadata, data, to_server, from_server (allows recipient to
+                // send confirmation back later)
+                sendReplicaMessage(MessageType.REPLICATE_DATA, reachableEntries, expiriesOf(reachableEntries),
+                        sequence, transferServerName);
+                logger.info("*** Replicating " + reachableEntries.size() + " entries to prev! Sent a REPLICATE_DATA request to: " + transferServerName + " from " + zooPathServer);
+            } catch (InterruptedException | KeeperException e) {
+                logger.error("Failed to replicate to prev: ", e);
             }
+        }
 
-            logger.info("Now waiting on: " + Integer.toString(replicaConfirmationWaitCount) + " servers to confirm replicate.");
-
-            // If there are at least 2 servers, send to prev
-            if (allMetadata.size() >= 2){
-                // Get the prev node
-                ECSNode prevNode = localMetadata.getPrevNode();
-                // Get metadata of destination server
-                Metadata transferServerMetadata = allMetadata
-                        .get(prevNode.getNodeHost() + ":" + prevNode.getNodePort());
-                // Build prev server name
-                String transferServerName = zooPathRootPrev + "/" + transferServerMetadata.getHost() + ":"
-                        + transferServerMetadata.getPort();
-                try {
-                    logger.info("*** Try to replicate single entry to prev! Sending a REPLICATE_DATA request to: " + transferServerName + " from " + zooPathServer);
-                    // Send admin message to destination
-                    // Message Type, metadata, data, to_server, from_server (allows recipient to
-                    // send confirmation back later)
-                    sendMessage(MessageType.REPLICATE_DATA, null, reachableEntries, transferServerName, zooPathServer);
-                    logger.info("*** Replicating single entry to prev! Sent a REPLICATE_DATA request to: " + transferServerName + " from " + zooPathServer);
-                } catch (InterruptedException | KeeperException e) {
-                    logger.error("Failed to replicate single entry to prev: ", e);
-                }
-            }
+        // Wait before sending next
+        CountDownLatch latch = new CountDownLatch(1000);
+        try {
+            latch.await(1000, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.error("Error during await");
+        }
 
-            // Wait before sending next
-            CountDownLatch latch = new CountDownLatch(1000);
+        // If there are at least 3 servers, send to next
+        if (allMetadata.size() >= 3){
+            // Get the next node
+            ECSNode nextNode = localMetadata.getNextNode();
+            // Get metadata of destination server
+            Metadata transferServerMetadata = allMetadata
+                    .get(nextNode.getNodeHost() + ":" + nextNode.getNodePort());
+            // Build next server name
+            String transferServerName = zooPathRootNext + "/" + transferServerMetadata.getHost() + ":"
+                    + transferServerMetadata.getPort();
             try {
-                latch.await(1000, TimeUnit.MILLISECONDS);
-            } catch (Exception e) {
-                logger.error("Error during await");
+                // Send admin message to destination
+                // Message Type, metadata, data, to_server, from_server (allows recipient to
+                // send confirmation back later)
+                sendReplicaMessage(MessageType.REPLICATE_DATA, reachableEntries, expiriesOf(reachableEntries),
+                        sequence, transferServerName);
+                logger.info("*** Replicating " + reachableEntries.size() + " entries to next! Sent a REPLICATE_DATA request to: " + transferServerName + " from " + zooPathServer);
+            } catch (InterruptedException | KeeperException e) {
+                logger.error("Failed to replicate to next: ", e);
             }
-
-            // If there are at least 3 servers, send to next
-            if (allMetadata.size() >= 3){
-                // Get the next node
-                ECSNode nextNode = localMetadata.getNextNode();
-                // Get metadata of destination server
-                Metadata transferServerMetadata = allMetadata
-                        .get(nextNode.getNodeHost() + ":" + nextNode.getNodePort());
-                // Build next server name
-                String transferServerName = zooPathRootNext + "/" + transferServerMetadata.getHost() + ":"
-                        + transferServerMetadata.getPort();
-                try {
-                    logger.info("*** Try to replicate single entry to next! Sending a REPLICATE_DATA request to: " + transferServerName + " from " + zooPathServer);
-                    // Send admin message to destination
-                    // Message Type, metadata, data, to_server, from_server (allows recipient to
-                    // send confirmation back later)
-                    sendMessage(MessageType.REPLICATE_DATA, null, reachableEntries, transferServerName, zooPathServer);
-                    logger.info("*** Replicating single entry to next! Sent a REPLICATE_DATA request to: " + transferServerName + " from " + zooPathServer);
-                } catch (InterruptedException | KeeperException e) {
-                    logger.error("Failed to replicate single entry to next: ", e);
-                }
-            }
-
-            // TODO - check if we need to wait for confirmation that replication
-            // is complete, before unlocking
-            // unLockWrite();
         }
+        return sequence;
     }
 
 
@@ -966,109 +1306,84 @@ public class KVServer implements IKVServer, Runnable {
         BigInteger begin = localMetadata.getHashStart();
         BigInteger end = localMetadata.getHashStop();
 
-        // Acquire write lock - prevent further writing to this server for now
-        lockWrite();
-
-        // Replicate without removing root node
-        // Get reachable entries based on current hash range
-        Map<String, String> reachableEntries = storage.hashReachable(begin, end);
-        String reachableEntriesString = null;
-        for (Map.Entry<String, String> entry : reachableEntries.entrySet()) {
-            reachableEntriesString += (entry.getKey() + '[' + entry.getValue() + ']');
-        }
-        logger.info("Replicating entries: " + reachableEntriesString);
-
-        // If no reachable entries, no need to transfer entries to successor
-        if (reachableEntries == null || reachableEntries.isEmpty()) {
-            logger.info("No reachable entries to replicate. Done...");
-            unLockWrite();
-        }
-        // If there are reachable entries, send them to the next, prev node
-        else {
-            logger.info("Some reachable entries found...replicating!");
-
-            if (allMetadata.size() == 2){
-                // Wait for prev server to confirm
-                replicaConfirmationWaitCount = 1;
+        synchronized (replicationStreamLock) {
+            // Replicate a snapshot of the range while clients keep writing, their
+            // writes are replicated one by one as they come in. A stream still in
+            // flight is abandoned, confirmations of its chunks are ignored.
+            releaseSnapshot(replicationSnapshot);
+            replicationSnapshot = storage.openSnapshot();
+
+            // Replicate without removing root node
+            // Stream reachable entries based on current hash range
+            Iterator<Map.Entry<String, String>> reachableEntries = replicationSnapshot.rangeIterator(begin, end, true);
+
+            // If no reachable entries, no need to transfer entries to successor
+            if (!reachableEntries.hasNext()) {
+                logger.info("No reachable entries to replicate. Done...");
+                endReplicationStream();
             }
-            else if (allMetadata.size() >= 3){
-                // Wait for prev and next server to confirm
-                replicaConfirmationWaitCount = 2;
-            }
-
-            logger.info("Now waiting on: " + Integer.toString(replicaConfirmationWaitCount) + " servers to confirm replicate.");
-             
-            // If there are at least 2 servers, send to prev
-            if (allMetadata.size() >= 2){
-                // Get the prev node
-                ECSNode prevNode = localMetadata.getPrevNode();
-                // Get metadata of destination server
-                Metadata transferServerMetadata = allMetadata
-                        .get(prevNode.getNodeHost() + ":" + prevNode.getNodePort());
-                // Build prev server name
-                String transferServerName = zooPathRootPrev + "/" + transferServerMetadata.getHost() + ":"
-                        + transferServerMetadata.getPort();
-                try {
-                    // Send admin message to destination
-                    // Message Type, metadata, data, to_server, from_server (allows recipient to
-                    // send confirmation back later)
-                    sendMessage(MessageType.REPLICATE_DATA, null, reachableEntries, transferServerName, zooPathServer);
-                    logger.info("*** Replicating to prev! Sent a REPLICATE_DATA request to: " + transferServerName + " from " + zooPathServer);
-                } catch (InterruptedException | KeeperException e) {
-                    logger.error("Failed to replicate to prev: ", e);
-                }
-            }
-
-            // Wait before sending next
-            CountDownLatch latch = new CountDownLatch(1000);
-            try {
-                latch.await(1000, TimeUnit.MILLISECONDS);
-            } catch (Exception e) {
-                logger.error("Error during await");
+            // If there are reachable entries, send them to the next, prev node
+            else {
+                logger.info("Some reachable entries found...replicating!");
+                replicationCursor = reachableEntries;
+                sendReplicationChunk();
+                // Remaining chunks go out as confirmations come back in,
+                // the snapshot is released after the last one
             }
+        }
+    }
 
-            // If there are at least 3 servers, send to next
-            if (allMetadata.size() >= 3){
-                // Get the next node
-                ECSNode nextNode = localMetadata.getNextNode();
-                // Get metadata of destination server
-                Metadata transferServerMetadata = allMetadata
-                        .get(nextNode.getNodeHost() + ":" + nextNode.getNodePort());
-                // Build next server name
-                String transferServerName = zooPathRootNext + "/" + transferServerMetadata.getHost() + ":"
-                        + transferServerMetadata.getPort();
-                try {
-                    // Send admin message to destination
-                    // Message Type, metadata, data, to_server, from_server (allows recipient to
-                    // send confirmation back later)
-                    sendMessage(MessageType.REPLICATE_DATA, null, reachableEntries, transferServerName, zooPathServer);
-                    logger.info("*** Replicating to next! Sent a REPLICATE_DATA request to: " + transferServerName + " from " + zooPathServer);
-                } catch (InterruptedException | KeeperException e) {
-                    logger.error("Failed to replicate to next: ", e);
-                }
-            }
-            // TODO - check if we need to wait for confirmation that replication
-            // is complete, before unlocking
-            //unLockWrite();
+    /** Send the next chunk of the replicate() stream, or end it if no replica is left to send to */
+    private void sendReplicationChunk() {
+        replicationChunkSequence = sendReplicas(nextChunk(replicationCursor));
+        if (replicationChunkSequence == 0) {
+            logger.info("No replicas to send to. Done...");
+            endReplicationStream();
         }
     }
 
+    private void endReplicationStream() {
+        replicationCursor = null;
+        replicationChunkSequence = 0;
+        replicationSnapshot = releaseSnapshot(replicationSnapshot);
+    }
+
     /**
      * Target server responded with a confirmation that replicate is done
      * Now we can permit writes/reads on the coordinator
      * @param adminMessageString Incoming admin message string
      */
     public void confirmReplicate(String adminMessageString) {
-        logger.info("Outgoing replication completed! Received 1 acknowledgement!");
+        long sequence = new AdminMessage(adminMessageString).getMsgSequence();
+        logger.info("Outgoing replication " + sequence + " completed! Received 1 acknowledgement!");
         // Check how many servers we are waiting on
-        replicaConfirmationWaitCount -= 1;
+        AtomicInteger waitCount = replicaConfirmationWaitCounts.get(sequence);
+        if (waitCount == null) {
+            logger.info("Ignoring confirmation of unknown or abandoned replicate " + sequence);
+            return;
+        }
+        int remaining = waitCount.decrementAndGet();
+        logger.info(Integer.toString(remaining) + " servers remaining in replica confirm wait count.");
+        if (remaining > 0) {
+            return;
+        }
+        replicaConfirmationWaitCounts.remove(sequence);
 
-        logger.info(Integer.toString(replicaConfirmationWaitCount) + " servers remaining in replica confirm wait count.");
+        synchronized (replicationStreamLock) {
+            if (sequence != replicationChunkSequence) {
+                // A single entry replicated by a client write
+                return;
+            }
+            // Send the next chunk of an ongoing replicate
+            if (replicationCursor != null && replicationCursor.hasNext()) {
+                logger.info("Replicate chunk confirmed, sending next chunk!");
+                sendReplicationChunk();
+                return;
+            }
 
-        // Release the write lock since data is now up to date across the board
-        if (replicaConfirmationWaitCount == 0){
-            logger.info("******* RELEASE WRITE LOCK (all replicate confirms received)!");
-            unLockWrite();
+            // Data is now up to date across the board
+            logger.info("******* All replicate confirms received, releasing snapshot!");
+            endReplicationStream();
         }
     }
 
@@ -1086,7 +1401,24 @@ public class KVServer implements IKVServer, Runnable {
      */
     public void sendMessage(MessageType type, Map<String, Metadata> metadata, Map<String, String> data,
             String toServer, String fromServer) throws KeeperException, InterruptedException {
-        AdminMessage toSend = new AdminMessage(type, metadata, data, fromServer);
+        sendMessage(type, metadata, data, null, toServer, fromServer);
+    }
+
+    /**
+     * Send new admin message with the TTLs of the sent KV entries
+     * 
+     * @param type       Message type
+     * @param metadata   Metadata map to be sent
+     * @param data       New KV entries to be transfered
+     * @param expiries   Expiry in ms of the entries that have a TTL, may be null
+     * @param toServer   Name of destination server (full name: (root/host:port))
+     * @param fromServer Name of sender server (root/host:port)
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void sendMessage(MessageType type, Map<String, Metadata> metadata, Map<String, String> data,
+            Map<String, Long> expiries, String toServer, String fromServer) throws KeeperException, InterruptedException {
+        AdminMessage toSend = new AdminMessage(type, metadata, data, fromServer, expiries);
         logger.info("Admin Message sent with SENDING SERVER FIELD: " + toSend.getSendingServer());
         try{
             zoo.setData(toServer, toSend.toBytes(), zoo.exists(toServer, false).getVersion());
@@ -1096,6 +1428,28 @@ public class KVServer implements IKVServer, Runnable {
         }
     }
 
+    /**
+     * Send a replication message, or its confirmation, carrying its sequence
+     *
+     * @param type       REPLICATE_DATA or REPLICATE_COMPLETE
+     * @param data       Entries to replicate, null for a confirmation
+     * @param expiries   Expiry in ms of the entries that have a TTL, may be null
+     * @param sequence   Sequence of the replication message
+     * @param toServer   Name of destination server (full name: (root/host:port))
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private void sendReplicaMessage(MessageType type, Map<String, String> data, Map<String, Long> expiries,
+            long sequence, String toServer) throws KeeperException, InterruptedException {
+        AdminMessage toSend = new AdminMessage(type, data, zooPathServer, expiries, sequence);
+        try {
+            zoo.setData(toServer, toSend.toBytes(), zoo.exists(toServer, false).getVersion());
+            logger.info("Sent an admin message to: " + toServer);
+        } catch (Exception e) {
+            logger.error("FAILED to send admin message to: " + toServer);
+        }
+    }
+
     /**
      * Target server responded with a confirmation that KV pairs have been
      * transferred.
@@ -1108,27 +1462,47 @@ public class KVServer implements IKVServer, Runnable {
         BigInteger begin = localMetadata.getHashStart();
         BigInteger end = localMetadata.getHashStop();
 
-        // Get unreachable entries based on current hash range
-        Map<String, String> unreachableEntries = storage.hashUnreachable(begin, end);
-
-        // Iterate through unreachable entries and remove from storage
-        Iterator itr = unreachableEntries.entrySet().iterator();
-
-        while (itr.hasNext()) {
-            Map.Entry keyVal = (Map.Entry) itr.next();
-            String key = (String) keyVal.getKey();
-            if (!storage.keyValid(begin, end, storage.MD5Hash(key))) {
-                // Remove unreachable KV Pairs from disk
-                // Cached version
-                try {
-                    putKV(key, "");
-                } catch (Exception e) {
-                    logger.error("Failed to remove unreachable KV pair from disk after confirm data transfer: " + e);
+        // Remove the confirmed chunk, it now lives on the successor. A node
+        // being removed wipes its storage once the last chunk is confirmed.
+        if (transferChunk != null) {
+            for (String key : transferChunk.keySet()) {
+                if (transferSnapshot != null && transferSnapshot.modifiedSince(key)) {
+                    // Written while the transfer was running, e.g. by a client
+                    // request checked against the old metadata, so the sent
+                    // value is stale
+                    logger.info("Sending key written during data transfer again: " + key);
+                    transferResend.add(key);
+                } else if (this.toBeDeleted) {
+                    // Wiped with everything else once the last chunk is confirmed
+                    continue;
+                } else if (!storage.keyValid(begin, end, storage.MD5Hash(key))) {
+                    // Remove unreachable KV Pairs from disk
+                    // Cached version
+                    try {
+                        putKV(key, "");
+                    } catch (Exception e) {
+                        logger.error("Failed to remove unreachable KV pair from disk after confirm data transfer: " + e);
+                    }
+                } else {
+                    logger.error("Failed to remove unreachable KV pair from disk - reachable conflict!");
                 }
-            } else {
-                logger.error("Failed to remove unreachable KV pair from disk - reachable conflict!");
             }
         }
+        transferChunk = null;
+
+        // Once the snapshot is streamed, send the keys written meanwhile
+        if (transferCursor != null && !transferCursor.hasNext() && !transferResend.isEmpty()) {
+            transferCursor = resendCursor(begin, end);
+        }
+
+        // Keep streaming until the whole range has been moved
+        if (transferCursor != null && transferCursor.hasNext()) {
+            logger.info("Data transfer chunk confirmed, sending next chunk!");
+            sendTransferChunk();
+            return;
+        }
+        transferCursor = null;
+        transferSnapshot = releaseSnapshot(transferSnapshot);
 
         logger.info("Outgoing data transfer completed!");
 
@@ -1139,13 +1513,39 @@ public class KVServer implements IKVServer, Runnable {
             shutDown();
         }
 
-        // Release the write lock since data is now up to date
-        unLockWrite();
-
         // Milestone 3: Add a replication call after metadata updated and entries transferred
         replicate();
     }
 
+    /**
+     * Read the keys to send again from a fresh snapshot. Keys written after
+     * it are caught by the next confirmation and sent once more.
+     *
+     * @param begin Current start of this server's hash range
+     * @param end   Current end of this server's hash range
+     * @return Current values of the keys, empty for keys deleted since
+     */
+    private Iterator<Map.Entry<String, String>> resendCursor(BigInteger begin, BigInteger end) {
+        releaseSnapshot(transferSnapshot);
+        transferSnapshot = storage.openSnapshot();
+        Map<String, String> resend = new HashMap<String, String>();
+        for (String key : transferResend) {
+            if (!this.toBeDeleted && storage.keyValid(begin, end, storage.MD5Hash(key))) {
+                // Back in this server's range, nothing to hand over
+                continue;
+            }
+            try {
+                String value = transferSnapshot.get(key);
+                // An empty value deletes the stale copy on the successor
+                resend.put(key, value == null ? "" : value);
+            } catch (Exception e) {
+                logger.error("Failed to read key written during data transfer: " + key, e);
+            }
+        }
+        transferResend.clear();
+        return resend.entrySet().iterator();
+    }
+
     /**
      * Receive new incoming KV Pairs and store into persistent storage
      * 
@@ -1159,36 +1559,13 @@ public class KVServer implements IKVServer, Runnable {
 
         logger.info("Trying to process incoming data transfer from: " + incomingMessage.getSendingServer());
 
-        // Acquire write lock
-        lockWrite();
+        // The chunk is applied as one storage version, clients are not locked out
         Map<String, String> incomingData = incomingMessage.getMsgKeyValue();
-        Iterator<Map.Entry<String, String>> itr = incomingData.entrySet().iterator();
-        // Loop through KV entries in incoming data
-        while (itr.hasNext()) {
-            Map.Entry<String, String> entry = itr.next();
-            // TODO - Check this logic
-            if ( (entry.getValue().toString().equals("") || entry.getValue().toString().equals("null") || entry.getValue().length()==0)) {
-                // No cache (old version)
-                // storage.delete(entry.getKey());
-                // Cached version
-                // Cached version
-                try {
-                    putKV(entry.getKey().toString(), "");
-                } catch (Exception e) {
-                    logger.error("Failed to PUT DELETE incoming data transfer from distributed server: " + e);
-                }
-            }
-            // Write new entries to disk
-            else {
-                // No cache (old version)
-                // storage.put(entry.getKey().toString(), entry.getValue().toString());
-                // Cached version
-                try {
-                    putKV(entry.getKey().toString(), entry.getValue().toString());
-                } catch (Exception e) {
-                    logger.error("Failed to PUT incoming data transfer from distributed server: " + e);
-                }
-            }
+        // Write the whole chunk to disk at once
+        if (!putBatchKV(incomingData)) {
+            logger.error("Failed to PUT incoming data transfer from distributed server!");
+        } else {
+            applyExpiries(incomingData, incomingMessage.getMsgExpiries());
         }
 
         // Send confirmation message (data transfer complete) back to sender server
@@ -1206,9 +1583,6 @@ public class KVServer implements IKVServer, Runnable {
         } catch (InterruptedException | KeeperException e) {
             logger.error("Failed to send TRANSFER_DATA_COMPLETE admin message to sender server: ", e);
         }
-
-        // Release write lock
-        unLockWrite();
     }
 
 
@@ -1226,8 +1600,7 @@ public class KVServer implements IKVServer, Runnable {
 
         logger.info("Trying to process incoming replica transfer from: " + incomingMessage.getSendingServer());
 
-        // Acquire write lock
-        lockWrite();
+        // The chunk is applied as one storage version, clients are not locked out
         Map<String, String> incomingData = incomingMessage.getMsgKeyValue();
 
         String replicaString = null;
@@ -1240,26 +1613,11 @@ public class KVServer implements IKVServer, Runnable {
 
         logger.info("Received entries to replicate: " + replicaString);
 
-        Iterator<Map.Entry<String, String>> itr = incomingData.entrySet().iterator();
-        // Loop through KV entries in incoming data
-        while (itr.hasNext()) {
-            Map.Entry<String, String> entry = itr.next();
-            // TODO - Check this logic
-            if (entry.getValue().toString().equals("") || entry.getValue().toString().equals("null") || entry.getValue().length()==0) {
-                try {
-                    putKV(entry.getKey().toString(), "");
-                } catch (Exception e) {
-                    logger.error("Failed to PUT DELETE incoming replica from distributed server: " + e);
-                }
-            }
-            // Write new entries to disk
-            else {
-                try {
-                    putKV(entry.getKey().toString(), entry.getValue().toString());
-                } catch (Exception e) {
-                    logger.error("Failed to PUT incoming replica from distributed server: " + e);
-                }
-            }
+        // Write the whole chunk to disk at once
+        if (!putBatchKV(incomingData)) {
+            logger.error("Failed to PUT incoming replica from distributed server!");
+        } else {
+            applyExpiries(incomingData, incomingMessage.getMsgExpiries());
         }
         // Send confirmation message (replication complete) back to sender server
         String originServerName = incomingMessage.getSendingServer();
@@ -1268,16 +1626,106 @@ public class KVServer implements IKVServer, Runnable {
         try {
             // Send admin message to sender server
             // Message type, metadata, data, to_server, from_server
-            sendMessage(MessageType.REPLICATE_COMPLETE, null, null, originServerName, zooPathServer);
+            sendReplicaMessage(MessageType.REPLICATE_COMPLETE, null, null, incomingMessage.getMsgSequence(),
+                    originServerName);
             logger.info("Sent a REPLICATE_COMPLETE to: " + originServerName + " from " + zooPathServer);
         } catch (InterruptedException | KeeperException e) {
             logger.error("Failed to send REPLICATE_COMPLETE admin message to sender server: ", e);
         }
-        // Release write lock
-        unLockWrite();
     }
 
 
+    /**
+     * Export the requested hash range as of one storage version to a snapshot
+     * file and tell the requesting server where to find it. The servers share
+     * the data directory, so the file is read in place.
+     * 
+     * @param adminMessageString Incoming admin message string
+     */
+    @Override
+    public void processSnapshotRequest(String adminMessageString) {
+        AdminMessage incomingMessage = new AdminMessage(adminMessageString);
+        String requestingServerName = incomingMessage.getSendingServer();
+        Map<String, String> request = incomingMessage.getMsgKeyValue();
+        logger.info("Trying to export a snapshot for: " + requestingServerName);
+
+        BigInteger begin = new BigInteger(request.get("hashStart"));
+        BigInteger end = new BigInteger(request.get("hashStop"));
+        File file = new File(dataDirectory, name + EXPORT_INFIX + System.currentTimeMillis() + EXPORT_SUFFIX);
+        VersionedStorage.Snapshot snapshot = storage.openSnapshot();
+        Map<String, String> ready = new HashMap<String, String>();
+        try {
+            RangeSnapshotFile exported = snapshot.exportRange(begin, end, file, true);
+            logger.info("Exported " + exported.getEntries() + " entries to snapshot " + file.getPath());
+            ready.put("file", file.getAbsolutePath());
+        } catch (IOException e) {
+            logger.error("Failed to export snapshot for " + requestingServerName + ": ", e);
+            file.delete();
+        } finally {
+            snapshot.release();
+        }
+
+        try {
+            // An empty reply tells the requester to rely on transfers and replicas
+            sendMessage(MessageType.SNAPSHOT_READY, null, ready, requestingServerName, zooPathServer);
+        } catch (InterruptedException | KeeperException e) {
+            logger.error("Failed to send SNAPSHOT_READY admin message to requesting server: ", e);
+        }
+    }
+
+    /**
+     * Delete range snapshots this server exported before it last stopped.
+     * The requester deletes a snapshot once loaded, but one that never got
+     * to load it, e.g. because it went down first, leaves it behind.
+     */
+    private void deleteStaleExports() {
+        File[] files = new File(dataDirectory).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.startsWith(name + EXPORT_INFIX) && fileName.endsWith(EXPORT_SUFFIX)) {
+                if (file.delete()) {
+                    logger.info("Deleted stale snapshot export " + fileName);
+                } else {
+                    logger.error("Failed to delete stale snapshot export " + fileName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bulk-load a snapshot file exported by another server, then delete it.
+     * Keys written or deleted by transfers or replicas since INIT are kept,
+     * so those may arrive before the import finishes.
+     * 
+     * @param adminMessageString Incoming admin message string
+     */
+    @Override
+    public void processSnapshotReady(String adminMessageString) {
+        AdminMessage incomingMessage = new AdminMessage(adminMessageString);
+        Map<String, String> ready = incomingMessage.getMsgKeyValue();
+        if (ready == null || ready.get("file") == null) {
+            logger.error("No snapshot exported by " + incomingMessage.getSendingServer() + ", skipping bulk load");
+            storage.endImport();
+            return;
+        }
+
+        File file = new File(ready.get("file"));
+        try {
+            RangeSnapshotFile loaded = storage.importRange(file);
+            logger.info("Loaded " + loaded.getEntries() + " entries from snapshot of "
+                    + incomingMessage.getSendingServer());
+        } catch (IOException e) {
+            logger.error("Failed to load snapshot " + file.getPath() + ": ", e);
+        } finally {
+            file.delete();
+        }
+        // Loaded values bypassed the cache
+        clearCache();
+    }
+
     public boolean distributed() {
         return distributedMode;
     }
@@ -1324,10 +1772,12 @@ public class KVServer implements IKVServer, Runnable {
                 Map<String, Metadata> cacheMetadataAll = incomingMessage.getMsgMetadata();
                 Metadata cacheMetdataLocal = cacheMetadataAll.get(name);
                 this.cacheSize = cacheMetdataLocal.getCacheSize();
+                this.cacheBytes = cacheMetdataLocal.getCacheBytes();
                 // TODO Check if this works to convert enum to string
                 this.strategy = cacheMetdataLocal.getCacheStrategy().name();
-                this.cache = new kvCacheOperator(cacheSize, strategy);
-                logger.info("Finished getting cache size, strategy from metadata! Strat: " + this.strategy);
+                this.cache = new kvCacheOperator(cacheSize, cacheBytes, strategy);
+                logger.info("Finished getting cache size, strategy from metadata! Strat: " + this.strategy
+                        + (cacheBytes > 0 ? ", budget: " + ByteSize.format(cacheBytes) : ", size: " + cacheSize));
             }
 
             // Now we check what type of message we got
@@ -1371,6 +1821,14 @@ public class KVServer implements IKVServer, Runnable {
                 // Incoming confirmation, replicate complete on another server
                 logger.info("Got admin message REPLICATE_COMPLETE (data transfer completed)!");
                 confirmReplicate(adminMessageString);
+            } else if (incomingMessageType == MessageType.SNAPSHOT_REQUEST) {
+                // Export a hash range for a server being seeded
+                logger.info("Got admin message SNAPSHOT_REQUEST!");
+                processSnapshotRequest(adminMessageString);
+            } else if (incomingMessageType == MessageType.SNAPSHOT_READY) {
+                // Bulk-load the snapshot exported for this server
+                logger.info("Got admin message SNAPSHOT_READY!");
+                processSnapshotReady(adminMessageString);
             }
             // else if (incomingMessageType == MessageType.LOCKWRITE){
             // lockWrite();
@@ -1396,17 +1854,35 @@ public class KVServer implements IKVServer, Runnable {
         try {
             // TODO turn off logging temporarily for server
             new LogSetup("logs/server.log", Level.ALL);
-            if (args.length != 3) {
+            if (args.length != 3 && args.length != 4) {
                 System.out.println("Error! Invalid number of arguments!");
                 System.out
-                        .println("Usage: M1: Server <port> <cachesize> <cachetype>!\n M2: Server <name> <port> <host>");
+                        .println("Usage: M1: Server <port> <cachesize> <cachetype> [storagetype]!\n M2: Server <name> <port> <host> [storagetype]");
             } else {
+                // Optional storage backend, defaults to the properties file
+                StorageType storageType = StorageType.PROPERTIES;
+                if (args.length == 4) {
+                    try {
+                        storageType = StorageType.valueOf(args[3].toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Error! Invalid argument 4: Unknown storage type " + args[3] + "!");
+                        System.out.println("Valid storage types: " + Arrays.toString(StorageType.values()));
+                        System.exit(1);
+                    }
+                }
                 // M1 Standard Server
                 try {
                     int port = Integer.parseInt(args[0]);
-                    int cacheSize = Integer.parseInt(args[1]);
+                    // A cache size with a unit (e.g. 256MB) is a byte budget
+                    int cacheSize = 0;
+                    long cacheBytes = 0;
+                    if (ByteSize.hasUnit(args[1])) {
+                        cacheBytes = ByteSize.parse(args[1]);
+                    } else {
+                        cacheSize = Integer.parseInt(args[1]);
+                    }
                     String strategy = args[2];
-                    KVServer newKV = new KVServer(port, cacheSize, strategy);
+                    KVServer newKV = new KVServer(port, cacheSize, cacheBytes, strategy, storageType);
                     newKV.run();
                 }
                 // M2 Distributed Server
@@ -1415,7 +1891,7 @@ public class KVServer implements IKVServer, Runnable {
                     // String serverName = args[0];
                     // String zHost = args[2];
                     // int zPort = Integer.parseInt(args[1]);
-                    KVServer newKV = new KVServer(args[0], Integer.parseInt(args[1]), args[2]);
+                    KVServer newKV = new KVServer(args[0], Integer.parseInt(args[1]), args[2], storageType);
                     newKV.run();
                 }
 
@@ -1426,7 +1902,7 @@ public class KVServer implements IKVServer, Runnable {
             System.exit(1);
         } catch (NumberFormatException nfe) {
             System.out.println("Error! Invalid argument 2: Not a number!");
-            System.out.println("Usage: M1: Server <port> <cachesize> <cachetype>!\n M2: Server <name> <port> <host>");
+            System.out.println("Usage: M1: Server <port> <cachesize> <cachetype> [storagetype]!\n M2: Server <name> <port> <host> [storagetype]");
             System.exit(1);
         }
     }
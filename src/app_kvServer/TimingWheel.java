@@ -0,0 +1,238 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hierarchical timing wheel tracking when keys expire.
+ *
+ * Level 0 has SLOTS slots of tickMs each, and every level above covers
+ * SLOTS times the span of the one below, so LEVELS levels reach far beyond
+ * any useful TTL. A key is filed in O(1) under the level whose span fits its
+ * remaining time. Each tick only looks at one level 0 slot. Whenever a
+ * level wraps, the current slot of the level above is cascaded down. Every
+ * key is moved at most once per level, so expiry costs O(1) amortized
+ * instead of a periodic scan of all keys.
+ *
+ * Scheduling a key again or cancelling it only updates its deadline; the old
+ * wheel entry stays where it is and is dropped when its slot comes up. A key
+ * handed to the listener stays tracked until the listener cancels it, so the
+ * listener can check it again under its own locks before deleting it.
+ */
+public class TimingWheel {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final long DEFAULT_TICK_MS = 100;
+    // Slots per level, a power of two
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 6;
+
+    /** Receives the keys that expired in one advance, and should cancel them */
+    public interface ExpiryListener {
+        void expired(List<String> keys);
+    }
+
+    private static class Entry {
+        private String key;
+        private long deadlineTick;
+
+        Entry(String key, long deadlineTick) {
+            this.key = key;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private long tickMs;
+    private ExpiryListener listener;
+    // Level -> slot -> entries, guarded by this
+    private List<List<List<Entry>>> wheels = new ArrayList<List<List<Entry>>>(LEVELS);
+    // Last tick processed, in units of tickMs since the epoch
+    private long currentTick;
+    // Key -> deadline tick, the source of truth for stale entries
+    private ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<String, Long>();
+
+    private Thread thread;
+    private volatile boolean running = false;
+
+    /**
+     * @param tickMs   Expiry resolution
+     * @param listener Called with the expired keys, on the wheel's thread
+     */
+    public TimingWheel(long tickMs, ExpiryListener listener) {
+        this.tickMs = tickMs;
+        this.listener = listener;
+        this.currentTick = System.currentTimeMillis() / tickMs;
+        for (int level = 0; level < LEVELS; level++) {
+            List<List<Entry>> slots = new ArrayList<List<Entry>>(SLOTS);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots.add(new ArrayList<Entry>());
+            }
+            wheels.add(slots);
+        }
+    }
+
+    /**
+     * File an entry under the level whose span covers its remaining ticks.
+     *
+     * @return False if the entry is already due
+     */
+    private boolean file(Entry entry) {
+        long remaining = entry.deadlineTick - currentTick;
+        if (remaining <= 0) {
+            return false;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && remaining >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((entry.deadlineTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        wheels.get(level).get(slot).add(entry);
+        return true;
+    }
+
+    /**
+     * Expire a key at the given time, replacing any earlier deadline.
+     *
+     * @param key        Key to expire
+     * @param deadlineMs Wall clock time in ms
+     */
+    public void schedule(String key, long deadlineMs) {
+        // Round up, so a key never expires before its deadline
+        long deadlineTick = (deadlineMs + tickMs - 1) / tickMs;
+        deadlines.put(key, deadlineTick);
+        synchronized (this) {
+            if (!file(new Entry(key, deadlineTick))) {
+                // Due on the next tick
+                wheels.get(0).get((int) ((currentTick + 1) & (SLOTS - 1))).add(new Entry(key, currentTick + 1));
+                deadlines.put(key, currentTick + 1);
+            }
+        }
+    }
+
+    /** Stop tracking a key, e.g. once it is overwritten without a TTL */
+    public void cancel(String key) {
+        deadlines.remove(key);
+    }
+
+    /** Stop tracking every key */
+    public void clear() {
+        deadlines.clear();
+    }
+
+    /** @return Deadline of the key in ms, or null if it does not expire */
+    public Long getDeadline(String key) {
+        Long deadlineTick = deadlines.get(key);
+        return deadlineTick == null ? null : deadlineTick * tickMs;
+    }
+
+    /** @return True if the key has a deadline that has passed */
+    public boolean isExpired(String key, long nowMs) {
+        Long deadline = getDeadline(key);
+        return deadline != null && deadline <= nowMs;
+    }
+
+    /** @return Number of keys with a deadline */
+    public int size() {
+        return deadlines.size();
+    }
+
+    /** Move the entries of a slot one level down, or out if they are due */
+    private void cascade(int level, int slot, List<Entry> due) {
+        List<Entry> entries = wheels.get(level).get(slot);
+        wheels.get(level).set(slot, new ArrayList<Entry>());
+        for (Entry entry : entries) {
+            if (!file(entry)) {
+                due.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Process every tick up to the given time and hand the expired keys to
+     * the listener.
+     *
+     * @param nowMs Wall clock time in ms
+     * @return Number of keys expired
+     */
+    public int advance(long nowMs) {
+        long targetTick = nowMs / tickMs;
+        List<Entry> due = new ArrayList<Entry>();
+        synchronized (this) {
+            while (currentTick < targetTick) {
+                currentTick++;
+                // Refill the lower levels from the top down when they wrap
+                for (int level = LEVELS - 1; level >= 1; level--) {
+                    long levelMask = (1L << (SLOT_BITS * level)) - 1;
+                    if ((currentTick & levelMask) == 0) {
+                        cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)), due);
+                    }
+                }
+                int slot = (int) (currentTick & (SLOTS - 1));
+                due.addAll(wheels.get(0).get(slot));
+                wheels.get(0).set(slot, new ArrayList<Entry>());
+            }
+        }
+
+        List<String> expired = new ArrayList<String>();
+        for (Entry entry : due) {
+            // Skip entries of keys rescheduled or cancelled since
+            if (Long.valueOf(entry.deadlineTick).equals(deadlines.get(entry.key))) {
+                expired.add(entry.key);
+            }
+        }
+        if (!expired.isEmpty()) {
+            listener.expired(expired);
+        }
+        return expired.size();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(tickMs);
+                        advance(System.currentTimeMillis());
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (RuntimeException e) {
+                        logger.error("Failed to expire keys", e);
+                    }
+                }
+            }
+        }, "expiry-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    /** @return Deadlines in ms of every tracked key */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> copy = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue() * tickMs);
+        }
+        return copy;
+    }
+}
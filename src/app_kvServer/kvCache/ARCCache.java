@@ -0,0 +1,240 @@
+package app_kvServer.kvCache;
+
+import app_kvServer.kvCache.kvCacheTypes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha).
+ *
+ * Cached keys live in t1 (seen once recently) or t2 (seen at least twice).
+ * The keys most recently evicted from each are remembered without their
+ * values in the ghost lists b1 and b2. A miss on a key in b1 means t1 was too
+ * small, so the target size p of t1 grows; a miss on a key in b2 shrinks it.
+ * The cache therefore shifts between LRU and LFU behaviour as the workload
+ * changes, without a tuning parameter. All lists are ordered from least to
+ * most recently used.
+ */
+public class ARCCache extends kvCacheTypes {
+    /** Keys evicted from t1 or t2, remembered with the cost they had */
+    private static class Ghosts {
+        private LinkedHashMap<String, Long> costs = new LinkedHashMap<String, Long>();
+        private long total = 0;
+
+        void add(String key, long cost) {
+            costs.put(key, cost);
+            total += cost;
+        }
+
+        boolean contains(String key) {
+            return costs.containsKey(key);
+        }
+
+        void remove(String key) {
+            Long cost = costs.remove(key);
+            if (cost != null) {
+                total -= cost;
+            }
+        }
+
+        void removeEldest() {
+            remove(costs.keySet().iterator().next());
+        }
+
+        boolean isEmpty() {
+            return costs.isEmpty();
+        }
+
+        void clear() {
+            costs.clear();
+            total = 0;
+        }
+    }
+
+    private WeightedSegment t1;
+    private WeightedSegment t2;
+    private Ghosts b1;
+    private Ghosts b2;
+    // Target size of t1, in the unit of cost()
+    private long p = 0;
+
+    /**
+     * Initialize ARC cache
+     *
+     * @param size desired cache size
+     */
+    public ARCCache(int size) {
+        this(size, 0);
+    }
+
+    /**
+     * Initialize ARC cache bounded by bytes. List sizes and the target p are
+     * then measured in bytes, so a large entry weighs as much as the many
+     * small ones it displaces.
+     *
+     * @param size       desired cache size, used if byteBudget is 0
+     * @param byteBudget max bytes of cached keys and values, 0 to count entries
+     */
+    public ARCCache(int size, long byteBudget) {
+        super(size, byteBudget);
+        this.t1 = new WeightedSegment(this);
+        this.t2 = new WeightedSegment(this);
+        this.b1 = new Ghosts();
+        this.b2 = new Ghosts();
+    }
+
+    /**
+     * Evict the LRU key of t1 or t2 into its ghost list, favouring t1 while
+     * it is above its target size.
+     *
+     * @param inB2 The key being brought in was found in b2
+     * @param keep Key that must stay cached, null if none
+     */
+    private void replace(boolean inB2, String keep) {
+        boolean keepIsNextInT2 = keep != null && !t2.isEmpty() && keep.equals(t2.eldest().getKey());
+        WeightedSegment from;
+        Ghosts to;
+        if (!t1.isEmpty() && (t1.cost() > p || (inB2 && t1.cost() == p) || t2.isEmpty() || keepIsNextInT2)) {
+            from = t1;
+            to = b1;
+        } else {
+            from = t2;
+            to = b2;
+        }
+        Map.Entry<String, String> eldest = from.eldest();
+        String key = eldest.getKey();
+        long cost = cost(key, eldest.getValue());
+        from.remove(key);
+        to.add(key, cost);
+    }
+
+    /** Evict into the ghost lists until an entry of the given cost fits */
+    private void makeRoom(long needed, boolean inB2) {
+        while (t1.cost() + t2.cost() + needed > maxCost() && !(t1.isEmpty() && t2.isEmpty())) {
+            replace(inB2, null);
+        }
+    }
+
+    /** Move a cached key to the most recently used end of t2 */
+    private void hit(String key, String value) {
+        if (t1.remove(key) == null) {
+            t2.remove(key);
+        }
+        t2.put(key, value);
+    }
+
+    private void updateLoad() {
+        currentLoad = t1.size() + t2.size();
+        bytesUsed = t1.bytes() + t2.bytes();
+    }
+
+    @Override
+    public synchronized String read(String key) {
+        String value = t1.get(key);
+        if (value == null) {
+            value = t2.get(key);
+        }
+        if (value != null) {
+            hit(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized void write(String key, String value) {
+        long needed = cost(key, value);
+        long capacity = maxCost();
+        if (needed > capacity) {
+            // Could never fit, drop any stale copy rather than flush the cache
+            delete(key);
+            return;
+        }
+        if (t1.containsKey(key) || t2.containsKey(key)) {
+            hit(key, value);
+            // A larger value may push the cache over a byte budget
+            while (t1.cost() + t2.cost() > capacity) {
+                replace(false, key);
+            }
+            updateLoad();
+            return;
+        }
+        if (b1.contains(key)) {
+            // Recency would have kept it, give t1 more room
+            p = Math.min(capacity, p + Math.max(b2.total / b1.total, 1) * needed);
+            b1.remove(key);
+            makeRoom(needed, false);
+            t2.put(key, value);
+        } else if (b2.contains(key)) {
+            // Frequency would have kept it, give t2 more room
+            p = Math.max(0, p - Math.max(b1.total / b2.total, 1) * needed);
+            b2.remove(key);
+            makeRoom(needed, true);
+            t2.put(key, value);
+        } else {
+            if (t1.cost() + b1.total + needed > capacity) {
+                while (t1.cost() + b1.total + needed > capacity && !b1.isEmpty()) {
+                    b1.removeEldest();
+                }
+                // t1 fills the whole cache, drop its LRU keys outright
+                while (t1.cost() + needed > capacity) {
+                    t1.remove(t1.eldest().getKey());
+                }
+                makeRoom(needed, false);
+            } else if (t1.cost() + t2.cost() + b1.total + b2.total + needed > capacity) {
+                while (t1.cost() + t2.cost() + b1.total + b2.total + needed > 2 * capacity && !b2.isEmpty()) {
+                    b2.removeEldest();
+                }
+                makeRoom(needed, false);
+            }
+            t1.put(key, value);
+        }
+        updateLoad();
+    }
+
+    @Override
+    public synchronized void delete(String key) {
+        if (t1.remove(key) == null) {
+            t2.remove(key);
+        }
+        b1.remove(key);
+        b2.remove(key);
+        updateLoad();
+    }
+
+    @Override
+    public synchronized boolean inCache(String key) {
+        return t1.containsKey(key) || t2.containsKey(key);
+    }
+
+    /**
+     * @return Current target size of the recency list t1
+     */
+    public synchronized long getRecencyTarget() {
+        return p;
+    }
+
+    /**
+     * Clear all load in cache
+     */
+    @Override
+    public synchronized void clearCache() {
+        t1.clear();
+        t2.clear();
+        b1.clear();
+        b2.clear();
+        p = 0;
+        // Reset current load
+        currentLoad = 0;
+        bytesUsed = 0;
+    }
+
+    @Override
+    public int getCurrentLoad() {
+        return currentLoad;
+    }
+
+    @Override
+    public int getCacheCapacity() {
+        return cacheCapacity;
+    }
+}
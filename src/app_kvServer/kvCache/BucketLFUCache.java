@@ -0,0 +1,207 @@
+package app_kvServer.kvCache;
+
+import app_kvServer.kvCache.kvCacheTypes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * LFU cache with O(1) reads, writes and evictions.
+ *
+ * Entries with the same access count share a bucket, a doubly linked list
+ * ordered from least to most recently used. The buckets form a doubly linked
+ * list of their own in ascending count order. An access moves an entry to
+ * the bucket after its own, and an eviction takes the oldest entry of the
+ * first bucket, so no operation ever sorts or scans the cache.
+ */
+public class BucketLFUCache extends kvCacheTypes {
+    private static class Node {
+        private String key;
+        private String value;
+        private Bucket bucket;
+        private Node prev;
+        private Node next;
+
+        Node(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static class Bucket {
+        private long frequency;
+        // Sentinels: head.next is the least recently used entry
+        private Node head = new Node(null, null);
+        private Node tail = new Node(null, null);
+        private Bucket prev;
+        private Bucket next;
+
+        Bucket(long frequency) {
+            this.frequency = frequency;
+            head.next = tail;
+            tail.prev = head;
+        }
+
+        boolean isEmpty() {
+            return head.next == tail;
+        }
+
+        void append(Node node) {
+            node.bucket = this;
+            node.prev = tail.prev;
+            node.next = tail;
+            tail.prev.next = node;
+            tail.prev = node;
+        }
+    }
+
+    private Map<String, Node> nodes;
+    // Sentinel: buckets.next has the lowest frequency
+    private Bucket buckets = new Bucket(0);
+
+    /**
+     * Initialize LFU cache
+     *
+     * @param size desired cache size
+     */
+    public BucketLFUCache(int size) {
+        this(size, 0);
+    }
+
+    /**
+     * Initialize LFU cache bounded by bytes
+     *
+     * @param size       desired cache size, used if byteBudget is 0
+     * @param byteBudget max bytes of cached keys and values, 0 to count entries
+     */
+    public BucketLFUCache(int size, long byteBudget) {
+        super(size, byteBudget);
+        int expected = byteBudget > 0 ? 16 : size;
+        this.nodes = new HashMap<String, Node>(Math.max(16, (int) (expected / 0.75f) + 1));
+        buckets.next = buckets;
+        buckets.prev = buckets;
+    }
+
+    private static void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        Bucket bucket = node.bucket;
+        node.bucket = null;
+        // Drop buckets as they empty, so the first bucket is always the minimum
+        if (bucket.isEmpty()) {
+            bucket.prev.next = bucket.next;
+            bucket.next.prev = bucket.prev;
+        }
+    }
+
+    /** @return Bucket for the given frequency right after the given bucket */
+    private Bucket bucketAfter(Bucket bucket, long frequency) {
+        if (bucket.next != buckets && bucket.next.frequency == frequency) {
+            return bucket.next;
+        }
+        Bucket created = new Bucket(frequency);
+        created.prev = bucket;
+        created.next = bucket.next;
+        bucket.next.prev = created;
+        bucket.next = created;
+        return created;
+    }
+
+    /** Count another access on an entry */
+    private void touch(Node node) {
+        Bucket current = node.bucket;
+        Bucket target = bucketAfter(current, current.frequency + 1);
+        unlink(node);
+        target.append(node);
+    }
+
+    @Override
+    public synchronized String read(String key) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            return null;
+        }
+        touch(node);
+        return node.value;
+    }
+
+    @Override
+    public synchronized void write(String key, String value) {
+        if (cost(key, value) > maxCost()) {
+            // Could never fit, drop any stale copy rather than flush the cache
+            delete(key);
+            return;
+        }
+        Node node = nodes.get(key);
+        if (node != null) {
+            // Updating a cached key counts as an access
+            bytesUsed = bytesUsed - weigh(key, node.value) + weigh(key, value);
+            node.value = value;
+            touch(node);
+        } else {
+            node = new Node(key, value);
+            bucketAfter(buckets, 1).append(node);
+            nodes.put(key, node);
+            currentLoad = currentLoad + 1;
+            bytesUsed = bytesUsed + weigh(key, value);
+        }
+        // Over capacity, kick out the least recently used of the least
+        // frequently used, sparing the entry just written
+        while (overCapacity()) {
+            Bucket first = buckets.next;
+            Node victim = first.head.next;
+            if (victim == node) {
+                victim = node.next != first.tail ? node.next : first.next.head.next;
+            }
+            unlink(victim);
+            nodes.remove(victim.key);
+            currentLoad = currentLoad - 1;
+            bytesUsed = bytesUsed - weigh(victim.key, victim.value);
+        }
+    }
+
+    @Override
+    public synchronized void delete(String key) {
+        Node node = nodes.remove(key);
+        if (node != null) {
+            unlink(node);
+            currentLoad = currentLoad - 1;
+            bytesUsed = bytesUsed - weigh(key, node.value);
+        }
+    }
+
+    @Override
+    public synchronized boolean inCache(String key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * @return Access count of a cached key, 0 if it is not cached
+     */
+    public synchronized long getFrequency(String key) {
+        Node node = nodes.get(key);
+        return node == null ? 0 : node.bucket.frequency;
+    }
+
+    /**
+     * Clear all load in cache
+     */
+    @Override
+    public synchronized void clearCache() {
+        nodes.clear();
+        buckets.next = buckets;
+        buckets.prev = buckets;
+        // Reset current load
+        currentLoad = 0;
+        bytesUsed = 0;
+    }
+
+    @Override
+    public int getCurrentLoad() {
+        return currentLoad;
+    }
+
+    @Override
+    public int getCacheCapacity() {
+        return cacheCapacity;
+    }
+}
@@ -0,0 +1,87 @@
+package app_kvServer.kvCache;
+
+import java.util.Arrays;
+
+/**
+ * Approximate access counts of keys in a fixed amount of memory.
+ *
+ * Each key maps to one counter in each of DEPTH rows. A count is the
+ * smallest of its counters, so collisions can only overestimate it. Counters
+ * saturate at MAX_COUNT, and once sampleSize increments have been recorded
+ * every counter is halved, so keys that were popular long ago fade out.
+ */
+public class CountMinSketch {
+    private static final int DEPTH = 4;
+    // 4 bits worth of count is enough to tell hot keys from cold ones
+    private static final int MAX_COUNT = 15;
+    // Odd 64-bit constants, one per row
+    private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+            0xD6E8FEB86659FD93L };
+
+    private byte[][] table;
+    private int mask;
+    private int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedKeys Number of keys the counts should stay accurate for,
+     *                     usually the cache capacity
+     */
+    public CountMinSketch(int expectedKeys) {
+        // About four counters per key and row, narrower rows let the counts of
+        // popular keys leak into keys that were never seen
+        int width = Integer.highestOneBit(Math.max(16, 4 * expectedKeys - 1)) << 1;
+        this.table = new byte[DEPTH][width];
+        this.mask = width - 1;
+        // Age over a window of about ten times the cache size
+        this.sampleSize = Math.max(160, 10 * expectedKeys);
+    }
+
+    private int index(int hash, int row) {
+        long mixed = (hash + SEEDS[row]) * SEEDS[row];
+        return (int) (mixed >>> 32) & mask;
+    }
+
+    /** Record one access of a key */
+    public void increment(String key) {
+        int hash = key.hashCode();
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(hash, row);
+            if (table[row][i] < MAX_COUNT) {
+                table[row][i]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            age();
+        }
+    }
+
+    /** @return Estimated accesses of a key within the aging window */
+    public int frequency(String key) {
+        int hash = key.hashCode();
+        int count = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            count = Math.min(count, table[row][index(hash, row)]);
+        }
+        return count;
+    }
+
+    /** Halve every counter */
+    private void age() {
+        for (byte[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >> 1);
+            }
+        }
+        additions = additions / 2;
+    }
+
+    public void clear() {
+        for (byte[] row : table) {
+            Arrays.fill(row, (byte) 0);
+        }
+        additions = 0;
+    }
+}
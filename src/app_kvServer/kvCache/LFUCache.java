@@ -4,6 +4,11 @@ import app_kvServer.kvCache.kvCacheTypes;
 import java.util.*;
 import java.util.Collections;
 
+/**
+ * LFU cache that sorts every entry by frequency on each eviction. The server
+ * uses BucketLFUCache instead, this one is kept as the baseline of
+ * CachePerformanceTest.
+ */
 public class LFUCache extends kvCacheTypes {
     // Frequency list for cache entries
     private Map<String, Integer> frequency;
@@ -14,9 +14,20 @@ public class LRUCache extends kvCacheTypes {
      * @param size desired cache size
      */
     public LRUCache(int size) {
-        super(size);
+        this(size, 0);
+    }
+
+    /**
+     * Initialize LRU cache bounded by bytes
+     * 
+     * @param size       desired cache size, used if byteBudget is 0
+     * @param byteBudget max bytes of cached keys and values, 0 to count entries
+     */
+    public LRUCache(int size, long byteBudget) {
+        super(size, byteBudget);
+        int initialCapacity = byteBudget > 0 ? 16 : Math.max(0, size);
         // Access order = true rather than insertion order
-        this.cache = Collections.synchronizedMap(new LinkedHashMap<String, String>(size, 0.75f, true));
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<String, String>(initialCapacity, 0.75f, true));
     }
 
     @Override
@@ -33,24 +44,37 @@ public class LRUCache extends kvCacheTypes {
     @Override
     public void write(String key, String value) {
         synchronized (cache) {
-            // We are full, kick out some entries
-            if (currentLoad == cacheCapacity) {
-                synchronized (cache) {
-                    // Remove first entry
-                    cache.remove(cache.keySet().iterator().next());
-                    currentLoad = currentLoad - 1;
-                }
+            if (cost(key, value) > maxCost()) {
+                // Could never fit, drop any stale copy rather than flush the cache
+                delete(key);
+                return;
+            }
+            String old = cache.put(key, value);
+            if (old == null) {
+                currentLoad = currentLoad + 1;
+            } else {
+                bytesUsed = bytesUsed - weigh(key, old);
+            }
+            bytesUsed = bytesUsed + weigh(key, value);
+            // Over capacity, kick out the least recently used entries
+            Iterator<Map.Entry<String, String>> entries = cache.entrySet().iterator();
+            while (overCapacity()) {
+                Map.Entry<String, String> eldest = entries.next();
+                bytesUsed = bytesUsed - weigh(eldest.getKey(), eldest.getValue());
+                entries.remove();
+                currentLoad = currentLoad - 1;
             }
-            cache.put(key, value);
-            currentLoad = currentLoad + 1;
         }
     }
 
     @Override
     public void delete(String key) {
         synchronized (cache) {
-            cache.remove(key);
-            currentLoad = currentLoad - 1;
+            String old = cache.remove(key);
+            if (old != null) {
+                bytesUsed = bytesUsed - weigh(key, old);
+                currentLoad = currentLoad - 1;
+            }
         }
     }
 
@@ -71,9 +95,12 @@ public class LRUCache extends kvCacheTypes {
      */
     @Override
     public void clearCache() {
-        cache.clear();
-        // Reset current load
-        currentLoad = 0;
+        synchronized (cache) {
+            cache.clear();
+            // Reset current load
+            currentLoad = 0;
+            bytesUsed = 0;
+        }
     }
 
     @Override
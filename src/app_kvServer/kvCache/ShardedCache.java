@@ -0,0 +1,127 @@
+package app_kvServer.kvCache;
+
+import app_kvServer.kvCache.kvCacheTypes;
+
+/**
+ * Cache split into independently locked segments, picked by key hash.
+ *
+ * Each segment is a cache of the configured strategy holding its share of the
+ * capacity and evicting on its own, so connection threads only contend when
+ * their keys land in the same segment. Eviction is therefore per segment: the
+ * entry evicted is the least recently/frequently used of its segment, not
+ * necessarily of the whole cache.
+ */
+public class ShardedCache extends kvCacheTypes {
+    private kvCacheTypes[] segments;
+
+    /**
+     * Initialize sharded cache
+     *
+     * @param size         desired cache size, split over the segments
+     * @param strategy     LRU, LFU, FIFO, TINYLFU or ARC, used by every segment
+     * @param segmentCount number of independently locked segments
+     */
+    public ShardedCache(int size, String strategy, int segmentCount) {
+        this(size, 0, strategy, segmentCount);
+    }
+
+    /**
+     * Initialize sharded cache bounded by bytes
+     *
+     * @param size         desired cache size, used if byteBudget is 0
+     * @param byteBudget   max bytes of cached keys and values, split over the
+     *                     segments, 0 to count entries
+     * @param strategy     LRU, LFU, FIFO, TINYLFU or ARC, used by every segment
+     * @param segmentCount number of independently locked segments
+     */
+    public ShardedCache(int size, long byteBudget, String strategy, int segmentCount) {
+        super(size, byteBudget);
+        this.segments = new kvCacheTypes[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // Spread the remainder so the segment capacities add up to size
+            int segmentSize = size / segmentCount + (i < size % segmentCount ? 1 : 0);
+            long segmentBudget = this.byteBudget / segmentCount + (i < this.byteBudget % segmentCount ? 1 : 0);
+            segments[i] = createSegment(segmentSize, segmentBudget, strategy);
+        }
+    }
+
+    private static kvCacheTypes createSegment(int size, long byteBudget, String strategy) {
+        if (strategy.equals("LRU")) {
+            return new LRUCache(size, byteBudget);
+        } else if (strategy.equals("LFU")) {
+            return new BucketLFUCache(size, byteBudget);
+        } else if (strategy.equals("FIFO")) {
+            return new FIFOCache(size, byteBudget);
+        } else if (strategy.equals("TINYLFU")) {
+            return new TinyLFUCache(size, byteBudget);
+        } else if (strategy.equals("ARC")) {
+            return new ARCCache(size, byteBudget);
+        }
+        throw new IllegalArgumentException("Unknown cache strategy: " + strategy);
+    }
+
+    private kvCacheTypes segmentFor(String key) {
+        // Pick the segment with the high bits of a multiplicative hash. Each
+        // segment's HashMap indexes by the low bits of the same hash code, so
+        // taking the segment from those would leave most of its buckets empty.
+        long mixed = (key.hashCode() * 0x9E3779B9) & 0xffffffffL;
+        return segments[(int) ((mixed * segments.length) >>> 32)];
+    }
+
+    @Override
+    public String read(String key) {
+        return segmentFor(key).read(key);
+    }
+
+    @Override
+    public void write(String key, String value) {
+        segmentFor(key).write(key, value);
+    }
+
+    @Override
+    public void delete(String key) {
+        segmentFor(key).delete(key);
+    }
+
+    @Override
+    public boolean inCache(String key) {
+        return segmentFor(key).inCache(key);
+    }
+
+    /**
+     * Clear all load in cache
+     */
+    @Override
+    public void clearCache() {
+        for (kvCacheTypes segment : segments) {
+            segment.clearCache();
+        }
+    }
+
+    @Override
+    public int getCurrentLoad() {
+        int load = 0;
+        for (kvCacheTypes segment : segments) {
+            load += segment.getCurrentLoad();
+        }
+        return load;
+    }
+
+    @Override
+    public int getCacheCapacity() {
+        return cacheCapacity;
+    }
+
+    @Override
+    public long getBytesUsed() {
+        long bytes = 0;
+        for (kvCacheTypes segment : segments) {
+            bytes += segment.getBytesUsed();
+        }
+        return bytes;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+}
@@ -0,0 +1,228 @@
+package app_kvServer.kvCache;
+
+import app_kvServer.kvCache.kvCacheTypes;
+import java.util.Map;
+
+/**
+ * Window-TinyLFU cache.
+ *
+ * New keys enter a small LRU admission window. A key pushed out of the window
+ * only enters the main region if the CountMinSketch has seen it more often
+ * than the entry it would evict, so one-off keys such as a scan or a data
+ * transfer cannot flush out popular ones. The main region is a segmented
+ * LRU: keys start on probation and move to the protected segment when read
+ * again there, and the protected segment hands its least recently used keys
+ * back to probation when it overflows.
+ */
+public class TinyLFUCache extends kvCacheTypes {
+    // Share of the capacity used by the admission window
+    private static final double WINDOW_SHARE = 0.01;
+    // Share of the main region reserved for keys read more than once
+    private static final double PROTECTED_SHARE = 0.8;
+    // Entry size assumed when sizing the sketch for a byte budget
+    private static final int EXPECTED_ENTRY_BYTES = 1024;
+    private static final int MAX_EXPECTED_KEYS = 1 << 20;
+
+    // Capacities in the unit of cost(): entries, or bytes under a byte budget
+    private long windowCapacity;
+    private long mainCapacity;
+    private long protectedCapacity;
+
+    private WeightedSegment window;
+    private WeightedSegment probation;
+    private WeightedSegment protectedSegment;
+    private CountMinSketch sketch;
+
+    /**
+     * Initialize TinyLFU cache
+     *
+     * @param size desired cache size
+     */
+    public TinyLFUCache(int size) {
+        this(size, 0);
+    }
+
+    /**
+     * Initialize TinyLFU cache bounded by bytes
+     *
+     * @param size       desired cache size, used if byteBudget is 0
+     * @param byteBudget max bytes of cached keys and values, 0 to count entries
+     */
+    public TinyLFUCache(int size, long byteBudget) {
+        super(size, byteBudget);
+        long capacity = Math.max(0, maxCost());
+        this.windowCapacity = Math.min(capacity, Math.max(1, (long) (capacity * WINDOW_SHARE)));
+        this.mainCapacity = capacity - windowCapacity;
+        this.protectedCapacity = (long) (mainCapacity * PROTECTED_SHARE);
+        this.window = new WeightedSegment(this);
+        this.probation = new WeightedSegment(this);
+        this.protectedSegment = new WeightedSegment(this);
+        int expectedKeys = byteBudget > 0 ? (int) Math.min(MAX_EXPECTED_KEYS, byteBudget / EXPECTED_ENTRY_BYTES)
+                : Math.max(0, size);
+        this.sketch = new CountMinSketch(expectedKeys);
+    }
+
+    /** Move a key read on probation to the protected segment */
+    private void promote(String key, String value) {
+        probation.remove(key);
+        protectedSegment.put(key, value);
+        demoteOverflow();
+    }
+
+    /** Hand least recently used protected keys back to probation */
+    private void demoteOverflow() {
+        while (protectedSegment.cost() > protectedCapacity) {
+            Map.Entry<String, String> demoted = protectedSegment.eldest();
+            String key = demoted.getKey();
+            String value = demoted.getValue();
+            protectedSegment.remove(key);
+            probation.put(key, value);
+        }
+    }
+
+    private long mainCost() {
+        return probation.cost() + protectedSegment.cost();
+    }
+
+    /** @return Least recently used key of the main region, probation first */
+    private Map.Entry<String, String> mainVictim() {
+        return probation.isEmpty() ? protectedSegment.eldest() : probation.eldest();
+    }
+
+    private void removeFromMain(String key) {
+        if (probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+    }
+
+    /** Let a key leaving the window into the main region if it is popular enough */
+    private void admit(String key, String value) {
+        long needed = cost(key, value);
+        if (mainCost() + needed <= mainCapacity) {
+            probation.put(key, value);
+            return;
+        }
+        Map.Entry<String, String> victim = mainVictim();
+        if (victim == null || needed > mainCapacity) {
+            // No main region at this size
+            return;
+        }
+        if (sketch.frequency(key) > sketch.frequency(victim.getKey())) {
+            // Entries differ in size under a byte budget, so a large
+            // newcomer may push out several
+            while (mainCost() + needed > mainCapacity) {
+                removeFromMain(mainVictim().getKey());
+            }
+            probation.put(key, value);
+        }
+    }
+
+    /** Push keys out of the window and the main region until each is within its share */
+    private void evictOverflow() {
+        demoteOverflow();
+        while (mainCost() > mainCapacity) {
+            removeFromMain(mainVictim().getKey());
+        }
+        while (window.cost() > windowCapacity) {
+            Map.Entry<String, String> candidate = window.eldest();
+            String key = candidate.getKey();
+            String value = candidate.getValue();
+            window.remove(key);
+            admit(key, value);
+        }
+    }
+
+    private void updateLoad() {
+        currentLoad = window.size() + probation.size() + protectedSegment.size();
+        bytesUsed = window.bytes() + probation.bytes() + protectedSegment.bytes();
+    }
+
+    @Override
+    public synchronized String read(String key) {
+        sketch.increment(key);
+        String value = window.get(key);
+        if (value != null) {
+            return value;
+        }
+        value = protectedSegment.get(key);
+        if (value != null) {
+            return value;
+        }
+        value = probation.get(key);
+        if (value != null) {
+            promote(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized void write(String key, String value) {
+        if (cost(key, value) > maxCost()) {
+            // Could never fit, drop any stale copy rather than flush the cache
+            delete(key);
+            return;
+        }
+        // Writing a cached key counts as an access. Filling in a new key does
+        // not, the read that missed it was already counted, and write-only
+        // traffic such as transfers should not look popular.
+        if (window.containsKey(key)) {
+            sketch.increment(key);
+            window.put(key, value);
+        } else if (protectedSegment.containsKey(key)) {
+            sketch.increment(key);
+            protectedSegment.put(key, value);
+        } else if (probation.containsKey(key)) {
+            sketch.increment(key);
+            promote(key, value);
+        } else {
+            window.put(key, value);
+        }
+        // A new value may be larger than the old one under a byte budget
+        evictOverflow();
+        updateLoad();
+    }
+
+    @Override
+    public synchronized void delete(String key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+        updateLoad();
+    }
+
+    @Override
+    public synchronized boolean inCache(String key) {
+        return window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key);
+    }
+
+    /**
+     * @return Estimated recent accesses of a key, cached or not
+     */
+    public synchronized int getFrequency(String key) {
+        return sketch.frequency(key);
+    }
+
+    /**
+     * Clear all load in cache
+     */
+    @Override
+    public synchronized void clearCache() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        sketch.clear();
+        // Reset current load
+        currentLoad = 0;
+        bytesUsed = 0;
+    }
+
+    @Override
+    public int getCurrentLoad() {
+        return currentLoad;
+    }
+
+    @Override
+    public int getCacheCapacity() {
+        return cacheCapacity;
+    }
+}
@@ -0,0 +1,84 @@
+package app_kvServer.kvCache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU list of cached entries that keeps running totals of their cost and
+ * bytes, for the caches built from several lists sharing one capacity.
+ * The first entry is the least recently used. Not thread safe, the owning
+ * cache synchronizes.
+ */
+class WeightedSegment {
+    private kvCacheTypes owner;
+    // Access order = true, so the first entry is the least recently used
+    private LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private long cost = 0;
+    private long bytes = 0;
+
+    /**
+     * @param owner Cache whose capacity unit the costs are counted in
+     */
+    WeightedSegment(kvCacheTypes owner) {
+        this.owner = owner;
+    }
+
+    String get(String key) {
+        return entries.get(key);
+    }
+
+    boolean containsKey(String key) {
+        return entries.containsKey(key);
+    }
+
+    /** Add or replace an entry, making it the most recently used */
+    void put(String key, String value) {
+        String old = entries.put(key, value);
+        if (old != null) {
+            cost -= owner.cost(key, old);
+            bytes -= kvCacheTypes.weigh(key, old);
+        }
+        cost += owner.cost(key, value);
+        bytes += kvCacheTypes.weigh(key, value);
+    }
+
+    /** @return Value of the removed entry, null if it was not here */
+    String remove(String key) {
+        String old = entries.remove(key);
+        if (old != null) {
+            cost -= owner.cost(key, old);
+            bytes -= kvCacheTypes.weigh(key, old);
+        }
+        return old;
+    }
+
+    /** @return Least recently used entry, null if empty */
+    Map.Entry<String, String> eldest() {
+        Iterator<Map.Entry<String, String>> iterator = entries.entrySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /** @return Sum of the entries' costs against the owner's capacity */
+    long cost() {
+        return cost;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    void clear() {
+        entries.clear();
+        cost = 0;
+        bytes = 0;
+    }
+}
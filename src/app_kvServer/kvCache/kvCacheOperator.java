@@ -1,8 +1,11 @@
 package app_kvServer.kvCache;
 
 import app_kvServer.kvCache.LRUCache;
-import app_kvServer.kvCache.LFUCache;
+import app_kvServer.kvCache.BucketLFUCache;
 import app_kvServer.kvCache.FIFOCache;
+import app_kvServer.kvCache.ShardedCache;
+import app_kvServer.kvCache.TinyLFUCache;
+import app_kvServer.kvCache.ARCCache;
 import org.apache.log4j.Logger;
 
 public class kvCacheOperator {
@@ -10,6 +13,17 @@ public class kvCacheOperator {
     private kvCacheTypes cache;
     private static Logger logger = Logger.getRootLogger();
 
+    // Split caches into independently locked segments, e.g. -Dcache.segments=16.
+    // Off by default: each segment evicts on its own share of the capacity,
+    // so the cache is no longer one LRU/LFU/FIFO order, and it only pays off
+    // when many cores contend for the lock
+    public static final int DEFAULT_SEGMENTS = 1;
+    // Smaller caches get fewer segments, so each keeps a useful share of the capacity
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+    // Same for byte budgets, each segment should fit several of the largest
+    // (120 KB) values
+    private static final long MIN_SEGMENT_BYTES = 1L << 20;
+
     /**
      * Initialize cache
      * 
@@ -17,19 +31,49 @@ public class kvCacheOperator {
      * @param strategy Desired cache strategy
      */
     public kvCacheOperator(int size, String strategy) {
+        this(size, 0, strategy);
+    }
+
+    /**
+     * Initialize cache bounded by the bytes of its keys and values
+     * 
+     * @param size       Desired cache size, used if byteBudget is 0
+     * @param byteBudget Max bytes of cached keys and values, 0 to count entries
+     * @param strategy   Desired cache strategy
+     */
+    public kvCacheOperator(int size, long byteBudget, String strategy) {
+        long segmentsWanted = byteBudget > 0 ? byteBudget / MIN_SEGMENT_BYTES : size / MIN_SEGMENT_CAPACITY;
+        int segments = (int) Math.min(Integer.getInteger("cache.segments", DEFAULT_SEGMENTS),
+                Math.max(1, segmentsWanted));
+        // Sharded on request so connection threads do not share one lock
+        if (segments > 1 && ("LRU".equals(strategy) || "LFU".equals(strategy) || "FIFO".equals(strategy)
+                || "TINYLFU".equals(strategy) || "ARC".equals(strategy))) {
+            cache = new ShardedCache(size, byteBudget, strategy, segments);
+            cacheActive = true;
+        }
         // Least recently used
-        if (strategy == "LRU") {
-            cache = new LRUCache(size);
+        else if ("LRU".equals(strategy)) {
+            cache = new LRUCache(size, byteBudget);
             cacheActive = true;
         }
-        // Least frequently used
-        else if (strategy == "LFU") {
-            cache = new LFUCache(size);
+        // Least frequently used, constant time per operation
+        else if ("LFU".equals(strategy)) {
+            cache = new BucketLFUCache(size, byteBudget);
             cacheActive = true;
         }
         // Simple first in - first out cache
-        else if (strategy == "FIFO") {
-            cache = new FIFOCache(size);
+        else if ("FIFO".equals(strategy)) {
+            cache = new FIFOCache(size, byteBudget);
+            cacheActive = true;
+        }
+        // Frequency-gated admission in front of a segmented LRU, resists scans
+        else if ("TINYLFU".equals(strategy)) {
+            cache = new TinyLFUCache(size, byteBudget);
+            cacheActive = true;
+        }
+        // Adaptive replacement, balances recency and frequency by itself
+        else if ("ARC".equals(strategy)) {
+            cache = new ARCCache(size, byteBudget);
             cacheActive = true;
         }
         // Strategy was none
@@ -60,13 +104,12 @@ public class kvCacheOperator {
         try {
             if (cache != null) {
                 value = cache.read(key);
-                logger.info("cacheread "+value+ value.length());
 
                 if (value != null && value != "" && value != "null" && value.length()!=0) {
-                    logger.info("Succesfully retrieved key-val from cache: K:" + key + ",V:" + value);
+                    logger.trace("Succesfully retrieved key-val from cache: K:" + key);
                     return value;
                 } else {
-                    logger.info("Key not in cache: K:" + key);
+                    logger.trace("Key not in cache: K:" + key);
                     return null;
                 }
             } else
@@ -87,7 +130,8 @@ public class kvCacheOperator {
         try {
             if (cache != null) {
                 cache.write(key, value);
-                logger.info("Succesfully wrote key-val to cache: K:" + key + ",V:" + value);
+                logger.trace("Succesfully wrote key-val to cache: K:" + key + ", bytes used: "
+                        + cache.getBytesUsed());
             } else
                 logger.error("Cache is not initialized, can't write!");
         } catch (Exception e) {
@@ -125,6 +169,20 @@ public class kvCacheOperator {
         }
     }
 
+    /**
+     * @return Bytes of the keys and values currently cached
+     */
+    public long getBytesUsed() {
+        return cache != null ? cache.getBytesUsed() : 0;
+    }
+
+    /**
+     * @return Byte budget of the cache, 0 if its size counts entries
+     */
+    public long getByteBudget() {
+        return cache != null ? cache.getByteBudget() : 0;
+    }
+
     public static void main(String[] args) {
         System.out.println("Cache test");
     }
@@ -3,12 +3,57 @@ package app_kvServer.kvCache;
 public abstract class kvCacheTypes {
     public int cacheCapacity;
     public int currentLoad = 0;
+    // Max bytes of cached keys and values, 0 if cacheCapacity counts entries
+    public long byteBudget = 0;
+    // Bytes of the keys and values currently cached
+    public long bytesUsed = 0;
 
     public kvCacheTypes(int size) {
+        this(size, 0);
+    }
+
+    /**
+     * @param size       Max number of entries, only used without a byte budget
+     * @param byteBudget Max bytes of cached keys and values, 0 to count entries
+     */
+    public kvCacheTypes(int size, long byteBudget) {
         // Keep track of current cache load
         this.currentLoad = 0;
         // Max capacity of cache
         this.cacheCapacity = size;
+        this.byteBudget = Math.max(0, byteBudget);
+        this.bytesUsed = 0;
+    }
+
+    /**
+     * Keys and values travel as ASCII, so each character is one byte.
+     *
+     * @return Bytes an entry takes up in the cache
+     */
+    public static long weigh(String key, String value) {
+        return key.length() + value.length();
+    }
+
+    /**
+     * @return What an entry counts against the capacity: its bytes under a
+     *         byte budget, 1 otherwise
+     */
+    protected long cost(String key, String value) {
+        return byteBudget > 0 ? weigh(key, value) : 1;
+    }
+
+    /**
+     * @return Capacity in the unit of cost()
+     */
+    protected long maxCost() {
+        return byteBudget > 0 ? byteBudget : cacheCapacity;
+    }
+
+    /**
+     * @return True if the cached entries add up to more than the capacity
+     */
+    protected boolean overCapacity() {
+        return (byteBudget > 0 ? bytesUsed : currentLoad) > maxCost();
     }
 
     public abstract String read(String key);
@@ -24,4 +69,12 @@ public abstract class kvCacheTypes {
     public abstract int getCurrentLoad();
 
     public abstract int getCacheCapacity();
+
+    public long getBytesUsed() {
+        return bytesUsed;
+    }
+
+    public long getByteBudget() {
+        return byteBudget;
+    }
 }
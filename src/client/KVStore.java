@@ -113,7 +113,20 @@ public class KVStore {
     }
 
     public KVMessage put(String key, String value) throws Exception {
-        KVMessage kvmessage = new KVMessage(StatusType.PUT, key, value);
+        return put(key, value, 0);
+    }
+
+    /**
+     * Store a KV pair that the servers delete after ttlMs.
+     * 
+     * @param key   Key to store
+     * @param value Value to store
+     * @param ttlMs Milliseconds until the key expires, 0 for never
+     * @return Reply from the responsible server
+     * @throws Exception
+     */
+    public KVMessage put(String key, String value, long ttlMs) throws Exception {
+        KVMessage kvmessage = new KVMessage(StatusType.PUT, key, value, ttlMs);
         kvCommunication.sendMessage(kvmessage);
         KVMessage kvmessageReceived = null;
 
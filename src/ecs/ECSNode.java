@@ -14,6 +14,7 @@ public class ECSNode {
     private int port; // Port
     private CacheStrategy cacheStrategy; // Cache method to use
     private int cacheSize; // Size of cache
+    private long cacheBytes; // Byte budget of cache, 0 if cacheSize counts entries
     private BigInteger prevNodeID; // MD5 hash of previous node in ring
     private BigInteger nextNodeID; // MD5 hash of next node in ring
     private BigInteger[] hashRange; // Range of hashes the node is responsible for
@@ -80,6 +81,14 @@ public class ECSNode {
         return this.cacheSize;
     }
 
+    public long getCacheBytes() {
+        return this.cacheBytes;
+    }
+
+    public void setCacheBytes(long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+    }
+
     public BigInteger getPrevNodeID() {
         return this.prevNodeID;
     }
@@ -4,6 +4,7 @@ import org.apache.log4j.Logger;
 
 import app_kvServer.IKVServer.CacheStrategy;
 import app_kvECS.ECSClient;
+import shared.ByteSize;
 import shared.DebugHelper;
 import shared.Metadata;
 
@@ -403,12 +404,13 @@ public class HashRing {
             BigInteger hashStop = node.getNodeHashRange()[1];
             CacheStrategy cacheStrategy = node.getCacheStrategy();
             int cacheSize = node.getCacheSize();
+            long cacheBytes = node.getCacheBytes();
             BigInteger prevNodeID = node.getPrevNodeID();
             BigInteger nextNodeID = node.getNextNodeID();
             ECSNode prevNode = hashRing.get(prevNodeID);
             ECSNode nextNode = hashRing.get(nextNodeID);
-            Metadata nodeMetadata = new Metadata(host, port, hashStart, hashStop, cacheStrategy, cacheSize, prevNode,
-                    nextNode);
+            Metadata nodeMetadata = new Metadata(host, port, hashStart, hashStop, cacheStrategy, cacheSize,
+                    cacheBytes, prevNode, nextNode);
             String hostAndPort = String.format("%s:%s", host, port);
             allMetadata.put(hostAndPort, nodeMetadata);
         }
@@ -463,6 +465,9 @@ public class HashRing {
             System.out.println(String.format("nextNode: %s, %x", nextNodeName, nextNodeID));
             BigInteger[] nodeHashRange = node.getNodeHashRange();
             System.out.println(String.format("hashRange: [%x, %x]", nodeHashRange[0], nodeHashRange[1]));
+            String cacheSize = node.getCacheBytes() > 0 ? ByteSize.format(node.getCacheBytes())
+                    : String.valueOf(node.getCacheSize());
+            System.out.println(String.format("cache: %s, %s", node.getCacheStrategy(), cacheSize));
             System.out.println();
         }
 
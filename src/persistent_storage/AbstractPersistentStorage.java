@@ -0,0 +1,176 @@
+package persistent_storage;
+
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hash ring helpers shared by every storage backend. Backends keep
+ * hashIndex in step with their live keys so hash range lookups are range
+ * scans.
+ */
+public abstract class AbstractPersistentStorage implements IPersistentStorage {
+    // Initialize logger
+    private static Logger logger = Logger.getRootLogger();
+
+    // Live keys ordered by ring position, maintained by each backend
+    protected RingIndex hashIndex = new HashRingIndex();
+
+    /**
+     * Get MD5 hash
+     *
+     * @param key String to be hashed in MD5
+     * @return Returns big integer MD5 hash
+     */
+    @Override
+    public BigInteger MD5Hash(String key) {
+        return HashRingIndex.hash(key);
+    }
+
+    /**
+     * Check if supplied hash is reachable within begin/end bounds
+     *
+     * @param begin Beginning of valid range
+     * @param end   End of valid range
+     * @param key   Key to be checked
+     * @return True if in range, False if out of range
+     */
+    @Override
+    public boolean keyValid(BigInteger begin, BigInteger end, BigInteger key) {
+        // Case 1: Begin <= End, key > begin, key < end
+        // Case 2: Begin >= End, key < begin, key < end
+        // Case 3: Begin >= End, key > begin, key > end
+        if ((begin.compareTo(end) != 1) && (key.compareTo(begin) == 1) && (key.compareTo(end) == -1) ||
+                (begin.compareTo(end) != -1) && (key.compareTo(begin) == -1) && (key.compareTo(end) == -1) ||
+                (begin.compareTo(end) != -1) && (key.compareTo(begin) == 1) && (key.compareTo(end) == 1)) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Return all KV pairs whose hash is reachable within begin/end bounds.
+     * Only the keys of the range are visited, in ring order.
+     *
+     * @param begin Beginning of valid range
+     * @param end   End of valid range
+     * @return
+     */
+    @Override
+    public Map<String, String> hashReachable(BigInteger begin, BigInteger end) {
+        return drain(rangeIterator(begin, end, true));
+    }
+
+    /**
+     * Return all KV pairs whose hash is unreachable within begin/end bounds.
+     * Only the keys outside the range are visited, in ring order.
+     *
+     * @param begin Beginning of valid range
+     * @param end   End of valid range
+     * @return
+     */
+    @Override
+    public Map<String, String> hashUnreachable(BigInteger begin, BigInteger end) {
+        return drain(rangeIterator(begin, end, false));
+    }
+
+    /**
+     * Stream the KV pairs of a hash range. Only the current key and value are
+     * held in memory; each value is read from storage when the cursor reaches
+     * it.
+     *
+     * @param begin     Beginning of valid range
+     * @param end       End of valid range
+     * @param reachable True for keys inside the range, false for keys outside
+     * @return Lazy iterator in ring order
+     */
+    @Override
+    public Iterator<Map.Entry<String, String>> rangeIterator(BigInteger begin, BigInteger end, boolean reachable) {
+        if (reachable) {
+            return entries(hashIndex.keysInRange(begin, end));
+        } else {
+            return entries(hashIndex.keysOutsideRange(begin, end));
+        }
+    }
+
+    /**
+     * Stream every KV pair in storage.
+     *
+     * @return Lazy iterator in ring order
+     */
+    @Override
+    public Iterator<Map.Entry<String, String>> entryIterator() {
+        return entries(hashIndex.allKeys());
+    }
+
+    /**
+     * Read a value for a walk over many keys. Backends override this when a
+     * client GET has side effects a bulk read should not have.
+     *
+     * @param key Key to read
+     * @return Its value, or null if the key does not exist
+     */
+    protected String read(String key) throws Exception {
+        return get(key);
+    }
+
+    /**
+     * Look up the value of each key as the cursor advances, skipping keys
+     * deleted since the walk started.
+     *
+     * @param keys Keys to read
+     * @return Lazy iterator over the KV pairs
+     */
+    private Iterator<Map.Entry<String, String>> entries(final Iterator<String> keys) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    try {
+                        String value = read(key);
+                        if (value != null) {
+                            return new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+                        }
+                    } catch (Exception e) {
+                        logger.error("Failed to read key: " + key, e);
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> current = next;
+                next = advance();
+                return current;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static Map<String, String> drain(Iterator<Map.Entry<String, String>> entries) {
+        Map<String, String> newTable = new HashMap<String, String>();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            newTable.put(entry.getKey(), entry.getValue());
+        }
+        return newTable;
+    }
+}
@@ -0,0 +1,476 @@
+package persistent_storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.xerial.snappy.Snappy;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cold tier of PersistentStorage: values that have not been read for a while
+ * are moved into immutable archive segments and dropped from the heap.
+ *
+ * A segment holds the archived KV pairs sorted by key in Snappy-compressed
+ * blocks of BLOCK_BYTES, each [rawLength:int][storedLength:int][crc:int]
+ * [stored bytes], and is memory-mapped read-only. The index maps every
+ * archived key to its segment and block, so a GET decompresses one block.
+ *
+ * Segments are never modified. Keys overwritten, deleted or promoted back to
+ * the hot tier are only dropped from the index; a segment with no live keys
+ * left is deleted and sparse segments are rewritten by compact(). The index
+ * is not stored with the segments: the owner persists it as a manifest
+ * (writeManifest) together with its own checkpoint, so both tiers always
+ * agree on where a key lives after a restart.
+ */
+public class ArchiveTier {
+    private static Logger logger = Logger.getRootLogger();
+
+    // Raw bytes per block, the unit a GET decompresses
+    public static final int BLOCK_BYTES = 64 * 1024;
+    private static final String SEGMENT_INFIX = ".archive-";
+    private static final String SEGMENT_SUFFIX = ".data";
+    // Block offsets take the low bits of a location, the segment id the rest
+    private static final int OFFSET_BITS = 40;
+
+    /** Visits archived entries */
+    public interface Visitor {
+        void visit(String key, String value) throws IOException;
+    }
+
+    private static class Segment {
+        private int id;
+        private File file;
+        private MappedByteBuffer buffer;
+        // Index entries pointing into this segment
+        private AtomicInteger live = new AtomicInteger();
+        private int total;
+
+        Segment(int id, File file, int total) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.total = total;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private File directory;
+    private String prefix;
+    // Key -> segment id and block offset, see location()
+    private ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<String, Long>();
+    private ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+    private AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * @param directory Directory holding the segments
+     * @param prefix    Name shared by the owner's files
+     */
+    public ArchiveTier(File directory, String prefix) {
+        this.directory = directory;
+        this.prefix = prefix;
+        int maxId = -1;
+        for (int id : segmentIdsOnDisk()) {
+            maxId = Math.max(maxId, id);
+        }
+        this.nextId.set(maxId + 1);
+    }
+
+    private static long location(int segmentId, long blockOffset) {
+        return ((long) segmentId << OFFSET_BITS) | blockOffset;
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    private static int blockOffset(long location) {
+        return (int) (location & ((1L << OFFSET_BITS) - 1));
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, prefix + SEGMENT_INFIX + id + SEGMENT_SUFFIX);
+    }
+
+    private List<Integer> segmentIdsOnDisk() {
+        List<Integer> ids = new ArrayList<Integer>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return ids;
+        }
+        String start = prefix + SEGMENT_INFIX;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(start) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    ids.add(Integer.parseInt(name.substring(start.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment, e.g. a temp file
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Rebuild the index from a manifest and open the segments it refers to.
+     * Segments it does not refer to were written by an archive pass that
+     * never reached a checkpoint and are deleted.
+     *
+     * @param manifest Written by writeManifest, empty if nothing was archived
+     * @throws IOException If a referenced segment cannot be opened
+     */
+    public void load(ByteBuffer manifest) throws IOException {
+        Map<Integer, Integer> liveCounts = new HashMap<Integer, Integer>();
+        if (manifest.hasRemaining()) {
+            int count = manifest.getInt();
+            for (int i = 0; i < count; i++) {
+                String key = CheckpointFile.readString(manifest);
+                long location = manifest.getLong();
+                index.put(key, location);
+                Integer live = liveCounts.get(segmentId(location));
+                liveCounts.put(segmentId(location), live == null ? 1 : live + 1);
+            }
+        }
+        for (int id : segmentIdsOnDisk()) {
+            if (!liveCounts.containsKey(id)) {
+                logger.info("Deleting unreferenced archive segment " + segmentFile(id).getName());
+                segmentFile(id).delete();
+            }
+        }
+        for (Map.Entry<Integer, Integer> entry : liveCounts.entrySet()) {
+            Segment segment = new Segment(entry.getKey(), segmentFile(entry.getKey()), entry.getValue());
+            segment.live.set(entry.getValue());
+            segments.put(segment.id, segment);
+        }
+    }
+
+    /** Write the index for load() */
+    public void writeManifest(DataOutputStream out) throws IOException {
+        // Entries of a ConcurrentHashMap may come and go while it is walked
+        Map<String, Long> copy = new HashMap<String, Long>(index);
+        out.writeInt(copy.size());
+        for (Map.Entry<String, Long> entry : copy.entrySet()) {
+            CheckpointFile.writeString(out, entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    private static void writeBlock(DataOutputStream out, ByteArrayOutputStream block) throws IOException {
+        byte[] stored = Snappy.compress(block.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+        out.writeInt(block.size());
+        out.writeInt(stored.length);
+        out.writeInt((int) crc.getValue());
+        out.write(stored);
+        block.reset();
+    }
+
+    /**
+     * Write KV pairs to a new segment. The keys are not archived until they
+     * are added with add(), so the caller can still drop any that changed
+     * while the segment was written.
+     *
+     * @param entries KV pairs to archive, sorted by key
+     * @return Location of each key in the new segment
+     * @throws IOException
+     */
+    public Map<String, Long> writeSegment(SortedMap<String, String> entries) throws IOException {
+        int id = nextId.getAndIncrement();
+        File file = segmentFile(id);
+        File temp = new File(directory, file.getName() + ".tmp");
+        Map<String, Long> locations = new HashMap<String, Long>(entries.size() * 2);
+        FileOutputStream fileStream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 256 * 1024));
+        try {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + 1024);
+            DataOutputStream records = new DataOutputStream(block);
+            long blockStart = 0;
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                records.writeInt(key.length);
+                records.write(key);
+                records.writeInt(value.length);
+                records.write(value);
+                locations.put(entry.getKey(), location(id, blockStart));
+                if (block.size() >= BLOCK_BYTES) {
+                    writeBlock(out, block);
+                    blockStart = out.size();
+                }
+            }
+            if (block.size() > 0) {
+                writeBlock(out, block);
+            }
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        segments.put(id, new Segment(id, file, entries.size()));
+        return locations;
+    }
+
+    /**
+     * Archive a key written by writeSegment(). The caller drops the key from
+     * the hot tier afterwards, so lock-free GETs always find it in one tier.
+     */
+    public void add(String key, long location) {
+        segments.get(segmentId(location)).live.incrementAndGet();
+        Long previous = index.put(key, location);
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    private void release(long location) {
+        Segment segment = segments.get(segmentId(location));
+        if (segment != null) {
+            segment.live.decrementAndGet();
+        }
+    }
+
+    /**
+     * Drop a key that was overwritten, deleted or promoted.
+     *
+     * @return True if the key was archived
+     */
+    public boolean remove(String key) {
+        Long location = index.remove(key);
+        if (location == null) {
+            return false;
+        }
+        release(location);
+        return true;
+    }
+
+    public boolean containsKey(String key) {
+        return index.containsKey(key);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /** @return Every archived key */
+    public Iterable<String> keys() {
+        return index.keySet();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** @return Bytes of all segment files */
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.buffer.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Decompress the block at the given offset, checking its CRC.
+     */
+    private static byte[] readBlock(Segment segment, int offset) throws IOException {
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(offset);
+        int rawLength = view.getInt();
+        int storedLength = view.getInt();
+        int expectedCrc = view.getInt();
+        if (storedLength < 0 || storedLength > view.remaining()) {
+            throw new IOException("Bad block length in archive segment " + segment.file.getName());
+        }
+        byte[] stored = new byte[storedLength];
+        view.get(stored);
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Block checksum mismatch in archive segment " + segment.file.getName());
+        }
+        byte[] raw = Snappy.uncompress(stored);
+        if (raw.length != rawLength) {
+            throw new IOException("Bad block size in archive segment " + segment.file.getName());
+        }
+        return raw;
+    }
+
+    /**
+     * Walk the records of a block.
+     *
+     * @param wanted Key to stop at, or null to visit every record
+     * @return Value of the wanted key, or null
+     */
+    private static String scanBlock(byte[] raw, String wanted, Visitor visitor) throws IOException {
+        ByteBuffer records = ByteBuffer.wrap(raw);
+        byte[] wantedBytes = wanted == null ? null : wanted.getBytes(StandardCharsets.UTF_8);
+        while (records.hasRemaining()) {
+            byte[] key = new byte[records.getInt()];
+            records.get(key);
+            int valueLength = records.getInt();
+            if (wantedBytes != null && !Arrays.equals(key, wantedBytes)) {
+                records.position(records.position() + valueLength);
+                continue;
+            }
+            byte[] value = new byte[valueLength];
+            records.get(value);
+            String decoded = new String(value, StandardCharsets.UTF_8);
+            if (wantedBytes != null) {
+                return decoded;
+            }
+            visitor.visit(new String(key, StandardCharsets.UTF_8), decoded);
+        }
+        return null;
+    }
+
+    /**
+     * @param key Key to look up
+     * @return Its archived value, or null if the key is not archived
+     * @throws IOException If the segment is damaged
+     */
+    public String get(String key) throws IOException {
+        Long location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        Segment segment = segments.get(segmentId(location));
+        if (segment == null) {
+            return null;
+        }
+        return scanBlock(readBlock(segment, blockOffset(location)), key, null);
+    }
+
+    /**
+     * Visit every archived entry, one segment block at a time.
+     */
+    public void forEach(final Visitor visitor) throws IOException {
+        for (final Segment segment : segments.values()) {
+            ByteBuffer view = segment.buffer.duplicate();
+            while (view.hasRemaining()) {
+                final int offset = view.position();
+                view.position(offset + 4);
+                int storedLength = view.getInt();
+                view.position(view.position() + 4 + storedLength);
+                scanBlock(readBlock(segment, offset), null, new Visitor() {
+                    public void visit(String key, String value) throws IOException {
+                        // Skip stale copies of keys that moved on
+                        Long location = index.get(key);
+                        if (location != null && location == location(segment.id, offset)) {
+                            visitor.visit(key, value);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Rewrite the live keys of segments that are mostly stale into one new
+     * segment. The old segments are left for deleteDeadSegments().
+     *
+     * @param minLiveRatio Segments with a smaller share of live keys are
+     *                     rewritten
+     * @return Number of segments rewritten
+     * @throws IOException
+     */
+    public int compact(double minLiveRatio) throws IOException {
+        final Map<String, Long> moved = new HashMap<String, Long>();
+        final SortedMap<String, String> entries = new TreeMap<String, String>();
+        List<Segment> sparse = new ArrayList<Segment>();
+        for (Segment segment : segments.values()) {
+            int live = segment.live.get();
+            if (live > 0 && live < segment.total * minLiveRatio) {
+                sparse.add(segment);
+            }
+        }
+        if (sparse.size() < 2) {
+            // Rewriting a single segment alone frees little
+            return 0;
+        }
+        for (final Segment segment : sparse) {
+            ByteBuffer view = segment.buffer.duplicate();
+            while (view.hasRemaining()) {
+                final int offset = view.position();
+                view.position(offset + 4);
+                int storedLength = view.getInt();
+                view.position(view.position() + 4 + storedLength);
+                scanBlock(readBlock(segment, offset), null, new Visitor() {
+                    public void visit(String key, String value) {
+                        long location = location(segment.id, offset);
+                        Long current = index.get(key);
+                        if (current != null && current == location) {
+                            moved.put(key, location);
+                            entries.put(key, value);
+                        }
+                    }
+                });
+            }
+        }
+        Map<String, Long> locations = writeSegment(entries);
+        for (Map.Entry<String, Long> entry : locations.entrySet()) {
+            // Only if the key was not dropped while the segment was written
+            if (index.replace(entry.getKey(), moved.get(entry.getKey()), entry.getValue())) {
+                segments.get(segmentId(entry.getValue())).live.incrementAndGet();
+                release(moved.get(entry.getKey()));
+            }
+        }
+        return sparse.size();
+    }
+
+    /**
+     * Delete segments without live keys. Only call this once a manifest
+     * without them has been persisted.
+     *
+     * @return Number of segments deleted
+     */
+    public int deleteDeadSegments() {
+        int deleted = 0;
+        for (Segment segment : new ArrayList<Segment>(segments.values())) {
+            if (segment.live.get() <= 0) {
+                segments.remove(segment.id);
+                // Mapped readers keep working on the unlinked file
+                if (!segment.file.delete()) {
+                    logger.error("Failed to delete archive segment " + segment.file.getName());
+                }
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /** Drop every archived key, the segments go with deleteDeadSegments() */
+    public void clear() {
+        for (String key : new ArrayList<String>(index.keySet())) {
+            remove(key);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package persistent_storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filter over string keys, used to answer "definitely not here" for an
+ * on-disk table without touching the disk.
+ *
+ * Bit positions come from double hashing a single 64-bit hash of the key, so
+ * a key is hashed once no matter how many hash functions are used.
+ */
+public class BloomFilter {
+    private static final int MAGIC = 0x424c4d31; // "BLM1"
+
+    private long[] words;
+    private long numBits;
+    private int numHashes;
+
+    /**
+     * Size a filter for an expected number of keys.
+     *
+     * @param expectedKeys      Number of keys that will be added
+     * @param falsePositiveRate Target probability of a false positive
+     */
+    public BloomFilter(long expectedKeys, double falsePositiveRate) {
+        long n = Math.max(1, expectedKeys);
+        double p = Math.min(Math.max(falsePositiveRate, 1e-9), 0.5);
+        long bits = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.max(64, bits);
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        this.words = new long[(int) ((numBits + 63) / 64)];
+    }
+
+    private BloomFilter(long[] words, long numBits, int numHashes) {
+        this.words = words;
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * 64-bit hash of a key (FNV-1a followed by a murmur3 finalizer).
+     *
+     * @param key Key to hash
+     * @return Hash of the UTF-8 bytes of the key
+     */
+    public static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public void add(String key) {
+        addHash(hash(key));
+    }
+
+    /**
+     * Add a key by its precomputed hash.
+     *
+     * @param hash Result of hash(key)
+     */
+    public void addHash(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @param key Key to check
+     * @return False if the key was definitely never added
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return Heap used by the bit array in bytes */
+    public long sizeBytes() {
+        return words.length * 8L;
+    }
+
+    public int getNumHashes() {
+        return this.numHashes;
+    }
+
+    /**
+     * Estimate the current false positive rate from the fraction of set bits.
+     *
+     * @return Probability that a key never added passes mightContain
+     */
+    public double expectedFalsePositiveRate() {
+        long set = 0;
+        for (long word : words) {
+            set += Long.bitCount(word);
+        }
+        return Math.pow((double) set / numBits, numHashes);
+    }
+
+    /**
+     * Persist the filter.
+     *
+     * @param file Destination file, replaced if it exists
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        FileOutputStream fileStream = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(numHashes);
+            out.writeLong(numBits);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a filter written by write().
+     *
+     * @param file Filter file
+     * @return The filter
+     * @throws IOException If the file is missing or malformed
+     */
+    public static BloomFilter read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Bad bloom filter file: " + file.getName());
+            }
+            int numHashes = in.readInt();
+            long numBits = in.readLong();
+            long[] words = new long[(int) ((numBits + 63) / 64)];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return new BloomFilter(words, numBits, numHashes);
+        } finally {
+            in.close();
+        }
+    }
+}
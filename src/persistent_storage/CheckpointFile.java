@@ -0,0 +1,143 @@
+package persistent_storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary checkpoint of a backend's in-memory state, so a restart
+ * loads one file with a single memory-mapped read and only replays the log
+ * written after it.
+ *
+ * Layout: [magic:int][sequence:long][body][crc:int][magic:int]
+ * The sequence tells the backend where log replay has to resume. The CRC32
+ * covers the header and body. Checkpoints are written to a temp file and
+ * renamed into place, so a crash never leaves a partial checkpoint behind.
+ */
+public class CheckpointFile {
+    private static final int MAGIC = 0x434b5031; // "CKP1"
+    private static final int HEADER_SIZE = 12;
+    private static final int FOOTER_SIZE = 8;
+
+    /**
+     * Writes the backend-specific body of a checkpoint.
+     */
+    public interface BodyWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private long sequence;
+    private ByteBuffer body;
+
+    private CheckpointFile(long sequence, ByteBuffer body) {
+        this.sequence = sequence;
+        this.body = body;
+    }
+
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    /** @return Body of the checkpoint, positioned at its first byte */
+    public ByteBuffer getBody() {
+        return this.body;
+    }
+
+    /**
+     * Atomically replace a checkpoint.
+     *
+     * @param file     Checkpoint file
+     * @param sequence Position in the log the checkpoint covers
+     * @param body     Writes the checkpoint body
+     * @throws IOException
+     */
+    public static void write(File file, long sequence, BodyWriter body) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(temp);
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(
+                new CheckedOutputStream(new BufferedOutputStream(fileStream, 64 * 1024), crc));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(sequence);
+            body.write(out);
+            out.flush();
+            // Footer is outside the checksum
+            DataOutputStream footer = new DataOutputStream(fileStream);
+            footer.writeInt((int) crc.getValue());
+            footer.writeInt(MAGIC);
+            footer.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Map a checkpoint into memory and verify it.
+     *
+     * @param file Checkpoint file
+     * @return The checkpoint
+     * @throws IOException If the file is missing, truncated or corrupt
+     */
+    public static CheckpointFile read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE + FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Bad checkpoint size: " + file.getName());
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int checked = (int) size - FOOTER_SIZE;
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(checked + 4) != MAGIC) {
+                throw new IOException("Bad checkpoint magic: " + file.getName());
+            }
+            ByteBuffer covered = mapped.duplicate();
+            covered.limit(checked);
+            // CRC32.update(ByteBuffer) is Java 8, copy through a chunk instead
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[64 * 1024];
+            while (covered.hasRemaining()) {
+                int length = Math.min(chunk.length, covered.remaining());
+                covered.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+            if ((int) crc.getValue() != mapped.getInt(checked)) {
+                throw new IOException("Checkpoint checksum mismatch: " + file.getName());
+            }
+            long sequence = mapped.getLong(4);
+            mapped.position(HEADER_SIZE);
+            mapped.limit(checked);
+            return new CheckpointFile(sequence, mapped.slice());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Write a length-prefixed UTF-8 string */
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Read a string written by writeString */
+    public static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,260 @@
+package persistent_storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Key -> RecordPointer map specialized for short keys.
+ *
+ * KVMessage caps keys at 20 bytes, so keys are stored inline in one packed
+ * byte array (MAX_KEY_BYTES per slot) and the pointer fields in parallel
+ * primitive arrays. Collisions are resolved by linear probing and removals
+ * shift the following run back, so there are no tombstones. A key costs
+ * about 37 bytes per slot instead of a HashMap entry, a String, its byte
+ * array and a RecordPointer (around 130 bytes).
+ *
+ * Keys longer than MAX_KEY_BYTES once UTF-8 encoded, or empty, fall back to
+ * a regular HashMap. Not thread safe; callers synchronize like they would a
+ * HashMap.
+ */
+public class CompactKeyIndex {
+    public static final int MAX_KEY_BYTES = 20;
+    private static final float MAX_LOAD = 0.75f;
+    private static final int MIN_CAPACITY = 16;
+
+    // Slot i holds its key in keyBytes[i * MAX_KEY_BYTES ...], 0 length = empty
+    private byte[] keyBytes;
+    private byte[] keyLengths;
+    private int[] segmentIds;
+    private long[] offsets;
+    private int[] lengths;
+    private int mask;
+    private int slotsUsed;
+
+    // Keys that do not fit a slot
+    private Map<String, RecordPointer> overflow = new HashMap<String, RecordPointer>();
+
+    /** Visits every key of the index */
+    public interface Visitor {
+        void visit(String key, RecordPointer pointer);
+    }
+
+    public CompactKeyIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedKeys Number of keys to size the table for
+     */
+    public CompactKeyIndex(int expectedKeys) {
+        allocate(capacityFor(expectedKeys));
+    }
+
+    private static int capacityFor(int keys) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < keys) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        this.keyBytes = new byte[capacity * MAX_KEY_BYTES];
+        this.keyLengths = new byte[capacity];
+        this.segmentIds = new int[capacity];
+        this.offsets = new long[capacity];
+        this.lengths = new int[capacity];
+        this.mask = capacity - 1;
+        this.slotsUsed = 0;
+    }
+
+    /** FNV-1a over the key bytes followed by a murmur3 finalizer */
+    private static int hash(byte[] bytes, int from, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = from; i < from + length; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static byte[] encode(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean fits(byte[] key) {
+        return key.length > 0 && key.length <= MAX_KEY_BYTES;
+    }
+
+    /**
+     * @return Slot holding the key, or the empty slot that ends its probe run
+     */
+    private int find(byte[] key) {
+        int slot = hash(key, 0, key.length) & mask;
+        while (keyLengths[slot] != 0) {
+            if (keyLengths[slot] == key.length && matches(slot, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean matches(int slot, byte[] key) {
+        int base = slot * MAX_KEY_BYTES;
+        for (int i = 0; i < key.length; i++) {
+            if (keyBytes[base + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public RecordPointer get(String key) {
+        byte[] bytes = encode(key);
+        if (!fits(bytes)) {
+            return overflow.get(key);
+        }
+        int slot = find(bytes);
+        if (keyLengths[slot] == 0) {
+            return null;
+        }
+        return new RecordPointer(segmentIds[slot], offsets[slot], lengths[slot]);
+    }
+
+    public boolean containsKey(String key) {
+        byte[] bytes = encode(key);
+        if (!fits(bytes)) {
+            return overflow.containsKey(key);
+        }
+        return keyLengths[find(bytes)] != 0;
+    }
+
+    /**
+     * Insert or replace the pointer of a key.
+     *
+     * @param key     Key to index
+     * @param pointer Location of its latest record
+     */
+    public void put(String key, RecordPointer pointer) {
+        byte[] bytes = encode(key);
+        if (!fits(bytes)) {
+            overflow.put(key, pointer);
+            return;
+        }
+        int slot = find(bytes);
+        if (keyLengths[slot] == 0) {
+            if (slotsUsed + 1 > (mask + 1) * MAX_LOAD) {
+                resize((mask + 1) << 1);
+                slot = find(bytes);
+            }
+            System.arraycopy(bytes, 0, keyBytes, slot * MAX_KEY_BYTES, bytes.length);
+            keyLengths[slot] = (byte) bytes.length;
+            slotsUsed++;
+        }
+        segmentIds[slot] = pointer.getSegmentId();
+        offsets[slot] = pointer.getOffset();
+        lengths[slot] = pointer.getLength();
+    }
+
+    /**
+     * @param key Key to drop
+     * @return True if the key was present
+     */
+    public boolean remove(String key) {
+        byte[] bytes = encode(key);
+        if (!fits(bytes)) {
+            return overflow.remove(key) != null;
+        }
+        int slot = find(bytes);
+        if (keyLengths[slot] == 0) {
+            return false;
+        }
+        // Shift later entries of the run back so lookups never hit a gap
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keyLengths[next] != 0) {
+            int home = hash(keyBytes, next * MAX_KEY_BYTES, keyLengths[next]) & mask;
+            // Move the entry if its home is not cyclically in (gap, next]
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                moveSlot(next, gap);
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keyLengths[gap] = 0;
+        slotsUsed--;
+        return true;
+    }
+
+    private void moveSlot(int from, int to) {
+        System.arraycopy(keyBytes, from * MAX_KEY_BYTES, keyBytes, to * MAX_KEY_BYTES, MAX_KEY_BYTES);
+        keyLengths[to] = keyLengths[from];
+        segmentIds[to] = segmentIds[from];
+        offsets[to] = offsets[from];
+        lengths[to] = lengths[from];
+    }
+
+    private void resize(int capacity) {
+        byte[] oldKeys = keyBytes;
+        byte[] oldLengths = keyLengths;
+        int[] oldSegments = segmentIds;
+        long[] oldOffsets = offsets;
+        int[] oldRecordLengths = lengths;
+        allocate(capacity);
+        for (int i = 0; i < oldLengths.length; i++) {
+            int length = oldLengths[i];
+            if (length == 0) {
+                continue;
+            }
+            int base = i * MAX_KEY_BYTES;
+            int slot = hash(oldKeys, base, length) & mask;
+            while (keyLengths[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(oldKeys, base, keyBytes, slot * MAX_KEY_BYTES, length);
+            keyLengths[slot] = (byte) length;
+            segmentIds[slot] = oldSegments[i];
+            offsets[slot] = oldOffsets[i];
+            lengths[slot] = oldRecordLengths[i];
+            slotsUsed++;
+        }
+    }
+
+    public int size() {
+        return slotsUsed + overflow.size();
+    }
+
+    public void clear() {
+        Arrays.fill(keyLengths, (byte) 0);
+        slotsUsed = 0;
+        overflow.clear();
+    }
+
+    /**
+     * Call the visitor for every key, in no particular order. The index must
+     * not be modified during the walk.
+     */
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keyLengths.length; i++) {
+            if (keyLengths[i] != 0) {
+                String key = new String(keyBytes, i * MAX_KEY_BYTES, keyLengths[i], StandardCharsets.UTF_8);
+                visitor.visit(key, new RecordPointer(segmentIds[i], offsets[i], lengths[i]));
+            }
+        }
+        for (Map.Entry<String, RecordPointer> entry : overflow.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** @return Heap used by the slot arrays in bytes, not counting overflow */
+    public long sizeBytes() {
+        long capacity = keyLengths.length;
+        return capacity * (MAX_KEY_BYTES + 1 + 4 + 8 + 4);
+    }
+}
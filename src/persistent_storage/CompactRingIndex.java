@@ -0,0 +1,366 @@
+package persistent_storage;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * RingIndex packed into primitive arrays, for backends whose point index is
+ * already compact. A HashRingIndex entry is a skip list node holding a
+ * BigInteger MD5 and the String key, around 190 bytes per key; here a key
+ * costs the two 64-bit halves of its MD5 and a slot id in a sorted chunk,
+ * plus its bytes in a fixed-size slot of a key slab.
+ *
+ * Entries are sorted by ring position in chunks of at most CHUNK_SIZE, so an
+ * insert or removal only shifts one chunk. Walks fetch WALK_BATCH keys at a
+ * time past the last key they returned, which keeps them weakly consistent
+ * like the skip list. Keys longer than MAX_KEY_BYTES once UTF-8 encoded, or
+ * empty, keep their String in a side map. Thread safe.
+ */
+public class CompactRingIndex implements RingIndex {
+    private static final int MAX_KEY_BYTES = CompactKeyIndex.MAX_KEY_BYTES;
+    // Most entries per chunk, a full chunk is split in two
+    private static final int CHUNK_SIZE = 256;
+    private static final int MIN_CAPACITY = 16;
+    // Keys a walk takes per lock acquisition
+    private static final int WALK_BATCH = 256;
+
+    /**
+     * Sorted run of entries. Hash halves are stored with the sign bit
+     * flipped, so signed order is the ring's unsigned order.
+     */
+    private static class Chunk {
+        private long[] hi = new long[MIN_CAPACITY];
+        private long[] lo = new long[MIN_CAPACITY];
+        private int[] ids = new int[MIN_CAPACITY];
+        private int size = 0;
+    }
+
+    /** A ring position; bound -1 sorts before every key at the hash, 1 after, 0 is the key */
+    private static class Position {
+        private final long hi;
+        private final long lo;
+        private final String key;
+        private final int bound;
+
+        Position(long hi, long lo, String key, int bound) {
+            this.hi = hi;
+            this.lo = lo;
+            this.key = key;
+            this.bound = bound;
+        }
+    }
+
+    private List<Chunk> chunks = new ArrayList<Chunk>();
+    private int size = 0;
+
+    // Key slab, slot i holds its key in keyBytes[i * MAX_KEY_BYTES ...]
+    private byte[] keyBytes = new byte[MIN_CAPACITY * MAX_KEY_BYTES];
+    // 0 for keys kept in longKeys
+    private byte[] keyLengths = new byte[MIN_CAPACITY];
+    private int nextId = 0;
+    private int[] freeIds = new int[MIN_CAPACITY];
+    private int freeCount = 0;
+    private Map<Integer, String> longKeys = new HashMap<Integer, String>();
+
+    private static Position positionOf(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hi = 0;
+            long lo = 0;
+            for (int i = 0; i < 8; i++) {
+                hi = (hi << 8) | (digest[i] & 0xff);
+                lo = (lo << 8) | (digest[i + 8] & 0xff);
+            }
+            return new Position(hi ^ Long.MIN_VALUE, lo ^ Long.MIN_VALUE, key, 0);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    private static Position bound(BigInteger hash, int bound) {
+        return new Position(hash.shiftRight(64).longValue() ^ Long.MIN_VALUE, hash.longValue() ^ Long.MIN_VALUE,
+                null, bound);
+    }
+
+    private String keyOf(int id) {
+        int length = keyLengths[id];
+        if (length == 0) {
+            return longKeys.get(id);
+        }
+        return new String(keyBytes, id * MAX_KEY_BYTES, length, StandardCharsets.UTF_8);
+    }
+
+    /** Store a key in a free slab slot */
+    private int allocate(String key) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = nextId++;
+            if (id == keyLengths.length) {
+                keyLengths = Arrays.copyOf(keyLengths, id * 2);
+                keyBytes = Arrays.copyOf(keyBytes, id * 2 * MAX_KEY_BYTES);
+            }
+        }
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0 && bytes.length <= MAX_KEY_BYTES) {
+            System.arraycopy(bytes, 0, keyBytes, id * MAX_KEY_BYTES, bytes.length);
+            keyLengths[id] = (byte) bytes.length;
+        } else {
+            keyLengths[id] = 0;
+            longKeys.put(id, key);
+        }
+        return id;
+    }
+
+    private void free(int id) {
+        if (keyLengths[id] == 0) {
+            longKeys.remove(id);
+        }
+        keyLengths[id] = 0;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    /** Compare entry i of the chunk with a position */
+    private int compare(Chunk chunk, int i, Position position) {
+        int cmp = Long.compare(chunk.hi[i], position.hi);
+        if (cmp == 0) {
+            cmp = Long.compare(chunk.lo[i], position.lo);
+        }
+        if (cmp != 0) {
+            return cmp;
+        }
+        if (position.bound != 0) {
+            return -position.bound;
+        }
+        return keyOf(chunk.ids[i]).compareTo(position.key);
+    }
+
+    /**
+     * @param orEqual Also stop at an entry equal to the position
+     * @return {chunk, index} of the first entry past the position, chunk is
+     *         chunks.size() if there is none
+     */
+    private int[] locate(Position position, boolean orEqual) {
+        int threshold = orEqual ? 0 : 1;
+        int low = 0;
+        int high = chunks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Chunk chunk = chunks.get(mid);
+            if (compare(chunk, chunk.size - 1, position) >= threshold) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        if (low == chunks.size()) {
+            return new int[] { low, 0 };
+        }
+        Chunk chunk = chunks.get(low);
+        int from = 0;
+        int to = chunk.size - 1;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (compare(chunk, mid, position) >= threshold) {
+                to = mid;
+            } else {
+                from = mid + 1;
+            }
+        }
+        return new int[] { low, from };
+    }
+
+    public synchronized void add(String key) {
+        Position position = positionOf(key);
+        int[] at = locate(position, true);
+        if (at[0] < chunks.size() && compare(chunks.get(at[0]), at[1], position) == 0) {
+            return;
+        }
+        if (chunks.isEmpty()) {
+            chunks.add(new Chunk());
+        } else if (at[0] == chunks.size()) {
+            // Past every entry, append to the last chunk
+            at[0] = chunks.size() - 1;
+            at[1] = chunks.get(at[0]).size;
+        }
+        insert(at[0], at[1], position.hi, position.lo, allocate(key));
+        size++;
+    }
+
+    private void insert(int chunkIndex, int i, long hi, long lo, int id) {
+        Chunk chunk = chunks.get(chunkIndex);
+        if (chunk.size == CHUNK_SIZE) {
+            // Move the upper half to a new chunk
+            Chunk upper = new Chunk();
+            int half = CHUNK_SIZE / 2;
+            upper.hi = Arrays.copyOfRange(chunk.hi, half, CHUNK_SIZE);
+            upper.lo = Arrays.copyOfRange(chunk.lo, half, CHUNK_SIZE);
+            upper.ids = Arrays.copyOfRange(chunk.ids, half, CHUNK_SIZE);
+            upper.size = CHUNK_SIZE - half;
+            chunk.size = half;
+            chunks.add(chunkIndex + 1, upper);
+            if (i > half) {
+                chunk = upper;
+                i -= half;
+            }
+        }
+        if (chunk.size == chunk.hi.length) {
+            int capacity = Math.min(CHUNK_SIZE, chunk.size * 2);
+            chunk.hi = Arrays.copyOf(chunk.hi, capacity);
+            chunk.lo = Arrays.copyOf(chunk.lo, capacity);
+            chunk.ids = Arrays.copyOf(chunk.ids, capacity);
+        }
+        int tail = chunk.size - i;
+        System.arraycopy(chunk.hi, i, chunk.hi, i + 1, tail);
+        System.arraycopy(chunk.lo, i, chunk.lo, i + 1, tail);
+        System.arraycopy(chunk.ids, i, chunk.ids, i + 1, tail);
+        chunk.hi[i] = hi;
+        chunk.lo[i] = lo;
+        chunk.ids[i] = id;
+        chunk.size++;
+    }
+
+    public synchronized void remove(String key) {
+        Position position = positionOf(key);
+        int[] at = locate(position, true);
+        if (at[0] == chunks.size()) {
+            return;
+        }
+        Chunk chunk = chunks.get(at[0]);
+        int i = at[1];
+        if (compare(chunk, i, position) != 0) {
+            return;
+        }
+        free(chunk.ids[i]);
+        int tail = chunk.size - i - 1;
+        System.arraycopy(chunk.hi, i + 1, chunk.hi, i, tail);
+        System.arraycopy(chunk.lo, i + 1, chunk.lo, i, tail);
+        System.arraycopy(chunk.ids, i + 1, chunk.ids, i, tail);
+        chunk.size--;
+        if (chunk.size == 0) {
+            chunks.remove(at[0]);
+        }
+        size--;
+    }
+
+    public synchronized void clear() {
+        chunks.clear();
+        size = 0;
+        keyBytes = new byte[MIN_CAPACITY * MAX_KEY_BYTES];
+        keyLengths = new byte[MIN_CAPACITY];
+        nextId = 0;
+        freeIds = new int[MIN_CAPACITY];
+        freeCount = 0;
+        longKeys.clear();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Copy the keys past a position and before an upper bound.
+     *
+     * @param after Exclusive lower bound, null for the start of the ring
+     * @param upper Exclusive upper bound, null for the end of the ring
+     * @return Position of the last key copied, null if none
+     */
+    private synchronized Position fetch(Position after, Position upper, ArrayDeque<String> into) {
+        int[] at = after == null ? new int[] { 0, 0 } : locate(after, false);
+        Position last = null;
+        for (int c = at[0]; c < chunks.size() && into.size() < WALK_BATCH; c++) {
+            Chunk chunk = chunks.get(c);
+            for (int i = c == at[0] ? at[1] : 0; i < chunk.size && into.size() < WALK_BATCH; i++) {
+                if (upper != null && compare(chunk, i, upper) >= 0) {
+                    return last;
+                }
+                String key = keyOf(chunk.ids[i]);
+                into.add(key);
+                last = new Position(chunk.hi[i], chunk.lo[i], key, 0);
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Walk the parts one after the other.
+     *
+     * @param parts Exclusive {lower, upper} bounds of each part, null is open
+     */
+    private Iterator<String> walk(final List<Position[]> parts) {
+        return new Iterator<String>() {
+            private int part = 0;
+            private Position cursor = parts.get(0)[0];
+            private ArrayDeque<String> batch = new ArrayDeque<String>();
+
+            public boolean hasNext() {
+                while (batch.isEmpty() && part < parts.size()) {
+                    Position last = fetch(cursor, parts.get(part)[1], batch);
+                    if (batch.size() < WALK_BATCH) {
+                        // Nothing left in this part
+                        part++;
+                        cursor = part < parts.size() ? parts.get(part)[0] : null;
+                    } else {
+                        cursor = last;
+                    }
+                }
+                return !batch.isEmpty();
+            }
+
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.poll();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static List<Position[]> parts(Position... bounds) {
+        List<Position[]> parts = new ArrayList<Position[]>();
+        for (int i = 0; i < bounds.length; i += 2) {
+            parts.add(new Position[] { bounds[i], bounds[i + 1] });
+        }
+        return parts;
+    }
+
+    public Iterator<String> keysInRange(BigInteger begin, BigInteger end) {
+        if (begin.compareTo(end) < 0) {
+            return walk(parts(bound(begin, 1), bound(end, -1)));
+        }
+        // Wraps around zero: everything below end and above begin
+        return walk(parts(null, bound(end, -1), bound(begin, 1), null));
+    }
+
+    public Iterator<String> keysOutsideRange(BigInteger begin, BigInteger end) {
+        if (begin.compareTo(end) < 0) {
+            return walk(parts(null, bound(begin, 1), bound(end, -1), null));
+        } else if (begin.compareTo(end) > 0) {
+            return walk(parts(bound(end, -1), bound(begin, 1)));
+        }
+        // Equal bounds exclude only the bound itself
+        return walk(parts(bound(begin, -1), bound(begin, 1)));
+    }
+
+    public Iterator<String> allKeys() {
+        return walk(parts(null, null));
+    }
+}
@@ -0,0 +1,212 @@
+package persistent_storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Background compaction of segment-based storage.
+ *
+ * Every check interval the scheduler asks its target how many bytes of each
+ * sealed segment are still live and compacts the segments whose garbage ratio
+ * reaches minGarbageRatio, most garbage first. It runs on a single
+ * minimum-priority thread, and compaction I/O goes through a RateLimiter so
+ * it never takes more than its MB/s budget away from client GETs and PUTs.
+ */
+public class CompactionScheduler {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final double DEFAULT_MIN_GARBAGE_RATIO = 0.5;
+    public static final double DEFAULT_MB_PER_SECOND = 16;
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 1000;
+
+    /** Space used by one segment */
+    public static class SegmentUsage {
+        private int id;
+        private long totalBytes;
+        private long liveBytes;
+
+        public SegmentUsage(int id, long totalBytes, long liveBytes) {
+            this.id = id;
+            this.totalBytes = totalBytes;
+            this.liveBytes = Math.min(liveBytes, totalBytes);
+        }
+
+        public int getId() {
+            return this.id;
+        }
+
+        public long getTotalBytes() {
+            return this.totalBytes;
+        }
+
+        public long getGarbageBytes() {
+            return this.totalBytes - this.liveBytes;
+        }
+
+        public double getGarbageRatio() {
+            return totalBytes == 0 ? 0 : (double) getGarbageBytes() / totalBytes;
+        }
+    }
+
+    /** Storage whose segments can be compacted one at a time */
+    public interface Compactable {
+        // Usage of every segment that may be compacted, i.e. not the active one
+        List<SegmentUsage> segmentUsage();
+
+        // Rewrite a segment without its dead records, return the bytes freed
+        long compactSegment(int id, RateLimiter limiter) throws IOException, InterruptedException;
+    }
+
+    private Compactable target;
+    private String name;
+    private volatile double minGarbageRatio;
+    private RateLimiter limiter;
+    private long checkIntervalMs;
+
+    private Thread thread;
+    private volatile boolean running = false;
+
+    // Metrics
+    private volatile long bytesReclaimed = 0;
+    private volatile long segmentsCompacted = 0;
+
+    /**
+     * @param name            Used to name the thread
+     * @param target          Storage to compact
+     * @param minGarbageRatio Share of dead bytes that makes a segment eligible
+     * @param mbPerSecond     Compaction I/O budget in MB/s, 0 for no limit
+     * @param checkIntervalMs Pause between checks for eligible segments
+     */
+    public CompactionScheduler(String name, Compactable target, double minGarbageRatio, double mbPerSecond,
+            long checkIntervalMs) {
+        this.name = name;
+        this.target = target;
+        this.minGarbageRatio = minGarbageRatio;
+        this.limiter = RateLimiter.ofMegabytes(mbPerSecond);
+        this.checkIntervalMs = checkIntervalMs;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(checkIntervalMs);
+                        runOnce();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }, "compaction-" + name);
+        thread.setDaemon(true);
+        // Client threads always win the CPU
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /** Stop the thread, waiting for a running compaction to give up */
+    public void stop() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            current.interrupt();
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** @return Segments at or above the garbage ratio, most garbage first */
+    private List<SegmentUsage> eligible() {
+        List<SegmentUsage> eligible = new ArrayList<SegmentUsage>();
+        for (SegmentUsage usage : target.segmentUsage()) {
+            if (usage.getTotalBytes() > 0 && usage.getGarbageRatio() >= minGarbageRatio) {
+                eligible.add(usage);
+            }
+        }
+        Collections.sort(eligible, new Comparator<SegmentUsage>() {
+            public int compare(SegmentUsage a, SegmentUsage b) {
+                return Double.compare(b.getGarbageRatio(), a.getGarbageRatio());
+            }
+        });
+        return eligible;
+    }
+
+    /**
+     * Compact every eligible segment once.
+     *
+     * @return Number of segments compacted
+     * @throws InterruptedException If stopped while waiting for the budget
+     */
+    public synchronized int runOnce() throws InterruptedException {
+        int compacted = 0;
+        for (SegmentUsage usage : eligible()) {
+            try {
+                long start = System.currentTimeMillis();
+                long reclaimed = target.compactSegment(usage.getId(), limiter);
+                bytesReclaimed += reclaimed;
+                segmentsCompacted++;
+                compacted++;
+                logger.info(String.format("Compacted segment %d of %s in %d ms: %d bytes reclaimed, "
+                        + "%.0f%% garbage before, backlog now %d bytes", usage.getId(), name,
+                        System.currentTimeMillis() - start, reclaimed, usage.getGarbageRatio() * 100,
+                        getBacklogBytes()));
+            } catch (IOException e) {
+                logger.error("Failed to compact segment " + usage.getId() + " of " + name, e);
+            }
+        }
+        return compacted;
+    }
+
+    /** @return Dead bytes in segments waiting to be compacted */
+    public long getBacklogBytes() {
+        long bytes = 0;
+        for (SegmentUsage usage : eligible()) {
+            bytes += usage.getGarbageBytes();
+        }
+        return bytes;
+    }
+
+    /** @return Number of segments waiting to be compacted */
+    public int getBacklogSegments() {
+        return eligible().size();
+    }
+
+    /** @return Bytes freed by compaction since startup */
+    public long getBytesReclaimed() {
+        return bytesReclaimed;
+    }
+
+    /** @return Segments compacted since startup */
+    public long getSegmentsCompacted() {
+        return segmentsCompacted;
+    }
+
+    public double getMinGarbageRatio() {
+        return minGarbageRatio;
+    }
+
+    public void setMinGarbageRatio(double minGarbageRatio) {
+        this.minGarbageRatio = minGarbageRatio;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return limiter;
+    }
+}
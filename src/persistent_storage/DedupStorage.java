@@ -0,0 +1,524 @@
+package persistent_storage;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Content-addressed value deduplication over any pair of storage backends.
+ *
+ * Each value is hashed with SHA-256 and stored once in the blob backend
+ * under its hash; the key backend maps every key to a reference
+ * "#<length>:<hash>". Identical values under different keys, e.g. the same
+ * message in inbox, sent and a folder, share one blob. Values shorter than
+ * minValueBytes are not worth a reference and are stored inline as
+ * "=<value>".
+ *
+ * Reference counts are kept in memory and rebuilt on startup from the key
+ * backend, which only holds short references. A blob is written before the
+ * first key points to it and deleted after the last key stops pointing to
+ * it, so a crash can at worst leave an unreferenced blob behind. Range walks
+ * go through the key backend, so hash ranges and transfers work as before.
+ */
+public class DedupStorage implements IPersistentStorage {
+    private static Logger logger = Logger.getRootLogger();
+
+    // Shorter values are stored inline
+    public static final int DEFAULT_MIN_VALUE_BYTES = 64;
+    // Number of write locks, a power of two
+    private static final int WRITE_STRIPES = 64;
+    private static final char INLINE = '=';
+    private static final char REFERENCE = '#';
+
+    /** What the key backend holds for one key */
+    private static class Ref {
+        private String encoded;
+        // Null for inline values
+        private String hash;
+        private String inlineValue;
+        private long length;
+
+        /**
+         * @throws IllegalStateException If the key backend holds something
+         *                               DedupStorage did not write
+         */
+        static Ref parse(String key, String encoded) {
+            Ref ref = new Ref();
+            ref.encoded = encoded;
+            if (encoded != null && encoded.length() > 0 && encoded.charAt(0) == REFERENCE) {
+                int colon = encoded.indexOf(':');
+                try {
+                    ref.length = Long.parseLong(encoded.substring(1, colon));
+                } catch (RuntimeException e) {
+                    throw new IllegalStateException("Malformed value reference for key " + key, e);
+                }
+                ref.hash = encoded.substring(colon + 1);
+            } else if (encoded != null && encoded.length() > 0 && encoded.charAt(0) == INLINE) {
+                ref.inlineValue = encoded.substring(1);
+                ref.length = ref.inlineValue.getBytes(StandardCharsets.UTF_8).length;
+            } else {
+                throw new IllegalStateException("Key backend holds a plain value for key " + key
+                        + ", not a value written by DedupStorage");
+            }
+            return ref;
+        }
+    }
+
+    private IPersistentStorage keys;
+    private IPersistentStorage blobs;
+    private int minValueBytes;
+    // Hash -> number of keys pointing to the blob, guarded by the blob's stripe
+    private ConcurrentHashMap<String, Integer> refCounts = new ConcurrentHashMap<String, Integer>();
+    // Value bytes as written by clients
+    private AtomicLong logicalBytes = new AtomicLong();
+    // Value bytes actually stored, blobs once plus inline values
+    private AtomicLong storedBytes = new AtomicLong();
+    private final Object[] keyStripes = new Object[WRITE_STRIPES];
+    private final Object[] blobStripes = new Object[WRITE_STRIPES];
+    {
+        for (int i = 0; i < WRITE_STRIPES; i++) {
+            keyStripes[i] = new Object();
+            blobStripes[i] = new Object();
+        }
+    }
+    // Shared by writes, exclusive for batches and wipes
+    private final ReentrantReadWriteLock batchLock = new ReentrantReadWriteLock();
+
+    /**
+     * @param keys          Backend mapping keys to references
+     * @param blobs         Backend mapping hashes to values
+     * @param minValueBytes Values shorter than this are stored inline
+     */
+    public DedupStorage(IPersistentStorage keys, IPersistentStorage blobs, int minValueBytes) {
+        this.keys = keys;
+        this.blobs = blobs;
+        this.minValueBytes = minValueBytes;
+        rebuild();
+    }
+
+    /**
+     * Count the references held by the key backend.
+     *
+     * @throws IllegalStateException If it holds plain values
+     */
+    private void rebuild() {
+        long startTime = System.currentTimeMillis();
+        Iterator<Map.Entry<String, String>> entries = keys.entryIterator();
+        int count = 0;
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            Ref ref = Ref.parse(entry.getKey(), entry.getValue());
+            logicalBytes.addAndGet(ref.length);
+            count++;
+            if (ref.hash == null) {
+                storedBytes.addAndGet(ref.length);
+                continue;
+            }
+            Integer refs = refCounts.get(ref.hash);
+            if (refs == null) {
+                storedBytes.addAndGet(ref.length);
+            }
+            refCounts.put(ref.hash, refs == null ? 1 : refs + 1);
+        }
+        logger.info(String.format("Counted references of %d keys to %d blobs in %d ms, dedup ratio %.2f", count,
+                refCounts.size(), System.currentTimeMillis() - startTime, getDedupRatio()));
+    }
+
+    /** @return Backend mapping keys to references */
+    public IPersistentStorage getKeyStorage() {
+        return this.keys;
+    }
+
+    /** @return Backend mapping hashes to values */
+    public IPersistentStorage getBlobStorage() {
+        return this.blobs;
+    }
+
+    /** @return Value bytes written by clients and still stored */
+    public long getLogicalBytes() {
+        return logicalBytes.get();
+    }
+
+    /** @return Value bytes actually stored */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /** @return Logical bytes per stored byte, 1 without duplicates */
+    public double getDedupRatio() {
+        long stored = storedBytes.get();
+        return stored == 0 ? 1 : (double) logicalBytes.get() / stored;
+    }
+
+    /** @return Number of distinct values stored as blobs */
+    public int getBlobCount() {
+        return refCounts.size();
+    }
+
+    private static Object stripeFor(Object[] stripes, String key) {
+        int h = key.hashCode();
+        // Spread the high bits, like HashMap does
+        h ^= (h >>> 16);
+        return stripes[h & (WRITE_STRIPES - 1)];
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /** @return Reference to store for the value */
+    private Ref encode(String key, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < minValueBytes) {
+            return Ref.parse(key, INLINE + value);
+        }
+        return Ref.parse(key, REFERENCE + String.valueOf(bytes.length) + ':' + sha256(bytes));
+    }
+
+    /**
+     * Take a reference to a blob, writing it if it is new.
+     *
+     * @return False if the blob could not be written
+     */
+    private boolean acquire(Ref ref, String value) throws Exception {
+        synchronized (stripeFor(blobStripes, ref.hash)) {
+            Integer refs = refCounts.get(ref.hash);
+            if (refs == null) {
+                if (!blobs.put(ref.hash, value)) {
+                    return false;
+                }
+                storedBytes.addAndGet(ref.length);
+                refs = 0;
+            }
+            refCounts.put(ref.hash, refs + 1);
+            return true;
+        }
+    }
+
+    /** Drop a reference to a blob, deleting it with the last one */
+    private void release(Ref ref) {
+        synchronized (stripeFor(blobStripes, ref.hash)) {
+            Integer refs = refCounts.get(ref.hash);
+            if (refs == null) {
+                return;
+            }
+            if (refs > 1) {
+                refCounts.put(ref.hash, refs - 1);
+                return;
+            }
+            refCounts.remove(ref.hash);
+            storedBytes.addAndGet(-ref.length);
+            if (!blobs.delete(ref.hash)) {
+                logger.error("Failed to delete unreferenced blob " + ref.hash);
+            }
+        }
+    }
+
+    /** Account for a reference a key no longer holds */
+    private void forget(String key, String encoded) {
+        if (encoded == null) {
+            return;
+        }
+        Ref ref = Ref.parse(key, encoded);
+        logicalBytes.addAndGet(-ref.length);
+        if (ref.hash == null) {
+            storedBytes.addAndGet(-ref.length);
+        } else {
+            release(ref);
+        }
+    }
+
+    /** Account for a reference a key now holds, its blob is already taken */
+    private void remember(Ref ref) {
+        logicalBytes.addAndGet(ref.length);
+        if (ref.hash == null) {
+            storedBytes.addAndGet(ref.length);
+        }
+    }
+
+    /**
+     * @param key     Key the reference was read from
+     * @param encoded Reference read from the key backend
+     * @return The value, or null if the key was deleted meanwhile
+     */
+    private String resolve(String key, String encoded) throws Exception {
+        while (encoded != null) {
+            Ref ref = Ref.parse(key, encoded);
+            if (ref.hash == null) {
+                return ref.inlineValue;
+            }
+            String value = blobs.get(ref.hash);
+            if (value != null) {
+                return value;
+            }
+            // The key was overwritten and the old blob dropped, read it again
+            String current = keys.get(key);
+            if (encoded.equals(current)) {
+                logger.error("Missing blob " + ref.hash + " for key: " + key);
+                return null;
+            }
+            encoded = current;
+        }
+        return null;
+    }
+
+    /**
+     * Point a key at a value, storing the value only if no other key holds
+     * it. An empty value deletes the key.
+     */
+    @Override
+    public boolean put(String key, String value) throws Exception {
+        if (value == null || value.isEmpty()) {
+            delete(key);
+            return true;
+        }
+        Ref ref = encode(key, value);
+        batchLock.readLock().lock();
+        try {
+            synchronized (stripeFor(keyStripes, key)) {
+                if (ref.hash != null && !acquire(ref, value)) {
+                    return false;
+                }
+                String previous = keys.get(key);
+                if (!keys.put(key, ref.encoded)) {
+                    if (ref.hash != null) {
+                        release(ref);
+                    }
+                    return false;
+                }
+                remember(ref);
+                forget(key, previous);
+                return true;
+            }
+        } finally {
+            batchLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        batchLock.readLock().lock();
+        try {
+            synchronized (stripeFor(keyStripes, key)) {
+                String previous = keys.get(key);
+                if (previous == null || !keys.delete(key)) {
+                    return false;
+                }
+                forget(key, previous);
+                return true;
+            }
+        } catch (Exception e) {
+            logger.error("Failed to delete key: " + key, e);
+            return false;
+        } finally {
+            batchLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write the new blobs of a batch as one blob batch, then the references
+     * as one key batch. Nothing is counted unless both succeed.
+     *
+     * @param batch Keys to write, a null or empty value deletes the key
+     */
+    @Override
+    public boolean applyBatch(Map<String, String> batch) {
+        batchLock.writeLock().lock();
+        try {
+            Map<String, String> encoded = new HashMap<String, String>(batch.size() * 2);
+            Map<String, Ref> refs = new HashMap<String, Ref>(batch.size() * 2);
+            Map<String, String> newBlobs = new HashMap<String, String>();
+            Map<String, String> previous = new HashMap<String, String>(batch.size() * 2);
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                String key = entry.getKey();
+                previous.put(key, keys.get(key));
+                String value = entry.getValue();
+                if (value == null || value.isEmpty()) {
+                    encoded.put(key, "");
+                    continue;
+                }
+                Ref ref = encode(key, value);
+                refs.put(key, ref);
+                encoded.put(key, ref.encoded);
+                if (ref.hash != null && !refCounts.containsKey(ref.hash)) {
+                    newBlobs.put(ref.hash, value);
+                }
+            }
+
+            if (!newBlobs.isEmpty() && !blobs.applyBatch(newBlobs)) {
+                return false;
+            }
+            if (!keys.applyBatch(encoded)) {
+                // Drop the blobs nothing points to
+                Map<String, String> orphans = new HashMap<String, String>();
+                for (String hash : newBlobs.keySet()) {
+                    orphans.put(hash, "");
+                }
+                blobs.applyBatch(orphans);
+                return false;
+            }
+
+            // Take every new reference before dropping any old one, so a
+            // blob kept by the batch never reaches zero in between
+            for (Ref ref : refs.values()) {
+                if (ref.hash != null) {
+                    Integer count = refCounts.get(ref.hash);
+                    if (count == null) {
+                        storedBytes.addAndGet(ref.length);
+                    }
+                    refCounts.put(ref.hash, count == null ? 1 : count + 1);
+                }
+                remember(ref);
+            }
+            for (Map.Entry<String, String> old : previous.entrySet()) {
+                forget(old.getKey(), old.getValue());
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to apply batch of " + batch.size() + " writes!", e);
+            return false;
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        return resolve(key, keys.get(key));
+    }
+
+    @Override
+    public void wipeStorage() {
+        batchLock.writeLock().lock();
+        try {
+            keys.wipeStorage();
+            blobs.wipeStorage();
+            refCounts.clear();
+            logicalBytes.set(0);
+            storedBytes.set(0);
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+    }
+
+    /** Close the key store, then the blob store its references point into */
+    @Override
+    public void close() {
+        batchLock.writeLock().lock();
+        try {
+            keys.close();
+            blobs.close();
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean existsCheck(String key) {
+        return keys.existsCheck(key);
+    }
+
+    @Override
+    public BigInteger MD5Hash(String key) {
+        return keys.MD5Hash(key);
+    }
+
+    @Override
+    public boolean keyValid(BigInteger begin, BigInteger end, BigInteger key) {
+        return keys.keyValid(begin, end, key);
+    }
+
+    @Override
+    public Map<String, String> hashReachable(BigInteger begin, BigInteger end) {
+        return drain(rangeIterator(begin, end, true));
+    }
+
+    @Override
+    public Map<String, String> hashUnreachable(BigInteger begin, BigInteger end) {
+        return drain(rangeIterator(begin, end, false));
+    }
+
+    @Override
+    public Map<String, String> returnAllEntries() {
+        return drain(entryIterator());
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> rangeIterator(BigInteger begin, BigInteger end, boolean reachable) {
+        return values(keys.rangeIterator(begin, end, reachable));
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> entryIterator() {
+        return values(keys.entryIterator());
+    }
+
+    /** Resolve the references of a key walk as the cursor advances */
+    private Iterator<Map.Entry<String, String>> values(final Iterator<Map.Entry<String, String>> references) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                while (references.hasNext()) {
+                    Map.Entry<String, String> entry = references.next();
+                    try {
+                        String value = resolve(entry.getKey(), entry.getValue());
+                        if (value != null) {
+                            return new AbstractMap.SimpleImmutableEntry<String, String>(entry.getKey(), value);
+                        }
+                    } catch (Exception e) {
+                        logger.error("Failed to read key: " + entry.getKey(), e);
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> current = next;
+                next = advance();
+                return current;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static Map<String, String> drain(Iterator<Map.Entry<String, String>> entries) {
+        Map<String, String> drained = new HashMap<String, String>();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            drained.put(entry.getKey(), entry.getValue());
+        }
+        return drained;
+    }
+}
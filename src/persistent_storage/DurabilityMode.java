@@ -0,0 +1,10 @@
+package persistent_storage;
+
+/**
+ * When a write-ahead log forces appended records to the storage device.
+ */
+public enum DurabilityMode {
+    FSYNC_BATCH, // fsync every batch before its writers return
+    FSYNC_PERIODIC, // writers return once written, fsync at a fixed interval
+    OS_BUFFERED // writers return once written, the OS decides when to flush
+}
@@ -0,0 +1,176 @@
+package persistent_storage;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keys of a storage backend ordered by their MD5 position on the hash ring.
+ *
+ * Pulling out the keys of a hash range is a range scan over this index, so
+ * rebalancing and replication cost is proportional to the size of the range
+ * instead of the whole table, and keys are never re-hashed to answer it.
+ * Range bounds follow AbstractPersistentStorage.keyValid: both ends are
+ * exclusive and begin > end wraps around zero.
+ */
+public class HashRingIndex implements RingIndex {
+    private static Logger logger = Logger.getRootLogger();
+
+    /** A key and its ring position, ordered by position then key */
+    private static class HashedKey implements Comparable<HashedKey> {
+        private BigInteger hash;
+        private String key;
+        // -1 sorts before every key at this hash, 1 after, 0 is a real key
+        private int bound;
+
+        HashedKey(BigInteger hash, String key, int bound) {
+            this.hash = hash;
+            this.key = key;
+            this.bound = bound;
+        }
+
+        public int compareTo(HashedKey other) {
+            int cmp = hash.compareTo(other.hash);
+            if (cmp != 0) {
+                return cmp;
+            }
+            if (bound != 0 || other.bound != 0) {
+                return Integer.compare(bound, other.bound);
+            }
+            return key.compareTo(other.key);
+        }
+    }
+
+    private ConcurrentSkipListSet<HashedKey> keys = new ConcurrentSkipListSet<HashedKey>();
+
+    /**
+     * Get MD5 hash of a key, i.e. its position on the ring
+     *
+     * @param key String to be hashed in MD5
+     * @return Returns big integer MD5 hash
+     */
+    public static BigInteger hash(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            return new BigInteger(1, md.digest(key.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("Error in generating MD5 hash!");
+        } catch (UnsupportedEncodingException e) {
+            logger.error("Unsupported encoding exception!");
+        }
+        return null;
+    }
+
+    public void add(String key) {
+        keys.add(new HashedKey(hash(key), key, 0));
+    }
+
+    public void remove(String key) {
+        keys.remove(new HashedKey(hash(key), key, 0));
+    }
+
+    public void clear() {
+        keys.clear();
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    private static HashedKey lowest(BigInteger hash) {
+        return new HashedKey(hash, null, -1);
+    }
+
+    private static HashedKey highest(BigInteger hash) {
+        return new HashedKey(hash, null, 1);
+    }
+
+    /**
+     * Keys whose hash is reachable within begin/end bounds.
+     *
+     * @param begin Beginning of valid range (exclusive)
+     * @param end   End of valid range (exclusive)
+     * @return Lazy iterator over the keys in ring order
+     */
+    public Iterator<String> keysInRange(BigInteger begin, BigInteger end) {
+        List<NavigableSet<HashedKey>> parts = new ArrayList<NavigableSet<HashedKey>>();
+        if (begin.compareTo(end) < 0) {
+            parts.add(keys.subSet(highest(begin), true, lowest(end), false));
+        } else {
+            // Wraps around zero: everything below end and above begin
+            parts.add(keys.headSet(lowest(end), false));
+            parts.add(keys.tailSet(highest(begin), false));
+        }
+        return chain(parts);
+    }
+
+    /**
+     * Keys whose hash is unreachable within begin/end bounds.
+     *
+     * @param begin Beginning of valid range (exclusive)
+     * @param end   End of valid range (exclusive)
+     * @return Lazy iterator over the keys in ring order
+     */
+    public Iterator<String> keysOutsideRange(BigInteger begin, BigInteger end) {
+        List<NavigableSet<HashedKey>> parts = new ArrayList<NavigableSet<HashedKey>>();
+        if (begin.compareTo(end) < 0) {
+            parts.add(keys.headSet(highest(begin), false));
+            parts.add(keys.tailSet(lowest(end), true));
+        } else if (begin.compareTo(end) > 0) {
+            parts.add(keys.subSet(lowest(end), true, highest(begin), false));
+        } else {
+            // Equal bounds exclude only the bound itself
+            parts.add(keys.subSet(lowest(begin), true, highest(begin), false));
+        }
+        return chain(parts);
+    }
+
+    /**
+     * All keys in ring order.
+     *
+     * @return Lazy iterator over every key
+     */
+    public Iterator<String> allKeys() {
+        List<NavigableSet<HashedKey>> parts = new ArrayList<NavigableSet<HashedKey>>();
+        parts.add(keys);
+        return chain(parts);
+    }
+
+    /**
+     * Walk the parts one after the other. The views are weakly consistent, so
+     * keys may be added or removed while a walk is in progress.
+     */
+    private static Iterator<String> chain(final List<NavigableSet<HashedKey>> parts) {
+        return new Iterator<String>() {
+            private int part = 0;
+            private Iterator<HashedKey> current = parts.get(0).iterator();
+
+            public boolean hasNext() {
+                while (!current.hasNext() && part + 1 < parts.size()) {
+                    current = parts.get(++part).iterator();
+                }
+                return current.hasNext();
+            }
+
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next().key;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
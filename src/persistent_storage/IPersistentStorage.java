@@ -1,5 +1,9 @@
 package persistent_storage;
 
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.Map;
+
 public interface IPersistentStorage {
     // Confirm put with bool
     boolean put(String key, String value) throws Exception;
@@ -10,9 +14,36 @@ public interface IPersistentStorage {
     // Return desired val based on key
     String get(String key) throws Exception;
 
+    // Apply puts and deletes (null or empty value) together, durable as one write
+    boolean applyBatch(Map<String, String> batch);
+
     // Total storage wipe
     void wipeStorage();
 
     // Check if key exists in storage
     boolean existsCheck(String key);
-}
\ No newline at end of file
+
+    // Get MD5 hash of a key (position on the hash ring)
+    BigInteger MD5Hash(String key);
+
+    // Check if a hash falls within the begin/end bounds
+    boolean keyValid(BigInteger begin, BigInteger end, BigInteger key);
+
+    // Return all KV pairs whose hash is within the begin/end bounds
+    Map<String, String> hashReachable(BigInteger begin, BigInteger end);
+
+    // Return all KV pairs whose hash is outside the begin/end bounds
+    Map<String, String> hashUnreachable(BigInteger begin, BigInteger end);
+
+    // Return all KV pairs in storage
+    Map<String, String> returnAllEntries();
+
+    // Lazily stream KV pairs whose hash is within (or outside) the begin/end bounds
+    Iterator<Map.Entry<String, String>> rangeIterator(BigInteger begin, BigInteger end, boolean reachable);
+
+    // Lazily stream all KV pairs in storage
+    Iterator<Map.Entry<String, String>> entryIterator();
+
+    // Stop background threads and flush and close all files
+    void close();
+}
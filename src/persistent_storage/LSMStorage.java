@@ -0,0 +1,902 @@
+package persistent_storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Log-structured merge tree storage.
+ *
+ * Writes go to a write-ahead log and a sorted in-memory memtable. A full
+ * memtable is frozen and flushed by a background thread into an immutable
+ * SSTable. The same thread runs size-tiered compaction, merging runs of
+ * similarly sized tables so the number of tables a read has to consult
+ * stays bounded. The manifest file lists the live tables oldest to newest
+ * and is replaced atomically, so a crash mid-flush or mid-compaction never
+ * exposes a half-written table. Every table carries a Bloom filter, so GETs
+ * for missing keys rarely touch the disk.
+ *
+ * With key-value separation turned on, values of at least
+ * valueSeparationThreshold bytes are appended to a ValueLog and the tree only
+ * holds a small pointer record for them. Flushes and compactions then rewrite
+ * keys and pointers instead of large values. The background thread reclaims
+ * value log segments that are mostly garbage by copying their live values to
+ * the head of the log.
+ */
+public class LSMStorage extends AbstractPersistentStorage {
+    // Initialize logger
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final long DEFAULT_MEMTABLE_BYTES = 4L * 1024 * 1024;
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+    public static final double DEFAULT_BLOOM_FALSE_POSITIVE_RATE = 0.01;
+    // 0 keeps every value in the tree
+    public static final int DEFAULT_VALUE_SEPARATION_THRESHOLD = 0;
+    // Value log segments with at least this share of dead bytes are reclaimed
+    public static final double DEFAULT_VALUE_LOG_GC_RATIO = 0.5;
+    private static final long VALUE_LOG_GC_INTERVAL_MS = 30000;
+
+    private static final String WAL_INFIX = ".wal.";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    // Tables in the same tier differ in size by less than this factor
+    private static final int TIER_FACTOR = 4;
+
+    private String directory;
+    private String serverName;
+    private long memtableBytes;
+    private int compactionThreshold;
+    private double bloomFalsePositiveRate;
+    private DurabilityMode durability;
+    private long syncIntervalMs;
+    private int valueSeparationThreshold;
+    private ValueLog valueLog;
+    private long lastValueLogGc = System.currentTimeMillis();
+
+    // Newest writes, deletes are tombstone records
+    private TreeMap<String, LogRecord> memtable = new TreeMap<String, LogRecord>();
+    private long memtableSize = 0;
+    private WriteAheadLog memtableLog;
+    // Frozen memtable waiting for the background flush
+    private TreeMap<String, LogRecord> immutable = null;
+    private WriteAheadLog immutableLog = null;
+    // Live tables, oldest first
+    private List<SSTable> tables = new ArrayList<SSTable>();
+    private int nextFileId = 1;
+    // Bumped by wipeStorage so in-flight background work is discarded
+    private int epoch = 0;
+
+    private Thread maintenanceThread;
+    private volatile boolean running = true;
+
+    /**
+     * Open LSM storage for a server in the default data directory.
+     *
+     * @param serverName Name of the server, used as the file prefix
+     */
+    public LSMStorage(String serverName) {
+        this(serverName, "./data", DEFAULT_MEMTABLE_BYTES, DEFAULT_COMPACTION_THRESHOLD,
+                DEFAULT_BLOOM_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Open LSM storage, recovering tables and write-ahead logs.
+     *
+     * @param serverName          Name of the server, used as the file prefix
+     * @param directory           Directory holding the storage files
+     * @param memtableBytes       Memtable size that triggers a flush
+     * @param compactionThreshold Number of similarly sized tables merged at once
+     */
+    public LSMStorage(String serverName, String directory, long memtableBytes, int compactionThreshold) {
+        this(serverName, directory, memtableBytes, compactionThreshold, DEFAULT_BLOOM_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Open LSM storage, recovering tables and write-ahead logs.
+     *
+     * @param serverName             Name of the server, used as the file prefix
+     * @param directory              Directory holding the storage files
+     * @param memtableBytes          Memtable size that triggers a flush
+     * @param compactionThreshold    Number of similarly sized tables merged at once
+     * @param bloomFalsePositiveRate Target false positive rate of the per-table
+     *                               Bloom filters
+     */
+    public LSMStorage(String serverName, String directory, long memtableBytes, int compactionThreshold,
+            double bloomFalsePositiveRate) {
+        this(serverName, directory, memtableBytes, compactionThreshold, bloomFalsePositiveRate,
+                WriteAheadLog.DEFAULT_DURABILITY, WriteAheadLog.DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * Open LSM storage, recovering tables and write-ahead logs.
+     *
+     * @param serverName             Name of the server, used as the file prefix
+     * @param directory              Directory holding the storage files
+     * @param memtableBytes          Memtable size that triggers a flush
+     * @param compactionThreshold    Number of similarly sized tables merged at once
+     * @param bloomFalsePositiveRate Target false positive rate of the per-table
+     *                               Bloom filters
+     * @param durability             When the write-ahead log is forced to disk
+     * @param syncIntervalMs         fsync interval for FSYNC_PERIODIC
+     */
+    public LSMStorage(String serverName, String directory, long memtableBytes, int compactionThreshold,
+            double bloomFalsePositiveRate, DurabilityMode durability, long syncIntervalMs) {
+        this(serverName, directory, memtableBytes, compactionThreshold, bloomFalsePositiveRate, durability,
+                syncIntervalMs, DEFAULT_VALUE_SEPARATION_THRESHOLD, ValueLog.DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    /**
+     * Open LSM storage, recovering tables, write-ahead logs and the value log.
+     *
+     * @param serverName               Name of the server, used as the file prefix
+     * @param directory                Directory holding the storage files
+     * @param memtableBytes            Memtable size that triggers a flush
+     * @param compactionThreshold      Number of similarly sized tables merged at once
+     * @param bloomFalsePositiveRate   Target false positive rate of the per-table
+     *                                 Bloom filters
+     * @param durability               When the write-ahead logs are forced to disk
+     * @param syncIntervalMs           fsync interval for FSYNC_PERIODIC
+     * @param valueSeparationThreshold Values of at least this many bytes go to
+     *                                 the value log, 0 turns separation off
+     * @param valueLogSegmentBytes     Size at which a value log segment is
+     *                                 rolled over
+     */
+    public LSMStorage(String serverName, String directory, long memtableBytes, int compactionThreshold,
+            double bloomFalsePositiveRate, DurabilityMode durability, long syncIntervalMs,
+            int valueSeparationThreshold, long valueLogSegmentBytes) {
+        this.serverName = serverName;
+        this.directory = directory;
+        this.memtableBytes = memtableBytes;
+        this.compactionThreshold = Math.max(2, compactionThreshold);
+        this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+        this.durability = durability;
+        this.syncIntervalMs = syncIntervalMs;
+        this.valueSeparationThreshold = valueSeparationThreshold;
+
+        File dir = new File(directory);
+        if (!dir.exists() && !dir.mkdirs()) {
+            logger.error("Failed mkdir of database directory: " + directory);
+        }
+
+        try {
+            // Opened even with separation off, older tables may point into it
+            valueLog = new ValueLog(serverName, directory, valueLogSegmentBytes, durability, syncIntervalMs);
+            recover();
+        } catch (IOException e) {
+            logger.error("Failed to recover LSM storage for " + serverName, e);
+        }
+
+        maintenanceThread = new Thread(new Runnable() {
+            public void run() {
+                maintenanceLoop();
+            }
+        }, "lsm-maintenance-" + serverName);
+        maintenanceThread.setDaemon(true);
+        maintenanceThread.start();
+    }
+
+    /**
+     * Load the tables listed in the manifest, drop orphans left by an
+     * interrupted flush or compaction, and replay any write-ahead logs.
+     */
+    private synchronized void recover() throws IOException {
+        List<Integer> liveIds = readManifest();
+        TreeMap<Integer, File> walFiles = new TreeMap<Integer, File>();
+
+        File[] files = new File(directory).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                int tableId = LogSegment.parseId(serverName, SSTable.TABLE_INFIX, file.getName());
+                int walId = LogSegment.parseId(serverName, WAL_INFIX, file.getName());
+                nextFileId = Math.max(nextFileId, Math.max(tableId, walId) + 1);
+                if (tableId >= 0 && !liveIds.contains(tableId)) {
+                    logger.info("Removing orphaned table " + file.getName());
+                    SSTable.bloomFile(file).delete();
+                    file.delete();
+                } else if (walId >= 0) {
+                    walFiles.put(walId, file);
+                }
+            }
+        }
+
+        for (int id : liveIds) {
+            File file = new File(directory, LogSegment.fileName(serverName, SSTable.TABLE_INFIX, id));
+            tables.add(new SSTable(file, id, bloomFalsePositiveRate));
+        }
+
+        // Replay logs oldest first, newer writes win
+        final TreeMap<String, LogRecord> recovered = new TreeMap<String, LogRecord>();
+        for (Map.Entry<Integer, File> wal : walFiles.entrySet()) {
+            LogSegment log = new LogSegment(wal.getValue(), wal.getKey());
+            log.replay(new LogSegment.RecordVisitor() {
+                public void visit(LogRecord record, long offset, int length) {
+                    recovered.put(record.getKey(), record);
+                }
+            });
+            log.close();
+        }
+
+        // Persist whatever the logs held as a table so the old logs can go
+        if (!recovered.isEmpty()) {
+            SSTable table = writeTable(memtableIterator(recovered));
+            tables.add(table);
+            writeManifest();
+        }
+        for (File wal : walFiles.values()) {
+            wal.delete();
+        }
+
+        memtableLog = newLog();
+
+        // Index the live keys by ring position for hash range lookups
+        Iterator<LogRecord> live = new MergingIterator(sourcesNewestFirst(), true);
+        while (live.hasNext()) {
+            hashIndex.add(live.next().getKey());
+        }
+        logger.info("Recovered LSM storage with " + tables.size() + " table(s), " + recovered.size()
+                + " key(s) replayed from write-ahead logs");
+        logBloomStats();
+    }
+
+    private WriteAheadLog newLog() throws IOException {
+        int id = nextFileId++;
+        LogSegment segment = new LogSegment(new File(directory, LogSegment.fileName(serverName, WAL_INFIX, id)), id);
+        return new WriteAheadLog(segment, durability, syncIntervalMs);
+    }
+
+    private File manifestFile() {
+        return new File(directory, serverName + MANIFEST_SUFFIX);
+    }
+
+    private List<Integer> readManifest() throws IOException {
+        List<Integer> ids = new ArrayList<Integer>();
+        File manifest = manifestFile();
+        if (!manifest.exists()) {
+            return ids;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(manifest));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    ids.add(Integer.parseInt(line.trim()));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return ids;
+    }
+
+    /** Atomically replace the manifest with the current table list */
+    private void writeManifest() throws IOException {
+        File manifest = manifestFile();
+        File temp = new File(directory, manifest.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            for (SSTable table : tables) {
+                writer.write(table.getId() + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write records to a new table file.
+     *
+     * @param records Sorted records
+     */
+    private SSTable writeTable(Iterator<LogRecord> records) throws IOException {
+        int id;
+        synchronized (this) {
+            id = nextFileId++;
+        }
+        File file = new File(directory, LogSegment.fileName(serverName, SSTable.TABLE_INFIX, id));
+        return SSTable.write(file, id, records, bloomFalsePositiveRate);
+    }
+
+    private static Iterator<LogRecord> memtableIterator(TreeMap<String, LogRecord> map) {
+        return Collections.unmodifiableCollection(map.values()).iterator();
+    }
+
+    private static long recordSize(LogRecord record) {
+        return record.getKey().length() + (record.getValue() == null ? 0 : record.getValue().length());
+    }
+
+    /**
+     * Log and apply a write to the memtable, freezing it once full.
+     *
+     * @param record Value, value pointer or tombstone to write
+     * @return Log commit to wait on once the lock is released
+     */
+    private WriteAheadLog.Commit write(LogRecord record) throws IOException, InterruptedException {
+        return write(record, true);
+    }
+
+    /**
+     * Log and apply a write to the memtable.
+     *
+     * @param record       Value, value pointer or tombstone to write
+     * @param backPressure Wait for the frozen memtable to be flushed if the
+     *                     memtable fills up. The maintenance thread does the
+     *                     flushing, so it must pass false and let the memtable
+     *                     grow past its limit instead of waiting on itself.
+     * @return Log commit to wait on once the lock is released
+     */
+    private WriteAheadLog.Commit write(LogRecord record, boolean backPressure)
+            throws IOException, InterruptedException {
+        String key = record.getKey();
+        WriteAheadLog.Commit commit = memtableLog.submit(LogRecord.encode(record));
+        LogRecord previous = memtable.put(key, record);
+        if (previous != null) {
+            memtableSize -= recordSize(previous);
+        }
+        memtableSize += recordSize(record);
+        if (record.isTombstone()) {
+            hashIndex.remove(key);
+        } else {
+            hashIndex.add(key);
+        }
+
+        if (memtableSize >= memtableBytes) {
+            if (immutable != null && !backPressure) {
+                // Frozen on the next write once the flush is done
+                return commit;
+            }
+            // Back-pressure: only one frozen memtable at a time
+            while (immutable != null) {
+                wait();
+            }
+            immutable = memtable;
+            immutableLog = memtableLog;
+            memtable = new TreeMap<String, LogRecord>();
+            memtableSize = 0;
+            memtableLog = newLog();
+            notifyAll();
+        }
+        return commit;
+    }
+
+    /**
+     * Put new key-val pair into the memtable
+     *
+     * @param key   Key to put entry under
+     * @param value Value to store under the given key
+     */
+    @Override
+    public boolean put(String key, String value) {
+        try {
+            LogRecord record;
+            if (value != null && valueSeparationThreshold > 0 && value.length() >= valueSeparationThreshold) {
+                // The value is durable before the tree learns where it is
+                record = LogRecord.valuePointer(key, valueLog.append(key, value));
+            } else {
+                record = new LogRecord(key, value, value == null ? LogRecord.FLAG_TOMBSTONE : 0);
+            }
+            WriteAheadLog.Commit commit;
+            // Group commit: wait for the log without holding the lock
+            synchronized (this) {
+                commit = write(record);
+            }
+            commit.await();
+            logger.info("PUT key: " + key + " into memtable!");
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to PUT key: " + key + " into memtable!", e);
+            return false;
+        }
+    }
+
+    /**
+     * Apply a batch of puts and deletes under one lock, waiting for the
+     * write-ahead log once at the end instead of once per key
+     *
+     * @param batch Keys to write, a null or empty value deletes the key
+     */
+    @Override
+    public boolean applyBatch(Map<String, String> batch) {
+        try {
+            // Separated values first, so every pointer is durable before it is logged
+            List<String> largeKeys = new ArrayList<String>();
+            List<String> largeValues = new ArrayList<String>();
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                String value = entry.getValue();
+                if (value != null && valueSeparationThreshold > 0 && value.length() >= valueSeparationThreshold) {
+                    largeKeys.add(entry.getKey());
+                    largeValues.add(value);
+                }
+            }
+            Map<String, RecordPointer> pointers = new HashMap<String, RecordPointer>();
+            if (!largeKeys.isEmpty()) {
+                List<RecordPointer> appended = valueLog.appendAll(largeKeys, largeValues);
+                for (int i = 0; i < largeKeys.size(); i++) {
+                    pointers.put(largeKeys.get(i), appended.get(i));
+                }
+            }
+
+            List<WriteAheadLog.Commit> commits = new ArrayList<WriteAheadLog.Commit>();
+            synchronized (this) {
+                for (Map.Entry<String, String> entry : batch.entrySet()) {
+                    String key = entry.getKey();
+                    String value = entry.getValue();
+                    if (value == null || value.isEmpty()) {
+                        if (isLive(key)) {
+                            commits.add(write(new LogRecord(key, null, LogRecord.FLAG_TOMBSTONE)));
+                        }
+                    } else if (pointers.containsKey(key)) {
+                        commits.add(write(LogRecord.valuePointer(key, pointers.get(key))));
+                    } else {
+                        commits.add(write(new LogRecord(key, value, (byte) 0)));
+                    }
+                }
+            }
+            // A frozen memtable keeps its own log, so wait on every commit
+            for (WriteAheadLog.Commit commit : commits) {
+                commit.await();
+            }
+            logger.info("Applied batch of " + batch.size() + " writes to memtable!");
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to apply batch of " + batch.size() + " writes to memtable!", e);
+            return false;
+        }
+    }
+
+    /**
+     * Get a value given a key, newest data first
+     *
+     * @param key Search for value under this key
+     */
+    @Override
+    public synchronized String get(String key) {
+        try {
+            LogRecord record = lookup(key);
+            if (record == null || record.isTombstone()) {
+                logger.info("No value was found for key: " + key);
+                return null;
+            }
+            return resolve(record);
+        } catch (IOException e) {
+            logger.error("Failed GET request for key: " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Find the newest record of a key.
+     *
+     * @return The record, possibly a tombstone, or null if no source has it
+     */
+    private LogRecord lookup(String key) throws IOException {
+        LogRecord record = memtable.get(key);
+        if (record != null) {
+            return record;
+        }
+        if (immutable != null) {
+            record = immutable.get(key);
+            if (record != null) {
+                return record;
+            }
+        }
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            record = tables.get(i).get(key);
+            if (record != null) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /** @return Value of a live record, read from the value log if separated */
+    private String resolve(LogRecord record) throws IOException {
+        if (record.isValuePointer()) {
+            return valueLog.read(record.getValuePointer());
+        }
+        return record.getValue();
+    }
+
+    private boolean isLive(String key) {
+        try {
+            LogRecord record = lookup(key);
+            return record != null && !record.isTombstone();
+        } catch (IOException e) {
+            logger.error("Failed to look up key: " + key, e);
+            return false;
+        }
+    }
+
+    /**
+     * Write a tombstone for the given key
+     *
+     * @param key Key to delete
+     */
+    @Override
+    public boolean delete(String key) {
+        try {
+            WriteAheadLog.Commit commit;
+            synchronized (this) {
+                if (!isLive(key)) {
+                    logger.info("Failed to delete key: " + key + " as no values exist");
+                    return false;
+                }
+                commit = write(new LogRecord(key, null, LogRecord.FLAG_TOMBSTONE));
+            }
+            commit.await();
+            logger.info("Deleted key: " + key);
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to delete key (exception): " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean existsCheck(String key) {
+        return isLive(key);
+    }
+
+    /** Drop every table and log and start over empty */
+    @Override
+    public synchronized void wipeStorage() {
+        try {
+            epoch++;
+            for (SSTable table : tables) {
+                table.delete();
+            }
+            tables.clear();
+            writeManifest();
+            if (immutableLog != null) {
+                immutableLog.delete();
+            }
+            immutable = null;
+            immutableLog = null;
+            memtableLog.delete();
+            valueLog.wipe();
+            memtable.clear();
+            hashIndex.clear();
+            memtableSize = 0;
+            memtableLog = newLog();
+            notifyAll();
+            logger.info("LSM storage fully wiped!");
+        } catch (IOException e) {
+            logger.error("Failed to wipe LSM storage!", e);
+        }
+    }
+
+    /**
+     * Merge every source into one view of the live KV pairs
+     *
+     * @return
+     */
+    @Override
+    public synchronized Map<String, String> returnAllEntries() {
+        Map<String, String> newTable = new HashMap<String, String>();
+        try {
+            Iterator<LogRecord> records = new MergingIterator(sourcesNewestFirst(), true);
+            while (records.hasNext()) {
+                LogRecord record = records.next();
+                newTable.put(record.getKey(), resolve(record));
+            }
+        } catch (IOException e) {
+            logger.error("Failed to read all entries from LSM storage!", e);
+        }
+        return newTable;
+    }
+
+    private List<Iterator<LogRecord>> sourcesNewestFirst() throws IOException {
+        List<Iterator<LogRecord>> sources = new ArrayList<Iterator<LogRecord>>();
+        sources.add(memtableIterator(memtable));
+        if (immutable != null) {
+            sources.add(memtableIterator(immutable));
+        }
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            sources.add(tables.get(i).iterator());
+        }
+        return sources;
+    }
+
+    /** Number of live tables, mainly for monitoring */
+    public synchronized int getTableCount() {
+        return tables.size();
+    }
+
+    /** @return Configured target false positive rate of the Bloom filters */
+    public double getBloomFalsePositiveRate() {
+        return bloomFalsePositiveRate;
+    }
+
+    /** @return Heap used by the Bloom filters of all live tables in bytes */
+    public synchronized long getBloomFilterBytes() {
+        long bytes = 0;
+        for (SSTable table : tables) {
+            bytes += table.getBloomFilter().sizeBytes();
+        }
+        return bytes;
+    }
+
+    /** @return Table lookups skipped thanks to the Bloom filters */
+    public synchronized long getBloomNegatives() {
+        long negatives = 0;
+        for (SSTable table : tables) {
+            negatives += table.getBloomNegatives();
+        }
+        return negatives;
+    }
+
+    /**
+     * Estimated false positive rate of a lookup for a missing key, i.e. the
+     * chance that at least one table's filter lets it through.
+     *
+     * @return Estimated false positive rate across all live tables
+     */
+    public synchronized double getBloomExpectedFalsePositiveRate() {
+        double allNegative = 1.0;
+        for (SSTable table : tables) {
+            allNegative *= 1.0 - table.getBloomFilter().expectedFalsePositiveRate();
+        }
+        return 1.0 - allNegative;
+    }
+
+    private void logBloomStats() {
+        logger.info(String.format("Bloom filters: %d bytes over %d table(s), target fp rate %.4f, estimated %.4f",
+                getBloomFilterBytes(), getTableCount(), bloomFalsePositiveRate,
+                getBloomExpectedFalsePositiveRate()));
+    }
+
+    /** Background loop: flush frozen memtables, then compact */
+    private void maintenanceLoop() {
+        while (running) {
+            try {
+                synchronized (this) {
+                    while (running && immutable == null && pickCompaction() == null && !valueLogGcDue()) {
+                        wait(1000);
+                    }
+                }
+                if (!running) {
+                    break;
+                }
+                flushImmutable();
+                compact();
+                if (valueLogGcDue()) {
+                    lastValueLogGc = System.currentTimeMillis();
+                    collectValueLogGarbage(DEFAULT_VALUE_LOG_GC_RATIO);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                logger.error("LSM background maintenance failed", e);
+            }
+        }
+    }
+
+    private boolean valueLogGcDue() {
+        return System.currentTimeMillis() - lastValueLogGc >= VALUE_LOG_GC_INTERVAL_MS;
+    }
+
+    /**
+     * Reclaim value log segments, oldest first. A record is live if the tree
+     * still points at it; live values are appended to the head of the log and
+     * their new pointers written like any other update. A segment is deleted
+     * once the new pointers are durable.
+     *
+     * @param minGarbageRatio Only reclaim segments with at least this share of
+     *                        dead bytes
+     * @return Number of segments reclaimed
+     * @throws IOException
+     */
+    public int collectValueLogGarbage(double minGarbageRatio) throws IOException {
+        int reclaimed = 0;
+        for (final LogSegment segment : valueLog.sealedSegments()) {
+            final List<LogRecord> live = new ArrayList<LogRecord>();
+            final List<RecordPointer> pointers = new ArrayList<RecordPointer>();
+            final long[] liveBytes = new long[1];
+            segment.replay(new LogSegment.RecordVisitor() {
+                public void visit(LogRecord record, long offset, int length) {
+                    RecordPointer pointer = new RecordPointer(segment.getId(), offset, length);
+                    if (pointsTo(record.getKey(), pointer)) {
+                        live.add(record);
+                        pointers.add(pointer);
+                        liveBytes[0] += length;
+                    }
+                }
+            });
+            long size = segment.size();
+            if (size == 0 || 1.0 - (double) liveBytes[0] / size < minGarbageRatio) {
+                continue;
+            }
+
+            try {
+                for (int i = 0; i < live.size(); i++) {
+                    LogRecord record = live.get(i);
+                    RecordPointer moved = valueLog.append(record.getKey(), record.getValue());
+                    synchronized (this) {
+                        // Skip keys overwritten or deleted since the scan
+                        if (pointsTo(record.getKey(), pointers.get(i))) {
+                            // Runs on the maintenance thread, which flushes frozen
+                            // memtables, so it must not wait for one
+                            write(LogRecord.valuePointer(record.getKey(), moved), false);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return reclaimed;
+            }
+            synchronized (this) {
+                memtableLog.sync();
+                if (immutableLog != null) {
+                    immutableLog.sync();
+                }
+                valueLog.remove(segment);
+            }
+            reclaimed++;
+            logger.info("Reclaimed value log segment " + segment.getFile().getName() + ", moved " + live.size()
+                    + " live value(s)");
+        }
+        return reclaimed;
+    }
+
+    /** @return True if the newest record of the key is the given value pointer */
+    private synchronized boolean pointsTo(String key, RecordPointer pointer) {
+        try {
+            LogRecord record = lookup(key);
+            return record != null && record.isValuePointer() && record.getValuePointer().equals(pointer);
+        } catch (IOException e) {
+            logger.error("Failed to look up key: " + key, e);
+            // Keep the value when in doubt
+            return true;
+        }
+    }
+
+    /** @return Bytes held by the value log, live and dead */
+    public long getValueLogBytes() {
+        return valueLog.sizeBytes();
+    }
+
+    /** Write the frozen memtable to a table and release its log */
+    private void flushImmutable() throws IOException {
+        TreeMap<String, LogRecord> frozen;
+        int startEpoch;
+        synchronized (this) {
+            frozen = immutable;
+            startEpoch = epoch;
+        }
+        if (frozen == null) {
+            return;
+        }
+        // The frozen memtable is never modified, so it can be read unlocked
+        SSTable table = writeTable(memtableIterator(frozen));
+
+        synchronized (this) {
+            if (epoch != startEpoch) {
+                table.delete();
+                return;
+            }
+            tables.add(table);
+            writeManifest();
+            immutableLog.delete();
+            immutable = null;
+            immutableLog = null;
+            notifyAll();
+        }
+        logger.info("Flushed memtable with " + frozen.size() + " key(s) to " + table.getFile().getName());
+        logBloomStats();
+    }
+
+    /**
+     * Size-tiered selection: the oldest run of compactionThreshold adjacent
+     * tables of similar size, or the oldest run of any size once there are
+     * far too many tables.
+     *
+     * @return Index of the first table of the run, or null if nothing to do
+     */
+    private synchronized Integer pickCompaction() {
+        if (tables.size() < compactionThreshold) {
+            return null;
+        }
+        for (int start = 0; start + compactionThreshold <= tables.size(); start++) {
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = start; i < start + compactionThreshold; i++) {
+                long size = tables.get(i).sizeBytes();
+                min = Math.min(min, size);
+                max = Math.max(max, size);
+            }
+            if (max <= Math.max(min, 1) * TIER_FACTOR) {
+                return start;
+            }
+        }
+        if (tables.size() >= compactionThreshold * 3) {
+            return 0;
+        }
+        return null;
+    }
+
+    /** Merge one run of tables into a single table */
+    private void compact() throws IOException {
+        List<SSTable> run;
+        boolean includesOldest;
+        int startEpoch;
+        synchronized (this) {
+            Integer start = pickCompaction();
+            if (start == null) {
+                return;
+            }
+            run = new ArrayList<SSTable>(tables.subList(start, start + compactionThreshold));
+            includesOldest = start == 0;
+            startEpoch = epoch;
+        }
+
+        List<Iterator<LogRecord>> sources = new ArrayList<Iterator<LogRecord>>();
+        List<SSTable> newestFirst = new ArrayList<SSTable>(run);
+        Collections.reverse(newestFirst);
+        for (SSTable table : newestFirst) {
+            sources.add(table.iterator());
+        }
+        // Deletes can only be dropped when nothing older could resurface
+        SSTable merged = writeTable(new MergingIterator(sources, includesOldest));
+
+        synchronized (this) {
+            if (epoch != startEpoch) {
+                merged.delete();
+                return;
+            }
+            int position = tables.indexOf(run.get(0));
+            tables.removeAll(run);
+            tables.add(position, merged);
+            writeManifest();
+            for (SSTable table : run) {
+                table.delete();
+            }
+        }
+        logger.info("Compacted " + run.size() + " table(s) into " + merged.getFile().getName());
+        logBloomStats();
+    }
+
+    /** Stop the background thread and close all files */
+    @Override
+    public void close() {
+        running = false;
+        maintenanceThread.interrupt();
+        try {
+            maintenanceThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                for (SSTable table : tables) {
+                    table.close();
+                }
+                memtableLog.close();
+                if (immutableLog != null) {
+                    immutableLog.close();
+                }
+                valueLog.close();
+            } catch (IOException e) {
+                logger.error("Failed to close LSM storage files", e);
+            }
+        }
+    }
+}
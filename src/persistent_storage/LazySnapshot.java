@@ -0,0 +1,174 @@
+package persistent_storage;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only view of a PersistentStorage snapshot that loads values on demand.
+ *
+ * Opening the snapshot only walks its keys: each key is mapped to the offset
+ * of its value in the memory-mapped file and the value bytes are skipped.
+ * A value is decoded on its first GET and kept in a bounded LRU cache, so
+ * the heap holds the key index and the hot values instead of the whole map.
+ *
+ * Keys overwritten or deleted after the snapshot was taken are removed from
+ * the view, the storage keeps their new values itself. Thread safe; GETs
+ * only lock the value cache.
+ */
+public class LazySnapshot {
+    private ByteBuffer body;
+    // Key -> offset of its length-prefixed value in body
+    private ConcurrentHashMap<String, Integer> offsets;
+    private Map<String, String> valueCache;
+    // Bytes written after the entries
+    private ByteBuffer trailer;
+
+    /**
+     * Index the keys of a snapshot.
+     *
+     * @param file           Snapshot written by PersistentStorage
+     * @param valueCacheSize Number of decoded values to keep
+     * @throws IOException If the snapshot is missing or corrupt
+     */
+    public LazySnapshot(File file, final int valueCacheSize) throws IOException {
+        this.body = CheckpointFile.read(file).getBody();
+        int count = body.getInt();
+        this.offsets = new ConcurrentHashMap<String, Integer>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String key = CheckpointFile.readString(body);
+            int offset = body.position();
+            int length = body.getInt();
+            if (length < 0 || length > body.remaining()) {
+                throw new IOException("Bad value length in snapshot " + file.getName());
+            }
+            body.position(body.position() + length);
+            offsets.put(key, offset);
+        }
+        this.trailer = body.slice();
+        this.valueCache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > valueCacheSize;
+            }
+        };
+    }
+
+    /** Empty view, for storage that has no snapshot yet */
+    public LazySnapshot() {
+        this.body = ByteBuffer.allocate(0);
+        this.offsets = new ConcurrentHashMap<String, Integer>();
+        this.valueCache = new LinkedHashMap<String, String>();
+        this.trailer = ByteBuffer.allocate(0);
+    }
+
+    /** @return Bytes the snapshot holds after its entries, e.g. the archive manifest */
+    public ByteBuffer getTrailer() {
+        return this.trailer.duplicate();
+    }
+
+    /** Visits every entry of the view */
+    public interface Visitor {
+        void visit(String key, String value) throws IOException;
+    }
+
+    /** @return Raw length-prefixed UTF-8 value, no copy of the mapping is kept */
+    private ByteBuffer valueBytes(int offset) {
+        ByteBuffer view = body.duplicate();
+        view.position(offset);
+        int length = view.getInt();
+        view.limit(view.position() + length);
+        return view;
+    }
+
+    private String decode(int offset) {
+        ByteBuffer bytes = valueBytes(offset);
+        byte[] value = new byte[bytes.remaining()];
+        bytes.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param key Key to look up
+     * @return Its value, or null if the view does not hold the key
+     */
+    public String get(String key) {
+        Integer offset = offsets.get(key);
+        if (offset == null) {
+            return null;
+        }
+        synchronized (valueCache) {
+            String cached = valueCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        String decoded = decode(offset);
+        synchronized (valueCache) {
+            valueCache.put(key, decoded);
+        }
+        return decoded;
+    }
+
+    public boolean containsKey(String key) {
+        return offsets.containsKey(key);
+    }
+
+    /**
+     * Drop a key that was overwritten or deleted.
+     *
+     * @return True if the view held the key
+     */
+    public boolean remove(String key) {
+        if (offsets.remove(key) == null) {
+            return false;
+        }
+        synchronized (valueCache) {
+            valueCache.remove(key);
+        }
+        return true;
+    }
+
+    public int size() {
+        return offsets.size();
+    }
+
+    /** @return Every key still held by the view */
+    public Iterable<String> keys() {
+        return offsets.keySet();
+    }
+
+    /**
+     * Decode every entry, one value at a time and bypassing the value cache.
+     */
+    public void forEach(Visitor visitor) throws IOException {
+        for (Map.Entry<String, Integer> entry : offsets.entrySet()) {
+            visitor.visit(entry.getKey(), decode(entry.getValue()));
+        }
+    }
+
+    /**
+     * Copy every entry to a new snapshot in the writeString format, without
+     * decoding the values.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        for (Map.Entry<String, Integer> entry : offsets.entrySet()) {
+            CheckpointFile.writeString(out, entry.getKey());
+            ByteBuffer bytes = valueBytes(entry.getValue());
+            out.writeInt(bytes.remaining());
+            byte[] chunk = new byte[Math.min(bytes.remaining(), 64 * 1024)];
+            while (bytes.hasRemaining()) {
+                int length = Math.min(chunk.length, bytes.remaining());
+                bytes.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package persistent_storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * A single key-value mutation as it is laid out in a log segment.
+ *
+ * Layout: [crc:int][flags:byte][keyLength:int][valueLength:int][key][value]
+ * The CRC32 checksum covers every byte after the checksum itself, so a torn
+ * write at the tail of a segment is detected during recovery.
+ *
+ * Values of at least compressionThreshold bytes are stored Snappy-compressed
+ * when that makes them smaller, marked by FLAG_COMPRESSED. Records are
+ * decoded the same way whatever the current threshold is.
+ *
+ * With key-value separation the LSM stores large values in a ValueLog and
+ * keeps a FLAG_VALUE_POINTER record, whose value is RecordPointer.encode(),
+ * in its memtable and tables.
+ */
+public class LogRecord {
+    public static final int HEADER_SIZE = 13;
+    // Sanity limits used to reject garbage headers during recovery
+    public static final int MAX_KEY_BYTES = 1024;
+    public static final int MAX_VALUE_BYTES = 64 * 1024 * 1024;
+
+    public static final byte FLAG_TOMBSTONE = 0x01;
+    public static final byte FLAG_COMPRESSED = 0x02;
+    public static final byte FLAG_VALUE_POINTER = 0x04;
+
+    // Smallest value (in bytes) worth compressing, 0 turns compression off
+    private static volatile int compressionThreshold = 0;
+
+    private String key;
+    private String value;
+    private byte flags;
+
+    public LogRecord(String key, String value, byte flags) {
+        this.key = key;
+        this.value = value;
+        this.flags = flags;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return Stored value, or null if this record is a tombstone
+     */
+    public String getValue() {
+        return this.value;
+    }
+
+    public boolean isTombstone() {
+        return (this.flags & FLAG_TOMBSTONE) != 0;
+    }
+
+    /** @return True if the value is the location of the real value in a ValueLog */
+    public boolean isValuePointer() {
+        return (this.flags & FLAG_VALUE_POINTER) != 0;
+    }
+
+    /**
+     * @param key     Key of the record
+     * @param pointer Location of the value in the value log
+     * @return Record pointing at a separated value
+     */
+    public static LogRecord valuePointer(String key, RecordPointer pointer) {
+        return new LogRecord(key, pointer.encode(), FLAG_VALUE_POINTER);
+    }
+
+    /** @return Location of the value, for records where isValuePointer() */
+    public RecordPointer getValuePointer() {
+        return RecordPointer.parse(this.value);
+    }
+
+    /**
+     * Compress values of at least this many bytes on encode.
+     *
+     * @param threshold Size in bytes, 0 to turn compression off
+     */
+    public static void setCompressionThreshold(int threshold) {
+        compressionThreshold = Math.max(0, threshold);
+    }
+
+    public static int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Encode a put (or a delete if value is null) into a ready-to-write buffer.
+     *
+     * @param key   Key of the record
+     * @param value Value of the record, null for a tombstone
+     * @return Buffer positioned at 0, limit at the end of the record
+     */
+    public static ByteBuffer encode(String key, String value) {
+        return encode(key, value, value == null ? FLAG_TOMBSTONE : 0);
+    }
+
+    /**
+     * Encode a decoded record again, keeping its kind.
+     *
+     * @param record Record to encode
+     * @return Buffer positioned at 0, limit at the end of the record
+     */
+    public static ByteBuffer encode(LogRecord record) {
+        // Compression is decided again from the current threshold
+        return encode(record.key, record.value, (byte) (record.flags & ~FLAG_COMPRESSED));
+    }
+
+    private static ByteBuffer encode(String key, String value, byte flags) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        int threshold = compressionThreshold;
+        if (flags == 0 && threshold > 0 && valueBytes.length >= threshold) {
+            try {
+                byte[] compressed = Snappy.compress(valueBytes);
+                if (compressed.length < valueBytes.length) {
+                    valueBytes = compressed;
+                    flags |= FLAG_COMPRESSED;
+                }
+            } catch (IOException e) {
+                // Store the value as is
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + valueBytes.length);
+        buffer.putInt(0);
+        buffer.put(flags);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(valueBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        buffer.putInt(0, checksum(buffer.array(), 4, buffer.capacity() - 4));
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Read the total record length from a header.
+     *
+     * @param header Buffer holding at least HEADER_SIZE bytes at position 0
+     * @return Length of header and body, or -1 if the header is not plausible
+     */
+    public static int recordLength(ByteBuffer header) {
+        int keyLength = header.getInt(5);
+        int valueLength = header.getInt(9);
+        if (keyLength <= 0 || keyLength > MAX_KEY_BYTES || valueLength < 0 || valueLength > MAX_VALUE_BYTES) {
+            return -1;
+        }
+        return HEADER_SIZE + keyLength + valueLength;
+    }
+
+    /**
+     * Decode a full record and verify its checksum.
+     *
+     * @param buffer Buffer holding exactly one record starting at position 0
+     * @return Decoded record
+     * @throws IOException If the checksum does not match
+     */
+    public static LogRecord decode(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+
+        int crc = record.getInt();
+        if (crc != checksum(bytes, 4, bytes.length - 4)) {
+            throw new IOException("Log record checksum mismatch");
+        }
+        byte flags = record.get();
+        int keyLength = record.getInt();
+        int valueLength = record.getInt();
+        String key = new String(bytes, HEADER_SIZE, keyLength, StandardCharsets.UTF_8);
+        String value = null;
+        if ((flags & FLAG_TOMBSTONE) != 0) {
+            // Tombstones have no value
+        } else if ((flags & FLAG_COMPRESSED) != 0) {
+            byte[] compressed = Arrays.copyOfRange(bytes, HEADER_SIZE + keyLength, HEADER_SIZE + keyLength + valueLength);
+            value = new String(Snappy.uncompress(compressed), StandardCharsets.UTF_8);
+        } else {
+            value = new String(bytes, HEADER_SIZE + keyLength, valueLength, StandardCharsets.UTF_8);
+        }
+        return new LogRecord(key, value, flags);
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,249 @@
+package persistent_storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One append-only file of the segment log. Records are only ever appended to
+ * the end; reads are positional so they never disturb the write position.
+ *
+ * Once a segment is sealed it never changes again, so it is memory-mapped
+ * and reads are served straight from the page cache instead of going
+ * through a read system call. The mapping lives outside the Java heap.
+ */
+public class LogSegment {
+    public static final String SEGMENT_INFIX = ".segment.";
+    public static final String SEGMENT_SUFFIX = ".data";
+
+    private int id;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long size;
+    // Read-only mapping of a sealed segment, null while it is still written to
+    private volatile MappedByteBuffer mapped;
+
+    /**
+     * Open (or create) a segment file.
+     *
+     * @param file Segment file on disk
+     * @param id   Sequence number of the segment, higher is newer
+     * @throws IOException
+     */
+    public LogSegment(File file, int id) throws IOException {
+        this.file = file;
+        this.id = id;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.size = channel.size();
+    }
+
+    /**
+     * Build the file name of a segment.
+     *
+     * @param serverName Name of the server owning the segment
+     * @param id         Segment sequence number
+     * @return File name, e.g. localhost:50000.segment.000001.data
+     */
+    public static String fileName(String serverName, int id) {
+        return fileName(serverName, SEGMENT_INFIX, id);
+    }
+
+    /**
+     * Build the file name of a numbered storage file.
+     *
+     * @param serverName Name of the server owning the file
+     * @param infix      Kind of file, e.g. ".segment."
+     * @param id         File sequence number
+     * @return File name
+     */
+    public static String fileName(String serverName, String infix, int id) {
+        return serverName + infix + String.format("%06d", id) + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * Parse the segment id from a file name.
+     *
+     * @param serverName Name of the server owning the segment
+     * @param fileName   File name to parse
+     * @return Segment id, or -1 if the file is not a segment of this server
+     */
+    public static int parseId(String serverName, String fileName) {
+        return parseId(serverName, SEGMENT_INFIX, fileName);
+    }
+
+    /**
+     * Parse the sequence number from the name of a numbered storage file.
+     *
+     * @param serverName Name of the server owning the file
+     * @param infix      Kind of file, e.g. ".segment."
+     * @param fileName   File name to parse
+     * @return Sequence number, or -1 if the file does not match
+     */
+    public static int parseId(String serverName, String infix, String fileName) {
+        String prefix = serverName + infix;
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(prefix.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public synchronized long size() {
+        return this.size;
+    }
+
+    public boolean isSealed() {
+        return this.mapped != null;
+    }
+
+    /**
+     * Mark the segment as complete and memory-map it for reads. Nothing may
+     * be appended to a sealed segment.
+     *
+     * @throws IOException
+     */
+    public synchronized void seal() throws IOException {
+        if (mapped != null || size == 0 || size > Integer.MAX_VALUE) {
+            // Segments too large to map keep using positional reads
+            return;
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Append a record to the end of the segment.
+     *
+     * @param record Encoded record
+     * @return Offset the record was written at
+     * @throws IOException
+     */
+    public synchronized long append(ByteBuffer record) throws IOException {
+        if (mapped != null) {
+            throw new IOException("Cannot append to sealed segment " + file.getName());
+        }
+        long offset = size;
+        while (record.hasRemaining()) {
+            size += channel.write(record, size);
+        }
+        return offset;
+    }
+
+    /**
+     * Read bytes at a given offset.
+     *
+     * @param offset Offset to start at
+     * @param length Number of bytes to read
+     * @return Buffer flipped and ready for reading
+     * @throws IOException If the segment ends before length bytes were read
+     */
+    public ByteBuffer read(long offset, int length) throws IOException {
+        MappedByteBuffer map = mapped;
+        if (map != null) {
+            if (offset + length > map.capacity()) {
+                throw new IOException("Unexpected end of segment " + file.getName());
+            }
+            // Private view so concurrent readers do not share a position
+            ByteBuffer view = map.duplicate();
+            view.position((int) offset);
+            view.limit((int) offset + length);
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            buffer.put(view);
+            buffer.flip();
+            return buffer;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment " + file.getName());
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Callback for records found while replaying a segment.
+     */
+    public interface RecordVisitor {
+        void visit(LogRecord record, long offset, int length);
+    }
+
+    /**
+     * Walk every valid record of the segment in order.
+     *
+     * @param visitor Called once per record
+     * @return Offset of the first byte that is not part of a valid record,
+     *         equal to size() if the segment is intact
+     * @throws IOException
+     */
+    public long replay(RecordVisitor visitor) throws IOException {
+        long position = 0;
+        long end = size();
+
+        while (position + LogRecord.HEADER_SIZE <= end) {
+            int length = LogRecord.recordLength(read(position, LogRecord.HEADER_SIZE));
+            if (length < 0 || position + length > end) {
+                break;
+            }
+            LogRecord record;
+            try {
+                record = LogRecord.decode(read(position, length));
+            } catch (IOException e) {
+                break;
+            }
+            visitor.visit(record, position, length);
+            position += length;
+        }
+        return position;
+    }
+
+    /**
+     * Cut off a torn tail found during recovery.
+     *
+     * @param newSize Size to truncate to
+     * @throws IOException
+     */
+    public synchronized void truncate(long newSize) throws IOException {
+        mapped = null;
+        channel.truncate(newSize);
+        size = newSize;
+    }
+
+    /** Flush written records to the storage device */
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() throws IOException {
+        // The mapping is released once it is garbage collected
+        mapped = null;
+        channel.close();
+        raf.close();
+    }
+
+    /** Close and remove the segment from disk */
+    public void delete() throws IOException {
+        close();
+        if (!file.delete()) {
+            throw new IOException("Failed to delete segment " + file.getName());
+        }
+    }
+}
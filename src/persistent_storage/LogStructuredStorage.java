@@ -0,0 +1,660 @@
+package persistent_storage;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log-structured storage.
+ *
+ * Every PUT or DELETE is a single sequential append to the active segment
+ * file. An in-memory index maps each live key to the location of its latest
+ * record, so reads are one positional read. The index packs keys of up to
+ * 20 bytes into flat arrays (CompactKeyIndex); sealed segments are
+ * memory-mapped, so values are read from the page cache and only the index
+ * lives on the heap. Whenever a segment is sealed
+ * the index is checkpointed, so on startup the checkpoint is loaded and only
+ * the segments written after it are replayed.
+ *
+ * Overwrites and deletes leave dead records behind. The storage tracks the
+ * live bytes of every segment, and a CompactionScheduler rewrites sealed
+ * segments whose garbage ratio gets too high, within an I/O budget. A
+ * segment keeps its id when it is compacted, so replay order is unchanged.
+ */
+public class LogStructuredStorage extends AbstractPersistentStorage implements CompactionScheduler.Compactable {
+    // Initialize logger
+    private static Logger logger = Logger.getRootLogger();
+
+    // Roll over to a new segment once the active one reaches this size
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final String CHECKPOINT_SUFFIX = ".index.checkpoint.data";
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private String directory;
+    private String serverName;
+    private long maxSegmentBytes;
+
+    // All segments by id, oldest first
+    private TreeMap<Integer, LogSegment> segments = new TreeMap<Integer, LogSegment>();
+    private LogSegment activeSegment;
+    // Key -> location of latest record
+    private CompactKeyIndex index = new CompactKeyIndex();
+    // Segment id -> bytes of the records the index points at
+    private Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+    // Segment id -> bytes of tombstones, kept by compaction unless the
+    // segment is the oldest
+    private Map<Integer, Long> tombstoneBytes = new HashMap<Integer, Long>();
+    private CompactionScheduler compactionScheduler;
+
+    /**
+     * Open log storage for a server in the default data directory.
+     *
+     * @param serverName Name of the server, used as the segment file prefix
+     */
+    public LogStructuredStorage(String serverName) {
+        this(serverName, "./data", DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    /**
+     * Open log storage, replaying any existing segments.
+     *
+     * @param serverName      Name of the server, used as the segment file prefix
+     * @param directory       Directory holding the segment files
+     * @param maxSegmentBytes Size at which the active segment is rolled over
+     */
+    public LogStructuredStorage(String serverName, String directory, long maxSegmentBytes) {
+        this(serverName, directory, maxSegmentBytes, CompactionScheduler.DEFAULT_MIN_GARBAGE_RATIO,
+                CompactionScheduler.DEFAULT_MB_PER_SECOND);
+    }
+
+    /**
+     * Open log storage, replaying any existing segments.
+     *
+     * @param serverName         Name of the server, used as the segment file prefix
+     * @param directory          Directory holding the segment files
+     * @param maxSegmentBytes    Size at which the active segment is rolled over
+     * @param minGarbageRatio    Share of dead bytes at which a segment is compacted
+     * @param compactionMBPerSec Compaction I/O budget, 0 for no limit
+     */
+    public LogStructuredStorage(String serverName, String directory, long maxSegmentBytes, double minGarbageRatio,
+            double compactionMBPerSec) {
+        this.serverName = serverName;
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        // Packed like the point index, a skip list entry would cost more
+        // than the CompactKeyIndex slot it shadows
+        this.hashIndex = new CompactRingIndex();
+
+        File dir = new File(directory);
+        if (!dir.exists() && !dir.mkdirs()) {
+            logger.error("Failed mkdir of database directory: " + directory);
+        }
+
+        try {
+            recover();
+        } catch (IOException e) {
+            logger.error("Failed to recover log storage for " + serverName, e);
+        }
+
+        compactionScheduler = new CompactionScheduler(serverName, this, minGarbageRatio, compactionMBPerSec,
+                CompactionScheduler.DEFAULT_CHECK_INTERVAL_MS);
+        compactionScheduler.start();
+    }
+
+    /**
+     * Open every segment of this server and rebuild the index by replaying
+     * them oldest to newest.
+     */
+    private synchronized void recover() throws IOException {
+        File[] files = new File(directory).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                int id = LogSegment.parseId(serverName, file.getName());
+                if (id >= 0) {
+                    segments.put(id, new LogSegment(file, id));
+                } else if (file.getName().startsWith(serverName) && file.getName().endsWith(COMPACT_SUFFIX)) {
+                    // Compaction interrupted before the swap, the original is intact
+                    file.delete();
+                }
+            }
+        }
+
+        // Segments below the checkpoint's sequence are already in the index
+        int replayFrom = loadCheckpoint();
+        int replayed = 0;
+        for (LogSegment segment : segments.tailMap(replayFrom).values()) {
+            replay(segment, segment.getId() == segments.lastKey());
+            replayed++;
+        }
+
+        if (segments.isEmpty()) {
+            rollSegment();
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+        }
+        // Every segment but the active one is complete, serve reads from mmap
+        for (LogSegment segment : segments.headMap(activeSegment.getId()).values()) {
+            segment.seal();
+        }
+        index.forEach(new CompactKeyIndex.Visitor() {
+            public void visit(String key, RecordPointer pointer) {
+                hashIndex.add(key);
+                addLive(pointer, pointer.getLength());
+            }
+        });
+        logger.info("Recovered log storage with " + index.size() + " keys, replayed " + replayed + " of "
+                + segments.size() + " segment(s)");
+    }
+
+    private File checkpointFile() {
+        return new File(directory, serverName + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Load the index checkpoint, and the tombstone bytes of the segments it
+     * covers, if there is a usable one.
+     *
+     * @return Id of the first segment the checkpoint does not cover, 0 if the
+     *         whole log has to be replayed
+     */
+    private int loadCheckpoint() {
+        File file = checkpointFile();
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            CheckpointFile checkpoint = CheckpointFile.read(file);
+            ByteBuffer body = checkpoint.getBody();
+            int count = body.getInt();
+            CompactKeyIndex loaded = new CompactKeyIndex(count);
+            for (int i = 0; i < count; i++) {
+                String key = CheckpointFile.readString(body);
+                RecordPointer pointer = new RecordPointer(body.getInt(), body.getLong(), body.getInt());
+                if (!segments.containsKey(pointer.getSegmentId())) {
+                    throw new IOException("Checkpoint refers to missing segment " + pointer.getSegmentId());
+                }
+                loaded.put(key, pointer);
+            }
+            if (!body.hasRemaining()) {
+                // Sealed segments would look tombstone-free to compaction
+                throw new IOException("Checkpoint has no tombstone bytes");
+            }
+            Map<Integer, Long> tombstones = new HashMap<Integer, Long>();
+            int segmentCount = body.getInt();
+            for (int i = 0; i < segmentCount; i++) {
+                int id = body.getInt();
+                long bytes = body.getLong();
+                // Segments compacted away since keep no tombstones
+                if (segments.containsKey(id)) {
+                    tombstones.put(id, bytes);
+                }
+            }
+            index = loaded;
+            tombstoneBytes = tombstones;
+            logger.info("Loaded index checkpoint with " + count + " keys");
+            return (int) checkpoint.getSequence();
+        } catch (Exception e) {
+            logger.warn("Ignoring unusable index checkpoint " + file.getName() + ", replaying every segment", e);
+            index.clear();
+            tombstoneBytes.clear();
+            return 0;
+        }
+    }
+
+    /**
+     * Checkpoint the index and tombstone bytes for every segment before the
+     * active one. Sealed segments are forced to disk first so the checkpoint
+     * never points at records that could still be lost.
+     */
+    private void writeCheckpoint() throws IOException {
+        final int sealedBelow = activeSegment.getId();
+        final List<Map.Entry<String, RecordPointer>> entries = new ArrayList<Map.Entry<String, RecordPointer>>();
+        index.forEach(new CompactKeyIndex.Visitor() {
+            public void visit(String key, RecordPointer pointer) {
+                if (pointer.getSegmentId() < sealedBelow) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<String, RecordPointer>(key, pointer));
+                }
+            }
+        });
+        final Map<Integer, Long> tombstones = new HashMap<Integer, Long>();
+        for (Map.Entry<Integer, Long> entry : tombstoneBytes.entrySet()) {
+            if (entry.getKey() < sealedBelow) {
+                tombstones.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (LogSegment segment : segments.headMap(sealedBelow).values()) {
+            segment.flush();
+        }
+        CheckpointFile.write(checkpointFile(), sealedBelow, new CheckpointFile.BodyWriter() {
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(entries.size());
+                for (Map.Entry<String, RecordPointer> entry : entries) {
+                    CheckpointFile.writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().getSegmentId());
+                    out.writeLong(entry.getValue().getOffset());
+                    out.writeInt(entry.getValue().getLength());
+                }
+                out.writeInt(tombstones.size());
+                for (Map.Entry<Integer, Long> entry : tombstones.entrySet()) {
+                    out.writeInt(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            }
+        });
+    }
+
+    /**
+     * Apply every record of a segment to the index.
+     *
+     * @param segment Segment to replay
+     * @param isLast  True if this is the newest segment, whose torn tail is
+     *                truncated instead of reported
+     */
+    private void replay(final LogSegment segment, boolean isLast) throws IOException {
+        long size = segment.size();
+        long position = segment.replay(new LogSegment.RecordVisitor() {
+            public void visit(LogRecord record, long offset, int length) {
+                if (record.isTombstone()) {
+                    index.remove(record.getKey());
+                    addBytes(tombstoneBytes, segment.getId(), length);
+                } else {
+                    index.put(record.getKey(), new RecordPointer(segment.getId(), offset, length));
+                }
+            }
+        });
+
+        if (position < size) {
+            if (isLast) {
+                logger.warn("Truncating torn tail of segment " + segment.getFile().getName() + " at " + position);
+                segment.truncate(position);
+            } else {
+                logger.error("Corrupt record in segment " + segment.getFile().getName() + " at " + position
+                        + ", ignoring the rest of the segment");
+            }
+        }
+    }
+
+    /** Seal the active segment and start a new, empty one */
+    private void rollSegment() throws IOException {
+        if (activeSegment != null) {
+            activeSegment.seal();
+        }
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        File file = new File(directory, LogSegment.fileName(serverName, id));
+        activeSegment = new LogSegment(file, id);
+        segments.put(id, activeSegment);
+        logger.info("Started new log segment: " + file.getName());
+    }
+
+    /**
+     * Append a record to the active segment, rolling over if it is full.
+     *
+     * @return Location of the appended record
+     */
+    private RecordPointer append(String key, String value) throws IOException {
+        if (activeSegment.size() >= maxSegmentBytes) {
+            rollSegment();
+            writeCheckpoint();
+        }
+        ByteBuffer record = LogRecord.encode(key, value);
+        int length = record.remaining();
+        long offset = activeSegment.append(record);
+        return new RecordPointer(activeSegment.getId(), offset, length);
+    }
+
+    /**
+     * Read the record a pointer refers to.
+     */
+    private LogRecord read(RecordPointer pointer) throws IOException {
+        LogSegment segment = segments.get(pointer.getSegmentId());
+        if (segment == null) {
+            throw new IOException("Missing log segment " + pointer.getSegmentId());
+        }
+        return LogRecord.decode(segment.read(pointer.getOffset(), pointer.getLength()));
+    }
+
+    private static void addBytes(Map<Integer, Long> bytes, int segmentId, long delta) {
+        Long current = bytes.get(segmentId);
+        bytes.put(segmentId, (current == null ? 0 : current) + delta);
+    }
+
+    private void addLive(RecordPointer pointer, long delta) {
+        if (pointer != null) {
+            addBytes(liveBytes, pointer.getSegmentId(), delta);
+        }
+    }
+
+    /** Append a put and point the index at it */
+    private void putRecord(String key, String value) throws IOException {
+        RecordPointer pointer = append(key, value);
+        RecordPointer previous = index.get(key);
+        if (previous != null) {
+            addLive(previous, -previous.getLength());
+        }
+        index.put(key, pointer);
+        addLive(pointer, pointer.getLength());
+        hashIndex.add(key);
+    }
+
+    /** Append a tombstone for a key that is in the index */
+    private void deleteRecord(String key) throws IOException {
+        RecordPointer tombstone = append(key, null);
+        addBytes(tombstoneBytes, tombstone.getSegmentId(), tombstone.getLength());
+        RecordPointer previous = index.get(key);
+        addLive(previous, -previous.getLength());
+        index.remove(key);
+        hashIndex.remove(key);
+    }
+
+    /**
+     * Append a new key-val pair to the log
+     *
+     * @param key   Key to put entry under
+     * @param value Value to store under the given key
+     */
+    @Override
+    public synchronized boolean put(String key, String value) {
+        try {
+            putRecord(key, value);
+            logger.info("PUT key: " + key + " appended to log!");
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to PUT key: " + key + " into log!", e);
+            return false;
+        }
+    }
+
+    /**
+     * Append a batch of puts and deletes back to back under one lock
+     *
+     * @param batch Keys to write, a null or empty value deletes the key
+     */
+    @Override
+    public synchronized boolean applyBatch(Map<String, String> batch) {
+        try {
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                String key = entry.getKey();
+                String value = entry.getValue();
+                if (value == null || value.isEmpty()) {
+                    if (index.containsKey(key)) {
+                        deleteRecord(key);
+                    }
+                } else {
+                    putRecord(key, value);
+                }
+            }
+            logger.info("Applied batch of " + batch.size() + " writes to log!");
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to apply batch of " + batch.size() + " writes to log!", e);
+            return false;
+        }
+    }
+
+    /**
+     * Get a value given a key
+     *
+     * @param key Search for value under this key
+     */
+    @Override
+    public synchronized String get(String key) {
+        RecordPointer pointer = index.get(key);
+        if (pointer == null) {
+            logger.info("No value was found for key: " + key);
+            return null;
+        }
+        try {
+            return read(pointer).getValue();
+        } catch (Exception e) {
+            logger.error("Failed GET request for key: " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Append a tombstone for the given key and drop it from the index
+     *
+     * @param key Key to delete
+     */
+    @Override
+    public synchronized boolean delete(String key) {
+        if (!index.containsKey(key)) {
+            logger.info("Failed to delete key: " + key + " as no values exist");
+            return false;
+        }
+        try {
+            deleteRecord(key);
+            logger.info("Deleted key: " + key);
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to delete key (exception): " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean existsCheck(String key) {
+        return index.containsKey(key);
+    }
+
+    /** Delete every segment and start over with an empty log */
+    @Override
+    public synchronized void wipeStorage() {
+        try {
+            checkpointFile().delete();
+            for (LogSegment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            activeSegment = null;
+            index.clear();
+            liveBytes.clear();
+            tombstoneBytes.clear();
+            hashIndex.clear();
+            rollSegment();
+            logger.info("Log storage fully wiped!");
+        } catch (IOException e) {
+            logger.error("Failed to wipe log storage!", e);
+        }
+    }
+
+    /**
+     * Read every live KV pair from the log
+     *
+     * @return
+     */
+    @Override
+    public synchronized Map<String, String> returnAllEntries() {
+        final Map<String, String> newTable = new HashMap<String, String>();
+        index.forEach(new CompactKeyIndex.Visitor() {
+            public void visit(String key, RecordPointer pointer) {
+                try {
+                    newTable.put(key, read(pointer).getValue());
+                } catch (IOException e) {
+                    logger.error("Failed to read key: " + key + " from log!", e);
+                }
+            }
+        });
+        return newTable;
+    }
+
+    /** @return Scheduler compacting this log, for its metrics */
+    public CompactionScheduler getCompactionScheduler() {
+        return this.compactionScheduler;
+    }
+
+    /**
+     * Usage of every sealed segment. Tombstones count as live, except in the
+     * oldest segment where nothing is left for them to shadow.
+     */
+    @Override
+    public synchronized List<CompactionScheduler.SegmentUsage> segmentUsage() {
+        List<CompactionScheduler.SegmentUsage> usage = new ArrayList<CompactionScheduler.SegmentUsage>();
+        if (segments.isEmpty()) {
+            return usage;
+        }
+        int oldest = segments.firstKey();
+        for (LogSegment segment : segments.headMap(activeSegment.getId()).values()) {
+            int id = segment.getId();
+            long live = bytes(liveBytes, id) + (id == oldest ? 0 : bytes(tombstoneBytes, id));
+            usage.add(new CompactionScheduler.SegmentUsage(id, segment.size(), live));
+        }
+        return usage;
+    }
+
+    private static long bytes(Map<Integer, Long> bytes, int segmentId) {
+        Long value = bytes.get(segmentId);
+        return value == null ? 0 : value;
+    }
+
+    /** Record copied by compaction */
+    private static class Move {
+        private String key;
+        private long from;
+        private long to;
+        private int length;
+        private boolean tombstone;
+
+        private Move(String key, long from, long to, int length, boolean tombstone) {
+            this.key = key;
+            this.from = from;
+            this.to = to;
+            this.length = length;
+            this.tombstone = tombstone;
+        }
+    }
+
+    /**
+     * Rewrite a sealed segment with only its live records and the tombstones
+     * that still shadow older segments.
+     *
+     * Records are copied into a temporary file without holding the storage
+     * lock, so clients are only blocked for each liveness check and for the
+     * final swap. Records overwritten while copying simply become garbage in
+     * the new file. The rewritten segment keeps the id of the old one.
+     *
+     * @param id      Segment to compact
+     * @param limiter Budget for the bytes copied
+     * @return Bytes freed
+     */
+    @Override
+    public long compactSegment(int id, RateLimiter limiter) throws IOException, InterruptedException {
+        final LogSegment segment;
+        boolean oldest;
+        synchronized (this) {
+            segment = segments.get(id);
+            if (segment == null || segment == activeSegment) {
+                return 0;
+            }
+            oldest = id == segments.firstKey();
+        }
+
+        final List<Move> candidates = new ArrayList<Move>();
+        segment.replay(new LogSegment.RecordVisitor() {
+            public void visit(LogRecord record, long offset, int length) {
+                candidates.add(new Move(record.getKey(), offset, -1, length, record.isTombstone()));
+            }
+        });
+
+        File tempFile = new File(directory, segment.getFile().getName() + COMPACT_SUFFIX);
+        LogSegment temp = new LogSegment(tempFile, id);
+        List<Move> moves = new ArrayList<Move>();
+        try {
+            for (Move move : candidates) {
+                boolean keep;
+                synchronized (this) {
+                    if (move.tombstone) {
+                        keep = !oldest && !index.containsKey(move.key);
+                    } else {
+                        keep = new RecordPointer(id, move.from, move.length).equals(index.get(move.key));
+                    }
+                }
+                if (!keep) {
+                    continue;
+                }
+                limiter.acquire(move.length);
+                move.to = temp.append(segment.read(move.from, move.length));
+                moves.add(move);
+            }
+            temp.flush();
+        } catch (IOException | InterruptedException e) {
+            temp.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            if (segments.get(id) != segment) {
+                // Wiped while copying
+                temp.delete();
+                return 0;
+            }
+            // The checkpoint holds old offsets, never leave it behind a swap
+            checkpointFile().delete();
+            long oldSize = segment.size();
+            temp.close();
+            segment.close();
+            Files.move(tempFile.toPath(), segment.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            LogSegment compacted = new LogSegment(segment.getFile(), id);
+            long live = 0;
+            long tombstones = 0;
+            for (Move move : moves) {
+                if (move.tombstone) {
+                    tombstones += move.length;
+                } else if (new RecordPointer(id, move.from, move.length).equals(index.get(move.key))) {
+                    index.put(move.key, new RecordPointer(id, move.to, move.length));
+                    live += move.length;
+                }
+            }
+            liveBytes.put(id, live);
+            tombstoneBytes.put(id, tombstones);
+            if (compacted.size() == 0) {
+                compacted.delete();
+                segments.remove(id);
+                liveBytes.remove(id);
+                tombstoneBytes.remove(id);
+            } else {
+                compacted.seal();
+                segments.put(id, compacted);
+            }
+            writeCheckpoint();
+            return oldSize - compacted.size();
+        }
+    }
+
+    /** Stop compaction, checkpoint the index and close all segment files */
+    @Override
+    public void close() {
+        compactionScheduler.stop();
+        synchronized (this) {
+            closeSegments();
+        }
+    }
+
+    private void closeSegments() {
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            logger.error("Failed to checkpoint log index on close", e);
+        }
+        for (LogSegment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                logger.error("Failed to close segment " + segment.getFile().getName(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package persistent_storage;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * K-way merge of key-sorted record streams. When several sources hold the
+ * same key only the record from the newest source is returned.
+ */
+public class MergingIterator implements Iterator<LogRecord> {
+    /** Current record of one source */
+    private static class Head {
+        LogRecord record;
+        int rank;
+        Iterator<LogRecord> source;
+    }
+
+    private PriorityQueue<Head> heads;
+    private boolean dropTombstones;
+    private LogRecord next;
+
+    /**
+     * @param sources        Sorted sources, newest first
+     * @param dropTombstones True if no older data exists below these sources,
+     *                       so deletes can be discarded instead of kept
+     */
+    public MergingIterator(List<Iterator<LogRecord>> sources, boolean dropTombstones) {
+        this.dropTombstones = dropTombstones;
+        this.heads = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+            public int compare(Head a, Head b) {
+                int cmp = a.record.getKey().compareTo(b.record.getKey());
+                return cmp != 0 ? cmp : Integer.compare(a.rank, b.rank);
+            }
+        });
+        for (int rank = 0; rank < sources.size(); rank++) {
+            Head head = new Head();
+            head.rank = rank;
+            head.source = sources.get(rank);
+            if (head.source.hasNext()) {
+                head.record = head.source.next();
+                heads.add(head);
+            }
+        }
+        this.next = advance();
+    }
+
+    private LogRecord advance() {
+        while (!heads.isEmpty()) {
+            Head newest = heads.poll();
+            LogRecord record = newest.record;
+            refill(newest);
+            // Skip older versions of the same key
+            while (!heads.isEmpty() && heads.peek().record.getKey().equals(record.getKey())) {
+                refill(heads.poll());
+            }
+            if (!(dropTombstones && record.isTombstone())) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private void refill(Head head) {
+        if (head.source.hasNext()) {
+            head.record = head.source.next();
+            heads.add(head);
+        }
+    }
+
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    public LogRecord next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        LogRecord current = next;
+        next = advance();
+        return current;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -2,24 +2,98 @@ package persistent_storage;
 
 import java.io.*;
 import java.util.*;
-import java.math.BigInteger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 import java.io.IOException;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
-public class PersistentStorage implements IPersistentStorage {
+/**
+ * Map persisted to a .properties file.
+ *
+ * Writes are appended to a write-ahead log with group commit instead of
+ * rewriting the properties file every time. A background thread checkpoints
+ * the map every CHECKPOINT_INTERVAL_MS (or sooner once the log grows past
+ * CHECKPOINT_BYTES) to a compact binary snapshot, then empties the log. On
+ * startup the snapshot is loaded with one memory-mapped read and only the
+ * log tail is replayed; the properties file is only parsed if there is no
+ * usable snapshot. The properties file is kept current by a PropertiesFile,
+ * which appends each write and is rewritten off the write path.
+ *
+ * The map is a ConcurrentHashMap, so GETs never take a lock. Writes lock one
+ * of WRITE_STRIPES stripes picked by the key's hash, which keeps log order and
+ * map order in step for each key while writes to other keys go ahead in
+ * parallel. Writes share checkpointLock, which a checkpoint takes
+ * exclusively so no logged write is lost between the snapshot and emptying
+ * the log. Batches also take it exclusively and are logged as one write.
+ *
+ * With lazyLoad the snapshot is not read into the map on startup. It is
+ * opened as a LazySnapshot, which only indexes the keys, and values are
+ * decoded on first access into a bounded cache. The map then only holds the
+ * writes since the last checkpoint; each checkpoint opens the snapshot it
+ * wrote and empties the map, so the heap never grows with the data volume.
+ *
+ * With archiveAfterMs set, the time of each key's last GET or PUT is tracked
+ * and a background tier manager moves keys idle for longer into compressed
+ * ArchiveTier segments, off the heap and out of the checkpoints. A GET of an
+ * archived key promotes it back to the map. The archive index is written at
+ * the end of each snapshot, so hot and cold tiers are checkpointed together.
+ * The properties file only holds the hot tier.
+ */
+public class PersistentStorage extends AbstractPersistentStorage {
     // Initialize logger
     private static Logger logger = Logger.getRootLogger();
-    // Synchronized Hash map
-    private Map<String, String> referenceMap;
 
-    private String directory = "./data";
+    // Log size that triggers a checkpoint before the next interval
+    public static final long CHECKPOINT_BYTES = 4L * 1024 * 1024;
+    public static final long CHECKPOINT_INTERVAL_MS = 60000;
+    // How often the checkpointer looks at the properties file
+    private static final long PROPERTIES_CHECK_MS = 1000;
+    // Values kept decoded when loading lazily
+    public static final int DEFAULT_VALUE_CACHE_SIZE = 10000;
+    // Idle time before a key is archived, 0 keeps every key hot
+    public static final long DEFAULT_ARCHIVE_AFTER_MS = 0;
+    // Most value bytes moved to the archive in one pass
+    private static final long ARCHIVE_PASS_BYTES = 64L * 1024 * 1024;
+    // Archive segments with fewer live keys than this share are rewritten
+    private static final double ARCHIVE_MIN_LIVE_RATIO = 0.5;
+    private static final String WAL_SUFFIX = ".wal.data";
+    private static final String SNAPSHOT_SUFFIX = ".checkpoint.data";
+    // Number of write locks, a power of two
+    private static final int WRITE_STRIPES = 64;
+    // Concurrent hash map, read without locking
+    private ConcurrentHashMap<String, String> referenceMap;
+    // Entries of the last snapshot not overwritten since, empty unless lazy
+    private volatile LazySnapshot snapshot = new LazySnapshot();
+    private boolean lazyLoad = false;
+    private int valueCacheSize = DEFAULT_VALUE_CACHE_SIZE;
+    // Cold tier, keys leave the map and snapshot once archived
+    private ArchiveTier archive;
+    private long archiveAfterMs = DEFAULT_ARCHIVE_AFTER_MS;
+    // Key -> last GET or PUT, keys not used since startup count from openedAt
+    private ConcurrentHashMap<String, Long> lastAccess = new ConcurrentHashMap<String, Long>();
+    private long openedAt = System.currentTimeMillis();
+    private Thread tierManager;
+    private final Object[] writeStripes = new Object[WRITE_STRIPES];
+    {
+        for (int i = 0; i < WRITE_STRIPES; i++) {
+            writeStripes[i] = new Object();
+        }
+    }
+    // Shared by writes, exclusive for checkpoints, wipes and batches
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    private static final String DEFAULT_DIRECTORY = "./data";
+    private String directory = DEFAULT_DIRECTORY;
     // Use properties file for easy storage of maps
     private String databaseName = "database.properties";
     private File testFile;
+    private WriteAheadLog wal;
+    private PropertiesFile properties;
+    private Thread checkpointer;
+    private volatile boolean running = true;
 
     /**
      * Initializes the database properties file.
@@ -54,14 +128,43 @@ public class PersistentStorage implements IPersistentStorage {
         }
     }
 
+    /**
+     * Check for an existing store without creating one.
+     *
+     * @param serverName Server the store belongs to
+     * @param fileName   global database name
+     * @return True if the store's properties file is on disk
+     */
+    public static boolean exists(String serverName, String fileName) {
+        return new File(DEFAULT_DIRECTORY, serverName + "." + fileName).exists();
+    }
+
     // NOTE: Java does not have optional arguments - overload instead
     /** Build a map - no database existing on file. */
     public PersistentStorage(String serverName) {
+        this(serverName, WriteAheadLog.DEFAULT_DURABILITY, WriteAheadLog.DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * Build a map - no database existing on file.
+     * 
+     * @param durability     When the write-ahead log is forced to disk
+     * @param syncIntervalMs fsync interval for FSYNC_PERIODIC
+     */
+    public PersistentStorage(String serverName, DurabilityMode durability, long syncIntervalMs) {
         this.databaseName = serverName + "." + "database.properties";
         init();
-        Map<String, String> tempMap = new HashMap<String, String>();
-        // Activate blank synchronized map
-        this.referenceMap = Collections.synchronizedMap(tempMap);
+        // Activate blank concurrent map
+        this.referenceMap = new ConcurrentHashMap<String, String>();
+        this.archive = new ArchiveTier(new File(this.directory), this.databaseName);
+        try {
+            this.archive.load(ByteBuffer.allocate(0));
+        } catch (IOException e) {
+            logger.error("Failed to clear archive segments!", e);
+        }
+        openLog(durability, syncIntervalMs, false);
+        this.properties = new PropertiesFile(this.testFile);
+        startCheckpointer();
     }
 
     /**
@@ -70,58 +173,568 @@ public class PersistentStorage implements IPersistentStorage {
      * @param databaseName global database name
      */
     public PersistentStorage(String serverName, String fileName) {
+        this(serverName, fileName, WriteAheadLog.DEFAULT_DURABILITY, WriteAheadLog.DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * Load existing map from storage.
+     * 
+     * @param databaseName   global database name
+     * @param durability     When the write-ahead log is forced to disk
+     * @param syncIntervalMs fsync interval for FSYNC_PERIODIC
+     */
+    public PersistentStorage(String serverName, String fileName, DurabilityMode durability, long syncIntervalMs) {
+        this(serverName, fileName, durability, syncIntervalMs, false, DEFAULT_VALUE_CACHE_SIZE);
+    }
+
+    /**
+     * Load existing map from storage.
+     * 
+     * @param databaseName   global database name
+     * @param durability     When the write-ahead log is forced to disk
+     * @param syncIntervalMs fsync interval for FSYNC_PERIODIC
+     * @param lazyLoad       Only index the snapshot keys on startup and load
+     *                       values on first access
+     * @param valueCacheSize Values kept decoded when loading lazily
+     */
+    public PersistentStorage(String serverName, String fileName, DurabilityMode durability, long syncIntervalMs,
+            boolean lazyLoad, int valueCacheSize) {
+        this(serverName, fileName, durability, syncIntervalMs, lazyLoad, valueCacheSize, DEFAULT_ARCHIVE_AFTER_MS);
+    }
+
+    /**
+     * Load existing map from storage.
+     * 
+     * @param databaseName   global database name
+     * @param durability     When the write-ahead log is forced to disk
+     * @param syncIntervalMs fsync interval for FSYNC_PERIODIC
+     * @param lazyLoad       Only index the snapshot keys on startup and load
+     *                       values on first access
+     * @param valueCacheSize Values kept decoded when loading lazily
+     * @param archiveAfterMs Move keys not read or written for this long to
+     *                       the archive tier, 0 to keep every key hot
+     */
+    public PersistentStorage(String serverName, String fileName, DurabilityMode durability, long syncIntervalMs,
+            boolean lazyLoad, int valueCacheSize, long archiveAfterMs) {
         this.databaseName = serverName + "." + fileName;
+        this.lazyLoad = lazyLoad;
+        this.valueCacheSize = valueCacheSize;
+        this.archiveAfterMs = archiveAfterMs;
         // Check for directory/prop file present
         init();
+        this.archive = new ArchiveTier(new File(this.directory), this.databaseName);
 
+        long startTime = System.currentTimeMillis();
         // Load local map with existing entries in storage
+        Map<String, String> tempMap = null;
+        if (lazyLoad) {
+            LazySnapshot loaded = openSnapshot();
+            if (loaded != null) {
+                this.snapshot = loaded;
+                tempMap = new HashMap<String, String>();
+                loadArchive(loaded.getTrailer());
+            }
+        } else {
+            tempMap = loadSnapshot();
+        }
+        if (tempMap == null) {
+            tempMap = loadProperties();
+        }
+        long loadedTime = System.currentTimeMillis();
+        // Activate concurrent map
+        this.referenceMap = new ConcurrentHashMap<String, String>(tempMap);
+        // Writes since the last checkpoint
+        openLog(durability, syncIntervalMs, true);
+        for (String key : this.snapshot.keys()) {
+            this.hashIndex.add(key);
+        }
+        for (String key : this.referenceMap.keySet()) {
+            this.hashIndex.add(key);
+        }
+        for (String key : this.archive.keys()) {
+            this.hashIndex.add(key);
+        }
+        logger.info("Loaded " + (this.referenceMap.size() + this.snapshot.size()) + " entries"
+                + (lazyLoad ? " lazily" : "") + " and " + this.archive.size() + " archived keys in "
+                + (System.currentTimeMillis() - startTime) + " ms (" + (loadedTime - startTime)
+                + " ms checkpoint, " + (System.currentTimeMillis() - loadedTime) + " ms log replay)");
+        this.properties = new PropertiesFile(this.testFile);
+        startCheckpointer();
+        if (archiveAfterMs > 0) {
+            startTierManager();
+        }
+    }
+
+    private File snapshotFile() {
+        return new File(this.directory, this.databaseName + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Load the binary snapshot written by the last checkpoint.
+     *
+     * @return The map, or null if there is no usable snapshot
+     */
+    private Map<String, String> loadSnapshot() {
+        File file = snapshotFile();
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            ByteBuffer body = CheckpointFile.read(file).getBody();
+            int count = body.getInt();
+            Map<String, String> tempMap = new HashMap<String, String>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String key = CheckpointFile.readString(body);
+                tempMap.put(key, CheckpointFile.readString(body));
+            }
+            loadArchive(body.slice());
+            return tempMap;
+        } catch (Exception e) {
+            logger.error("Ignoring unusable snapshot " + file.getName() + ", loading properties file", e);
+            return null;
+        }
+    }
+
+    /**
+     * Open the snapshot without loading its values.
+     *
+     * @return The snapshot, or null if there is no usable snapshot
+     */
+    private LazySnapshot openSnapshot() {
+        File file = snapshotFile();
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return new LazySnapshot(file, this.valueCacheSize);
+        } catch (Exception e) {
+            logger.error("Ignoring unusable snapshot " + file.getName() + ", loading properties file", e);
+            return null;
+        }
+    }
+
+    /**
+     * Open the archive segments listed after the snapshot entries. Snapshots
+     * written before anything was archived have no manifest.
+     */
+    private void loadArchive(ByteBuffer manifest) {
+        try {
+            this.archive.load(manifest);
+        } catch (IOException e) {
+            logger.error("Failed to open archive segments, archived keys are unavailable!", e);
+        }
+    }
+
+    /**
+     * Parse the properties file, used when there is no snapshot yet.
+     */
+    private Map<String, String> loadProperties() {
         Map<String, String> tempMap = new HashMap<String, String>();
         Properties properties = new Properties();
         try {
-            properties.load(new FileInputStream(this.directory + '/' + this.databaseName));
+            FileInputStream in = new FileInputStream(this.directory + '/' + this.databaseName);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
             for (String key : properties.stringPropertyNames()) {
                 tempMap.put(key, properties.get(key).toString());
             }
         } catch (IOException e) {
             logger.error("Failed to load existing properties file!", e);
         }
-        // Activate synchronized map
-        this.referenceMap = Collections.synchronizedMap(tempMap);
+        return tempMap;
     }
 
-    /** Write the current map to disk */
-    private synchronized void writeMap() {
-        Properties properties = new Properties();
-        // Loop through entries in current map
-        for (Map.Entry<String, String> entry : this.referenceMap.entrySet()) {
-            properties.put(entry.getKey(), entry.getValue());
+    /**
+     * Open the write-ahead log next to the properties file.
+     * 
+     * @param durability     When the log is forced to disk
+     * @param syncIntervalMs fsync interval for FSYNC_PERIODIC
+     * @param replay         Apply the logged writes to the map; otherwise the
+     *                       log is emptied to match a fresh map
+     */
+    private void openLog(DurabilityMode durability, long syncIntervalMs, boolean replay) {
+        File file = new File(this.directory, this.databaseName + WAL_SUFFIX);
+        try {
+            LogSegment segment = new LogSegment(file, 0);
+            if (replay) {
+                long valid = segment.replay(new LogSegment.RecordVisitor() {
+                    public void visit(LogRecord record, long offset, int length) {
+                        if (record.isTombstone()) {
+                            removeKey(record.getKey());
+                        } else {
+                            putKey(record.getKey(), record.getValue());
+                        }
+                    }
+                });
+                if (valid < segment.size()) {
+                    logger.info("Truncating torn write-ahead log tail at offset " + valid);
+                    segment.truncate(valid);
+                }
+            } else {
+                segment.truncate(0);
+            }
+            this.wal = new WriteAheadLog(segment, durability, syncIntervalMs);
+            logger.info("Opened write-ahead log " + file.getName() + " in " + durability + " mode");
+        } catch (IOException e) {
+            logger.error("Failed to open write-ahead log!", e);
         }
+    }
 
-        // Debug delete
-        // System.out.println("***Show hash map right before writing");
-        // for (Map.Entry<String, String> entry : this.referenceMap.entrySet()) {
-        // System.out.println(entry.getKey() + ":" + entry.getValue());
-        // }
+    /**
+     * Rewrite the properties file from every hot entry without locking.
+     * The map is read before the snapshot, since a checkpoint that empties
+     * the map has already swapped in the snapshot holding its keys.
+     */
+    private void rewriteProperties() throws IOException {
+        this.properties.rewrite(new PropertiesFile.Entries() {
+            public void forEach(LazySnapshot.Visitor visitor) throws IOException {
+                for (Map.Entry<String, String> entry : referenceMap.entrySet()) {
+                    visitor.visit(entry.getKey(), entry.getValue());
+                }
+                snapshot.forEach(visitor);
+            }
+        });
+    }
+
+    /** Write the current map as a binary snapshot */
+    private void writeSnapshot() throws IOException {
+        CheckpointFile.write(snapshotFile(), 0, new CheckpointFile.BodyWriter() {
+            public void write(DataOutputStream out) throws IOException {
+                // The map never holds a key the lazy snapshot still has
+                out.writeInt(snapshot.size() + referenceMap.size());
+                snapshot.writeTo(out);
+                for (Map.Entry<String, String> entry : referenceMap.entrySet()) {
+                    CheckpointFile.writeString(out, entry.getKey());
+                    CheckpointFile.writeString(out, entry.getValue());
+                }
+                // Archived keys are in neither, the manifest says where they are
+                archive.writeManifest(out);
+            }
+        });
+    }
 
-        // Try write to disk
+    /**
+     * Write the snapshot, then empty the write-ahead log. A crash before the log is emptied only means its writes are
+     * replayed again on top of a snapshot that already holds them.
+     */
+    private void checkpoint() throws IOException {
+        this.checkpointLock.writeLock().lock();
         try {
-            properties.store(new FileOutputStream(this.directory + '/' + this.databaseName), null);
+            writeSnapshot();
+            this.wal.reset();
+            if (this.lazyLoad) {
+                // Serve the checkpointed writes from the new snapshot, the
+                // map is cleared last so lock-free GETs always find them
+                this.snapshot = new LazySnapshot(snapshotFile(), this.valueCacheSize);
+                this.referenceMap.clear();
+            }
+        } finally {
+            this.checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /** Set a key in the map, shadowing the snapshot and the archive */
+    private void putKey(String key, String value) {
+        // Map first, so a concurrent GET never misses the key in both
+        this.referenceMap.put(key, value);
+        this.snapshot.remove(key);
+        this.archive.remove(key);
+    }
+
+    /** @return True if the key was in the map, the snapshot or the archive */
+    private boolean removeKey(String key) {
+        boolean inMap = this.referenceMap.remove(key) != null;
+        boolean inSnapshot = this.snapshot.remove(key);
+        boolean inArchive = this.archive.remove(key);
+        this.lastAccess.remove(key);
+        return inMap || inSnapshot || inArchive;
+    }
+
+    /** Record a GET or PUT of the key for the tier manager */
+    private void touch(String key) {
+        if (this.archiveAfterMs > 0) {
+            this.lastAccess.put(key, System.currentTimeMillis());
+        }
+    }
+
+    private long lastAccessOf(String key) {
+        Long accessed = this.lastAccess.get(key);
+        return accessed == null ? this.openedAt : accessed;
+    }
+
+    /** @return Value of the key in the map or snapshot, null if it is not hot */
+    private String hotValue(String key) {
+        String value = this.referenceMap.get(key);
+        if (value == null) {
+            value = this.snapshot.get(key);
+        }
+        if (value == null) {
+            // Written and checkpointed while the snapshot was read
+            value = this.referenceMap.get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Look a key up in every tier without locking.
+     *
+     * @param promote Move an archived key back to the map
+     */
+    private String lookup(String key, boolean promote) throws IOException {
+        String value = hotValue(key);
+        if (value != null) {
+            return value;
+        }
+        // Keys enter the archive before they leave the map or snapshot
+        value = promote ? promote(key) : this.archive.get(key);
+        if (value == null) {
+            // Promoted while the archive was read
+            value = this.referenceMap.get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Move an archived key back to the map. It is not logged: until the next
+     * checkpoint the archive manifest still lists the key.
+     *
+     * @return The value, or null if the key is not archived
+     */
+    private String promote(String key) throws IOException {
+        if (!this.archive.containsKey(key)) {
+            return null;
+        }
+        this.checkpointLock.readLock().lock();
+        try {
+            synchronized (stripeFor(key)) {
+                String value = this.archive.get(key);
+                if (value != null) {
+                    // Map first, so a concurrent GET never misses the key
+                    this.referenceMap.put(key, value);
+                    this.archive.remove(key);
+                    this.properties.put(key, value);
+                    logger.info("Promoted archived key: " + key);
+                }
+                return value;
+            }
+        } finally {
+            this.checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Move keys that have not been read or written for archiveAfterMs to a
+     * new archive segment, then rewrite sparse archive segments. Runs on the
+     * tier manager thread; values are copied without blocking clients and
+     * only the hand-over takes the checkpoint lock.
+     *
+     * @return Number of keys archived
+     * @throws IOException
+     */
+    public int archiveColdKeys() throws IOException {
+        long cutoff = System.currentTimeMillis() - this.archiveAfterMs;
+        SortedMap<String, String> cold = new TreeMap<String, String>();
+        long bytes = 0;
+        List<Iterable<String>> hotKeys = new ArrayList<Iterable<String>>();
+        hotKeys.add(this.referenceMap.keySet());
+        hotKeys.add(this.snapshot.keys());
+        for (Iterable<String> keys : hotKeys) {
+            for (String key : keys) {
+                if (bytes >= ARCHIVE_PASS_BYTES) {
+                    break;
+                }
+                if (lastAccessOf(key) > cutoff) {
+                    continue;
+                }
+                String value = hotValue(key);
+                if (value != null) {
+                    cold.put(key, value);
+                    bytes += key.length() + value.length();
+                }
+            }
+        }
+
+        int archived = 0;
+        if (!cold.isEmpty()) {
+            Map<String, Long> locations = this.archive.writeSegment(cold);
+            this.checkpointLock.writeLock().lock();
+            try {
+                for (Map.Entry<String, Long> entry : locations.entrySet()) {
+                    String key = entry.getKey();
+                    // Skip keys used or rewritten while the segment was written
+                    if (lastAccessOf(key) > cutoff || !cold.get(key).equals(hotValue(key))) {
+                        continue;
+                    }
+                    this.archive.add(key, entry.getValue());
+                    this.referenceMap.remove(key);
+                    this.snapshot.remove(key);
+                    this.lastAccess.remove(key);
+                    this.properties.remove(key);
+                    archived++;
+                }
+                checkpoint();
+                this.archive.deleteDeadSegments();
+            } finally {
+                this.checkpointLock.writeLock().unlock();
+            }
+        }
+
+        int rewritten = this.archive.compact(ARCHIVE_MIN_LIVE_RATIO);
+        if (rewritten > 0) {
+            this.checkpointLock.writeLock().lock();
+            try {
+                checkpoint();
+                this.archive.deleteDeadSegments();
+            } finally {
+                this.checkpointLock.writeLock().unlock();
+            }
+        }
+        if (archived > 0 || rewritten > 0) {
+            logger.info("Archived " + archived + " cold keys of " + this.databaseName + ", rewrote " + rewritten
+                    + " archive segments; " + this.archive.size() + " keys in " + this.archive.getSegmentCount()
+                    + " segments (" + this.archive.getBytes() + " bytes)");
+        }
+        return archived;
+    }
+
+    /** @return Number of keys in the archive tier */
+    public int getArchivedCount() {
+        return this.archive.size();
+    }
+
+    /** Archive cold keys in the background */
+    private void startTierManager() {
+        final long intervalMs = Math.max(1000, Math.min(this.archiveAfterMs / 4, 60000));
+        this.tierManager = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(intervalMs);
+                        archiveColdKeys();
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (IOException e) {
+                        logger.error("Failed to archive cold keys", e);
+                    }
+                }
+            }
+        }, "tier-manager-" + this.databaseName);
+        this.tierManager.setDaemon(true);
+        // Client threads always win the CPU
+        this.tierManager.setPriority(Thread.MIN_PRIORITY);
+        this.tierManager.start();
+    }
+
+    /** Lock guarding writes to the given key */
+    private Object stripeFor(String key) {
+        int h = key.hashCode();
+        // Spread the high bits, like HashMap does
+        h ^= (h >>> 16);
+        return this.writeStripes[h & (WRITE_STRIPES - 1)];
+    }
+
+    /**
+     * Checkpoint right away once the log has grown large enough, instead of
+     * waiting for the next interval.
+     */
+    private void maybeCheckpoint() {
+        if (this.wal.size() < CHECKPOINT_BYTES) {
+            return;
+        }
+        this.checkpointLock.writeLock().lock();
+        try {
+            if (this.wal.size() >= CHECKPOINT_BYTES) {
+                checkpoint();
+                logger.info("Checkpointed " + this.referenceMap.size() + " entries to " + this.databaseName);
+            }
         } catch (IOException e) {
-            logger.error("Failed to write map to disk", e);
+            logger.error("Failed to checkpoint map to disk", e);
+        } finally {
+            this.checkpointLock.writeLock().unlock();
         }
     }
 
     /**
-     * Put new key-val pair into local map, then call write to disk
+     * Checkpoint now instead of waiting for the interval or the log to grow.
+     *
+     * @throws IOException
+     */
+    public void forceCheckpoint() throws IOException {
+        this.checkpointLock.writeLock().lock();
+        try {
+            checkpoint();
+        } finally {
+            this.checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the properties file in the background when it needs it, and
+     * checkpoint every CHECKPOINT_INTERVAL_MS if the log is not empty
+     */
+    private void startCheckpointer() {
+        this.checkpointer = new Thread(new Runnable() {
+            public void run() {
+                long lastCheckpoint = System.currentTimeMillis();
+                while (running) {
+                    try {
+                        if (properties.needsRewrite()) {
+                            rewriteProperties();
+                        }
+                        Thread.sleep(PROPERTIES_CHECK_MS);
+                        if (System.currentTimeMillis() - lastCheckpoint < CHECKPOINT_INTERVAL_MS) {
+                            continue;
+                        }
+                        lastCheckpoint = System.currentTimeMillis();
+                        checkpointLock.writeLock().lock();
+                        try {
+                            if (running && wal != null && wal.size() > 0) {
+                                checkpoint();
+                            }
+                        } finally {
+                            checkpointLock.writeLock().unlock();
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (IOException e) {
+                        logger.error("Failed to checkpoint map to disk", e);
+                    }
+                }
+            }
+        }, "properties-checkpoint-" + this.databaseName);
+        this.checkpointer.setDaemon(true);
+        this.checkpointer.start();
+    }
+
+    /**
+     * Put new key-val pair into local map, then log the write to disk
      * 
      * @param key   Key to put entry under
      * @param value Value to store under the given key
      */
     @Override
-    public synchronized boolean put(String key, String value) {
+    public boolean put(String key, String value) {
         try {
-            this.referenceMap.put(key, value);
-            writeMap();
+            WriteAheadLog.Commit commit;
+            // Log order and map order must agree for the key, the wait
+            // happens outside the locks
+            this.checkpointLock.readLock().lock();
+            try {
+                synchronized (stripeFor(key)) {
+                    putKey(key, value);
+                    this.hashIndex.add(key);
+                    this.properties.put(key, value);
+                    commit = this.wal.submit(LogRecord.encode(key, value));
+                }
+                touch(key);
+            } finally {
+                this.checkpointLock.readLock().unlock();
+            }
+            commit.await();
+            maybeCheckpoint();
             logger.info("PUT (" + key + ',' + value + ") into map and wrote to disk!");
             return true;
         } catch (Exception e) {
@@ -130,19 +743,81 @@ public class PersistentStorage implements IPersistentStorage {
         }
     }
 
+    /**
+     * Apply a batch of puts and deletes with a single log write, instead of
+     * waiting for the log once per key.
+     * 
+     * @param batch Keys to write, a null or empty value deletes the key
+     */
+    @Override
+    public boolean applyBatch(Map<String, String> batch) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        try {
+            WriteAheadLog.Commit commit;
+            this.checkpointLock.writeLock().lock();
+            try {
+                List<ByteBuffer> records = new ArrayList<ByteBuffer>(batch.size());
+                int total = 0;
+                for (Map.Entry<String, String> entry : batch.entrySet()) {
+                    String key = entry.getKey();
+                    String value = entry.getValue();
+                    ByteBuffer record;
+                    if (value == null || value.isEmpty()) {
+                        if (!removeKey(key)) {
+                            continue;
+                        }
+                        this.hashIndex.remove(key);
+                        this.properties.remove(key);
+                        record = LogRecord.encode(key, null);
+                    } else {
+                        putKey(key, value);
+                        this.hashIndex.add(key);
+                        this.properties.put(key, value);
+                        touch(key);
+                        record = LogRecord.encode(key, value);
+                    }
+                    records.add(record);
+                    total += record.remaining();
+                }
+                if (records.isEmpty()) {
+                    return true;
+                }
+                // Replay reads the records back one at a time
+                ByteBuffer combined = ByteBuffer.allocate(total);
+                for (ByteBuffer record : records) {
+                    combined.put(record);
+                }
+                combined.flip();
+                commit = this.wal.submit(combined);
+            } finally {
+                this.checkpointLock.writeLock().unlock();
+            }
+            commit.await();
+            maybeCheckpoint();
+            logger.info("Applied batch of " + batch.size() + " writes to map and wrote to disk!");
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to apply batch of " + batch.size() + " writes to map!", e);
+            return false;
+        }
+    }
+
     /**
      * Get a value given a key
      * 
      * @param key Search for value under this key
      */
     @Override
-    public synchronized String get(String key) {
+    public String get(String key) {
         try {
-            String value = this.referenceMap.get(key);
+            String value = lookup(key, true);
             if (value == null) {
                 logger.info("No value was found for key: " + key);
                 return null;
             } else {
+                touch(key);
                 logger.info("Requested key: " + key + " and retrieved value: " + value);
                 return value;
             }
@@ -158,30 +833,29 @@ public class PersistentStorage implements IPersistentStorage {
      * @param key Key to delete
      */
     @Override
-    public synchronized boolean delete(String key) {
+    public boolean delete(String key) {
         try {
-            /**
-             * The method returns the value that was previously mapped to
-             * the specified key if the key exists,
-             * otherwise the method returns NULL.
-             */
-            String value = this.referenceMap.remove(key);
-            // System.out.println("***Show hash map afer deleting key: "+key);
-            // for (Map.Entry<String, String> entry : this.referenceMap.entrySet()) {
-            // System.out.println(entry.getKey() + ":" + entry.getValue());
-            // }
-
-            // Tried to delete something that doesn't have entries
-            if (value == null) {
-                logger.info("Failed to delete key: " + key + " as no values exist");
-                return false;
-            }
-            // Delete was succesful, write to disk
-            else {
-                writeMap();
-                logger.info("Deleted key and value: " + key + " " + value);
-                return true;
+            WriteAheadLog.Commit commit;
+            this.checkpointLock.readLock().lock();
+            try {
+                synchronized (stripeFor(key)) {
+                    // Tried to delete something that doesn't have entries
+                    if (!removeKey(key)) {
+                        logger.info("Failed to delete key: " + key + " as no values exist");
+                        return false;
+                    }
+                    this.hashIndex.remove(key);
+                    this.properties.remove(key);
+                    commit = this.wal.submit(LogRecord.encode(key, null));
+                }
+            } finally {
+                this.checkpointLock.readLock().unlock();
             }
+            // Delete was succesful, wait for the log
+            commit.await();
+            maybeCheckpoint();
+            logger.info("Deleted key: " + key);
+            return true;
         } catch (Exception e) {
             logger.error("Failed to delete key (exception): " + key, e);
             return false;
@@ -194,8 +868,8 @@ public class PersistentStorage implements IPersistentStorage {
      * @param key Key to search for
      */
     @Override
-    public synchronized boolean existsCheck(String key) {
-        if (this.referenceMap.isEmpty()) {
+    public boolean existsCheck(String key) {
+        if (this.referenceMap.isEmpty() && this.snapshot.size() == 0 && this.archive.size() == 0) {
             logger.info("Failed exist check; map is currently empty!");
             return false;
         } else {
@@ -205,160 +879,109 @@ public class PersistentStorage implements IPersistentStorage {
              * the key element as a parameter and returns True if that element is
              * mapped in the map.
              */
-            return this.referenceMap.containsKey(key);
+            return this.referenceMap.containsKey(key) || this.snapshot.containsKey(key)
+                    || this.archive.containsKey(key);
         }
     }
 
-    /** Fully wipe the data.properties file */
+    /** Fully wipe the data.properties file, snapshot and write-ahead log */
     @Override
-    public synchronized void wipeStorage() {
+    public void wipeStorage() {
+        this.checkpointLock.writeLock().lock();
         try {
             this.referenceMap.clear();
-            writeMap();
+            this.snapshot = new LazySnapshot();
+            this.archive.clear();
+            this.lastAccess.clear();
+            this.hashIndex.clear();
+            this.properties.clear();
+            checkpoint();
+            this.archive.deleteDeadSegments();
             logger.info("Map and disk fully wiped!");
         } catch (Exception e) {
             logger.error("Failed to wipe map!", e);
+        } finally {
+            this.checkpointLock.writeLock().unlock();
         }
     }
 
     /** Milestone 2 Modifications */
 
     /**
-     * Get MD5 hash
+     * Grab KV Pairs from current server db and return
      * 
-     * @param key String to be hashed in MD5
-     * @return Returns big integer MD5 hash
+     * @return
      */
-    public BigInteger MD5Hash(String key) {
-        MessageDigest md = null;
-        byte[] bytesOfMessage = null;
-
+    @Override
+    public Map<String, String> returnAllEntries() {
+        final Map<String, String> entries = new HashMap<String, String>();
+        // No checkpoint may swap the snapshot in between; the archive and the
+        // snapshot are read first since keys reach the map before leaving them
+        this.checkpointLock.readLock().lock();
         try {
-            bytesOfMessage = key.getBytes("UTF-8");
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            logger.error("Error in generating MD5 hash!");
-        } catch (UnsupportedEncodingException e) {
-            logger.error("Unsupported encoding exception!");
+            this.archive.forEach(new ArchiveTier.Visitor() {
+                public void visit(String key, String value) {
+                    entries.put(key, value);
+                }
+            });
+            this.snapshot.forEach(new LazySnapshot.Visitor() {
+                public void visit(String key, String value) {
+                    entries.put(key, value);
+                }
+            });
+            entries.putAll(this.referenceMap);
+        } catch (IOException e) {
+            logger.error("Failed to read snapshot entries!", e);
+        } finally {
+            this.checkpointLock.readLock().unlock();
         }
-
-        byte[] MD5digest = md.digest(bytesOfMessage);
-        BigInteger big_md5 = new BigInteger(1, MD5digest);
-        return big_md5;
+        return entries;
     }
 
     /**
-     * Check if supplied hash is reachable within begin/end bounds
-     * 
-     * @param begin Beginning of valid range
-     * @param end   End of valid range
-     * @param key   Key to be checked
-     * @return True if in range, False if out of range
+     * Read a value for a range or transfer walk without promoting it or
+     * counting it as an access.
      */
-    public boolean keyValid(BigInteger begin, BigInteger end, BigInteger key) {
-        // Case 1: Begin <= End, key > begin, key < end
-        // Case 2: Begin >= End, key < begin, key < end
-        // Case 3: Begin >= End, key > begin, key > end
-        if ((begin.compareTo(end) != 1) && (key.compareTo(begin) == 1) && (key.compareTo(end) == -1) ||
-                (begin.compareTo(end) != -1) && (key.compareTo(begin) == -1) && (key.compareTo(end) == -1) ||
-                (begin.compareTo(end) != -1) && (key.compareTo(begin) == 1) && (key.compareTo(end) == 1)) {
-            return true;
-        } else {
-            return false;
-        }
+    @Override
+    protected String read(String key) throws Exception {
+        return lookup(key, false);
     }
 
     /**
-     * Grab KV Pairs from current server db and check if in valid range.
-     * If REACHABLE, return in new table.
-     * 
-     * @param begin Beginning of valid range
-     * @param end   End of valid range
-     * @return
+     * Checkpoint, then flush and close the write-ahead log and the
+     * properties file
      */
-    public Map<String, String> hashReachable(BigInteger begin, BigInteger end) {
-        // Load local map with existing entries in storage
-        Map<String, String> tempMap = new HashMap<String, String>();
-        Properties properties = new Properties();
-        try {
-            properties.load(new FileInputStream(this.directory + '/' + this.databaseName));
-            for (String key : properties.stringPropertyNames()) {
-                tempMap.put(key, properties.get(key).toString());
+    @Override
+    public void close() {
+        this.running = false;
+        if (this.tierManager != null) {
+            this.tierManager.interrupt();
+            try {
+                this.tierManager.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (IOException e) {
-            logger.error("Failed to load existing properties file!", e);
         }
-        // Activate synchronized map
-        Map<String, String> currentTable = Collections.synchronizedMap(tempMap);
-        Map<String, String> newTable = new HashMap<String, String>();
-        // If key is reachable in current range, add to new table
-        for (Map.Entry keyValPair : currentTable.entrySet()) {
-            String key = (String) keyValPair.getKey();
-            if (keyValid(begin, end, MD5Hash(key)) == true) {
-                newTable.put(key, (String) keyValPair.getValue());
-            }
+        this.checkpointer.interrupt();
+        try {
+            this.checkpointer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return newTable;
-    }
-
-    /**
-     * Grab KV Pairs from current server db and check if in valid range.
-     * If UNREACHABLE, return in new table.
-     * 
-     * @param begin Beginning of valid range
-     * @param end   End of valid range
-     * @return
-     */
-    public Map<String, String> hashUnreachable(BigInteger begin, BigInteger end) {
-        // Load local map with existing entries in storage
-        Map<String, String> tempMap = new HashMap<String, String>();
-        Properties properties = new Properties();
         try {
-            properties.load(new FileInputStream(this.directory + '/' + this.databaseName));
-            for (String key : properties.stringPropertyNames()) {
-                tempMap.put(key, properties.get(key).toString());
-            }
+            checkpoint();
+            this.wal.close();
         } catch (IOException e) {
-            logger.error("Failed to load existing properties file!", e);
+            logger.error("Failed to close write-ahead log!", e);
         }
-        // Activate synchronized map
-        Map<String, String> currentTable = Collections.synchronizedMap(tempMap);
-        Map<String, String> newTable = new HashMap<String, String>();
-        // If key is unreachable in current range, add to new table
-        for (Map.Entry keyValPair : currentTable.entrySet()) {
-            String key = (String) keyValPair.getKey();
-            if (keyValid(begin, end, MD5Hash(key)) == false) {
-                newTable.put(key, (String) keyValPair.getValue());
-            }
-        }
-        return newTable;
-    }
-
-    /**
-     * Grab KV Pairs from current server db and return
-     * 
-     * @return
-     */
-    public Map<String, String> returnAllEntries() {
-        // Load local map with existing entries in storage
-        Map<String, String> tempMap = new HashMap<String, String>();
-        Properties properties = new Properties();
         try {
-            properties.load(new FileInputStream(this.directory + '/' + this.databaseName));
-            for (String key : properties.stringPropertyNames()) {
-                tempMap.put(key, properties.get(key).toString());
+            // Never indexed if closed right after opening
+            if (this.properties.needsRewrite()) {
+                rewriteProperties();
             }
         } catch (IOException e) {
-            logger.error("Failed to load existing properties file!", e);
-        }
-        // Activate synchronized map
-        Map<String, String> currentTable = Collections.synchronizedMap(tempMap);
-        Map<String, String> newTable = new HashMap<String, String>();
-        // If key is unreachable in current range, add to new table
-        for (Map.Entry keyValPair : currentTable.entrySet()) {
-            String key = (String) keyValPair.getKey();
-            newTable.put(key, (String) keyValPair.getValue());
+            logger.error("Failed to rewrite properties file!", e);
         }
-        return newTable;
+        this.properties.close();
     }
 }
@@ -0,0 +1,346 @@
+package persistent_storage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Properties file kept in step with a PersistentStorage by appending.
+ *
+ * Each PUT appends one key=value line and comments out the key's previous
+ * line in place by overwriting its first byte with '#', and each DELETE
+ * only comments out the line, so the file is current after every write
+ * without being rewritten. Properties.load skips the commented out lines.
+ *
+ * Once commented out lines take up more room than live ones, the file is
+ * rewritten from the map on a background thread. Writers are not blocked
+ * meanwhile: they keep appending to the old file, and their writes are
+ * replayed onto the new file before it replaces the old one.
+ *
+ * The file is an export, the snapshot and write-ahead log are the source of
+ * truth. Write errors are logged and repaired by the next rewrite instead of
+ * failing the write. Thread safe.
+ */
+class PropertiesFile {
+    private static Logger logger = Logger.getRootLogger();
+
+    // Commented out bytes allowed on top of as many as there are live ones
+    private static final long MIN_GARBAGE_BYTES = 1024 * 1024;
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    private static final byte[] COMMENT = { '#' };
+
+    /** Entries to rewrite the file from */
+    interface Entries {
+        void forEach(LazySnapshot.Visitor visitor) throws IOException;
+    }
+
+    /** Where a key's live line is */
+    private static class Line {
+        final long offset;
+        final int length;
+
+        Line(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private File file;
+    // Guarded by this
+    private FileChannel channel;
+    private long size = 0;
+    // Key -> its live line, only complete once indexed
+    private Map<String, Line> lines = new HashMap<String, Line>();
+    private long liveBytes = 0;
+    // False until the file is rewritten after opening or a failed write
+    private boolean indexed = false;
+    // Writes since the running rewrite started, null if none is running
+    private List<String[]> pending;
+
+    /**
+     * Open the file for appending. Lines already in it are not indexed, so
+     * it is rewritten on the first rewrite() call.
+     */
+    PropertiesFile(File file) {
+        this.file = file;
+        try {
+            open();
+            if (this.size == 0) {
+                writeFully(header(), 0);
+            }
+        } catch (IOException e) {
+            failed("open", e);
+        }
+    }
+
+    private void open() throws IOException {
+        this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+        this.size = this.channel.size();
+    }
+
+    /** The date comment Properties.store starts a file with */
+    private static ByteBuffer header() {
+        return ByteBuffer.wrap(("#" + new Date() + "\n").getBytes(CHARSET));
+    }
+
+    /**
+     * Write one escaped key or value the way Properties.store does, so
+     * entries can be streamed without building a Properties of the whole map.
+     */
+    private static void writeEscaped(Writer out, String text, boolean isKey) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case ' ':
+                    if (i == 0 || isKey) {
+                        out.write('\\');
+                    }
+                    out.write(' ');
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                case '\\':
+                case '=':
+                case ':':
+                case '#':
+                case '!':
+                    out.write('\\');
+                    out.write(c);
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        out.write(String.format("\\u%04X", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+    }
+
+    /** @return One escaped key=value line, always ASCII */
+    private static byte[] encode(String key, String value) throws IOException {
+        StringWriter out = new StringWriter(key.length() + value.length() + 2);
+        writeEscaped(out, key, true);
+        out.write('=');
+        writeEscaped(out, value, false);
+        out.write('\n');
+        return out.toString().getBytes(CHARSET);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+        this.size = Math.max(this.size, position);
+    }
+
+    /** Give up on the index until the next rewrite */
+    private void failed(String action, IOException e) {
+        this.indexed = false;
+        logger.error("Failed to " + action + " properties file " + this.file.getName()
+                + ", it is rewritten in the background", e);
+    }
+
+    /** Append the key's new line and comment out its old one */
+    synchronized void put(String key, String value) {
+        if (this.pending != null) {
+            this.pending.add(new String[] { key, value });
+        }
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            append(key, value);
+        } catch (IOException e) {
+            failed("append to", e);
+        }
+    }
+
+    /** Comment out the key's line */
+    synchronized void remove(String key) {
+        if (this.pending != null) {
+            this.pending.add(new String[] { key, null });
+        }
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            comment(key);
+        } catch (IOException e) {
+            failed("update", e);
+        }
+    }
+
+    /** Drop every line */
+    synchronized void clear() {
+        if (this.pending != null) {
+            this.pending.add(new String[] { null, null });
+        }
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            truncate();
+        } catch (IOException e) {
+            failed("clear", e);
+        }
+    }
+
+    private void append(String key, String value) throws IOException {
+        comment(key);
+        byte[] line = encode(key, value);
+        long offset = this.size;
+        writeFully(ByteBuffer.wrap(line), offset);
+        this.lines.put(key, new Line(offset, line.length));
+        this.liveBytes += line.length;
+    }
+
+    private void comment(String key) throws IOException {
+        Line line = this.lines.remove(key);
+        if (line != null) {
+            writeFully(ByteBuffer.wrap(COMMENT), line.offset);
+            this.liveBytes -= line.length;
+        }
+    }
+
+    private void truncate() throws IOException {
+        this.channel.truncate(0);
+        this.size = 0;
+        writeFully(header(), 0);
+        this.lines.clear();
+        this.liveBytes = 0;
+    }
+
+    /**
+     * @return True if the file has not been indexed yet or is mostly
+     *         commented out lines
+     */
+    synchronized boolean needsRewrite() {
+        return !this.indexed || this.size - this.liveBytes > this.liveBytes + MIN_GARBAGE_BYTES;
+    }
+
+    /**
+     * Write the entries to a new file and swap it in. Writes made while the
+     * entries are read are replayed on top, so the entries do not have to be
+     * a consistent view.
+     *
+     * @throws IOException
+     */
+    void rewrite(Entries entries) throws IOException {
+        synchronized (this) {
+            this.pending = new ArrayList<String[]>();
+        }
+        File temp = new File(this.file.getPath() + ".tmp");
+        try {
+            final Map<String, Line> written = new HashMap<String, Line>();
+            final List<Long> shadowed = new ArrayList<Long>();
+            final long[] position = { 0 };
+            FileOutputStream fileStream = new FileOutputStream(temp);
+            final OutputStream out = new BufferedOutputStream(fileStream, 64 * 1024);
+            try {
+                byte[] header = header().array();
+                out.write(header);
+                position[0] = header.length;
+                entries.forEach(new LazySnapshot.Visitor() {
+                    public void visit(String key, String value) throws IOException {
+                        byte[] line = encode(key, value);
+                        Line old = written.put(key, new Line(position[0], line.length));
+                        if (old != null) {
+                            // Read twice as it moved between tiers, the
+                            // later copy is at least as new
+                            shadowed.add(old.offset);
+                        }
+                        out.write(line);
+                        position[0] += line.length;
+                    }
+                });
+                out.flush();
+                fileStream.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!shadowed.isEmpty()) {
+                FileChannel tempChannel = new RandomAccessFile(temp, "rw").getChannel();
+                try {
+                    for (long offset : shadowed) {
+                        tempChannel.write(ByteBuffer.wrap(COMMENT), offset);
+                    }
+                } finally {
+                    tempChannel.close();
+                }
+            }
+
+            synchronized (this) {
+                Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                closeChannel();
+                open();
+                this.lines = written;
+                this.liveBytes = 0;
+                for (Line line : written.values()) {
+                    this.liveBytes += line.length;
+                }
+                for (String[] write : this.pending) {
+                    if (write[0] == null) {
+                        truncate();
+                    } else if (write[1] == null) {
+                        comment(write[0]);
+                    } else {
+                        append(write[0], write[1]);
+                    }
+                }
+                this.indexed = true;
+                logger.info("Rewrote properties file " + this.file.getName() + " with " + this.lines.size()
+                        + " entries");
+            }
+        } finally {
+            synchronized (this) {
+                this.pending = null;
+            }
+            temp.delete();
+        }
+    }
+
+    private void closeChannel() {
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            logger.error("Failed to close properties file " + this.file.getName(), e);
+        }
+        this.channel = null;
+    }
+
+    synchronized void close() {
+        closeChannel();
+    }
+}
@@ -0,0 +1,312 @@
+package persistent_storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.xerial.snappy.Snappy;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Portable binary snapshot of the KV pairs of one hash range, used to seed a
+ * new or recovering node at disk speed instead of key by key through
+ * ZooKeeper.
+ *
+ * Layout: [magic:int][flags:byte][begin][end] then blocks of
+ * [rawLength:int][storedLength:int][crc:int][stored bytes], closed by
+ * [0:int][entries:long][magic:int]. begin and end are length-prefixed
+ * BigInteger bytes. A block holds [keyLength:int][key][valueLength:int]
+ * [value] records in ring order, the order of the range iterator it was
+ * written from, and is Snappy-compressed if FLAG_COMPRESSED is set. The CRC32
+ * covers the stored bytes. Files are written to a temp file and renamed into
+ * place, and ingest() verifies the whole file before applying any of it.
+ */
+public class RangeSnapshotFile {
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int MAGIC = 0x52534e31; // "RSN1"
+    private static final byte FLAG_COMPRESSED = 0x01;
+    // Raw bytes per block, also the unit of decompression
+    private static final int BLOCK_BYTES = 256 * 1024;
+    // Bytes of KV pairs applied per storage batch on ingest
+    private static final int INGEST_BATCH_BYTES = 4 * 1024 * 1024;
+
+    /** Receives the KV pairs of a snapshot, one block at a time */
+    private interface BlockVisitor {
+        void visit(Map<String, String> block) throws IOException;
+    }
+
+    /** Writes the KV pairs of an ingested snapshot, one batch at a time */
+    public interface BatchWriter {
+        boolean write(Map<String, String> batch);
+    }
+
+    private File file;
+    private BigInteger begin;
+    private BigInteger end;
+    private boolean compressed;
+    private long entries;
+
+    private RangeSnapshotFile(File file, BigInteger begin, BigInteger end, boolean compressed, long entries) {
+        this.file = file;
+        this.begin = begin;
+        this.end = end;
+        this.compressed = compressed;
+        this.entries = entries;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public BigInteger getBegin() {
+        return this.begin;
+    }
+
+    public BigInteger getEnd() {
+        return this.end;
+    }
+
+    public boolean isCompressed() {
+        return this.compressed;
+    }
+
+    public long getEntries() {
+        return this.entries;
+    }
+
+    private static void writeBigInteger(DataOutputStream out, BigInteger value) throws IOException {
+        byte[] bytes = value.toByteArray();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static BigInteger readBigInteger(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > 64) {
+            throw new IOException("Bad range bound length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new BigInteger(bytes);
+    }
+
+    private static void writeBlock(DataOutputStream out, ByteArrayOutputStream block, boolean compress)
+            throws IOException {
+        byte[] raw = block.toByteArray();
+        byte[] stored = compress ? Snappy.compress(raw) : raw;
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+        out.writeInt(raw.length);
+        out.writeInt(stored.length);
+        out.writeInt((int) crc.getValue());
+        out.write(stored);
+        block.reset();
+    }
+
+    /**
+     * Write the KV pairs of a hash range to a snapshot file.
+     *
+     * @param file     File to create or replace
+     * @param entries  KV pairs of the range, e.g. from a storage snapshot
+     * @param begin    Beginning of the range
+     * @param end      End of the range
+     * @param compress Snappy-compress the blocks
+     * @return The written snapshot
+     * @throws IOException
+     */
+    public static RangeSnapshotFile write(File file, Iterator<Map.Entry<String, String>> entries, BigInteger begin,
+            BigInteger end, boolean compress) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 256 * 1024));
+        long count = 0;
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(compress ? FLAG_COMPRESSED : 0);
+            writeBigInteger(out, begin);
+            writeBigInteger(out, end);
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + 1024);
+            DataOutputStream records = new DataOutputStream(block);
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                records.writeInt(key.length);
+                records.write(key);
+                records.writeInt(value.length);
+                records.write(value);
+                count++;
+                if (block.size() >= BLOCK_BYTES) {
+                    writeBlock(out, block, compress);
+                }
+            }
+            if (block.size() > 0) {
+                writeBlock(out, block, compress);
+            }
+            out.writeInt(0);
+            out.writeLong(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return new RangeSnapshotFile(file, begin, end, compress, count);
+    }
+
+    /**
+     * Walk every block of a snapshot, checking checksums and counts.
+     *
+     * @param file    Snapshot file
+     * @param visitor Receives the decoded blocks, or null to only verify
+     * @return The snapshot
+     * @throws IOException If the file is truncated or corrupt
+     */
+    private static RangeSnapshotFile scan(File file, BlockVisitor visitor) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256 * 1024));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Bad snapshot magic: " + file.getName());
+            }
+            boolean compressed = (in.readByte() & FLAG_COMPRESSED) != 0;
+            BigInteger begin = readBigInteger(in);
+            BigInteger end = readBigInteger(in);
+
+            long count = 0;
+            int rawLength;
+            while ((rawLength = in.readInt()) != 0) {
+                int storedLength = in.readInt();
+                int expectedCrc = in.readInt();
+                if (rawLength < 0 || storedLength <= 0 || storedLength > 2 * BLOCK_BYTES + 1024 * 1024) {
+                    throw new IOException("Bad block length in snapshot " + file.getName());
+                }
+                byte[] stored = new byte[storedLength];
+                in.readFully(stored);
+                CRC32 crc = new CRC32();
+                crc.update(stored);
+                if ((int) crc.getValue() != expectedCrc) {
+                    throw new IOException("Block checksum mismatch in snapshot " + file.getName());
+                }
+                byte[] raw = compressed ? Snappy.uncompress(stored) : stored;
+                if (raw.length != rawLength) {
+                    throw new IOException("Bad block size in snapshot " + file.getName());
+                }
+
+                Map<String, String> block = visitor == null ? null : new HashMap<String, String>();
+                DataInputStream records = new DataInputStream(new ByteArrayInputStream(raw));
+                int position = 0;
+                while (position < raw.length) {
+                    byte[] key = new byte[records.readInt()];
+                    records.readFully(key);
+                    byte[] value = new byte[records.readInt()];
+                    records.readFully(value);
+                    position += 8 + key.length + value.length;
+                    count++;
+                    if (block != null) {
+                        block.put(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+                    }
+                }
+                if (block != null) {
+                    visitor.visit(block);
+                }
+            }
+            if (in.readLong() != count || in.readInt() != MAGIC) {
+                throw new IOException("Bad snapshot footer: " + file.getName());
+            }
+            return new RangeSnapshotFile(file, begin, end, compressed, count);
+        } catch (EOFException e) {
+            throw new IOException("Truncated snapshot: " + file.getName(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Check a snapshot without loading it.
+     *
+     * @param file Snapshot file
+     * @return The snapshot
+     * @throws IOException If the file is truncated or corrupt
+     */
+    public static RangeSnapshotFile verify(File file) throws IOException {
+        return scan(file, null);
+    }
+
+    /**
+     * Verify a snapshot, then write all of its KV pairs to storage in large
+     * batches. Nothing is written if the file is damaged.
+     *
+     * @param file    Snapshot file
+     * @param storage Storage to load into
+     * @return The snapshot
+     * @throws IOException If the file is damaged or storage rejects a batch
+     */
+    public static RangeSnapshotFile ingest(File file, final IPersistentStorage storage) throws IOException {
+        return ingest(file, new BatchWriter() {
+            public boolean write(Map<String, String> batch) {
+                return storage.applyBatch(batch);
+            }
+        });
+    }
+
+    /**
+     * Verify a snapshot, then hand all of its KV pairs to the writer in large
+     * batches. Nothing is written if the file is damaged.
+     *
+     * @param file   Snapshot file
+     * @param writer Writes each batch
+     * @return The snapshot
+     * @throws IOException If the file is damaged or the writer rejects a batch
+     */
+    public static RangeSnapshotFile ingest(File file, final BatchWriter writer) throws IOException {
+        long start = System.currentTimeMillis();
+        verify(file);
+        final Map<String, String> batch = new HashMap<String, String>();
+        final int[] batchBytes = { 0 };
+        RangeSnapshotFile snapshot = scan(file, new BlockVisitor() {
+            public void visit(Map<String, String> block) throws IOException {
+                batch.putAll(block);
+                batchBytes[0] += BLOCK_BYTES;
+                if (batchBytes[0] >= INGEST_BATCH_BYTES) {
+                    apply(writer, batch);
+                    batchBytes[0] = 0;
+                }
+            }
+        });
+        apply(writer, batch);
+        logger.info("Ingested " + snapshot.getEntries() + " entries from snapshot " + file.getName() + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return snapshot;
+    }
+
+    private static void apply(BatchWriter writer, Map<String, String> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (!writer.write(batch)) {
+            throw new IOException("Storage rejected a batch of " + batch.size() + " snapshot entries");
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,59 @@
+package persistent_storage;
+
+/**
+ * Token bucket limiting background I/O to a byte rate.
+ *
+ * Callers acquire the bytes they are about to read or write and are put to
+ * sleep once they run ahead of the budget. At most one second of unused
+ * budget is saved up, so an idle limiter cannot release a large burst.
+ */
+public class RateLimiter {
+    private volatile double bytesPerSecond;
+    private double available;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond Budget, 0 or less for no limit
+     */
+    public RateLimiter(double bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param megabytesPerSecond Budget in MB/s, 0 or less for no limit
+     * @return Limiter for that rate
+     */
+    public static RateLimiter ofMegabytes(double megabytesPerSecond) {
+        return new RateLimiter(megabytesPerSecond * 1024 * 1024);
+    }
+
+    public double getBytesPerSecond() {
+        return this.bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(double bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Take bytes from the budget, sleeping until they are available.
+     *
+     * @param bytes Bytes about to be read or written
+     * @throws InterruptedException
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        double rate = bytesPerSecond;
+        if (rate <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        available = Math.min(rate, available + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+        available -= bytes;
+        if (available < 0) {
+            // Sleep off the debt, the refill on the next call accounts for it
+            long sleepNanos = (long) (-available / rate * 1e9);
+            Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+        }
+    }
+}
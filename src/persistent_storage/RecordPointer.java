@@ -0,0 +1,60 @@
+package persistent_storage;
+
+/**
+ * Location of the latest record for a key inside the segment log.
+ */
+public class RecordPointer {
+    private int segmentId;
+    private long offset;
+    private int length;
+
+    public RecordPointer(int segmentId, long offset, int length) {
+        this.segmentId = segmentId;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int getSegmentId() {
+        return this.segmentId;
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    /** @return Text form "segment:offset:length", as stored in LSM tables */
+    public String encode() {
+        return this.segmentId + ":" + this.offset + ":" + this.length;
+    }
+
+    /**
+     * @param text Output of encode()
+     * @return The pointer
+     * @throws IllegalArgumentException If the text is not a pointer
+     */
+    public static RecordPointer parse(String text) {
+        String[] parts = text.split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Not a record pointer: " + text);
+        }
+        return new RecordPointer(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RecordPointer)) {
+            return false;
+        }
+        RecordPointer pointer = (RecordPointer) other;
+        return segmentId == pointer.segmentId && offset == pointer.offset && length == pointer.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * segmentId + (int) (offset ^ (offset >>> 32))) + length;
+    }
+}
@@ -0,0 +1,29 @@
+package persistent_storage;
+
+import java.math.BigInteger;
+import java.util.Iterator;
+
+/**
+ * Live keys of a storage backend ordered by their MD5 position on the hash
+ * ring. Range bounds follow AbstractPersistentStorage.keyValid: both ends are
+ * exclusive and begin > end wraps around zero. Walks are lazy and weakly
+ * consistent, keys may be added or removed while one is in progress.
+ */
+public interface RingIndex {
+    void add(String key);
+
+    void remove(String key);
+
+    void clear();
+
+    int size();
+
+    // Keys whose hash is reachable within begin/end bounds, in ring order
+    Iterator<String> keysInRange(BigInteger begin, BigInteger end);
+
+    // Keys whose hash is unreachable within begin/end bounds, in ring order
+    Iterator<String> keysOutsideRange(BigInteger begin, BigInteger end);
+
+    // All keys in ring order
+    Iterator<String> allKeys();
+}
@@ -0,0 +1,370 @@
+package persistent_storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable, sorted table of records produced by an LSM memtable flush or a
+ * compaction.
+ *
+ * Layout: [records sorted by key][sparse index][footer]. Records use the
+ * LogRecord format, tombstones included. The sparse index holds the key and
+ * offset of every INDEX_INTERVAL-th record and is loaded into memory when
+ * the table is opened, so a lookup reads at most one index interval.
+ * Footer: [indexOffset:long][indexCount:int][recordCount:int][magic:int]
+ *
+ * Each table has a Bloom filter persisted next to it, so lookups for keys the
+ * table does not hold are answered from memory.
+ */
+public class SSTable {
+    public static final String TABLE_INFIX = ".sst.";
+    public static final String BLOOM_SUFFIX = ".bloom";
+    private static final int MAGIC = 0x53535431; // "SST1"
+    private static final int FOOTER_SIZE = 20;
+    private static final int INDEX_INTERVAL = 16;
+
+    private int id;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    // Sparse index: every INDEX_INTERVAL-th key and its offset
+    private String[] indexKeys;
+    private long[] indexOffsets;
+    // End of the record section
+    private long dataEnd;
+    private int recordCount;
+
+    private BloomFilter bloom;
+    // Lookups answered by the Bloom filter without a disk read
+    private AtomicLong bloomNegatives = new AtomicLong();
+
+    /**
+     * Open an existing table and load its sparse index.
+     *
+     * @param file              Table file on disk
+     * @param id                Sequence number of the table
+     * @param falsePositiveRate Bloom filter target, used only if the filter
+     *                          has to be rebuilt
+     * @throws IOException If the file is not a complete table
+     */
+    public SSTable(File file, int id, double falsePositiveRate) throws IOException {
+        this.file = file;
+        this.id = id;
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+
+        long size = channel.size();
+        if (size < FOOTER_SIZE) {
+            close();
+            throw new IOException("Table too small: " + file.getName());
+        }
+        ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+        this.dataEnd = footer.getLong();
+        int indexCount = footer.getInt();
+        this.recordCount = footer.getInt();
+        if (footer.getInt() != MAGIC) {
+            close();
+            throw new IOException("Bad table footer: " + file.getName());
+        }
+
+        ByteBuffer index = read(dataEnd, (int) (size - FOOTER_SIZE - dataEnd));
+        this.indexKeys = new String[indexCount];
+        this.indexOffsets = new long[indexCount];
+        for (int i = 0; i < indexCount; i++) {
+            byte[] key = new byte[index.getInt()];
+            index.get(key);
+            indexKeys[i] = new String(key, StandardCharsets.UTF_8);
+            indexOffsets[i] = index.getLong();
+        }
+
+        File bloomFile = bloomFile(file);
+        try {
+            this.bloom = BloomFilter.read(bloomFile);
+        } catch (IOException e) {
+            // Missing or damaged filter, rebuild it from the keys
+            BloomFilter rebuilt = new BloomFilter(recordCount, falsePositiveRate);
+            Iterator<LogRecord> records = iterator();
+            while (records.hasNext()) {
+                rebuilt.add(records.next().getKey());
+            }
+            rebuilt.write(bloomFile);
+            this.bloom = rebuilt;
+        }
+    }
+
+    /**
+     * @param tableFile Table file
+     * @return File holding the table's Bloom filter
+     */
+    public static File bloomFile(File tableFile) {
+        String name = tableFile.getName();
+        if (name.endsWith(LogSegment.SEGMENT_SUFFIX)) {
+            name = name.substring(0, name.length() - LogSegment.SEGMENT_SUFFIX.length());
+        }
+        return new File(tableFile.getParentFile(), name + BLOOM_SUFFIX);
+    }
+
+    /**
+     * Write a new table from records sorted by key.
+     *
+     * @param file              File to create
+     * @param id                Sequence number of the table
+     * @param records           Records in ascending key order, one per key
+     * @param falsePositiveRate Bloom filter target false positive rate
+     * @return The opened table
+     * @throws IOException
+     */
+    public static SSTable write(File file, int id, Iterator<LogRecord> records, double falsePositiveRate)
+            throws IOException {
+        List<byte[]> indexKeys = new ArrayList<byte[]>();
+        List<Long> indexOffsets = new ArrayList<Long>();
+        long[] keyHashes = new long[1024];
+        long offset = 0;
+        int count = 0;
+
+        FileOutputStream fileStream = new FileOutputStream(file);
+        BufferedOutputStream out = new BufferedOutputStream(fileStream, 64 * 1024);
+        try {
+            while (records.hasNext()) {
+                LogRecord record = records.next();
+                if (count % INDEX_INTERVAL == 0) {
+                    indexKeys.add(record.getKey().getBytes(StandardCharsets.UTF_8));
+                    indexOffsets.add(offset);
+                }
+                if (count == keyHashes.length) {
+                    keyHashes = Arrays.copyOf(keyHashes, count * 2);
+                }
+                keyHashes[count] = BloomFilter.hash(record.getKey());
+                ByteBuffer encoded = LogRecord.encode(record);
+                out.write(encoded.array(), 0, encoded.limit());
+                offset += encoded.limit();
+                count++;
+            }
+
+            ByteBuffer entry = ByteBuffer.allocate(4 + LogRecord.MAX_KEY_BYTES + 8);
+            for (int i = 0; i < indexKeys.size(); i++) {
+                entry.clear();
+                entry.putInt(indexKeys.get(i).length);
+                entry.put(indexKeys.get(i));
+                entry.putLong(indexOffsets.get(i));
+                out.write(entry.array(), 0, entry.position());
+            }
+
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putLong(offset);
+            footer.putInt(indexKeys.size());
+            footer.putInt(count);
+            footer.putInt(MAGIC);
+            out.write(footer.array());
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        BloomFilter bloom = new BloomFilter(count, falsePositiveRate);
+        for (int i = 0; i < count; i++) {
+            bloom.addHash(keyHashes[i]);
+        }
+        bloom.write(bloomFile(file));
+        return new SSTable(file, id, falsePositiveRate);
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public int getRecordCount() {
+        return this.recordCount;
+    }
+
+    public long sizeBytes() {
+        return this.file.length();
+    }
+
+    public BloomFilter getBloomFilter() {
+        return this.bloom;
+    }
+
+    /** @return Number of lookups the Bloom filter answered without a disk read */
+    public long getBloomNegatives() {
+        return this.bloomNegatives.get();
+    }
+
+    /**
+     * Look up the record for a key.
+     *
+     * @param key Key to search for
+     * @return The record (possibly a tombstone), or null if the table does not
+     *         contain the key
+     * @throws IOException
+     */
+    public LogRecord get(String key) throws IOException {
+        if (!bloom.mightContain(key)) {
+            bloomNegatives.incrementAndGet();
+            return null;
+        }
+        int slot = floorIndex(key);
+        if (slot < 0) {
+            return null;
+        }
+        long position = indexOffsets[slot];
+        long end = slot + 1 < indexOffsets.length ? indexOffsets[slot + 1] : dataEnd;
+        byte[] target = key.getBytes(StandardCharsets.UTF_8);
+
+        while (position < end) {
+            ByteBuffer header = read(position, LogRecord.HEADER_SIZE);
+            int length = LogRecord.recordLength(header);
+            if (length < 0) {
+                throw new IOException("Corrupt record in table " + file.getName());
+            }
+            int keyLength = header.getInt(5);
+            ByteBuffer candidate = read(position + LogRecord.HEADER_SIZE, keyLength);
+            int cmp = compare(candidate, target);
+            if (cmp == 0) {
+                return LogRecord.decode(read(position, length));
+            } else if (cmp > 0) {
+                // Records are sorted, so the key is not here
+                return null;
+            }
+            position += length;
+        }
+        return null;
+    }
+
+    /** Binary search for the last index entry whose key is <= key */
+    private int floorIndex(String key) {
+        int low = 0;
+        int high = indexKeys.length - 1;
+        int result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (indexKeys[mid].compareTo(key) <= 0) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /** Compare keys the same way String.compareTo orders them */
+    private static int compare(ByteBuffer candidate, byte[] target) {
+        String a = new String(candidate.array(), 0, candidate.limit(), StandardCharsets.UTF_8);
+        String b = new String(target, StandardCharsets.UTF_8);
+        return a.compareTo(b);
+    }
+
+    /**
+     * Sequentially scan every record in key order.
+     *
+     * @return Iterator over the table's records; reads from disk lazily
+     * @throws IOException
+     */
+    public Iterator<LogRecord> iterator() throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        return new Iterator<LogRecord>() {
+            private long position = 0;
+            private LogRecord next = advance();
+
+            private LogRecord advance() {
+                if (position >= dataEnd) {
+                    closeQuietly();
+                    return null;
+                }
+                try {
+                    byte[] header = new byte[LogRecord.HEADER_SIZE];
+                    in.readFully(header);
+                    int length = LogRecord.recordLength(ByteBuffer.wrap(header));
+                    if (length < 0) {
+                        throw new IOException("Corrupt record in table " + file.getName());
+                    }
+                    byte[] record = new byte[length];
+                    System.arraycopy(header, 0, record, 0, header.length);
+                    in.readFully(record, header.length, length - header.length);
+                    position += length;
+                    return LogRecord.decode(ByteBuffer.wrap(record));
+                } catch (EOFException e) {
+                    closeQuietly();
+                    throw new IllegalStateException("Truncated table " + file.getName(), e);
+                } catch (IOException e) {
+                    closeQuietly();
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            private void closeQuietly() {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to read anyway
+                }
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public LogRecord next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                LogRecord current = next;
+                next = advance();
+                return current;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of table " + file.getName());
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        raf.close();
+    }
+
+    /** Close and remove the table and its Bloom filter from disk */
+    public void delete() throws IOException {
+        close();
+        bloomFile(file).delete();
+        if (!file.delete()) {
+            throw new IOException("Failed to delete table " + file.getName());
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package persistent_storage;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+public final class StorageFactory {
+    private static Logger logger = Logger.getRootLogger();
+
+    // Name suffixes of the backends holding references and deduplicated values
+    private static final String KEY_SUFFIX = ".keys";
+    private static final String BLOB_SUFFIX = ".blobs";
+    // Values moved per batch when turning deduplication on over plain values
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+
+    /**
+     * Open the storage backend of a server.
+     *
+     * @param type          Backend to use
+     * @param serverName    Name of the server, used to name its files
+     * @param dataDirectory Directory holding the storage files
+     * @param databaseName  Properties file suffix for the PROPERTIES backend
+     * @return Storage backend, with any existing data loaded
+     */
+    public static IPersistentStorage createStorage(StorageType type, String serverName, String dataDirectory,
+            String databaseName) {
+        logger.info("Opening " + type + " storage for " + serverName);
+        long startTime = System.currentTimeMillis();
+        IPersistentStorage storage = openStorage(type, serverName, dataDirectory, databaseName);
+        // Store identical values once, e.g. -Dstorage.dedup=true -Dstorage.dedupMinValueBytes=64.
+        // References and values then live in two backends of the same type, the
+        // server's own backend only holds values written before dedup was on
+        if (Boolean.parseBoolean(System.getProperty("storage.dedup", "false"))) {
+            int minValueBytes = Integer.parseInt(System.getProperty("storage.dedupMinValueBytes",
+                    String.valueOf(DedupStorage.DEFAULT_MIN_VALUE_BYTES)));
+            IPersistentStorage keys = openStorage(type, serverName + KEY_SUFFIX, dataDirectory, databaseName);
+            IPersistentStorage blobs = openStorage(type, serverName + BLOB_SUFFIX, dataDirectory, databaseName);
+            DedupStorage dedup = new DedupStorage(keys, blobs, minValueBytes);
+            migrateToDedup(storage, dedup);
+            storage = dedup;
+        }
+        // Startup time grows with the data the backend has to load or replay
+        logger.info("Opened " + type + " storage for " + serverName + " in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        return storage;
+    }
+
+    /**
+     * Move the plain values of a server's own backend into its deduplicated
+     * storage, then empty and close the plain backend. A crash part way only
+     * means the values are moved again on the next start.
+     *
+     * @throws IllegalStateException If the deduplicated storage rejects a
+     *                               batch, the plain values are then kept
+     */
+    private static void migrateToDedup(IPersistentStorage plain, DedupStorage dedup) {
+        Iterator<Map.Entry<String, String>> entries = plain.entryIterator();
+        int migrated = 0;
+        Map<String, String> batch = new HashMap<String, String>();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            batch.put(entry.getKey(), entry.getValue());
+            if (batch.size() >= MIGRATION_BATCH_SIZE) {
+                migrated += moveBatch(plain, dedup, batch);
+            }
+        }
+        migrated += moveBatch(plain, dedup, batch);
+        if (migrated > 0) {
+            plain.wipeStorage();
+            logger.info("Moved " + migrated + " plain values into deduplicated storage");
+        }
+        plain.close();
+    }
+
+    /** @return Number of values moved, the batch is emptied */
+    private static int moveBatch(IPersistentStorage plain, DedupStorage dedup, Map<String, String> batch) {
+        if (!batch.isEmpty() && !dedup.applyBatch(batch)) {
+            plain.close();
+            throw new IllegalStateException("Failed to move plain values into deduplicated storage");
+        }
+        int moved = batch.size();
+        batch.clear();
+        return moved;
+    }
+
+    private static IPersistentStorage openStorage(StorageType type, String serverName, String dataDirectory,
+            String databaseName) {
+        // Write-ahead log durability can be traded for throughput per deployment,
+        // e.g. -Dstorage.durability=FSYNC_BATCH -Dstorage.syncIntervalMs=200
+        DurabilityMode durability = DurabilityMode.valueOf(System.getProperty("storage.durability",
+                WriteAheadLog.DEFAULT_DURABILITY.name()).toUpperCase());
+        long syncIntervalMs = Long.parseLong(System.getProperty("storage.syncIntervalMs",
+                String.valueOf(WriteAheadLog.DEFAULT_SYNC_INTERVAL_MS)));
+        // Snappy-compress values of at least this many bytes in log records,
+        // e.g. -Dstorage.compressionThreshold=1024 (0, the default, turns it off)
+        LogRecord.setCompressionThreshold(Integer.parseInt(System.getProperty("storage.compressionThreshold",
+                String.valueOf(LogRecord.getCompressionThreshold()))));
+        switch (type) {
+            case LOG:
+                // Compact sealed segments once this share is garbage, within an
+                // I/O budget, e.g. -Dstorage.compactionMinGarbageRatio=0.3 -Dstorage.compactionMBps=8
+                double minGarbageRatio = Double.parseDouble(System.getProperty("storage.compactionMinGarbageRatio",
+                        String.valueOf(CompactionScheduler.DEFAULT_MIN_GARBAGE_RATIO)));
+                double compactionMBps = Double.parseDouble(System.getProperty("storage.compactionMBps",
+                        String.valueOf(CompactionScheduler.DEFAULT_MB_PER_SECOND)));
+                return new LogStructuredStorage(serverName, dataDirectory, LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES,
+                        minGarbageRatio, compactionMBps);
+            case LSM:
+                // Bloom filter accuracy can be tuned per deployment, e.g. -Dstorage.bloomFalsePositiveRate=0.001
+                double bloomFalsePositiveRate = Double.parseDouble(System.getProperty("storage.bloomFalsePositiveRate",
+                        String.valueOf(LSMStorage.DEFAULT_BLOOM_FALSE_POSITIVE_RATE)));
+                // Keep values of at least this many bytes out of the tree, e.g.
+                // -Dstorage.valueSeparationThreshold=4096 (0, the default, turns it off)
+                int valueSeparationThreshold = Integer.parseInt(System.getProperty(
+                        "storage.valueSeparationThreshold", String.valueOf(LSMStorage.DEFAULT_VALUE_SEPARATION_THRESHOLD)));
+                return new LSMStorage(serverName, dataDirectory, LSMStorage.DEFAULT_MEMTABLE_BYTES,
+                        LSMStorage.DEFAULT_COMPACTION_THRESHOLD, bloomFalsePositiveRate, durability, syncIntervalMs,
+                        valueSeparationThreshold, ValueLog.DEFAULT_MAX_SEGMENT_BYTES);
+            case PROPERTIES:
+            default:
+                // Move keys idle for this long to compressed archive segments,
+                // e.g. -Dstorage.archiveAfterMs=86400000 (0, the default, keeps all keys hot)
+                long archiveAfterMs = Long.parseLong(System.getProperty("storage.archiveAfterMs",
+                        String.valueOf(PersistentStorage.DEFAULT_ARCHIVE_AFTER_MS)));
+                // Check if file directory exists
+                if (!new File(dataDirectory).exists() && archiveAfterMs == 0) {
+                    return new PersistentStorage(serverName, durability, syncIntervalMs);
+                }
+                // if exists, load into persistentStorage. Restarts with a lot of data can
+                // skip loading values until they are read, e.g. -Dstorage.lazyLoad=true
+                // -Dstorage.valueCacheSize=10000
+                boolean lazyLoad = Boolean.parseBoolean(System.getProperty("storage.lazyLoad", "false"));
+                int valueCacheSize = Integer.parseInt(System.getProperty("storage.valueCacheSize",
+                        String.valueOf(PersistentStorage.DEFAULT_VALUE_CACHE_SIZE)));
+                return new PersistentStorage(serverName, databaseName, durability, syncIntervalMs, lazyLoad,
+                        valueCacheSize, archiveAfterMs);
+        }
+    }
+}
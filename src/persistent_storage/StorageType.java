@@ -0,0 +1,10 @@
+package persistent_storage;
+
+/**
+ * Storage backends a KVServer can be started with.
+ */
+public enum StorageType {
+    PROPERTIES, // Map checkpointed to a .properties file, writes go to a write-ahead log
+    LOG, // Append-only segment log, only the key index on the heap, values memory-mapped, compacted in the background
+    LSM // Memtable plus sorted SSTables with background compaction, large values optionally in a value log
+}
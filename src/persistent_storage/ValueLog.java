@@ -0,0 +1,237 @@
+package persistent_storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of large values for LSM key-value separation (WiscKey).
+ *
+ * The LSM keeps only a RecordPointer for each large value, so flushes and
+ * compactions move pointers instead of values. Values are appended through a
+ * group-commit WriteAheadLog on the active segment; full segments are sealed
+ * and memory-mapped for reads. Records keep their key, so garbage collection
+ * can walk the oldest segments, ask the LSM which records are still live,
+ * copy those to the head and delete the segment.
+ */
+public class ValueLog {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final String VLOG_INFIX = ".vlog.";
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private String directory;
+    private String serverName;
+    private long maxSegmentBytes;
+    private DurabilityMode durability;
+    private long syncIntervalMs;
+
+    // All segments by id, oldest first
+    private TreeMap<Integer, LogSegment> segments = new TreeMap<Integer, LogSegment>();
+    // Log on the newest segment, created on the first append
+    private WriteAheadLog active;
+
+    /**
+     * Open the value log of a server. Existing segments are sealed and new
+     * values always go to a new segment, so a torn tail left by a crash is
+     * never appended to.
+     *
+     * @param serverName      Name of the server, used as the file prefix
+     * @param directory       Directory holding the segment files
+     * @param maxSegmentBytes Size at which the active segment is rolled over
+     * @param durability      When appended values are forced to disk
+     * @param syncIntervalMs  fsync interval for FSYNC_PERIODIC
+     * @throws IOException
+     */
+    public ValueLog(String serverName, String directory, long maxSegmentBytes, DurabilityMode durability,
+            long syncIntervalMs) throws IOException {
+        this.serverName = serverName;
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.durability = durability;
+        this.syncIntervalMs = syncIntervalMs;
+
+        File[] files = new File(directory).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                int id = LogSegment.parseId(serverName, VLOG_INFIX, file.getName());
+                if (id >= 0) {
+                    LogSegment segment = new LogSegment(file, id);
+                    segment.seal();
+                    segments.put(id, segment);
+                }
+            }
+        }
+        if (!segments.isEmpty()) {
+            logger.info("Opened value log with " + segments.size() + " segment(s)");
+        }
+    }
+
+    /** Seal the active segment and start a new, empty one */
+    private void roll() throws IOException {
+        if (active != null) {
+            LogSegment full = active.getSegment();
+            // Closing drains the queue, so every pending append is written
+            active.close();
+            LogSegment sealed = new LogSegment(full.getFile(), full.getId());
+            sealed.seal();
+            segments.put(sealed.getId(), sealed);
+        }
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        LogSegment segment = new LogSegment(new File(directory, LogSegment.fileName(serverName, VLOG_INFIX, id)), id);
+        segments.put(id, segment);
+        active = new WriteAheadLog(segment, durability, syncIntervalMs);
+        logger.info("Started new value log segment: " + segment.getFile().getName());
+    }
+
+    /**
+     * Append a value and wait until it is durable.
+     *
+     * @param key   Key the value belongs to
+     * @param value Value to store
+     * @return Location of the value
+     * @throws IOException
+     */
+    public RecordPointer append(String key, String value) throws IOException {
+        ByteBuffer record = LogRecord.encode(key, value);
+        int length = record.remaining();
+        WriteAheadLog.Commit commit;
+        int segmentId;
+        synchronized (this) {
+            if (active == null || active.size() >= maxSegmentBytes) {
+                roll();
+            }
+            commit = active.submit(record);
+            segmentId = active.getSegment().getId();
+        }
+        // Concurrent appends share one write and fsync
+        long offset = commit.await();
+        return new RecordPointer(segmentId, offset, length);
+    }
+
+    /**
+     * Append several values and wait once for all of them.
+     *
+     * @param keys   Keys the values belong to
+     * @param values Values to store, same order as keys
+     * @return Location of each value, same order as keys
+     * @throws IOException
+     */
+    public List<RecordPointer> appendAll(List<String> keys, List<String> values) throws IOException {
+        List<WriteAheadLog.Commit> commits = new ArrayList<WriteAheadLog.Commit>(keys.size());
+        List<Integer> segmentIds = new ArrayList<Integer>(keys.size());
+        List<Integer> lengths = new ArrayList<Integer>(keys.size());
+        synchronized (this) {
+            for (int i = 0; i < keys.size(); i++) {
+                if (active == null || active.size() >= maxSegmentBytes) {
+                    roll();
+                }
+                ByteBuffer record = LogRecord.encode(keys.get(i), values.get(i));
+                lengths.add(record.remaining());
+                commits.add(active.submit(record));
+                segmentIds.add(active.getSegment().getId());
+            }
+        }
+        List<RecordPointer> pointers = new ArrayList<RecordPointer>(keys.size());
+        for (int i = 0; i < commits.size(); i++) {
+            pointers.add(new RecordPointer(segmentIds.get(i), commits.get(i).await(), lengths.get(i)));
+        }
+        return pointers;
+    }
+
+    /**
+     * Read the value a pointer refers to.
+     *
+     * @param pointer Location returned by append()
+     * @return The value
+     * @throws IOException If the segment is gone or the record is damaged
+     */
+    public String read(RecordPointer pointer) throws IOException {
+        try {
+            return readFrom(segment(pointer.getSegmentId()), pointer);
+        } catch (ClosedChannelException e) {
+            // The segment was sealed and reopened while reading, try the new one
+            return readFrom(segment(pointer.getSegmentId()), pointer);
+        }
+    }
+
+    private synchronized LogSegment segment(int id) throws IOException {
+        LogSegment segment = segments.get(id);
+        if (segment == null) {
+            throw new IOException("Missing value log segment " + id);
+        }
+        return segment;
+    }
+
+    private static String readFrom(LogSegment segment, RecordPointer pointer) throws IOException {
+        return LogRecord.decode(segment.read(pointer.getOffset(), pointer.getLength())).getValue();
+    }
+
+    /** @return Sealed segments, oldest first; the active one is never included */
+    public synchronized List<LogSegment> sealedSegments() {
+        List<LogSegment> sealed = new ArrayList<LogSegment>(segments.values());
+        if (active != null) {
+            sealed.remove(active.getSegment());
+        }
+        return sealed;
+    }
+
+    /** @return Total size of every segment in bytes */
+    public synchronized long sizeBytes() {
+        long bytes = 0;
+        for (LogSegment segment : segments.values()) {
+            bytes += segment.size();
+        }
+        return bytes;
+    }
+
+    /** Force every appended value to disk */
+    public synchronized void sync() throws IOException {
+        if (active != null) {
+            active.sync();
+        }
+    }
+
+    /**
+     * Delete a sealed segment once nothing points into it anymore.
+     *
+     * @param segment Segment returned by sealedSegments()
+     * @throws IOException
+     */
+    public synchronized void remove(LogSegment segment) throws IOException {
+        segments.remove(segment.getId());
+        segment.delete();
+        logger.info("Removed value log segment " + segment.getFile().getName());
+    }
+
+    /** Delete every segment */
+    public synchronized void wipe() throws IOException {
+        if (active != null) {
+            segments.remove(active.getSegment().getId());
+            active.delete();
+            active = null;
+        }
+        for (LogSegment segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+    }
+
+    public synchronized void close() throws IOException {
+        if (active != null) {
+            segments.remove(active.getSegment().getId());
+            active.close();
+            active = null;
+        }
+        for (LogSegment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+    }
+}
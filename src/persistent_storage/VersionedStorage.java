@@ -0,0 +1,673 @@
+package persistent_storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Multi-version concurrency control over any storage backend.
+ *
+ * Every write gets the next version number. openSnapshot() pins the current
+ * version, and while any snapshot is open a write first records the value it
+ * replaces (its pre-image) under the write's version. A snapshot reads a key
+ * as the oldest pre-image written after its version, or as the current
+ * value if the key has not changed since. Replication and data transfers
+ * stream a snapshot, so they see one consistent state while client GETs and
+ * PUTs keep going against the backend.
+ *
+ * No history is kept while no snapshot is open, and pre-images are dropped
+ * once every snapshot that could read them is released. Writes to the same
+ * key are ordered by a lock stripe; opening or releasing a snapshot waits for
+ * the writes in flight. A batch takes its version and pre-images under the
+ * exclusive lock but is written to the backend after releasing it, so its
+ * fsync does not stall other writers; writes to the batch's own keys and new
+ * snapshots wait for it instead.
+ */
+public class VersionedStorage implements IPersistentStorage {
+    private static Logger logger = Logger.getRootLogger();
+
+    // Number of write locks, a power of two
+    private static final int WRITE_STRIPES = 64;
+
+    /** Value of a key before the write with the given version */
+    private static class PreImage {
+        private long version;
+        // Null if the key did not exist
+        private String value;
+
+        PreImage(long version, String value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+
+    private IPersistentStorage storage;
+    private AtomicLong version = new AtomicLong();
+    private final Object[] writeStripes = new Object[WRITE_STRIPES];
+    {
+        for (int i = 0; i < WRITE_STRIPES; i++) {
+            writeStripes[i] = new Object();
+        }
+    }
+    // Shared by writes, exclusive for batches and to open or release snapshots
+    private final ReentrantReadWriteLock versionLock = new ReentrantReadWriteLock();
+    // Version of each open snapshot -> number of snapshots open at it
+    private TreeMap<Long, Integer> openVersions = new TreeMap<Long, Integer>();
+    private volatile boolean recording = false;
+    // Key -> pre-images, oldest version first
+    private ConcurrentHashMap<String, List<PreImage>> history = new ConcurrentHashMap<String, List<PreImage>>();
+    // Keys written or deleted since beginImport(), null if no import is expected
+    private volatile Set<String> importTouched;
+    // Key -> latch of the batch still writing it outside the version lock
+    private ConcurrentHashMap<String, CountDownLatch> batchKeys = new ConcurrentHashMap<String, CountDownLatch>();
+
+    /**
+     * @param storage Backend holding the current version of every key
+     */
+    public VersionedStorage(IPersistentStorage storage) {
+        this.storage = storage;
+    }
+
+    /** @return Backend holding the current version of every key */
+    public IPersistentStorage getStorage() {
+        return this.storage;
+    }
+
+    /** @return Version of the latest write */
+    public long getVersion() {
+        return this.version.get();
+    }
+
+    /** @return Number of keys with pre-images kept for open snapshots */
+    public int getHistorySize() {
+        return this.history.size();
+    }
+
+    private Object stripeFor(String key) {
+        int h = key.hashCode();
+        // Spread the high bits, like HashMap does
+        h ^= (h >>> 16);
+        return this.writeStripes[h & (WRITE_STRIPES - 1)];
+    }
+
+    /** Remember that a write reached the key before an expected import */
+    private void touch(String key) {
+        Set<String> touched = this.importTouched;
+        if (touched != null) {
+            touched.add(key);
+        }
+    }
+
+    /** Wait until no batch is still writing the key */
+    private void awaitBatch(String key) throws InterruptedException {
+        CountDownLatch pending = batchKeys.get(key);
+        if (pending != null) {
+            pending.await();
+        }
+    }
+
+    /**
+     * Wait until every batch has reached the backend, even if interrupted.
+     * The caller holds the version lock exclusively, so no new batch starts
+     * meanwhile.
+     */
+    private void awaitBatches() {
+        boolean interrupted = false;
+        for (CountDownLatch pending : batchKeys.values()) {
+            while (pending.getCount() > 0) {
+                try {
+                    pending.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Remember the current value of a key before a write replaces it. The
+     * caller holds the key's stripe or the version lock exclusively.
+     */
+    private void recordPreImage(String key, long writeVersion) throws Exception {
+        List<PreImage> preImages = history.get(key);
+        if (preImages == null) {
+            preImages = new ArrayList<PreImage>(1);
+            List<PreImage> existing = history.putIfAbsent(key, preImages);
+            if (existing != null) {
+                preImages = existing;
+            }
+        }
+        String value = storage.get(key);
+        synchronized (preImages) {
+            preImages.add(new PreImage(writeVersion, value));
+        }
+    }
+
+    /**
+     * @return Oldest pre-image written after the given version, or null if
+     *         the key has not changed since
+     */
+    private PreImage preImageAfter(String key, long snapshotVersion) {
+        List<PreImage> preImages = history.get(key);
+        if (preImages == null) {
+            return null;
+        }
+        synchronized (preImages) {
+            for (PreImage preImage : preImages) {
+                if (preImage.version > snapshotVersion) {
+                    return preImage;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean put(String key, String value) throws Exception {
+        versionLock.readLock().lock();
+        try {
+            synchronized (stripeFor(key)) {
+                awaitBatch(key);
+                long writeVersion = version.incrementAndGet();
+                // The pre-image goes in before the write, so a snapshot that
+                // sees the new value also sees what it replaced
+                if (recording) {
+                    recordPreImage(key, writeVersion);
+                }
+                touch(key);
+                return storage.put(key, value);
+            }
+        } finally {
+            versionLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        versionLock.readLock().lock();
+        try {
+            synchronized (stripeFor(key)) {
+                awaitBatch(key);
+                long writeVersion = version.incrementAndGet();
+                if (recording) {
+                    recordPreImage(key, writeVersion);
+                }
+                touch(key);
+                return storage.delete(key);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to delete key: " + key, e);
+            return false;
+        } finally {
+            versionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Apply a batch as a single version. The version and pre-images are
+     * taken under the exclusive lock, the backend write happens after it is
+     * released, unless the caller holds it.
+     *
+     * @param batch Keys to write, a null or empty value deletes the key
+     */
+    @Override
+    public boolean applyBatch(Map<String, String> batch) {
+        CountDownLatch written = new CountDownLatch(1);
+        try {
+            while (true) {
+                CountDownLatch earlier = null;
+                versionLock.writeLock().lock();
+                try {
+                    for (String key : batch.keySet()) {
+                        earlier = batchKeys.get(key);
+                        if (earlier != null) {
+                            break;
+                        }
+                    }
+                    if (earlier == null) {
+                        long writeVersion = version.incrementAndGet();
+                        if (recording) {
+                            for (String key : batch.keySet()) {
+                                recordPreImage(key, writeVersion);
+                            }
+                        }
+                        for (String key : batch.keySet()) {
+                            touch(key);
+                            batchKeys.put(key, written);
+                        }
+                        break;
+                    }
+                } finally {
+                    versionLock.writeLock().unlock();
+                }
+                // An earlier batch is still writing some of these keys
+                earlier.await();
+            }
+        } catch (Exception e) {
+            logger.error("Failed to apply batch of " + batch.size() + " writes!", e);
+            return false;
+        }
+
+        try {
+            return storage.applyBatch(batch);
+        } catch (Exception e) {
+            logger.error("Failed to apply batch of " + batch.size() + " writes!", e);
+            return false;
+        } finally {
+            for (String key : batch.keySet()) {
+                batchKeys.remove(key, written);
+            }
+            written.countDown();
+        }
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        return storage.get(key);
+    }
+
+    /** Wipe the backend; open snapshots keep every pre-wipe value */
+    @Override
+    public void wipeStorage() {
+        versionLock.writeLock().lock();
+        try {
+            awaitBatches();
+            long writeVersion = version.incrementAndGet();
+            if (recording) {
+                Iterator<Map.Entry<String, String>> entries = storage.entryIterator();
+                while (entries.hasNext()) {
+                    recordPreImage(entries.next().getKey(), writeVersion);
+                }
+            }
+            if (importTouched != null) {
+                // Every key was deleted, nothing in the snapshot is current
+                logger.info("Storage wiped, cancelling the expected snapshot import");
+                importTouched = null;
+            }
+            storage.wipeStorage();
+        } catch (Exception e) {
+            logger.error("Failed to wipe storage!", e);
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean existsCheck(String key) {
+        return storage.existsCheck(key);
+    }
+
+    @Override
+    public void close() {
+        storage.close();
+    }
+
+    @Override
+    public BigInteger MD5Hash(String key) {
+        return storage.MD5Hash(key);
+    }
+
+    @Override
+    public boolean keyValid(BigInteger begin, BigInteger end, BigInteger key) {
+        return storage.keyValid(begin, end, key);
+    }
+
+    @Override
+    public Map<String, String> hashReachable(BigInteger begin, BigInteger end) {
+        return storage.hashReachable(begin, end);
+    }
+
+    @Override
+    public Map<String, String> hashUnreachable(BigInteger begin, BigInteger end) {
+        return storage.hashUnreachable(begin, end);
+    }
+
+    @Override
+    public Map<String, String> returnAllEntries() {
+        return storage.returnAllEntries();
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> rangeIterator(BigInteger begin, BigInteger end, boolean reachable) {
+        return storage.rangeIterator(begin, end, reachable);
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> entryIterator() {
+        return storage.entryIterator();
+    }
+
+    /**
+     * Expect a snapshot import: from now on every key written or deleted is
+     * remembered, so importRange() never overwrites or resurrects it.
+     */
+    public void beginImport() {
+        this.importTouched = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /** Stop expecting an import and forget the keys written since */
+    public void endImport() {
+        this.importTouched = null;
+    }
+
+    /** @return True between beginImport() and the import or endImport() */
+    public boolean isImportExpected() {
+        return this.importTouched != null;
+    }
+
+    /**
+     * Bulk-load a RangeSnapshotFile, e.g. one exported by a replica to seed
+     * this node, then end the import. Keys that existed or were written or
+     * deleted since beginImport() are skipped, so a transfer, replica or
+     * client write that reached a key before the import keeps its effect.
+     * Keys are written through applyBatch, so open snapshots keep seeing the
+     * values they replace.
+     *
+     * @param file Snapshot file
+     * @return The loaded snapshot file
+     * @throws IOException If no import is expected, the file is damaged, in
+     *                     which case nothing is written, or a batch fails
+     */
+    public RangeSnapshotFile importRange(File file) throws IOException {
+        final Set<String> touched = this.importTouched;
+        if (touched == null) {
+            throw new IOException("No import expected, writes since seeding began are unknown");
+        }
+        try {
+            return RangeSnapshotFile.ingest(file, new RangeSnapshotFile.BatchWriter() {
+                public boolean write(Map<String, String> batch) {
+                    return applyMissing(batch, touched);
+                }
+            });
+        } finally {
+            endImport();
+        }
+    }
+
+    /**
+     * Apply the keys of a batch not written, deleted or present since the
+     * import was expected, as a single version. The check and the write
+     * share the exclusive lock, so no PUT lands in between; holding it makes
+     * applyBatch write before returning it.
+     */
+    private boolean applyMissing(Map<String, String> batch, Set<String> touched) {
+        versionLock.writeLock().lock();
+        try {
+            Map<String, String> missing = new HashMap<String, String>();
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                String key = entry.getKey();
+                if (!touched.contains(key) && !storage.existsCheck(key)) {
+                    missing.put(key, entry.getValue());
+                }
+            }
+            return missing.isEmpty() || applyBatch(missing);
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Pin the current version. The snapshot must be released once it is no
+     * longer read, or pre-images pile up.
+     *
+     * @return Read-only view of storage as of now
+     */
+    public Snapshot openSnapshot() {
+        versionLock.writeLock().lock();
+        try {
+            // A batch's version is taken before it reaches the backend, the
+            // snapshot must not read the backend in between
+            awaitBatches();
+            long pinned = version.get();
+            Integer open = openVersions.get(pinned);
+            openVersions.put(pinned, open == null ? 1 : open + 1);
+            recording = true;
+            return new Snapshot(pinned);
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    private void release(long pinned) {
+        versionLock.writeLock().lock();
+        try {
+            Integer open = openVersions.get(pinned);
+            if (open == null) {
+                return;
+            }
+            if (open == 1) {
+                openVersions.remove(pinned);
+            } else {
+                openVersions.put(pinned, open - 1);
+            }
+            if (openVersions.isEmpty()) {
+                recording = false;
+                history.clear();
+                return;
+            }
+            // Only snapshots older than a pre-image read it
+            long oldest = openVersions.firstKey();
+            Iterator<List<PreImage>> keys = history.values().iterator();
+            while (keys.hasNext()) {
+                List<PreImage> preImages = keys.next();
+                synchronized (preImages) {
+                    Iterator<PreImage> it = preImages.iterator();
+                    while (it.hasNext()) {
+                        if (it.next().version <= oldest) {
+                            it.remove();
+                        }
+                    }
+                    if (preImages.isEmpty()) {
+                        keys.remove();
+                    }
+                }
+            }
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Storage as of one version. Reads are served from the backend unless the
+     * key changed after the snapshot was taken.
+     */
+    public class Snapshot {
+        private long pinned;
+        private volatile boolean released = false;
+
+        private Snapshot(long pinned) {
+            this.pinned = pinned;
+        }
+
+        public long getVersion() {
+            return this.pinned;
+        }
+
+        /**
+         * @param key     Key to resolve
+         * @param current Value read from the backend before the history
+         * @return Value of the key at this snapshot, null if it did not exist
+         */
+        private String resolve(String key, String current) {
+            PreImage preImage = preImageAfter(key, pinned);
+            return preImage == null ? current : preImage.value;
+        }
+
+        public String get(String key) throws Exception {
+            // Backend first: a write records its pre-image before it lands
+            return resolve(key, storage.get(key));
+        }
+
+        /** @return True if the key was written after this snapshot was taken */
+        public boolean modifiedSince(String key) {
+            return preImageAfter(key, pinned) != null;
+        }
+
+        /**
+         * Stream the KV pairs of a hash range as of this snapshot.
+         *
+         * @param begin     Beginning of valid range
+         * @param end       End of valid range
+         * @param reachable True for keys inside the range, false for keys outside
+         * @return Lazy iterator, keys deleted since the snapshot come last
+         */
+        public Iterator<Map.Entry<String, String>> rangeIterator(final BigInteger begin, final BigInteger end,
+                final boolean reachable) {
+            return entries(storage.rangeIterator(begin, end, reachable), new KeyFilter() {
+                public boolean accept(String key) {
+                    return storage.keyValid(begin, end, storage.MD5Hash(key)) == reachable;
+                }
+            });
+        }
+
+        /** @return Lazy iterator over every KV pair as of this snapshot */
+        public Iterator<Map.Entry<String, String>> entryIterator() {
+            return entries(storage.entryIterator(), new KeyFilter() {
+                public boolean accept(String key) {
+                    return true;
+                }
+            });
+        }
+
+        /**
+         * Resolve the live keys of the backend against the history, then add
+         * the keys that were deleted after the snapshot. A key first written
+         * after the walk passed it can come up twice, with the same value.
+         */
+        private Iterator<Map.Entry<String, String>> entries(final Iterator<Map.Entry<String, String>> live,
+                final KeyFilter filter) {
+            return new Iterator<Map.Entry<String, String>>() {
+                // Keys with history already returned from the live walk
+                private Set<String> seen = new HashSet<String>();
+                private Iterator<String> deleted;
+                private Map.Entry<String, String> next = advance();
+
+                private Map.Entry<String, String> advance() {
+                    while (live.hasNext()) {
+                        Map.Entry<String, String> entry = live.next();
+                        String key = entry.getKey();
+                        if (history.containsKey(key)) {
+                            seen.add(key);
+                        }
+                        String value = resolve(key, entry.getValue());
+                        if (value != null) {
+                            return new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+                        }
+                    }
+                    if (deleted == null) {
+                        deleted = new ArrayList<String>(history.keySet()).iterator();
+                    }
+                    while (deleted.hasNext()) {
+                        String key = deleted.next();
+                        if (seen.contains(key) || !filter.accept(key)) {
+                            continue;
+                        }
+                        PreImage preImage = preImageAfter(key, pinned);
+                        if (preImage != null && preImage.value != null) {
+                            return new AbstractMap.SimpleImmutableEntry<String, String>(key, preImage.value);
+                        }
+                    }
+                    return null;
+                }
+
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                public Map.Entry<String, String> next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String, String> current = next;
+                    next = advance();
+                    return current;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        /**
+         * Write the KV pairs of a hash range as of this snapshot to a
+         * RangeSnapshotFile, in ring order from the beginning of the range.
+         * Only the keys are sorted in memory, values are read one at a time.
+         *
+         * @param begin    Beginning of valid range
+         * @param end      End of valid range
+         * @param file     File to create or replace
+         * @param compress Snappy-compress the file
+         * @return The written snapshot file
+         * @throws IOException
+         */
+        public RangeSnapshotFile exportRange(BigInteger begin, BigInteger end, File file, boolean compress)
+                throws IOException {
+            final TreeMap<BigInteger, String> ring = new TreeMap<BigInteger, String>();
+            Iterator<Map.Entry<String, String>> entries = rangeIterator(begin, end, true);
+            while (entries.hasNext()) {
+                String key = entries.next().getKey();
+                ring.put(storage.MD5Hash(key), key);
+            }
+            // The range may wrap around the top of the ring
+            final Iterator<String> first = ring.tailMap(begin, false).values().iterator();
+            final Iterator<String> second = ring.headMap(begin, true).values().iterator();
+            Iterator<Map.Entry<String, String>> sorted = new Iterator<Map.Entry<String, String>>() {
+                public boolean hasNext() {
+                    return first.hasNext() || second.hasNext();
+                }
+
+                public Map.Entry<String, String> next() {
+                    String key = first.hasNext() ? first.next() : second.next();
+                    try {
+                        return new AbstractMap.SimpleImmutableEntry<String, String>(key, get(key));
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Failed to read " + key + " for export", e);
+                    }
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+            try {
+                return RangeSnapshotFile.write(file, sorted, begin, end, compress);
+            } catch (IllegalStateException e) {
+                throw new IOException(e.getMessage(), e.getCause());
+            }
+        }
+
+        /** Let go of the pinned version, the snapshot must not be read after */
+        public void release() {
+            if (!released) {
+                released = true;
+                VersionedStorage.this.release(pinned);
+            }
+        }
+    }
+
+    /** Picks the keys a snapshot iterator covers */
+    private interface KeyFilter {
+        boolean accept(String key);
+    }
+}
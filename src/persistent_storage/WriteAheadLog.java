@@ -0,0 +1,305 @@
+package persistent_storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Write-ahead log with group commit on top of a LogSegment.
+ *
+ * Writers enqueue encoded records and block until their record is durable
+ * according to the DurabilityMode. A single flusher thread takes everything
+ * queued so far, writes it with one call and (depending on the mode) one
+ * fsync, then releases the whole batch. Under concurrent load the cost of an
+ * fsync is shared by every writer in the batch.
+ */
+public class WriteAheadLog {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final DurabilityMode DEFAULT_DURABILITY = DurabilityMode.FSYNC_PERIODIC;
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+
+    private LogSegment segment;
+    private DurabilityMode mode;
+    private long syncIntervalMs;
+
+    // Guarded by this
+    private List<Commit> queue = new ArrayList<Commit>();
+    private boolean writing = false;
+    private boolean closed = false;
+    private long batches = 0;
+    private long records = 0;
+
+    // Only touched by the flusher thread
+    private boolean dirty = false;
+    private long lastSync = System.currentTimeMillis();
+
+    private Thread flusher;
+
+    /**
+     * Handle on a submitted record, used to wait for it to become durable.
+     */
+    public class Commit {
+        private ByteBuffer record;
+        private long offset = -1;
+        private boolean done = false;
+        private IOException error;
+
+        private Commit(ByteBuffer record) {
+            this.record = record;
+        }
+
+        /**
+         * Block until the record is durable.
+         *
+         * @return Offset of the record in the segment
+         * @throws IOException If the batch holding the record failed to write
+         */
+        public long await() throws IOException {
+            synchronized (WriteAheadLog.this) {
+                while (!done) {
+                    try {
+                        WriteAheadLog.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for log commit", e);
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Start a log over a segment. The segment's existing records are kept and
+     * new records are appended after them.
+     *
+     * @param segment        Segment to append to
+     * @param mode           When to fsync
+     * @param syncIntervalMs Interval between fsyncs for FSYNC_PERIODIC
+     */
+    public WriteAheadLog(LogSegment segment, DurabilityMode mode, long syncIntervalMs) {
+        this.segment = segment;
+        this.mode = mode;
+        this.syncIntervalMs = Math.max(1, syncIntervalMs);
+
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "wal-flusher-" + segment.getFile().getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public LogSegment getSegment() {
+        return this.segment;
+    }
+
+    public DurabilityMode getMode() {
+        return this.mode;
+    }
+
+    /** @return Bytes written to the segment so far */
+    public long size() {
+        return segment.size();
+    }
+
+    /** @return Number of batches written, one write call each */
+    public synchronized long getBatchCount() {
+        return this.batches;
+    }
+
+    /** @return Number of records written */
+    public synchronized long getRecordCount() {
+        return this.records;
+    }
+
+    /**
+     * Queue a record for the next batch without waiting for it. Records are
+     * written in the order they are submitted.
+     *
+     * @param record Encoded record
+     * @return Handle to wait on
+     * @throws IOException If the log is closed
+     */
+    public synchronized Commit submit(ByteBuffer record) throws IOException {
+        if (closed) {
+            throw new IOException("Write-ahead log is closed: " + segment.getFile().getName());
+        }
+        Commit commit = new Commit(record);
+        queue.add(commit);
+        notifyAll();
+        return commit;
+    }
+
+    /**
+     * Append a record and wait for it to become durable.
+     *
+     * @param record Encoded record
+     * @return Offset of the record in the segment
+     * @throws IOException
+     */
+    public long append(ByteBuffer record) throws IOException {
+        return submit(record).await();
+    }
+
+    /**
+     * Wait for every submitted record to be written, then force them to the
+     * storage device regardless of the mode.
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        synchronized (this) {
+            while (writing || !queue.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for log sync", e);
+                }
+            }
+        }
+        segment.flush();
+    }
+
+    /**
+     * Drop every record, e.g. once they have been checkpointed elsewhere.
+     * The caller must stop submitting while this runs.
+     *
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        sync();
+        segment.truncate(0);
+        segment.flush();
+    }
+
+    /**
+     * Walk every valid record of the log in order.
+     *
+     * @param visitor Called once per record
+     * @return Offset of the first byte that is not part of a valid record
+     * @throws IOException
+     */
+    public long replay(LogSegment.RecordVisitor visitor) throws IOException {
+        return segment.replay(visitor);
+    }
+
+    /** Flusher thread: write and (maybe) fsync whatever has been queued */
+    private void flushLoop() {
+        while (true) {
+            List<Commit> batch;
+            synchronized (this) {
+                while (queue.isEmpty() && !closed) {
+                    long timeout = 0;
+                    if (dirty) {
+                        timeout = lastSync + syncIntervalMs - System.currentTimeMillis();
+                        if (timeout <= 0) {
+                            break;
+                        }
+                    }
+                    try {
+                        wait(timeout);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queue.isEmpty() && closed) {
+                    return;
+                }
+                batch = queue;
+                queue = new ArrayList<Commit>();
+                writing = true;
+            }
+
+            IOException error = null;
+            try {
+                write(batch);
+            } catch (IOException e) {
+                logger.error("Failed to write batch to " + segment.getFile().getName(), e);
+                error = e;
+            }
+
+            synchronized (this) {
+                for (Commit commit : batch) {
+                    commit.error = error;
+                    commit.done = true;
+                    commit.record = null;
+                }
+                if (!batch.isEmpty()) {
+                    batches++;
+                    records += batch.size();
+                }
+                writing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void write(List<Commit> batch) throws IOException {
+        if (!batch.isEmpty()) {
+            int total = 0;
+            for (Commit commit : batch) {
+                total += commit.record.remaining();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(total);
+            for (Commit commit : batch) {
+                buffer.put(commit.record);
+            }
+            buffer.flip();
+            long offset = segment.append(buffer);
+            for (Commit commit : batch) {
+                commit.offset = offset;
+                offset += commit.record.position();
+            }
+            dirty = true;
+        }
+
+        if (mode == DurabilityMode.FSYNC_BATCH
+                || (mode == DurabilityMode.FSYNC_PERIODIC && dirty
+                        && System.currentTimeMillis() - lastSync >= syncIntervalMs)) {
+            segment.flush();
+            lastSync = System.currentTimeMillis();
+            dirty = false;
+        } else if (mode == DurabilityMode.OS_BUFFERED) {
+            dirty = false;
+        }
+    }
+
+    /**
+     * Stop the flusher once the queue is drained and close the segment. The
+     * tail is forced to disk on the way out.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.flush();
+        segment.close();
+    }
+
+    /** Close and remove the log from disk */
+    public void delete() throws IOException {
+        close();
+        segment.delete();
+    }
+}
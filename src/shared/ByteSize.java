@@ -0,0 +1,55 @@
+package shared;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sizes written with a unit, such as 64KB, 256MB or 1GB. Units are binary
+ * (1KB = 1024 bytes) and case insensitive.
+ */
+public final class ByteSize {
+    private static final Pattern SIZE = Pattern.compile("(\\d+)\\s*([KMG]?)B", Pattern.CASE_INSENSITIVE);
+
+    private ByteSize() {
+    }
+
+    /**
+     * @return true if the size carries a byte unit, a bare number is an entry
+     *         count
+     */
+    public static boolean hasUnit(String size) {
+        return SIZE.matcher(size.trim()).matches();
+    }
+
+    /**
+     * @param size Size with a unit, e.g. 256MB
+     * @return Size in bytes
+     * @throws NumberFormatException if the size is malformed or too large
+     */
+    public static long parse(String size) {
+        Matcher matcher = SIZE.matcher(size.trim());
+        if (!matcher.matches()) {
+            throw new NumberFormatException("Not a size in B, KB, MB or GB: " + size);
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2).toUpperCase();
+        int shift = unit.isEmpty() ? 0 : 10 * ("KMG".indexOf(unit) + 1);
+        if (amount > Long.MAX_VALUE >> shift) {
+            throw new NumberFormatException("Size too large: " + size);
+        }
+        return amount << shift;
+    }
+
+    /**
+     * @return Bytes in the largest unit that keeps them whole, e.g. 256MB
+     */
+    public static String format(long bytes) {
+        String[] units = { "B", "KB", "MB", "GB" };
+        int unit = 0;
+        while (unit < units.length - 1 && bytes != 0 && bytes % 1024 == 0) {
+            bytes /= 1024;
+            unit++;
+        }
+        return bytes + units[unit];
+    }
+}
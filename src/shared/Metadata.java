@@ -15,6 +15,8 @@ public class Metadata {
     private BigInteger hashStop;
     private CacheStrategy cacheStrategy = CacheStrategy.None;
     private int cacheSize = 0;
+    // Byte budget of the cache, 0 if cacheSize counts entries
+    private long cacheBytes = 0;
     private ECSNode prevNode;
     private ECSNode nextNode;
 
@@ -55,6 +57,23 @@ public class Metadata {
         this.nextNode = nextNode;
     }
 
+    /**
+     * Instantiate with a cache bounded by bytes rather than entries.
+     * 
+     * @param host
+     * @param port
+     * @param hashStart
+     * @param hashStop
+     * @param cacheStrategy
+     * @param cacheSize
+     * @param cacheBytes
+     */
+    public Metadata(String host, Integer port, BigInteger hashStart, BigInteger hashStop, CacheStrategy cacheStrategy,
+            int cacheSize, long cacheBytes, ECSNode prevNode, ECSNode nextNode) {
+        this(host, port, hashStart, hashStop, cacheStrategy, cacheSize, prevNode, nextNode);
+        this.cacheBytes = cacheBytes;
+    }
+
     public String getHost() {
         return this.host;
     }
@@ -79,6 +98,10 @@ public class Metadata {
         return this.cacheSize;
     }
 
+    public long getCacheBytes() {
+        return this.cacheBytes;
+    }
+
     public ECSNode getPrevNode() {
         return this.prevNode;
     }
@@ -2,10 +2,13 @@ package shared.communication;
 
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
+import org.xerial.snappy.Snappy;
+
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
@@ -23,17 +26,26 @@ public class AdminMessage {
         TRANSFER_DATA_COMPLETE, // All key-value pairs have been successfully received
         REPLICATE_START, // Ask coordinator to replicate keys to prev, next
         REPLICATE_DATA, // Handle incoming replicas on prev, next servers
-        REPLICATE_COMPLETE // Coordinator receives confirmation that replicas are done copying
+        REPLICATE_COMPLETE, // Coordinator receives confirmation that replicas are done copying
+        SNAPSHOT_REQUEST, // Ask a replica to export a hash range to a snapshot file
+        SNAPSHOT_READY // Snapshot file written, recipient bulk-loads it
     }
 
     private static Logger logger = Logger.getRootLogger();
 
     private static final char SEP = 0x1F; // Unit separator
+    // Key-value payloads at least this large are sent Snappy-compressed
+    private static final int COMPRESS_THRESHOLD_BYTES = 4096;
+    private static final String COMPRESSED_PREFIX = "snappy:";
 
     private MessageType msgType;
     private Map<String, Metadata> msgMetadata;
     private Map<String, String> msgKeyValues;
     private String msgSendingServer;
+    // Key -> wall clock expiry in ms for the keys in msgKeyValues that have a TTL
+    private Map<String, Long> msgExpiries;
+    // Matches a REPLICATE_COMPLETE to the REPLICATE_DATA it confirms, 0 if unset
+    private long msgSequence = 0;
 
     /**
      * Construct AdminMessage for most tasks.
@@ -78,6 +90,39 @@ public class AdminMessage {
         DebugHelper.logFuncExit(logger);
     }
 
+    /**
+     * Construct AdminMessage for data transfers of keys that may expire.
+     * 
+     * @param msgType          Type of AdminMessage
+     * @param msgMetadata      Metadata for all servers - keys are in ip:port format
+     * @param msgKeyValues     Map of key-value pairs that may need to be transferred
+     * @param msgSendingServer Note which server is sending this message so that
+     *                         recipient can reply
+     * @param msgExpiries      Expiry time in ms of the keys that have a TTL
+     */
+    public AdminMessage(MessageType msgType, Map<String, Metadata> msgMetadata, Map<String, String> msgKeyValues,
+            String msgSendingServer, Map<String, Long> msgExpiries) {
+        this(msgType, msgMetadata, msgKeyValues, msgSendingServer);
+        this.msgExpiries = msgExpiries;
+    }
+
+    /**
+     * Construct AdminMessage for replication, which is confirmed per message.
+     * 
+     * @param msgType          Type of AdminMessage
+     * @param msgKeyValues     Map of key-value pairs to replicate, may be null
+     * @param msgSendingServer Note which server is sending this message so that
+     *                         recipient can reply
+     * @param msgExpiries      Expiry time in ms of the keys that have a TTL
+     * @param msgSequence      Id of the replication message, echoed back in
+     *                         its confirmation
+     */
+    public AdminMessage(MessageType msgType, Map<String, String> msgKeyValues, String msgSendingServer,
+            Map<String, Long> msgExpiries, long msgSequence) {
+        this(msgType, null, msgKeyValues, msgSendingServer, msgExpiries);
+        this.msgSequence = msgSequence;
+    }
+
     public AdminMessage(String msg) {
         DebugHelper.logFuncEnter(logger);
 
@@ -89,8 +134,16 @@ public class AdminMessage {
         Type metadataMapType = new TypeToken<Map<String, Metadata>>() {
         }.getType();
         this.msgMetadata = gson.fromJson(tokens[1], metadataMapType);
-        this.msgKeyValues = gson.fromJson(tokens[2], Map.class);
+        this.msgKeyValues = gson.fromJson(decompress(tokens[2]), Map.class);
         this.msgSendingServer = gson.fromJson(tokens[3], String.class);
+        if (tokens.length > 4) {
+            Type expiriesMapType = new TypeToken<Map<String, Long>>() {
+            }.getType();
+            this.msgExpiries = gson.fromJson(decompress(tokens[4]), expiriesMapType);
+        }
+        if (tokens.length > 5) {
+            this.msgSequence = Long.parseLong(tokens[5]);
+        }
 
         DebugHelper.logFuncExit(logger);
     }
@@ -105,13 +158,63 @@ public class AdminMessage {
         Gson gson = new Gson();
         String type = msgType.toString();
         String metadata = gson.toJson(msgMetadata);
-        String keyValue = gson.toJson(msgKeyValues);
+        String keyValue = compress(gson.toJson(msgKeyValues));
         String sendingServer = gson.toJson(msgSendingServer);
         String msgString = type + SEP + metadata + SEP + keyValue + SEP + sendingServer;
+        if ((msgExpiries != null && !msgExpiries.isEmpty()) || msgSequence != 0) {
+            msgString += SEP + compress(gson.toJson(msgExpiries));
+        }
+        if (msgSequence != 0) {
+            msgString += String.valueOf(SEP) + msgSequence;
+        }
 
         return msgString.getBytes(StandardCharsets.US_ASCII);
     }
 
+    /**
+     * Compress a large key-value payload. Base64 keeps the message ASCII and
+     * free of separator characters.
+     * 
+     * @param json Serialized key-value map
+     * @return Payload to send
+     */
+    private static String compress(String json) {
+        byte[] raw = json.getBytes(StandardCharsets.UTF_8);
+        if (raw.length < COMPRESS_THRESHOLD_BYTES) {
+            return json;
+        }
+        try {
+            String compressed = COMPRESSED_PREFIX + Base64Codec.encode(Snappy.compress(raw));
+            if (compressed.length() < json.length()) {
+                return compressed;
+            }
+        } catch (IOException e) {
+            logger.error("Failed to compress key-value payload, sending it uncompressed", e);
+        }
+        return json;
+    }
+
+    /**
+     * Undo compress().
+     * 
+     * @param payload Received key-value payload
+     * @return Serialized key-value map
+     * @throws IllegalArgumentException If a compressed payload is corrupt, so
+     *                                  the message is rejected instead of
+     *                                  carrying no key-value pairs
+     */
+    private static String decompress(String payload) {
+        if (!payload.startsWith(COMPRESSED_PREFIX)) {
+            return payload;
+        }
+        try {
+            byte[] compressed = Base64Codec.decode(payload.substring(COMPRESSED_PREFIX.length()));
+            return new String(Snappy.uncompress(compressed), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt compressed key-value payload", e);
+        }
+    }
+
     public MessageType getMsgType() {
         return this.msgType;
     }
@@ -127,4 +230,12 @@ public class AdminMessage {
     public String getSendingServer() {
         return this.msgSendingServer;
     }
+
+    public Map<String, Long> getMsgExpiries() {
+        return this.msgExpiries;
+    }
+
+    public long getMsgSequence() {
+        return this.msgSequence;
+    }
 }
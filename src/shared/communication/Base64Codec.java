@@ -0,0 +1,79 @@
+package shared.communication;
+
+import java.util.Arrays;
+
+/**
+ * Standard Base64 with padding (RFC 4648), the same text java.util.Base64's
+ * basic encoder writes. The build targets Java 1.7, which lacks that class.
+ */
+final class Base64Codec {
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    static String encode(byte[] data) {
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int remaining = Math.min(3, data.length - i);
+            int bits = (data[i] & 0xff) << 16;
+            if (remaining > 1) {
+                bits |= (data[i + 1] & 0xff) << 8;
+            }
+            if (remaining > 2) {
+                bits |= data[i + 2] & 0xff;
+            }
+            out.append(ALPHABET[(bits >>> 18) & 0x3f]);
+            out.append(ALPHABET[(bits >>> 12) & 0x3f]);
+            out.append(remaining > 1 ? ALPHABET[(bits >>> 6) & 0x3f] : '=');
+            out.append(remaining > 2 ? ALPHABET[bits & 0x3f] : '=');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException If the text is not padded Base64
+     */
+    static byte[] decode(String text) {
+        if (text.length() % 4 != 0) {
+            throw new IllegalArgumentException("Base64 length " + text.length() + " is not a multiple of 4");
+        }
+        int padding = 0;
+        if (text.endsWith("==")) {
+            padding = 2;
+        } else if (text.endsWith("=")) {
+            padding = 1;
+        }
+        byte[] out = new byte[text.length() / 4 * 3 - padding];
+        int written = 0;
+        for (int i = 0; i < text.length(); i += 4) {
+            int bits = 0;
+            for (int j = 0; j < 4; j++) {
+                char c = text.charAt(i + j);
+                int value;
+                if (c == '=' && i + j >= text.length() - padding) {
+                    value = 0;
+                } else {
+                    value = c < VALUES.length ? VALUES[c] : -1;
+                    if (value < 0) {
+                        throw new IllegalArgumentException("Illegal Base64 character at " + (i + j));
+                    }
+                }
+                bits = (bits << 6) | value;
+            }
+            for (int shift = 16; shift >= 0 && written < out.length; shift -= 8) {
+                out[written++] = (byte) (bits >>> shift);
+            }
+        }
+        return out;
+    }
+}
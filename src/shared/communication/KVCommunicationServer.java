@@ -112,10 +112,11 @@ public class KVCommunicationServer extends KVCommunicationClient implements Runn
         switch (msg.getStatus()) {
             case GET:
                 logger.trace("GET");
-                // M4 read lock during replication events
+                // Replication and transfers read storage snapshots, so the
+                // lock is only held while the server is stopped
                 if (server.distributed() && server.getLockWrite()) {
                     returnMsgType = StatusType.SERVER_WRITE_LOCK;
-                    logger.info("Server is locked for writing. Block GETs during replication.");
+                    logger.info("Server is locked for writing. Block GETs until it starts.");
 
                     try {
                         returnMsg = new KVMessage(returnMsgType, msgKey, returnMsgValue);
@@ -204,7 +205,7 @@ public class KVCommunicationServer extends KVCommunicationClient implements Runn
 
                     // Store/Update key-value pair
                     try {
-                        server.putKV(msgKey, msg.getValue());
+                        server.putKV(msgKey, msg.getValue(), msg.getTtlMs());
                         returnMsgValue = msg.getValue();
                     } catch (Exception e) {
                         returnMsgType = StatusType.PUT_ERROR;
@@ -29,6 +29,8 @@ public class KVMessage implements IKVMessage, Serializable {
     private StatusType statusType;
     private String key;
     private String value;
+    // Milliseconds until a PUT expires, 0 if it never does
+    private long ttlMs = 0;
 
     /**
      * Constructor using byte array.
@@ -54,6 +56,7 @@ public class KVMessage implements IKVMessage, Serializable {
 
         // Extract message type, key, value information
         splitAndSetMessageInfo(rawString, String.valueOf(SEP));
+        this.ttlMs = parseTtl(rawString);
 
         logger.debug("statusType: " + this.statusType);
         logger.debug("key: " + this.key);
@@ -112,13 +115,34 @@ public class KVMessage implements IKVMessage, Serializable {
      * @throws Exception
      */
     public KVMessage(StatusType statusType, String key, String value) throws Exception {
+        this(statusType, key, value, 0);
+    }
+
+    /**
+     * Constructor for a PUT that expires.
+     * 
+     * @param statusType Type of message (e.g. GET, PUT)
+     * @param key        Unique key identifying message
+     * @param value      Message itself
+     * @param ttlMs      Milliseconds until the key expires, 0 for never
+     * @throws Exception
+     */
+    public KVMessage(StatusType statusType, String key, String value, long ttlMs) throws Exception {
         DebugHelper.logFuncEnter(logger);
 
         isMessageLengthValid(key, value);
         isMessageASCII(key, value);
+        if (ttlMs < 0) {
+            String errorMsg = String.format("TTL of %d ms is negative.", ttlMs);
+            logger.error(errorMsg);
+            throw new Exception(errorMsg);
+        }
 
         try {
             String msgStr = statusType.toString() + SEP + key + SEP + value + SEP;
+            if (ttlMs > 0) {
+                msgStr += String.valueOf(ttlMs) + SEP;
+            }
             logger.debug(String.format("msgStr: %s", msgStr));
             this.msgBytes = msgStr.getBytes(StandardCharsets.US_ASCII);
         } catch (Exception e) {
@@ -130,6 +154,7 @@ public class KVMessage implements IKVMessage, Serializable {
         this.statusType = statusType;
         this.key = key;
         this.value = value;
+        this.ttlMs = ttlMs;
 
         logger.debug("statusType: " + this.statusType);
         logger.debug("key: " + this.key);
@@ -157,6 +182,20 @@ public class KVMessage implements IKVMessage, Serializable {
         DebugHelper.logFuncExit(logger);
     }
 
+    /**
+     * Read the optional TTL that follows the value.
+     * 
+     * @param rawMessage Message in string format.
+     * @return TTL in ms, 0 if there is none
+     */
+    private long parseTtl(String rawMessage) {
+        String[] rawStringArr = rawMessage.split(String.valueOf(SEP), 5);
+        if (rawStringArr.length < 4 || rawStringArr[3].isEmpty()) {
+            return 0;
+        }
+        return Long.parseLong(rawStringArr[3]);
+    }
+
     /**
      * Check that a message's key and value lengths are valid.
      * 
@@ -237,6 +276,13 @@ public class KVMessage implements IKVMessage, Serializable {
         return this.value;
     }
 
+    /**
+     * @return Milliseconds until the key expires, 0 if it never does.
+     */
+    public long getTtlMs() {
+        return this.ttlMs;
+    }
+
     /**
      * @return A status string that is used to identify request types,
      *         response types, and error types associated to the message.
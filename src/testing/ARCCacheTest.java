@@ -0,0 +1,99 @@
+package testing;
+
+import org.junit.Test;
+
+import app_kvServer.kvCache.ARCCache;
+import app_kvServer.kvCache.LRUCache;
+import app_kvServer.kvCache.kvCacheOperator;
+import junit.framework.TestCase;
+
+public class ARCCacheTest extends TestCase {
+    /** Read a key the way KVServer does, filling it in on a miss */
+    private static boolean access(ARCCache cache, String key) {
+        if (cache.read(key) != null) {
+            return true;
+        }
+        cache.write(key, "value");
+        return false;
+    }
+
+    @Test
+    public void testFrequentKeysSurviveScan() {
+        ARCCache cache = new ARCCache(100);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 50; i++) {
+                access(cache, "hot" + i);
+            }
+        }
+        // Keys seen once only push each other out of the recency list
+        for (int i = 0; i < 1000; i++) {
+            access(cache, "scan" + i);
+        }
+        for (int i = 0; i < 50; i++) {
+            assertTrue("hot" + i, cache.inCache("hot" + i));
+        }
+        assertEquals(100, cache.getCurrentLoad());
+    }
+
+    @Test
+    public void testTargetFollowsWorkload() {
+        ARCCache cache = new ARCCache(100);
+        // Hot keys move to the frequency list, then a loop slightly larger
+        // than the room left keeps missing keys that were just evicted from t1
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 60; i++) {
+                access(cache, "hot" + i);
+            }
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 60; i++) {
+                access(cache, "loop" + i);
+            }
+        }
+        long recencyTarget = cache.getRecencyTarget();
+        assertTrue(String.valueOf(recencyTarget), recencyTarget > 0);
+
+        // Back to the old hot keys: misses on ghosts of t2 shrink t1 again
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 60; i++) {
+                access(cache, "hot" + i);
+            }
+        }
+        assertTrue(cache.getRecencyTarget() < recencyTarget);
+        assertTrue(cache.getCurrentLoad() <= 100);
+    }
+
+    @Test
+    public void testReadWriteDelete() {
+        ARCCache cache = new ARCCache(2);
+        cache.write("a", "1");
+        cache.write("a", "2");
+        assertEquals("2", cache.read("a"));
+        assertEquals(1, cache.getCurrentLoad());
+        cache.write("b", "1");
+        cache.write("c", "1");
+        assertEquals(2, cache.getCurrentLoad());
+
+        cache.delete("a");
+        assertFalse(cache.inCache("a"));
+        cache.clearCache();
+        assertEquals(0, cache.getCurrentLoad());
+        assertEquals(0, cache.getRecencyTarget());
+    }
+
+    @Test
+    public void testZipfBeatsLRU() {
+        int[] trace = CachePerformanceTest.zipfTrace(10000, 0.99, 200000, 7);
+        double arc = CachePerformanceTest.hitRatio(new ARCCache(500), trace, 2);
+        double lru = CachePerformanceTest.hitRatio(new LRUCache(500), trace, 2);
+        assertTrue(arc + " vs " + lru, arc > lru);
+    }
+
+    @Test
+    public void testSelectableByName() {
+        kvCacheOperator operator = new kvCacheOperator(10, "ARC");
+        assertTrue(operator.cacheActiveStatus());
+        operator.putCache("a", "1");
+        assertEquals("1", operator.getCache("a"));
+    }
+}
@@ -28,6 +28,24 @@ public class AllTests {
         // clientSuite.addTestSuite(AdditionalTest.class); // worked
         clientSuite.addTestSuite(HashRingTest.class); // worked
         clientSuite.addTestSuite(HashRingEvenTest.class);
+        clientSuite.addTestSuite(LogStructuredStorageTest.class);
+        clientSuite.addTestSuite(LSMStorageTest.class);
+        clientSuite.addTestSuite(BloomFilterTest.class);
+        clientSuite.addTestSuite(HashRingIndexTest.class);
+        clientSuite.addTestSuite(CompactRingIndexTest.class);
+        clientSuite.addTestSuite(WriteAheadLogTest.class);
+        clientSuite.addTestSuite(PersistentStorageTest.class);
+        clientSuite.addTestSuite(CompactKeyIndexTest.class);
+        clientSuite.addTestSuite(CompactionSchedulerTest.class);
+        clientSuite.addTestSuite(VersionedStorageTest.class);
+        clientSuite.addTestSuite(RangeSnapshotFileTest.class);
+        clientSuite.addTestSuite(DedupStorageTest.class);
+        clientSuite.addTestSuite(TimingWheelTest.class);
+        clientSuite.addTestSuite(BucketLFUCacheTest.class);
+        clientSuite.addTestSuite(ShardedCacheTest.class);
+        clientSuite.addTestSuite(TinyLFUCacheTest.class);
+        clientSuite.addTestSuite(ARCCacheTest.class);
+        clientSuite.addTestSuite(ByteBudgetCacheTest.class);
 
         // Sequential consistency test
         // clientSuite.addTestSuite(M4ConsistencyTest.class);
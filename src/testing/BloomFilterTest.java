@@ -0,0 +1,58 @@
+package testing;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.BloomFilter;
+
+public class BloomFilterTest extends TestCase {
+    @Test
+    public void testNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("key" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain("key" + i));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("key" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("missing" + i)) {
+                falsePositives++;
+            }
+        }
+        // Allow some slack over the 1% target
+        assertTrue(falsePositives < 2000);
+        assertTrue(filter.expectedFalsePositiveRate() < 0.02);
+        // About 9.6 bits per key for a 1% filter
+        assertTrue(filter.sizeBytes() < 10000 * 2);
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        filter.add("a");
+        filter.add("b");
+        File file = File.createTempFile("bloom", ".bloom");
+        try {
+            filter.write(file);
+            BloomFilter loaded = BloomFilter.read(file);
+            assertTrue(loaded.mightContain("a"));
+            assertTrue(loaded.mightContain("b"));
+            assertEquals(filter.getNumHashes(), loaded.getNumHashes());
+            assertEquals(filter.sizeBytes(), loaded.sizeBytes());
+        } finally {
+            file.delete();
+        }
+    }
+}
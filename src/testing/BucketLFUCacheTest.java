@@ -0,0 +1,70 @@
+package testing;
+
+import org.junit.Test;
+
+import app_kvServer.kvCache.BucketLFUCache;
+import junit.framework.TestCase;
+
+public class BucketLFUCacheTest extends TestCase {
+    private BucketLFUCache cache;
+
+    public void setUp() {
+        cache = new BucketLFUCache(3);
+    }
+
+    @Test
+    public void testEvictsLeastFrequentlyUsed() {
+        cache.write("a", "1");
+        cache.write("b", "2");
+        cache.write("c", "3");
+        cache.read("a");
+        cache.read("a");
+        cache.read("c");
+
+        cache.write("d", "4");
+        assertFalse(cache.inCache("b"));
+        assertEquals("1", cache.read("a"));
+        assertEquals("3", cache.read("c"));
+        assertEquals("4", cache.read("d"));
+        assertEquals(3, cache.getCurrentLoad());
+        assertEquals(4, cache.getFrequency("a"));
+    }
+
+    @Test
+    public void testTiesEvictLeastRecentlyUsed() {
+        cache.write("a", "1");
+        cache.write("b", "2");
+        cache.write("c", "3");
+        cache.read("b");
+        cache.read("a");
+        cache.read("c");
+
+        // All at two accesses, b was the first to get there
+        cache.write("d", "4");
+        assertFalse(cache.inCache("b"));
+        assertTrue(cache.inCache("a"));
+        // d is now the only entry at one access
+        cache.write("e", "5");
+        assertFalse(cache.inCache("d"));
+    }
+
+    @Test
+    public void testUpdateAndDelete() {
+        cache.write("a", "1");
+        cache.write("a", "2");
+        assertEquals(1, cache.getCurrentLoad());
+        assertEquals(2, cache.getFrequency("a"));
+        assertEquals("2", cache.read("a"));
+
+        cache.delete("a");
+        cache.delete("missing");
+        assertEquals(0, cache.getCurrentLoad());
+        assertNull(cache.read("a"));
+
+        cache.write("b", "1");
+        cache.clearCache();
+        assertFalse(cache.inCache("b"));
+        cache.write("c", "1");
+        assertEquals(1, cache.getFrequency("c"));
+    }
+}
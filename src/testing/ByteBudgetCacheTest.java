@@ -0,0 +1,139 @@
+package testing;
+
+import org.junit.Test;
+
+import app_kvServer.kvCache.ARCCache;
+import app_kvServer.kvCache.BucketLFUCache;
+import app_kvServer.kvCache.FIFOCache;
+import app_kvServer.kvCache.LRUCache;
+import app_kvServer.kvCache.ShardedCache;
+import app_kvServer.kvCache.TinyLFUCache;
+import app_kvServer.kvCache.kvCacheOperator;
+import app_kvServer.kvCache.kvCacheTypes;
+import junit.framework.TestCase;
+import shared.ByteSize;
+
+public class ByteBudgetCacheTest extends TestCase {
+    private static final String[] STRATEGIES = { "LRU", "LFU", "FIFO", "TINYLFU", "ARC" };
+
+    private static kvCacheTypes create(String strategy, long byteBudget) {
+        if (strategy.equals("LRU")) {
+            return new LRUCache(0, byteBudget);
+        } else if (strategy.equals("LFU")) {
+            return new BucketLFUCache(0, byteBudget);
+        } else if (strategy.equals("FIFO")) {
+            return new FIFOCache(0, byteBudget);
+        } else if (strategy.equals("TINYLFU")) {
+            return new TinyLFUCache(0, byteBudget);
+        }
+        return new ARCCache(0, byteBudget);
+    }
+
+    private static String value(int bytes) {
+        StringBuilder sb = new StringBuilder(bytes);
+        for (int i = 0; i < bytes; i++) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testStaysWithinBudget() {
+        for (String strategy : STRATEGIES) {
+            kvCacheTypes cache = create(strategy, 10000);
+            for (int i = 0; i < 500; i++) {
+                // Values from 10 to 1000 bytes
+                cache.write("key" + i, value(10 + (i * 37) % 991));
+                assertTrue(strategy, cache.getBytesUsed() <= 10000);
+            }
+            assertTrue(strategy, cache.getBytesUsed() > 0);
+        }
+    }
+
+    @Test
+    public void testLargeValuesTakeMoreRoom() {
+        for (String strategy : STRATEGIES) {
+            kvCacheTypes cache = create(strategy, 10000);
+            for (int i = 0; i < 100; i++) {
+                cache.write("small" + i, value(50));
+            }
+            int smallEntries = cache.getCurrentLoad();
+            cache.clearCache();
+            for (int i = 0; i < 100; i++) {
+                cache.write("large" + i, value(2000));
+            }
+            assertTrue(strategy, cache.getCurrentLoad() < smallEntries);
+            assertTrue(strategy, cache.getCurrentLoad() <= 5);
+        }
+    }
+
+    @Test
+    public void testBytesUsedTracksUpdatesAndDeletes() {
+        for (String strategy : STRATEGIES) {
+            kvCacheTypes cache = create(strategy, 1000);
+            cache.write("a", value(99));
+            cache.write("b", value(9));
+            assertEquals(strategy, 110, cache.getBytesUsed());
+
+            cache.write("a", value(49));
+            assertEquals(strategy, 60, cache.getBytesUsed());
+            assertEquals(strategy, 2, cache.getCurrentLoad());
+
+            cache.delete("a");
+            cache.delete("missing");
+            assertEquals(strategy, 10, cache.getBytesUsed());
+            assertEquals(strategy, 1, cache.getCurrentLoad());
+
+            cache.clearCache();
+            assertEquals(strategy, 0, cache.getBytesUsed());
+        }
+    }
+
+    @Test
+    public void testEntryLargerThanBudgetIsNotCached() {
+        for (String strategy : STRATEGIES) {
+            kvCacheTypes cache = create(strategy, 1000);
+            cache.write("a", "1");
+            cache.write("b", value(2000));
+            assertFalse(strategy, cache.inCache("b"));
+            assertEquals(strategy, "1", cache.read("a"));
+
+            // An update that no longer fits drops the stale copy
+            cache.write("a", value(2000));
+            assertFalse(strategy, cache.inCache("a"));
+            assertEquals(strategy, 0, cache.getBytesUsed());
+        }
+    }
+
+    @Test
+    public void testShardedBudgetIsSplit() {
+        ShardedCache cache = new ShardedCache(0, 64 * 1024, "LRU", 8);
+        for (int i = 0; i < 5000; i++) {
+            cache.write("key" + i, value(100));
+        }
+        assertTrue(cache.getBytesUsed() <= 64 * 1024);
+        assertTrue(cache.getBytesUsed() > 32 * 1024);
+
+        kvCacheOperator operator = new kvCacheOperator(0, ByteSize.parse("16MB"), "ARC");
+        operator.putCache("a", "12345");
+        assertEquals(6, operator.getBytesUsed());
+        assertEquals(16L << 20, operator.getByteBudget());
+    }
+
+    @Test
+    public void testParseSizes() {
+        assertEquals(256L << 20, ByteSize.parse("256MB"));
+        assertEquals(64L << 10, ByteSize.parse("64kb"));
+        assertEquals(1L << 30, ByteSize.parse("1GB"));
+        assertEquals(512, ByteSize.parse("512B"));
+        assertTrue(ByteSize.hasUnit("256MB"));
+        assertFalse(ByteSize.hasUnit("500"));
+        try {
+            ByteSize.parse("500");
+            fail("A bare number has no unit");
+        } catch (NumberFormatException e) {
+        }
+        assertEquals("256MB", ByteSize.format(256L << 20));
+        assertEquals("1500B", ByteSize.format(1500));
+    }
+}
@@ -0,0 +1,235 @@
+package testing;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import app_kvServer.kvCache.ARCCache;
+import app_kvServer.kvCache.BucketLFUCache;
+import app_kvServer.kvCache.FIFOCache;
+import app_kvServer.kvCache.LFUCache;
+import app_kvServer.kvCache.LRUCache;
+import app_kvServer.kvCache.ShardedCache;
+import app_kvServer.kvCache.TinyLFUCache;
+import app_kvServer.kvCache.kvCacheTypes;
+import junit.framework.TestCase;
+
+/**
+ * Cost of a cache eviction at 1k, 100k and 1M cached entries.
+ *
+ * testLFUEviction fills each cache, spreads the access counts of its keys,
+ * then times writes of new keys, each of which evicts one entry. LFUCache
+ * sorts every entry on each eviction, so it only gets a handful of them at
+ * the larger sizes.
+ *
+ * testShardedReadScaling measures GET throughput from 1 to 32 threads, with
+ * every key cached, of a 16 segment ShardedCache against a single LRUCache.
+ *
+ * testZipfHitRatio replays a Zipfian GET trace against every cache strategy,
+ * once on its own and once with a stream of one-off writes mixed in, like
+ * the transfer and replication traffic that goes through putKV.
+ */
+public class CachePerformanceTest extends TestCase {
+    private static final int[] SIZES = { 1000, 100000, 1000000 };
+    // Evictions timed per size
+    private static final int BUCKET_EVICTIONS = 100000;
+    private static final int[] SORTED_EVICTIONS = { 1000, 20, 3 };
+
+    private static final int READ_KEYS = 10000;
+    private static final int READS_PER_THREAD = 1000000;
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32 };
+    private static final int SEGMENTS = 16;
+
+    private static final int ZIPF_KEYS = 100000;
+    private static final double ZIPF_EXPONENT = 0.99;
+    private static final int ZIPF_ACCESSES = 2000000;
+    private static final int[] ZIPF_CACHE_SIZES = { 1000, 10000 };
+    // One one-off write per this many GETs in the scan runs
+    private static final int SCAN_INTERVAL = 2;
+
+    /**
+     * Fill a cache and read each key between 0 and 7 times.
+     *
+     * @return The cache
+     */
+    private static kvCacheTypes fill(kvCacheTypes cache, int size) {
+        for (int i = 0; i < size; i++) {
+            cache.write("key" + i, "value" + i);
+        }
+        for (int i = 0; i < size; i++) {
+            for (int reads = 0; reads < i % 8; reads++) {
+                cache.read("key" + i);
+            }
+        }
+        return cache;
+    }
+
+    /** @return Nanoseconds per eviction */
+    private static double evict(kvCacheTypes cache, int evictions) {
+        long start = System.nanoTime();
+        for (int i = 0; i < evictions; i++) {
+            cache.write("new" + i, "value");
+        }
+        return (System.nanoTime() - start) / (double) evictions;
+    }
+
+    @Test
+    public void testLFUEviction() {
+        // Warm up
+        evict(fill(new BucketLFUCache(1000), 1000), BUCKET_EVICTIONS);
+        evict(fill(new LFUCache(1000), 1000), 1000);
+
+        for (int s = 0; s < SIZES.length; s++) {
+            int size = SIZES[s];
+            kvCacheTypes bucket = fill(new BucketLFUCache(size), size);
+            double bucketNs = evict(bucket, BUCKET_EVICTIONS);
+            assertEquals(size, bucket.getCurrentLoad());
+            bucket = null;
+
+            kvCacheTypes sorted = fill(new LFUCache(size), size);
+            double sortedNs = evict(sorted, SORTED_EVICTIONS[s]);
+            sorted = null;
+
+            System.out.println(String.format("%,9d entries: buckets %,12.0f ns/eviction, sorted %,15.0f ns/eviction (%.0fx)",
+                    size, bucketNs, sortedNs, sortedNs / bucketNs));
+        }
+    }
+
+    /**
+     * Run READS_PER_THREAD cache hits on each of the given number of threads.
+     *
+     * @return Reads per second
+     */
+    private static double read(final kvCacheTypes cache, final String[] keys, int threads)
+            throws InterruptedException {
+        Thread[] clients = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            clients[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < READS_PER_THREAD; i++) {
+                        if (cache.read(keys[random.nextInt(keys.length)]) == null) {
+                            throw new IllegalStateException("Cache miss");
+                        }
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread client : clients) {
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return threads * (double) READS_PER_THREAD / seconds;
+    }
+
+    @Test
+    public void testShardedReadScaling() throws InterruptedException {
+        String[] keys = new String[READ_KEYS];
+        // Headroom, since keys do not hash perfectly evenly over the segments
+        kvCacheTypes sharded = new ShardedCache(2 * READ_KEYS, "LRU", SEGMENTS);
+        kvCacheTypes single = new LRUCache(2 * READ_KEYS);
+        for (int i = 0; i < READ_KEYS; i++) {
+            keys[i] = "key" + i;
+            sharded.write(keys[i], "value" + i);
+            single.write(keys[i], "value" + i);
+        }
+        // Every segment must have room for its keys, or reads would miss
+        assertEquals(READ_KEYS, sharded.getCurrentLoad());
+
+        // Warm up
+        read(sharded, keys, 4);
+        read(single, keys, 4);
+
+        for (int threads : THREAD_COUNTS) {
+            double shardedOps = read(sharded, keys, threads);
+            double singleOps = read(single, keys, threads);
+            System.out.println(String.format("%2d threads: %d segments %,.0f reads/s, single lock %,.0f reads/s (%.2fx)",
+                    threads, SEGMENTS, shardedOps, singleOps, shardedOps / singleOps));
+        }
+    }
+
+    /**
+     * Key ranks drawn from a Zipf distribution, rank 0 being the most popular.
+     *
+     * @param keys     Number of distinct keys
+     * @param exponent Skew, 0.99 is the YCSB default
+     * @param length   Number of accesses
+     * @param seed     Random seed
+     * @return Trace of key ranks
+     */
+    public static int[] zipfTrace(int keys, double exponent, int length, long seed) {
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int rank = 0; rank < keys; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        Random random = new Random(seed);
+        int[] trace = new int[length];
+        for (int i = 0; i < length; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace[i] = Math.min(keys - 1, rank < 0 ? -rank - 1 : rank);
+        }
+        return trace;
+    }
+
+    /**
+     * Replay a trace the way KVServer uses its cache: a GET that misses is
+     * filled in from storage.
+     *
+     * @param scanInterval Write a never-repeated key every this many GETs, 0
+     *                     for none
+     * @return Share of GETs that hit
+     */
+    public static double hitRatio(kvCacheTypes cache, int[] trace, int scanInterval) {
+        int hits = 0;
+        int scanned = 0;
+        for (int i = 0; i < trace.length; i++) {
+            String key = "key" + trace[i];
+            if (cache.read(key) != null) {
+                hits++;
+            } else {
+                cache.write(key, "value");
+            }
+            if (scanInterval > 0 && i % scanInterval == 0) {
+                cache.write("scan" + scanned++, "value");
+            }
+        }
+        return hits / (double) trace.length;
+    }
+
+    private static kvCacheTypes create(String strategy, int size) {
+        if (strategy.equals("FIFO")) {
+            return new FIFOCache(size);
+        } else if (strategy.equals("LRU")) {
+            return new LRUCache(size);
+        } else if (strategy.equals("LFU")) {
+            return new BucketLFUCache(size);
+        } else if (strategy.equals("ARC")) {
+            return new ARCCache(size);
+        }
+        return new TinyLFUCache(size);
+    }
+
+    @Test
+    public void testZipfHitRatio() {
+        int[] trace = zipfTrace(ZIPF_KEYS, ZIPF_EXPONENT, ZIPF_ACCESSES, 42);
+        String[] strategies = { "FIFO", "LRU", "LFU", "TINYLFU", "ARC" };
+        for (int size : ZIPF_CACHE_SIZES) {
+            StringBuilder plain = new StringBuilder();
+            StringBuilder scanned = new StringBuilder();
+            for (String strategy : strategies) {
+                plain.append(String.format(" %s %.1f%%", strategy, 100 * hitRatio(create(strategy, size), trace, 0)));
+                scanned.append(String.format(" %s %.1f%%", strategy,
+                        100 * hitRatio(create(strategy, size), trace, SCAN_INTERVAL)));
+            }
+            System.out.println(String.format("%,6d entries, Zipf GETs:        %s", size, plain));
+            System.out.println(String.format("%,6d entries, with transfers:   %s", size, scanned));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package testing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.CompactKeyIndex;
+import persistent_storage.RecordPointer;
+
+public class CompactKeyIndexTest extends TestCase {
+    @Test
+    public void testPutGetRemove() {
+        CompactKeyIndex index = new CompactKeyIndex();
+        index.put("key", new RecordPointer(1, 100, 20));
+        RecordPointer pointer = index.get("key");
+        assertEquals(1, pointer.getSegmentId());
+        assertEquals(100, pointer.getOffset());
+        assertEquals(20, pointer.getLength());
+
+        index.put("key", new RecordPointer(2, 200, 30));
+        assertEquals(2, index.get("key").getSegmentId());
+        assertEquals(1, index.size());
+
+        assertTrue(index.remove("key"));
+        assertFalse(index.remove("key"));
+        assertNull(index.get("key"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testLongAndEmptyKeys() {
+        CompactKeyIndex index = new CompactKeyIndex();
+        String longKey = "a key that is longer than twenty bytes";
+        String exact = "12345678901234567890";
+        index.put(longKey, new RecordPointer(1, 1, 1));
+        index.put(exact, new RecordPointer(2, 2, 2));
+        index.put("", new RecordPointer(3, 3, 3));
+        assertEquals(1, index.get(longKey).getSegmentId());
+        assertEquals(2, index.get(exact).getSegmentId());
+        assertEquals(3, index.get("").getSegmentId());
+        assertEquals(3, index.size());
+        assertTrue(index.remove(longKey));
+        assertFalse(index.containsKey(longKey));
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        // Random puts and removes over a small key space exercise probing,
+        // resizing and the backward shift on removal
+        CompactKeyIndex index = new CompactKeyIndex();
+        Map<String, Long> expected = new HashMap<String, Long>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            String key = "k" + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, index.remove(key));
+            } else {
+                long offset = random.nextLong();
+                expected.put(key, offset);
+                index.put(key, new RecordPointer(0, offset, 0));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (int i = 0; i < 5000; i++) {
+            String key = "k" + i;
+            RecordPointer pointer = index.get(key);
+            if (expected.containsKey(key)) {
+                assertEquals(expected.get(key).longValue(), pointer.getOffset());
+            } else {
+                assertNull(pointer);
+            }
+        }
+
+        final Map<String, Long> visited = new HashMap<String, Long>();
+        index.forEach(new CompactKeyIndex.Visitor() {
+            public void visit(String key, RecordPointer pointer) {
+                visited.put(key, pointer.getOffset());
+            }
+        });
+        assertEquals(expected, visited);
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertFalse(index.containsKey("k1"));
+    }
+}
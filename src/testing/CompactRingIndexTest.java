@@ -0,0 +1,86 @@
+package testing;
+
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import persistent_storage.CompactRingIndex;
+import persistent_storage.HashRingIndex;
+import persistent_storage.RingIndex;
+
+public class CompactRingIndexTest extends HashRingIndexTest {
+    @Override
+    protected RingIndex createIndex() {
+        return new CompactRingIndex();
+    }
+
+    /** Enough keys to split chunks, with multi-byte keys and long keys kept in the side map */
+    private static String key(int i) {
+        if (i % 7 == 0) {
+            return "a-key-longer-than-twenty-bytes-" + i;
+        } else if (i % 11 == 0) {
+            return "schl\u00fcssel-" + i;
+        }
+        return "k" + i;
+    }
+
+    @Test
+    public void testMatchesSkipList() {
+        RingIndex compact = new CompactRingIndex();
+        RingIndex skipList = new HashRingIndex();
+        for (int i = 0; i < 5000; i++) {
+            compact.add(key(i));
+            skipList.add(key(i));
+        }
+        compact.add("");
+        skipList.add("");
+        for (int i = 0; i < 5000; i += 3) {
+            compact.remove(key(i));
+            skipList.remove(key(i));
+        }
+        // Re-adding a live key or removing a missing one changes nothing
+        compact.add(key(1));
+        compact.remove("missing");
+        assertEquals(skipList.size(), compact.size());
+        assertEquals(collect(skipList.allKeys()), collect(compact.allKeys()));
+
+        BigInteger begin = HashRingIndex.hash(key(100));
+        BigInteger end = HashRingIndex.hash(key(200));
+        assertEquals(collect(skipList.keysInRange(begin, end)), collect(compact.keysInRange(begin, end)));
+        assertEquals(collect(skipList.keysInRange(end, begin)), collect(compact.keysInRange(end, begin)));
+        assertEquals(collect(skipList.keysOutsideRange(begin, end)), collect(compact.keysOutsideRange(begin, end)));
+        assertEquals(collect(skipList.keysOutsideRange(end, begin)), collect(compact.keysOutsideRange(end, begin)));
+        assertEquals(collect(skipList.keysOutsideRange(begin, begin)),
+                collect(compact.keysOutsideRange(begin, begin)));
+
+        compact.clear();
+        assertEquals(0, compact.size());
+        assertFalse(compact.allKeys().hasNext());
+    }
+
+    @Test
+    public void testWalkSurvivesWrites() {
+        RingIndex compact = new CompactRingIndex();
+        for (int i = 0; i < 2000; i++) {
+            compact.add(key(i));
+        }
+        List<String> expected = collect(compact.allKeys());
+        Iterator<String> walk = compact.allKeys();
+        int seen = 0;
+        while (walk.hasNext()) {
+            String key = walk.next();
+            assertEquals(expected.get(seen), key);
+            seen++;
+            if (seen == 300) {
+                // Keys already walked past go away, later ones stay in order
+                for (int i = 0; i < 300; i++) {
+                    compact.remove(expected.get(i));
+                }
+            }
+        }
+        assertEquals(expected.size(), seen);
+        assertEquals(expected.size() - 300, compact.size());
+    }
+}
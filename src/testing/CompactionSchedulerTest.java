@@ -0,0 +1,91 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.CompactionScheduler;
+import persistent_storage.RateLimiter;
+
+public class CompactionSchedulerTest extends TestCase {
+
+    /** Segments with fixed usage; compacting one drops its garbage */
+    private static class FakeStorage implements CompactionScheduler.Compactable {
+        private List<CompactionScheduler.SegmentUsage> usage = new ArrayList<CompactionScheduler.SegmentUsage>();
+        private List<Integer> compacted = new ArrayList<Integer>();
+
+        public synchronized List<CompactionScheduler.SegmentUsage> segmentUsage() {
+            return new ArrayList<CompactionScheduler.SegmentUsage>(usage);
+        }
+
+        public synchronized long compactSegment(int id, RateLimiter limiter) throws InterruptedException {
+            for (int i = 0; i < usage.size(); i++) {
+                CompactionScheduler.SegmentUsage segment = usage.get(i);
+                if (segment.getId() == id) {
+                    long live = segment.getTotalBytes() - segment.getGarbageBytes();
+                    limiter.acquire(live);
+                    usage.set(i, new CompactionScheduler.SegmentUsage(id, live, live));
+                    compacted.add(id);
+                    return segment.getGarbageBytes();
+                }
+            }
+            return 0;
+        }
+    }
+
+    @Test
+    public void testPicksSegmentsByGarbageRatio() throws Exception {
+        FakeStorage storage = new FakeStorage();
+        storage.usage.add(new CompactionScheduler.SegmentUsage(1, 1000, 600)); // 40% garbage
+        storage.usage.add(new CompactionScheduler.SegmentUsage(2, 1000, 100)); // 90% garbage
+        storage.usage.add(new CompactionScheduler.SegmentUsage(3, 1000, 400)); // 60% garbage
+        CompactionScheduler scheduler = new CompactionScheduler("test", storage, 0.5, 0, 1000);
+
+        assertEquals(2, scheduler.getBacklogSegments());
+        assertEquals(1500, scheduler.getBacklogBytes());
+        assertEquals(2, scheduler.runOnce());
+        // Most garbage first, segments below the ratio are left alone
+        assertEquals(2, (int) storage.compacted.get(0));
+        assertEquals(3, (int) storage.compacted.get(1));
+        assertEquals(1500, scheduler.getBytesReclaimed());
+        assertEquals(2, scheduler.getSegmentsCompacted());
+        assertEquals(0, scheduler.getBacklogBytes());
+
+        scheduler.setMinGarbageRatio(0.3);
+        assertEquals(1, scheduler.runOnce());
+        assertEquals(1900, scheduler.getBytesReclaimed());
+    }
+
+    @Test
+    public void testBackgroundThread() throws Exception {
+        FakeStorage storage = new FakeStorage();
+        storage.usage.add(new CompactionScheduler.SegmentUsage(1, 1000, 0));
+        CompactionScheduler scheduler = new CompactionScheduler("test", storage, 0.5, 0, 10);
+        scheduler.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getSegmentsCompacted() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        scheduler.stop();
+        assertEquals(1000, scheduler.getBytesReclaimed());
+    }
+
+    @Test
+    public void testRateLimiter() throws Exception {
+        RateLimiter limiter = new RateLimiter(100 * 1024);
+        long start = System.nanoTime();
+        // The bucket starts empty, so 50 KB takes about half a second
+        for (int i = 0; i < 50; i++) {
+            limiter.acquire(1024);
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("Finished in " + elapsedMs + " ms", elapsedMs >= 400);
+
+        limiter.setBytesPerSecond(0);
+        start = System.nanoTime();
+        limiter.acquire(Long.MAX_VALUE / 2);
+        assertTrue((System.nanoTime() - start) / 1000000 < 100);
+    }
+}
@@ -0,0 +1,180 @@
+package testing;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.DedupStorage;
+import persistent_storage.IPersistentStorage;
+import persistent_storage.LogStructuredStorage;
+import persistent_storage.StorageFactory;
+import persistent_storage.StorageType;
+
+public class DedupStorageTest extends TestCase {
+    private static final String BODY = "Please find the Q3 gas trading forecast attached. Regards, Vince";
+
+    private File directory;
+    private LogStructuredStorage keys;
+    private LogStructuredStorage blobs;
+    private DedupStorage storage;
+
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "dedup-storage-test-" + System.nanoTime());
+        open();
+    }
+
+    private void open() {
+        keys = new LogStructuredStorage("localhost:50000", directory.getPath(),
+                LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES);
+        blobs = new LogStructuredStorage("localhost:50000.blobs", directory.getPath(),
+                LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES);
+        storage = new DedupStorage(keys, blobs, 16);
+    }
+
+    public void tearDown() {
+        keys.close();
+        blobs.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testDuplicatesAreStoredOnce() throws Exception {
+        assertTrue(storage.put("inbox/1", BODY));
+        assertTrue(storage.put("sent/1", BODY));
+        assertTrue(storage.put("archive/1", BODY));
+        assertTrue(storage.put("short", "tiny"));
+
+        assertEquals(BODY, storage.get("inbox/1"));
+        assertEquals(BODY, storage.get("archive/1"));
+        assertEquals("tiny", storage.get("short"));
+        assertEquals(1, storage.getBlobCount());
+        assertEquals(1, blobs.returnAllEntries().size());
+        long length = BODY.length();
+        assertEquals(3 * length + 4, storage.getLogicalBytes());
+        assertEquals(length + 4, storage.getStoredBytes());
+        assertTrue(storage.getDedupRatio() > 2.5);
+
+        Map<String, String> all = storage.returnAllEntries();
+        assertEquals(4, all.size());
+        assertEquals(BODY, all.get("sent/1"));
+        assertEquals(all, storage.hashReachable(BigInteger.ZERO, BigInteger.ZERO));
+    }
+
+    @Test
+    public void testDeletesReleaseBlobs() throws Exception {
+        storage.put("inbox/1", BODY);
+        storage.put("sent/1", BODY);
+
+        // The empty-value PUT path deletes
+        assertTrue(storage.put("inbox/1", ""));
+        assertNull(storage.get("inbox/1"));
+        assertEquals(BODY, storage.get("sent/1"));
+        assertEquals(1, storage.getBlobCount());
+
+        assertTrue(storage.put("sent/1", BODY + " (edited)"));
+        assertEquals(1, storage.getBlobCount());
+        assertEquals(1, blobs.returnAllEntries().size());
+        assertTrue(storage.delete("sent/1"));
+        assertFalse(storage.delete("sent/1"));
+        assertEquals(0, storage.getBlobCount());
+        assertTrue(blobs.returnAllEntries().isEmpty());
+        assertEquals(0, storage.getLogicalBytes());
+        assertEquals(0, storage.getStoredBytes());
+    }
+
+    @Test
+    public void testApplyBatch() throws Exception {
+        storage.put("a", BODY);
+        Map<String, String> batch = new HashMap<String, String>();
+        batch.put("a", "");
+        batch.put("b", BODY);
+        batch.put("c", BODY);
+        batch.put("d", BODY + "!");
+        assertTrue(storage.applyBatch(batch));
+
+        assertNull(storage.get("a"));
+        assertEquals(BODY, storage.get("b"));
+        assertEquals(BODY + "!", storage.get("d"));
+        assertEquals(2, storage.getBlobCount());
+        assertEquals(2, blobs.returnAllEntries().size());
+    }
+
+    @Test
+    public void testReferenceCountsSurviveRestart() throws Exception {
+        storage.put("inbox/1", BODY);
+        storage.put("sent/1", BODY);
+        storage.put("short", "tiny");
+        double ratio = storage.getDedupRatio();
+        keys.close();
+        blobs.close();
+
+        open();
+        assertEquals(1, storage.getBlobCount());
+        assertEquals(ratio, storage.getDedupRatio(), 1e-9);
+        assertTrue(storage.delete("inbox/1"));
+        assertEquals(BODY, storage.get("sent/1"));
+        assertTrue(storage.delete("sent/1"));
+        assertTrue(blobs.returnAllEntries().isEmpty());
+    }
+
+    @Test
+    public void testPlainValuesAreRejected() throws Exception {
+        keys.put("plain", "starts with #3:not a reference");
+        try {
+            new DedupStorage(keys, blobs, 16);
+            fail("Plain value read as a reference");
+        } catch (IllegalStateException e) {
+        }
+        keys.delete("plain");
+        keys.put("plain", "hello");
+        try {
+            new DedupStorage(keys, blobs, 16);
+            fail("Plain value read as an inline value");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testPlainValuesAreMigrated() throws Exception {
+        String server = "localhost:50002";
+        LogStructuredStorage plain = new LogStructuredStorage(server, directory.getPath(),
+                LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES);
+        plain.put("inbox/1", BODY);
+        plain.put("sent/1", BODY);
+        plain.put("hash", "#tag");
+        plain.put("equals", "=x");
+        plain.close();
+
+        System.setProperty("storage.dedup", "true");
+        IPersistentStorage migrated;
+        try {
+            migrated = StorageFactory.createStorage(StorageType.LOG, server, directory.getPath(),
+                    "database.properties");
+        } finally {
+            System.clearProperty("storage.dedup");
+        }
+        try {
+            assertEquals(BODY, migrated.get("sent/1"));
+            assertEquals("#tag", migrated.get("hash"));
+            assertEquals("=x", migrated.get("equals"));
+            assertEquals(1, ((DedupStorage) migrated).getBlobCount());
+        } finally {
+            migrated.close();
+        }
+
+        // The plain backend was emptied, so the next start moves nothing
+        plain = new LogStructuredStorage(server, directory.getPath(), LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES);
+        assertTrue(plain.returnAllEntries().isEmpty());
+        plain.close();
+    }
+}
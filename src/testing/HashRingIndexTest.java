@@ -0,0 +1,87 @@
+package testing;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.HashRingIndex;
+import persistent_storage.RingIndex;
+
+public class HashRingIndexTest extends TestCase {
+    protected RingIndex index;
+
+    protected RingIndex createIndex() {
+        return new HashRingIndex();
+    }
+
+    @Override
+    public void setUp() {
+        index = createIndex();
+        for (int i = 0; i < 500; i++) {
+            index.add("key" + i);
+        }
+    }
+
+    protected static List<String> collect(Iterator<String> keys) {
+        List<String> result = new ArrayList<String>();
+        while (keys.hasNext()) {
+            result.add(keys.next());
+        }
+        return result;
+    }
+
+    /** Same bounds as AbstractPersistentStorage.keyValid */
+    private static boolean reachable(BigInteger begin, BigInteger end, BigInteger hash) {
+        if (begin.compareTo(end) < 0) {
+            return hash.compareTo(begin) > 0 && hash.compareTo(end) < 0;
+        }
+        return hash.compareTo(end) < 0 || hash.compareTo(begin) > 0;
+    }
+
+    private void assertMatchesKeyValid(BigInteger begin, BigInteger end) {
+        List<String> inside = collect(index.keysInRange(begin, end));
+        List<String> outside = collect(index.keysOutsideRange(begin, end));
+        assertEquals(index.size(), inside.size() + outside.size());
+        for (String key : inside) {
+            assertTrue(reachable(begin, end, HashRingIndex.hash(key)));
+        }
+        for (String key : outside) {
+            assertFalse(reachable(begin, end, HashRingIndex.hash(key)));
+        }
+    }
+
+    @Test
+    public void testRangeMatchesKeyValid() {
+        BigInteger begin = HashRingIndex.hash("key10");
+        BigInteger end = HashRingIndex.hash("key20");
+        assertMatchesKeyValid(begin, end);
+        // Reversed bounds wrap around zero
+        assertMatchesKeyValid(end, begin);
+    }
+
+    @Test
+    public void testEqualBounds() {
+        BigInteger bound = HashRingIndex.hash("key42");
+        assertMatchesKeyValid(bound, bound);
+        assertEquals(1, collect(index.keysOutsideRange(bound, bound)).size());
+        assertEquals("key42", collect(index.keysOutsideRange(bound, bound)).get(0));
+    }
+
+    @Test
+    public void testRingOrderAndRemove() {
+        List<String> all = collect(index.allKeys());
+        for (int i = 1; i < all.size(); i++) {
+            assertTrue(HashRingIndex.hash(all.get(i - 1)).compareTo(HashRingIndex.hash(all.get(i))) < 0);
+        }
+        index.remove("key7");
+        Set<String> remaining = new HashSet<String>(collect(index.allKeys()));
+        assertEquals(499, remaining.size());
+        assertFalse(remaining.contains("key7"));
+    }
+}
@@ -0,0 +1,122 @@
+package testing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.CompactKeyIndex;
+import persistent_storage.CompactRingIndex;
+import persistent_storage.HashRingIndex;
+import persistent_storage.RecordPointer;
+import persistent_storage.RingIndex;
+
+/**
+ * Heap bytes per key of CompactKeyIndex against HashMap<String, String> and
+ * the HashMap<String, RecordPointer> LogStructuredStorage used before, and of
+ * the ring index it keeps next to the point index, at 1M and 10M keys of up
+ * to 20 bytes. LogStructuredStorage holds both per key, so their sum is its
+ * per-key heap. The 10M runs need a large heap, e.g. -Xmx4g, and are skipped
+ * when the heap is too small.
+ */
+public class KeyIndexMemoryTest extends TestCase {
+    private static final int[] KEY_COUNTS = { 1000000, 10000000 };
+    // Rough upper bound on HashMap bytes per key, used to skip runs early
+    private static final long MAX_BYTES_PER_KEY = 200;
+
+    /** Keys like the ones clients send, 12 to 20 bytes */
+    private static String key(int i) {
+        return "user" + (1000000000L + i) + (i % 2 == 0 ? "ab" : "abcdef");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static boolean fits(int keys) {
+        if (keys * MAX_BYTES_PER_KEY > Runtime.getRuntime().maxMemory()) {
+            System.out.println(String.format("%,d keys: skipped, run with a larger -Xmx", keys));
+            return false;
+        }
+        return true;
+    }
+
+    private static double stringMap(int keys) {
+        long before = usedHeap();
+        Map<String, String> map = new HashMap<String, String>();
+        String value = "value";
+        for (int i = 0; i < keys; i++) {
+            map.put(key(i), value);
+        }
+        double perKey = (double) (usedHeap() - before) / keys;
+        assertEquals(keys, map.size());
+        return perKey;
+    }
+
+    private static double pointerMap(int keys) {
+        long before = usedHeap();
+        Map<String, RecordPointer> map = new HashMap<String, RecordPointer>();
+        for (int i = 0; i < keys; i++) {
+            map.put(key(i), new RecordPointer(1, i * 64L, 64));
+        }
+        double perKey = (double) (usedHeap() - before) / keys;
+        assertEquals(keys, map.size());
+        return perKey;
+    }
+
+    private static double compactIndex(int keys) {
+        long before = usedHeap();
+        CompactKeyIndex index = new CompactKeyIndex();
+        for (int i = 0; i < keys; i++) {
+            index.put(key(i), new RecordPointer(1, i * 64L, 64));
+        }
+        double perKey = (double) (usedHeap() - before) / keys;
+        assertEquals(keys, index.size());
+        assertEquals(keys / 2 * 64L, index.get(key(keys / 2)).getOffset());
+        return perKey;
+    }
+
+    private static double ringIndex(int keys, RingIndex index) {
+        long before = usedHeap();
+        for (int i = 0; i < keys; i++) {
+            index.add(key(i));
+        }
+        double perKey = (double) (usedHeap() - before) / keys;
+        assertEquals(keys, index.size());
+        return perKey;
+    }
+
+    @Test
+    public void testBytesPerKey() {
+        System.out.println("*** Starting key index memory run ***");
+        for (int keys : KEY_COUNTS) {
+            if (!fits(keys)) {
+                continue;
+            }
+            double strings = stringMap(keys);
+            double pointers = pointerMap(keys);
+            double compact = compactIndex(keys);
+            double skipList = ringIndex(keys, new HashRingIndex());
+            double packed = ringIndex(keys, new CompactRingIndex());
+            System.out.println(String.format(
+                    "%,d keys: HashMap<String,String> %.1f B/key, HashMap<String,RecordPointer> %.1f B/key, "
+                            + "CompactKeyIndex %.1f B/key, HashRingIndex %.1f B/key, CompactRingIndex %.1f B/key",
+                    keys, strings, pointers, compact, skipList, packed));
+            System.out.println(String.format(
+                    "%,d keys: LogStructuredStorage with HashRingIndex %.1f B/key, with CompactRingIndex %.1f B/key",
+                    keys, compact + skipList, compact + packed));
+            assertTrue(compact < pointers);
+            assertTrue(compact + packed < pointers + skipList);
+        }
+    }
+}
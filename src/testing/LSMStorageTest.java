@@ -0,0 +1,189 @@
+package testing;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.DurabilityMode;
+import persistent_storage.LSMStorage;
+
+public class LSMStorageTest extends TestCase {
+    private static final String SERVER_NAME = "localhost:50001";
+    private File directory;
+    private LSMStorage storage;
+
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "lsm-storage-test-" + System.nanoTime());
+        // Tiny memtable so a few puts produce several tables
+        storage = new LSMStorage(SERVER_NAME, directory.getPath(), 512, 2);
+    }
+
+    public void tearDown() {
+        storage.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private LSMStorage reopen() {
+        storage.close();
+        storage = new LSMStorage(SERVER_NAME, directory.getPath(), 512, 2);
+        return storage;
+    }
+
+    /** Wait for the background thread to settle */
+    private void awaitCompaction() throws InterruptedException {
+        for (int i = 0; i < 50 && storage.getTableCount() > 2; i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void testPutGetDelete() {
+        assertTrue(storage.put("key", "value"));
+        assertEquals("value", storage.get("key"));
+        assertTrue(storage.put("key", "updated"));
+        assertEquals("updated", storage.get("key"));
+        assertTrue(storage.delete("key"));
+        assertNull(storage.get("key"));
+        assertFalse(storage.existsCheck("key"));
+        assertFalse(storage.delete("key"));
+    }
+
+    @Test
+    public void testFlushAndCompaction() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            assertTrue(storage.put("key" + i, "value" + i));
+        }
+        for (int i = 0; i < 500; i += 2) {
+            assertTrue(storage.delete("key" + i));
+        }
+        storage.put("key1", "updated");
+        awaitCompaction();
+
+        assertTrue(storage.getTableCount() > 0);
+        assertNull(storage.get("key0"));
+        assertEquals("updated", storage.get("key1"));
+        assertEquals("value499", storage.get("key499"));
+
+        Map<String, String> all = storage.returnAllEntries();
+        assertEquals(250, all.size());
+        assertEquals("value3", all.get("key3"));
+    }
+
+    @Test
+    public void testBloomFilterSkipsMisses() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        awaitCompaction();
+        assertTrue(storage.getTableCount() > 0);
+        assertTrue(storage.getBloomFilterBytes() > 0);
+
+        for (int i = 0; i < 200; i++) {
+            assertNull(storage.get("missing" + i));
+        }
+        // Nearly every table lookup for a missing key is answered in memory
+        assertTrue(storage.getBloomNegatives() >= 150);
+        assertTrue(storage.getBloomExpectedFalsePositiveRate() < 0.2);
+
+        // Filters are persisted and reloaded with the tables
+        reopen();
+        assertEquals("value42", storage.get("key42"));
+        assertNull(storage.get("missing0"));
+        assertTrue(storage.getBloomNegatives() > 0);
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.delete("key5");
+        // Still in the memtable, so this must come back from the write-ahead log
+        storage.put("last", "write");
+
+        reopen();
+
+        assertNull(storage.get("key5"));
+        assertEquals("value199", storage.get("key199"));
+        assertEquals("write", storage.get("last"));
+        assertEquals(200, storage.returnAllEntries().size());
+    }
+
+    @Test
+    public void testWipeStorage() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.wipeStorage();
+        assertNull(storage.get("key1"));
+        assertTrue(storage.returnAllEntries().isEmpty());
+        assertNull(reopen().get("key1"));
+    }
+
+    @Test
+    public void testValueSeparation() throws Exception {
+        storage.close();
+        // Values of 100+ bytes go to 4KB value log segments
+        storage = new LSMStorage(SERVER_NAME, directory.getPath(), 512, 2, 0.01, DurabilityMode.OS_BUFFERED, 1000,
+                100, 4096);
+        String large = PerformanceTest.createDataSize(500);
+        for (int i = 0; i < 50; i++) {
+            storage.put("key" + i, large + i);
+        }
+        storage.put("small", "value");
+        assertEquals(large + 7, storage.get("key7"));
+        assertEquals("value", storage.get("small"));
+        long before = storage.getValueLogBytes();
+        assertTrue(before >= 50 * 500);
+
+        // Overwrite most values so the old segments are mostly garbage
+        for (int i = 0; i < 40; i++) {
+            storage.put("key" + i, large + "new" + i);
+        }
+        storage.delete("key45");
+        assertTrue(storage.collectValueLogGarbage(0.5) > 0);
+        assertTrue(storage.getValueLogBytes() < before + 40 * 500);
+
+        assertEquals(large + "new7", storage.get("key7"));
+        assertEquals(large + 44, storage.get("key44"));
+        assertNull(storage.get("key45"));
+
+        storage.close();
+        storage = new LSMStorage(SERVER_NAME, directory.getPath(), 512, 2, 0.01, DurabilityMode.OS_BUFFERED, 1000,
+                100, 4096);
+        assertEquals(large + "new39", storage.get("key39"));
+        assertEquals(large + 49, storage.get("key49"));
+        Map<String, String> all = storage.returnAllEntries();
+        assertEquals(50, all.size());
+        assertEquals(large + 40, all.get("key40"));
+    }
+
+    @Test
+    public void testApplyBatch() {
+        storage.put("a", "1");
+        storage.put("b", "2");
+        Map<String, String> batch = new HashMap<String, String>();
+        batch.put("a", "");
+        batch.put("b", "updated");
+        batch.put("c", "3");
+        batch.put("missing", null);
+        assertTrue(storage.applyBatch(batch));
+        assertNull(storage.get("a"));
+        assertEquals("updated", storage.get("b"));
+        assertEquals("3", storage.get("c"));
+
+        reopen();
+        assertNull(storage.get("a"));
+        assertEquals("updated", storage.get("b"));
+        assertEquals(2, storage.returnAllEntries().size());
+    }
+}
@@ -0,0 +1,336 @@
+package testing;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.CompactionScheduler;
+import persistent_storage.LogRecord;
+import persistent_storage.LogSegment;
+import persistent_storage.LogStructuredStorage;
+
+public class LogStructuredStorageTest extends TestCase {
+    private static final String SERVER_NAME = "localhost:50000";
+    private File directory;
+    private LogStructuredStorage storage;
+
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "log-storage-test-" + System.nanoTime());
+        storage = new LogStructuredStorage(SERVER_NAME, directory.getPath(), 1024);
+    }
+
+    public void tearDown() {
+        storage.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private LogStructuredStorage reopen() {
+        storage.close();
+        storage = new LogStructuredStorage(SERVER_NAME, directory.getPath(), 1024);
+        return storage;
+    }
+
+    @Test
+    public void testPutGetDelete() {
+        assertTrue(storage.put("key", "value"));
+        assertEquals("value", storage.get("key"));
+        assertTrue(storage.put("key", "updated"));
+        assertEquals("updated", storage.get("key"));
+        assertTrue(storage.delete("key"));
+        assertNull(storage.get("key"));
+        assertFalse(storage.existsCheck("key"));
+        assertFalse(storage.delete("key"));
+    }
+
+    @Test
+    public void testRecoveryReplaysSegments() {
+        // Small segments force several roll overs
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.put("key5", "updated");
+        storage.delete("key7");
+
+        reopen();
+
+        assertEquals("updated", storage.get("key5"));
+        assertNull(storage.get("key7"));
+        assertEquals("value99", storage.get("key99"));
+        assertEquals(99, storage.returnAllEntries().size());
+        assertTrue(directory.listFiles().length > 1);
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws Exception {
+        storage.put("a", "1");
+        storage.put("b", "2");
+
+        // Simulate a crash in the middle of an append
+        File segment = new File(directory, LogSegment.fileName(SERVER_NAME, 1));
+        long validSize = segment.length();
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(validSize);
+        raf.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 });
+        raf.close();
+
+        reopen();
+
+        assertEquals("1", storage.get("a"));
+        assertEquals("2", storage.get("b"));
+        assertEquals(validSize, segment.length());
+        assertTrue(storage.put("c", "3"));
+        assertEquals("3", reopen().get("c"));
+    }
+
+    @Test
+    public void testHashRanges() {
+        for (int i = 0; i < 50; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        BigInteger begin = storage.MD5Hash("key10");
+        BigInteger end = storage.MD5Hash("key20");
+        Map<String, String> reachable = storage.hashReachable(begin, end);
+        Map<String, String> unreachable = storage.hashUnreachable(begin, end);
+
+        assertEquals(50, reachable.size() + unreachable.size());
+        for (String key : reachable.keySet()) {
+            assertTrue(storage.keyValid(begin, end, storage.MD5Hash(key)));
+        }
+    }
+
+    @Test
+    public void testRangeIterator() {
+        for (int i = 0; i < 50; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        BigInteger begin = storage.MD5Hash("key10");
+        BigInteger end = storage.MD5Hash("key20");
+        Map<String, String> reachable = storage.hashReachable(begin, end);
+
+        Iterator<Map.Entry<String, String>> cursor = storage.rangeIterator(begin, end, true);
+        int count = 0;
+        while (cursor.hasNext()) {
+            Map.Entry<String, String> entry = cursor.next();
+            assertEquals(reachable.get(entry.getKey()), entry.getValue());
+            // Deleting behind the cursor does not disturb the walk
+            storage.delete(entry.getKey());
+            count++;
+        }
+        assertEquals(reachable.size(), count);
+        assertTrue(storage.hashReachable(begin, end).isEmpty());
+
+        Iterator<Map.Entry<String, String>> all = storage.entryIterator();
+        count = 0;
+        while (all.hasNext()) {
+            all.next();
+            count++;
+        }
+        assertEquals(50 - reachable.size(), count);
+    }
+
+    @Test
+    public void testCheckpointRecovery() {
+        // 1024-byte segments, so this rolls several times and checkpoints
+        for (int i = 0; i < 200; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        storage.delete("key3");
+        storage.put("key4", "updated");
+
+        reopen();
+        assertNull(storage.get("key3"));
+        assertEquals("updated", storage.get("key4"));
+        assertEquals("value199", storage.get("key199"));
+        assertEquals(199, storage.returnAllEntries().size());
+
+        // A damaged checkpoint falls back to a full replay
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".index.checkpoint.data")) {
+                try {
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    raf.seek(20);
+                    raf.write(0x7f);
+                    raf.close();
+                } catch (Exception e) {
+                    fail(e.getMessage());
+                }
+            }
+        }
+        reopen();
+        assertEquals(199, storage.returnAllEntries().size());
+        assertEquals("updated", storage.get("key4"));
+    }
+
+    private static Map<Integer, Long> garbageBytes(LogStructuredStorage storage) {
+        Map<Integer, Long> garbage = new HashMap<Integer, Long>();
+        for (CompactionScheduler.SegmentUsage usage : storage.segmentUsage()) {
+            garbage.put(usage.getId(), usage.getGarbageBytes());
+        }
+        return garbage;
+    }
+
+    @Test
+    public void testCheckpointKeepsTombstoneBytes() {
+        storage.close();
+        // A garbage ratio above 1 keeps compaction from changing the segments
+        storage = new LogStructuredStorage(SERVER_NAME, directory.getPath(), 1024, 2.0, 0);
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            storage.delete("key" + i);
+        }
+        // Seal the segments holding the tombstones
+        for (int i = 100; i < 150; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        Map<Integer, Long> before = garbageBytes(storage);
+        assertTrue(before.size() > 2);
+
+        storage.close();
+        storage = new LogStructuredStorage(SERVER_NAME, directory.getPath(), 1024, 2.0, 0);
+        assertEquals(before, garbageBytes(storage));
+        assertEquals(100, storage.returnAllEntries().size());
+    }
+
+    @Test
+    public void testSealedSegmentReads() throws Exception {
+        directory.mkdirs();
+        LogSegment segment = new LogSegment(new File(directory, "sealed.data"), 1);
+        long first = segment.append(LogRecord.encode("a", "1"));
+        long second = segment.append(LogRecord.encode("b", "22"));
+        int length = (int) (segment.size() - second);
+        segment.seal();
+        assertTrue(segment.isSealed());
+
+        // Served from the mapping
+        assertEquals("1", LogRecord.decode(segment.read(first, (int) second)).getValue());
+        assertEquals("22", LogRecord.decode(segment.read(second, length)).getValue());
+        try {
+            segment.append(LogRecord.encode("c", "3"));
+            fail("Appended to a sealed segment");
+        } catch (java.io.IOException e) {
+            // Expected
+        }
+        segment.close();
+
+        // Values in rolled segments stay readable through the storage
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, storage.get("key" + i));
+        }
+    }
+
+    @Test
+    public void testCompressedValues() {
+        String value = "Please find attached the quarterly report. ".repeat(100);
+        int previous = LogRecord.getCompressionThreshold();
+        LogRecord.setCompressionThreshold(1024);
+        try {
+            storage.put("compressed", value);
+            storage.put("small", "tiny");
+        } finally {
+            LogRecord.setCompressionThreshold(previous);
+        }
+        long onDisk = 0;
+        for (File file : directory.listFiles()) {
+            onDisk += file.length();
+        }
+        assertTrue(onDisk < value.length() / 4);
+
+        // Compressed records decode whatever the current threshold is
+        assertEquals(value, storage.get("compressed"));
+        assertEquals(value, reopen().get("compressed"));
+        assertEquals("tiny", storage.get("small"));
+    }
+
+    @Test
+    public void testWipeStorage() {
+        storage.put("a", "1");
+        storage.wipeStorage();
+        assertNull(storage.get("a"));
+        assertNull(reopen().get("a"));
+    }
+
+    @Test
+    public void testApplyBatch() {
+        storage.put("a", "1");
+        storage.put("b", "2");
+        Map<String, String> batch = new HashMap<String, String>();
+        batch.put("a", "");
+        batch.put("b", "updated");
+        batch.put("c", "3");
+        batch.put("missing", null);
+        assertTrue(storage.applyBatch(batch));
+        assertNull(storage.get("a"));
+        assertEquals("updated", storage.get("b"));
+        assertEquals("3", storage.get("c"));
+
+        reopen();
+        assertNull(storage.get("a"));
+        assertEquals("updated", storage.get("b"));
+        assertEquals(2, storage.returnAllEntries().size());
+    }
+
+    private long directoryBytes() {
+        long bytes = 0;
+        for (File file : directory.listFiles()) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        // Every key is overwritten ten times, so old segments are mostly garbage
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 20; i++) {
+                storage.put("key" + i, "value" + i + "-" + round);
+            }
+        }
+        storage.delete("key0");
+        storage.delete("key1");
+        storage.put("key1", "revived");
+        long before = directoryBytes();
+        assertTrue(storage.getCompactionScheduler().getBacklogSegments() > 0);
+
+        storage.getCompactionScheduler().runOnce();
+        assertTrue(storage.getCompactionScheduler().getBytesReclaimed() > 0);
+        assertEquals(0, storage.getCompactionScheduler().getBacklogBytes());
+        assertTrue(directoryBytes() < before);
+        assertNull(storage.get("key0"));
+        assertEquals("revived", storage.get("key1"));
+        assertEquals("value7-9", storage.get("key7"));
+        assertEquals(19, storage.returnAllEntries().size());
+
+        // Rewritten segments replay to the same state with or without the checkpoint
+        reopen();
+        assertNull(storage.get("key0"));
+        assertEquals("value7-9", storage.get("key7"));
+        assertEquals(19, storage.returnAllEntries().size());
+        storage.close();
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".index.checkpoint.data")) {
+                file.delete();
+            }
+        }
+        storage = new LogStructuredStorage(SERVER_NAME, directory.getPath(), 1024);
+        assertNull(storage.get("key0"));
+        assertEquals("revived", storage.get("key1"));
+        assertEquals(19, storage.returnAllEntries().size());
+    }
+}
@@ -1,9 +1,15 @@
 package testing;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.junit.Test;
 
 import client.KVStore;
 import junit.framework.TestCase;
+import shared.communication.AdminMessage;
+import shared.communication.AdminMessage.MessageType;
 import shared.communication.KVMessage;
 import shared.communication.IKVMessage.StatusType;
 
@@ -80,4 +86,93 @@ public class MessageTest extends TestCase {
 
         assertTrue(ex != null && msg == null);
     }
+
+    @Test
+    public void testCompressedTransferPayload() {
+        Map<String, String> data = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            data.put("key" + i, "Subject: status update\n".repeat(20) + i);
+        }
+        AdminMessage msg = new AdminMessage(MessageType.TRANSFER_DATA, null, data, "/root/localhost:50000");
+        byte[] bytes = msg.toBytes();
+
+        // Repetitive values should shrink well below their raw size
+        int rawSize = 0;
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            rawSize += entry.getKey().length() + entry.getValue().length();
+        }
+        assertTrue(bytes.length < rawSize / 2);
+
+        AdminMessage received = new AdminMessage(new String(bytes, StandardCharsets.US_ASCII));
+        assertEquals(data, received.getMsgKeyValue());
+        assertEquals("/root/localhost:50000", received.getSendingServer());
+    }
+
+    @Test
+    public void testCorruptPayloadIsRejected() {
+        String sep = String.valueOf((char) 0x1F);
+        String[] payloads = { "snappy:AAAA", "snappy:not base64" };
+        for (String payload : payloads) {
+            try {
+                new AdminMessage("TRANSFER_DATA" + sep + "null" + sep + payload + sep + "\"/root/localhost:50000\"");
+                fail("Corrupt payload " + payload + " was accepted");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testTtlRoundTrip() throws Exception {
+        KVMessage msg = new KVMessage(StatusType.PUT, "session", "token", 30000);
+        KVMessage received = new KVMessage(msg.getMsgBytes());
+        assertEquals("token", received.getValue());
+        assertEquals(30000, received.getTtlMs());
+
+        // Messages without a TTL keep their old format
+        KVMessage plain = new KVMessage(new KVMessage(StatusType.PUT, "session", "token").getMsgBytes());
+        assertEquals("token", plain.getValue());
+        assertEquals(0, plain.getTtlMs());
+    }
+
+    @Test
+    public void testTransferExpiries() {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("session", "token");
+        data.put("profile", "alice");
+        Map<String, Long> expiries = new HashMap<String, Long>();
+        expiries.put("session", 1700000000000L);
+        AdminMessage msg = new AdminMessage(MessageType.REPLICATE_DATA, null, data, "/root/localhost:50000",
+                expiries);
+
+        AdminMessage received = new AdminMessage(new String(msg.toBytes(), StandardCharsets.US_ASCII));
+        assertEquals(data, received.getMsgKeyValue());
+        assertEquals(expiries, received.getMsgExpiries());
+
+        AdminMessage plain = new AdminMessage(MessageType.REPLICATE_DATA, null, data, "/root/localhost:50000");
+        assertNull(new AdminMessage(new String(plain.toBytes(), StandardCharsets.US_ASCII)).getMsgExpiries());
+    }
+
+    @Test
+    public void testAdminMessageSequence() {
+        AdminMessage confirm = new AdminMessage(MessageType.REPLICATE_COMPLETE, null, "/root/localhost:50000", null,
+                42);
+        AdminMessage received = new AdminMessage(new String(confirm.toBytes(), StandardCharsets.US_ASCII));
+        assertEquals(42, received.getMsgSequence());
+        assertNull(received.getMsgKeyValue());
+        assertNull(received.getMsgExpiries());
+
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("key", "value");
+        Map<String, Long> expiries = new HashMap<String, Long>();
+        expiries.put("key", 1234L);
+        AdminMessage replica = new AdminMessage(MessageType.REPLICATE_DATA, data, "/root/localhost:50000", expiries,
+                7);
+        received = new AdminMessage(new String(replica.toBytes(), StandardCharsets.US_ASCII));
+        assertEquals(7, received.getMsgSequence());
+        assertEquals(expiries, received.getMsgExpiries());
+
+        AdminMessage plain = new AdminMessage(MessageType.REPLICATE_DATA, null, data, "/root/localhost:50000");
+        assertEquals(0, new AdminMessage(new String(plain.toBytes(), StandardCharsets.US_ASCII)).getMsgSequence());
+    }
 }
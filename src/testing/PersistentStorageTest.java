@@ -0,0 +1,240 @@
+package testing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.DurabilityMode;
+import persistent_storage.PersistentStorage;
+
+public class PersistentStorageTest extends TestCase {
+    private static final String DATA_DIRECTORY = "./data";
+    private static final String DATABASE_NAME = "database.properties";
+    private String serverName;
+    private PersistentStorage storage;
+
+    public void setUp() {
+        serverName = "persistent-storage-test-" + System.nanoTime();
+        storage = new PersistentStorage(serverName, DurabilityMode.OS_BUFFERED, 1000);
+    }
+
+    public void tearDown() {
+        storage.close();
+        File[] files = new File(DATA_DIRECTORY).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(serverName)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private PersistentStorage reopen() {
+        storage.close();
+        storage = new PersistentStorage(serverName, DATABASE_NAME, DurabilityMode.OS_BUFFERED, 1000);
+        return storage;
+    }
+
+    @Test
+    public void testPutGetDelete() {
+        assertTrue(storage.put("key", "value"));
+        assertEquals("value", storage.get("key"));
+        assertTrue(storage.existsCheck("key"));
+        assertTrue(storage.delete("key"));
+        assertNull(storage.get("key"));
+        assertFalse(storage.delete("key"));
+
+        storage.put("kept", "value");
+        reopen();
+        assertEquals("value", storage.get("kept"));
+        assertFalse(storage.existsCheck("key"));
+    }
+
+    private Properties readPropertiesFile() throws Exception {
+        Properties properties = new Properties();
+        FileInputStream in = new FileInputStream(new File(DATA_DIRECTORY, serverName + "." + DATABASE_NAME));
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    @Test
+    public void testPropertiesFileIsCurrent() throws Exception {
+        storage.put("key", "value");
+        storage.put("spaced key", "a=b #c");
+        storage.put("key", "updated");
+        storage.delete("spaced key");
+        // Visible right away, without waiting for a checkpoint
+        Properties properties = readPropertiesFile();
+        assertEquals(1, properties.size());
+        assertEquals("updated", properties.getProperty("key"));
+
+        storage.put("spaced key", "again");
+        reopen();
+        storage.put("key", "reopened");
+        storage.close();
+        properties = readPropertiesFile();
+        assertEquals(2, properties.size());
+        assertEquals("reopened", properties.getProperty("key"));
+        assertEquals("again", properties.getProperty("spaced key"));
+
+        // Loaded from the properties file when there is no snapshot
+        new File(DATA_DIRECTORY, serverName + "." + DATABASE_NAME + ".checkpoint.data").delete();
+        new File(DATA_DIRECTORY, serverName + "." + DATABASE_NAME + ".wal.data").delete();
+        storage = new PersistentStorage(serverName, DATABASE_NAME, DurabilityMode.OS_BUFFERED, 1000);
+        assertEquals("reopened", storage.get("key"));
+        assertEquals("again", storage.get("spaced key"));
+        assertEquals(2, storage.returnAllEntries().size());
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final int threads = 8;
+        final int perThread = 250;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            writers[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        String key = "key" + id + "-" + i;
+                        assertTrue(storage.put(key, "value" + i));
+                        // Every thread also overwrites and deletes a shared key
+                        storage.put("shared" + (i % 10), key);
+                        if (i % 5 == 0) {
+                            assertTrue(storage.delete(key));
+                        }
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        int expected = threads * (perThread - perThread / 5) + 10;
+        assertEquals(expected, storage.returnAllEntries().size());
+        String shared = storage.get("shared3");
+
+        reopen();
+        assertEquals(expected, storage.returnAllEntries().size());
+        assertEquals(shared, storage.get("shared3"));
+        assertEquals("value1", storage.get("key7-1"));
+        assertNull(storage.get("key7-5"));
+    }
+
+    @Test
+    public void testApplyBatch() {
+        storage.put("a", "1");
+        storage.put("b", "2");
+        Map<String, String> batch = new HashMap<String, String>();
+        batch.put("a", "");
+        batch.put("b", "updated");
+        batch.put("c", "3");
+        batch.put("missing", null);
+        assertTrue(storage.applyBatch(batch));
+        assertNull(storage.get("a"));
+        assertEquals("updated", storage.get("b"));
+        assertEquals("3", storage.get("c"));
+
+        reopen();
+        assertNull(storage.get("a"));
+        assertEquals("updated", storage.get("b"));
+        assertEquals(2, storage.returnAllEntries().size());
+    }
+
+    private PersistentStorage reopenLazily(int valueCacheSize) {
+        storage.close();
+        storage = new PersistentStorage(serverName, DATABASE_NAME, DurabilityMode.OS_BUFFERED, 1000, true,
+                valueCacheSize);
+        return storage;
+    }
+
+    @Test
+    public void testLazyLoad() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value " + i + " = ü");
+        }
+        // Cache smaller than the reads, so values are decoded again
+        reopenLazily(4);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value " + i + " = ü", storage.get("key" + i));
+        }
+        assertTrue(storage.existsCheck("key42"));
+        assertTrue(storage.put("key1", "updated"));
+        assertTrue(storage.delete("key2"));
+        assertFalse(storage.delete("key2"));
+        assertTrue(storage.put("new", "value"));
+        assertEquals("updated", storage.get("key1"));
+        assertNull(storage.get("key2"));
+        assertFalse(storage.existsCheck("key2"));
+        assertEquals(100, storage.returnAllEntries().size());
+
+        // A checkpoint moves the writes into a new snapshot
+        storage.forceCheckpoint();
+        assertEquals("updated", storage.get("key1"));
+        assertNull(storage.get("key2"));
+        assertEquals("value", storage.get("new"));
+        assertEquals(100, storage.returnAllEntries().size());
+
+        // Files written from a lazy snapshot load the same way eagerly
+        reopen();
+        assertEquals("updated", storage.get("key1"));
+        assertEquals("value 7 = ü", storage.get("key7"));
+        assertEquals(100, storage.returnAllEntries().size());
+        storage.close();
+        new File(DATA_DIRECTORY, serverName + "." + DATABASE_NAME + ".checkpoint.data").delete();
+        storage = new PersistentStorage(serverName, DATABASE_NAME, DurabilityMode.OS_BUFFERED, 1000, true, 4);
+        assertEquals("value 7 = ü", storage.get("key7"));
+        assertNull(storage.get("key2"));
+        assertEquals(100, storage.returnAllEntries().size());
+    }
+
+    @Test
+    public void testArchiveTier() throws Exception {
+        storage.close();
+        storage = new PersistentStorage(serverName, DATABASE_NAME, DurabilityMode.OS_BUFFERED, 1000, false, 4, 50);
+        for (int i = 0; i < 1000; i++) {
+            storage.put("key" + i, "value " + i + " of a rarely read mailbox");
+        }
+        Thread.sleep(100);
+        // Read recently, so they stay hot
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value " + i + " of a rarely read mailbox", storage.get("key" + i));
+        }
+        assertEquals(990, storage.archiveColdKeys());
+        assertEquals(990, storage.getArchivedCount());
+
+        // A GET promotes, a PUT or DELETE replaces the archived value
+        assertEquals("value 500 of a rarely read mailbox", storage.get("key500"));
+        assertTrue(storage.put("key501", "updated"));
+        assertTrue(storage.delete("key502"));
+        assertEquals(987, storage.getArchivedCount());
+        assertEquals("updated", storage.get("key501"));
+        assertNull(storage.get("key502"));
+        assertTrue(storage.existsCheck("key503"));
+        assertEquals(999, storage.returnAllEntries().size());
+
+        // The archive index is checkpointed with the hot tier
+        reopen();
+        assertEquals(987, storage.getArchivedCount());
+        assertEquals("value 600 of a rarely read mailbox", storage.get("key600"));
+        assertEquals("value 500 of a rarely read mailbox", storage.get("key500"));
+        assertEquals("updated", storage.get("key501"));
+        assertNull(storage.get("key502"));
+        assertEquals(999, storage.returnAllEntries().size());
+        reopenLazily(4);
+        assertEquals("value 700 of a rarely read mailbox", storage.get("key700"));
+        assertEquals(999, storage.returnAllEntries().size());
+    }
+}
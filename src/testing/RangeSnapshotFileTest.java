@@ -0,0 +1,188 @@
+package testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.LogStructuredStorage;
+import persistent_storage.RangeSnapshotFile;
+import persistent_storage.VersionedStorage;
+
+public class RangeSnapshotFileTest extends TestCase {
+    private File directory;
+    private LogStructuredStorage source;
+    private LogStructuredStorage target;
+    private VersionedStorage storage;
+
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "range-snapshot-test-" + System.nanoTime());
+        source = new LogStructuredStorage("localhost:50000", new File(directory, "source").getPath(),
+                LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES);
+        target = new LogStructuredStorage("localhost:50001", new File(directory, "target").getPath(),
+                LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES);
+        storage = new VersionedStorage(source);
+    }
+
+    public void tearDown() {
+        source.close();
+        target.close();
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Half of the ring, wrapping around zero */
+    private static final BigInteger BEGIN = BigInteger.ONE.shiftLeft(127).add(BigInteger.ONE.shiftLeft(126));
+    private static final BigInteger END = BigInteger.ONE.shiftLeft(126);
+
+    private void fill(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            storage.put("key" + i, "value" + i + "-" + "abcdefghij");
+        }
+    }
+
+    private File export(boolean compress) throws IOException {
+        File file = new File(directory, "range.snapshot");
+        VersionedStorage.Snapshot snapshot = storage.openSnapshot();
+        try {
+            snapshot.exportRange(BEGIN, END, file, compress);
+        } finally {
+            snapshot.release();
+        }
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        fill(5000);
+        Map<String, String> expected = source.hashReachable(BEGIN, END);
+        File file = export(false);
+
+        RangeSnapshotFile loaded = RangeSnapshotFile.ingest(file, target);
+        assertEquals(expected.size(), loaded.getEntries());
+        assertEquals(BEGIN, loaded.getBegin());
+        assertEquals(END, loaded.getEnd());
+        assertEquals(expected, target.returnAllEntries());
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        fill(5000);
+        File plain = export(false);
+        long plainLength = plain.length();
+        File compressed = export(true);
+
+        assertTrue(compressed.length() < plainLength);
+        RangeSnapshotFile verified = RangeSnapshotFile.verify(compressed);
+        assertTrue(verified.isCompressed());
+        RangeSnapshotFile.ingest(compressed, target);
+        assertEquals(source.hashReachable(BEGIN, END), target.returnAllEntries());
+    }
+
+    @Test
+    public void testSnapshotIsConsistent() throws Exception {
+        fill(100);
+        Map<String, String> expected = source.hashReachable(BEGIN, END);
+        VersionedStorage.Snapshot snapshot = storage.openSnapshot();
+        // Writes after the snapshot was taken must not show up in the file
+        for (String key : expected.keySet()) {
+            storage.delete(key);
+        }
+        File file = new File(directory, "range.snapshot");
+        snapshot.exportRange(BEGIN, END, file, true);
+        snapshot.release();
+
+        VersionedStorage importer = new VersionedStorage(target);
+        importer.beginImport();
+        importer.importRange(file);
+        assertEquals(expected, target.returnAllEntries());
+    }
+
+    @Test
+    public void testImportKeepsNewerKeys() throws Exception {
+        fill(100);
+        Map<String, String> expected = source.hashReachable(BEGIN, END);
+        File file = export(true);
+
+        // Written by a transfer that arrived before the import
+        String transferred = expected.keySet().iterator().next();
+        VersionedStorage importer = new VersionedStorage(target);
+        importer.beginImport();
+        importer.put(transferred, "newer");
+        importer.importRange(file);
+        assertFalse(importer.isImportExpected());
+        expected.put(transferred, "newer");
+        assertEquals(expected, target.returnAllEntries());
+    }
+
+    @Test
+    public void testImportKeepsDeletes() throws Exception {
+        fill(100);
+        Map<String, String> expected = source.hashReachable(BEGIN, END);
+        File file = export(true);
+
+        // Deleted by a replica, a batch or a client before the import
+        Iterator<String> keys = expected.keySet().iterator();
+        String replicaDeleted = keys.next();
+        String batchDeleted = keys.next();
+        String clientDeleted = keys.next();
+        VersionedStorage importer = new VersionedStorage(target);
+        importer.beginImport();
+        importer.put(replicaDeleted, "replica");
+        importer.delete(replicaDeleted);
+        Map<String, String> batch = new HashMap<String, String>();
+        batch.put(batchDeleted, "");
+        importer.applyBatch(batch);
+        importer.delete(clientDeleted);
+        importer.importRange(file);
+        expected.remove(replicaDeleted);
+        expected.remove(batchDeleted);
+        expected.remove(clientDeleted);
+        assertEquals(expected, target.returnAllEntries());
+
+        // Without an expected import nothing is loaded
+        try {
+            importer.importRange(file);
+            fail("Imported without knowing the writes since seeding began");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testCorruptFileIsRejected() throws Exception {
+        fill(5000);
+        File file = export(true);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(file.length() / 2);
+            int b = raf.read();
+            raf.seek(file.length() / 2);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        try {
+            RangeSnapshotFile.ingest(file, target);
+            fail("Corrupt snapshot was ingested");
+        } catch (IOException e) {
+            // Expected, and nothing may have been written
+        }
+        assertTrue(target.returnAllEntries().isEmpty());
+    }
+}
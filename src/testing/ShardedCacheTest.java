@@ -0,0 +1,62 @@
+package testing;
+
+import org.junit.Test;
+
+import app_kvServer.kvCache.ShardedCache;
+import app_kvServer.kvCache.kvCacheOperator;
+import junit.framework.TestCase;
+
+public class ShardedCacheTest extends TestCase {
+    @Test
+    public void testSegmentsShareTheCapacity() {
+        ShardedCache cache = new ShardedCache(100, "LRU", 8);
+        for (int i = 0; i < 1000; i++) {
+            cache.write("key" + i, "value" + i);
+        }
+        // Each segment evicts on its own but never holds more than its share
+        assertTrue(cache.getCurrentLoad() <= 100);
+        assertTrue(cache.getCurrentLoad() > 50);
+        assertEquals(100, cache.getCacheCapacity());
+        assertEquals("value999", cache.read("key999"));
+    }
+
+    @Test
+    public void testReadWriteDelete() {
+        ShardedCache cache = new ShardedCache(1000, "LFU", 4);
+        cache.write("a", "1");
+        cache.write("b", "2");
+        assertEquals("1", cache.read("a"));
+        assertTrue(cache.inCache("b"));
+
+        cache.delete("a");
+        assertNull(cache.read("a"));
+        assertEquals(1, cache.getCurrentLoad());
+
+        cache.clearCache();
+        assertEquals(0, cache.getCurrentLoad());
+        assertFalse(cache.inCache("b"));
+    }
+
+    @Test
+    public void testOperatorShardsOnRequest() {
+        kvCacheOperator unsharded = new kvCacheOperator(100000, "LRU");
+        unsharded.putCache("a", "1");
+        assertEquals("1", unsharded.getCache("a"));
+
+        System.setProperty("cache.segments", "16");
+        try {
+            kvCacheOperator small = new kvCacheOperator(5, "FIFO");
+            small.putCache("a", "1");
+            assertEquals("1", small.getCache("a"));
+
+            kvCacheOperator large = new kvCacheOperator(100000, "LRU");
+            for (int i = 0; i < 1000; i++) {
+                large.putCache("key" + i, "value" + i);
+            }
+            assertEquals("value500", large.getCache("key500"));
+            assertNull(large.getCache("missing"));
+        } finally {
+            System.clearProperty("cache.segments");
+        }
+    }
+}
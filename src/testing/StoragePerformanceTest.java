@@ -0,0 +1,260 @@
+package testing;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.DurabilityMode;
+import persistent_storage.IPersistentStorage;
+import persistent_storage.LSMStorage;
+import persistent_storage.LogStructuredStorage;
+import persistent_storage.PersistentStorage;
+
+/**
+ * Throughput of PersistentStorage with 1 to 16 client threads, 80% GETs and
+ * 20% PUTs over a shared key space. Each run is compared against the same
+ * storage behind a single lock. That is a stand-in for the storage from
+ * before lock striping, whose methods were all synchronized on the instance:
+ * it serializes calls the same way, but runs today's read and write paths,
+ * so it measures the lock and not the old code.
+ *
+ * testTransferAbsorb times how long each backend takes to absorb a 10k key
+ * transfer chunk key by key (the old KVServer path) and with applyBatch.
+ *
+ * testLazyStartup times a PersistentStorage restart with every value loaded
+ * against one that only indexes the keys (lazyLoad).
+ */
+public class StoragePerformanceTest extends TestCase {
+    private static final String DATA_DIRECTORY = "./data";
+    private static final int KEYS = 10000;
+    private static final int OPS_PER_THREAD = 50000;
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16 };
+    private static final int TRANSFER_KEYS = 10000;
+
+    private String serverName;
+    private PersistentStorage storage;
+    private String value;
+
+    public void setUp() {
+        serverName = "storage-performance-test-" + System.nanoTime();
+        storage = new PersistentStorage(serverName, DurabilityMode.OS_BUFFERED, 1000);
+        value = PerformanceTest.createDataSize(100);
+        for (int i = 0; i < KEYS; i++) {
+            storage.put("key" + i, value);
+        }
+        System.out.println("*** Starting storage performance run ***");
+    }
+
+    public void tearDown() {
+        storage.close();
+        File[] files = new File(DATA_DIRECTORY).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(serverName)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Serializes every call on top of the striped storage, a stand-in for the
+     * fully synchronized storage before lock striping
+     */
+    private static class SingleLock {
+        private final PersistentStorage storage;
+
+        SingleLock(PersistentStorage storage) {
+            this.storage = storage;
+        }
+
+        synchronized String get(String key) {
+            return storage.get(key);
+        }
+
+        synchronized boolean put(String key, String value) {
+            return storage.put(key, value);
+        }
+    }
+
+    /**
+     * Run OPS_PER_THREAD operations on each of the given number of threads.
+     *
+     * @param lock Run through a single lock, or null to call storage directly
+     * @return Operations per second
+     */
+    private double run(int threads, final SingleLock lock) throws InterruptedException {
+        Thread[] clients = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            clients[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        String key = "key" + random.nextInt(KEYS);
+                        boolean isGet = random.nextInt(10) < 8;
+                        if (lock == null) {
+                            if (isGet) {
+                                storage.get(key);
+                            } else {
+                                storage.put(key, value);
+                            }
+                        } else {
+                            if (isGet) {
+                                lock.get(key);
+                            } else {
+                                lock.put(key, value);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread client : clients) {
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return threads * OPS_PER_THREAD / seconds;
+    }
+
+    @Test
+    public void testThroughputScaling() throws InterruptedException {
+        SingleLock lock = new SingleLock(storage);
+        // Warm up
+        run(4, null);
+        run(4, lock);
+
+        for (int threads : THREAD_COUNTS) {
+            double striped = run(threads, null);
+            double single = run(threads, lock);
+            System.out.println(String.format("%2d threads: striped %,.0f ops/s, single lock %,.0f ops/s (%.2fx)",
+                    threads, striped, single, striped / single));
+        }
+        assertEquals(KEYS, storage.returnAllEntries().size());
+    }
+
+    private IPersistentStorage open(String backend, String name, File directory) {
+        if (backend.equals("PROPERTIES")) {
+            return new PersistentStorage(name, DurabilityMode.FSYNC_BATCH, 1000);
+        } else if (backend.equals("LOG")) {
+            return new LogStructuredStorage(name, directory.getPath(), LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES);
+        }
+        return new LSMStorage(name, directory.getPath(), LSMStorage.DEFAULT_MEMTABLE_BYTES,
+                LSMStorage.DEFAULT_COMPACTION_THRESHOLD, LSMStorage.DEFAULT_BLOOM_FALSE_POSITIVE_RATE,
+                DurabilityMode.FSYNC_BATCH, 1000);
+    }
+
+    private static void close(IPersistentStorage storage) {
+        if (storage instanceof PersistentStorage) {
+            ((PersistentStorage) storage).close();
+        } else if (storage instanceof LogStructuredStorage) {
+            ((LogStructuredStorage) storage).close();
+        } else if (storage instanceof LSMStorage) {
+            ((LSMStorage) storage).close();
+        }
+    }
+
+    private static void deleteFiles(File directory, String prefix) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(prefix)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Absorb one transfer chunk into a fresh store.
+     *
+     * @param batched Use applyBatch, or put each key like the old handlers
+     * @return Milliseconds taken
+     */
+    private long absorb(String backend, Map<String, String> transfer, boolean batched) throws Exception {
+        String name = serverName + "-" + backend + "-" + batched;
+        File directory = new File(System.getProperty("java.io.tmpdir"), name);
+        IPersistentStorage target = open(backend, name, directory);
+        try {
+            long start = System.nanoTime();
+            if (batched) {
+                assertTrue(target.applyBatch(transfer));
+            } else {
+                for (Map.Entry<String, String> entry : transfer.entrySet()) {
+                    assertTrue(target.put(entry.getKey(), entry.getValue()));
+                }
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            assertEquals(TRANSFER_KEYS, target.returnAllEntries().size());
+            return elapsed;
+        } finally {
+            close(target);
+            deleteFiles(directory, name);
+            directory.delete();
+            deleteFiles(new File(DATA_DIRECTORY), name);
+        }
+    }
+
+    @Test
+    public void testTransferAbsorb() throws Exception {
+        Map<String, String> transfer = new HashMap<String, String>();
+        String payload = PerformanceTest.createDataSize(1024);
+        for (int i = 0; i < TRANSFER_KEYS; i++) {
+            transfer.put("transfer" + i, payload);
+        }
+        for (String backend : new String[] { "PROPERTIES", "LOG", "LSM" }) {
+            long perKey = absorb(backend, transfer, false);
+            long batched = absorb(backend, transfer, true);
+            System.out.println(String.format("%s: %,d key transfer absorbed in %,d ms key by key, %,d ms batched",
+                    backend, TRANSFER_KEYS, perKey, batched));
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void testLazyStartup() throws Exception {
+        String name = serverName + "-startup";
+        String payload = PerformanceTest.createDataSize(2048);
+        PersistentStorage source = new PersistentStorage(name, DurabilityMode.OS_BUFFERED, 1000);
+        Map<String, String> chunk = new HashMap<String, String>();
+        for (int i = 0; i < 100000; i++) {
+            chunk.put("startup" + i, payload);
+            if (chunk.size() == 10000) {
+                source.applyBatch(chunk);
+                chunk.clear();
+            }
+        }
+        source.close();
+
+        try {
+            for (boolean lazy : new boolean[] { false, true, false, true }) {
+                long heapBefore = usedHeap();
+                long start = System.nanoTime();
+                PersistentStorage restarted = new PersistentStorage(name, "database.properties",
+                        DurabilityMode.OS_BUFFERED, 1000, lazy, PersistentStorage.DEFAULT_VALUE_CACHE_SIZE);
+                long elapsed = (System.nanoTime() - start) / 1000000;
+                long heap = usedHeap() - heapBefore;
+                assertEquals(payload, restarted.get("startup99999"));
+                System.out.println(String.format("%s startup with 100,000 x 2 KB: %,d ms, %,d MB heap",
+                        lazy ? "Lazy " : "Eager", elapsed, heap / (1024 * 1024)));
+                restarted.close();
+            }
+        } finally {
+            deleteFiles(new File(DATA_DIRECTORY), name);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.TimingWheel;
+import junit.framework.TestCase;
+
+public class TimingWheelTest extends TestCase {
+    private static final long TICK_MS = 100;
+
+    private List<String> expired;
+    private TimingWheel wheel;
+    private long start;
+
+    public void setUp() {
+        expired = new ArrayList<String>();
+        // Ticks from the wheel's own start, so deadlines land on tick boundaries
+        start = (System.currentTimeMillis() / TICK_MS) * TICK_MS;
+        wheel = new TimingWheel(TICK_MS, new TimingWheel.ExpiryListener() {
+            public void expired(List<String> keys) {
+                for (String key : keys) {
+                    wheel.cancel(key);
+                    expired.add(key);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testKeysExpireAtTheirDeadline() {
+        wheel.schedule("a", start + 5 * TICK_MS);
+        wheel.schedule("b", start + 10 * TICK_MS);
+        assertEquals(2, wheel.size());
+
+        assertEquals(0, wheel.advance(start + 4 * TICK_MS));
+        assertEquals(1, wheel.advance(start + 5 * TICK_MS));
+        assertEquals("a", expired.get(0));
+        assertFalse(wheel.isExpired("b", start + 5 * TICK_MS));
+
+        assertEquals(1, wheel.advance(start + 10 * TICK_MS));
+        assertEquals("b", expired.get(1));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRescheduleAndCancel() {
+        wheel.schedule("session", start + 3 * TICK_MS);
+        wheel.schedule("session", start + 8 * TICK_MS);
+        wheel.schedule("gone", start + 3 * TICK_MS);
+        wheel.cancel("gone");
+
+        // The stale entries of both keys come up and are skipped
+        assertEquals(0, wheel.advance(start + 5 * TICK_MS));
+        assertEquals(Long.valueOf(start + 8 * TICK_MS), wheel.getDeadline("session"));
+        assertNull(wheel.getDeadline("gone"));
+
+        assertEquals(1, wheel.advance(start + 8 * TICK_MS));
+        assertEquals("session", expired.get(0));
+    }
+
+    @Test
+    public void testFarDeadlinesCascade() {
+        // Spread over the first three levels of the wheel
+        long[] offsets = { 1, 63, 64, 65, 200, 4095, 4096, 5000, 300000 };
+        for (int i = 0; i < offsets.length; i++) {
+            wheel.schedule("key" + i, start + offsets[i] * TICK_MS);
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            // Nothing fires early, and each key fires exactly on its tick
+            wheel.advance(start + (offsets[i] - 1) * TICK_MS);
+            assertEquals(i, expired.size());
+            wheel.advance(start + offsets[i] * TICK_MS);
+            assertEquals(i + 1, expired.size());
+            assertEquals("key" + i, expired.get(i));
+        }
+    }
+
+    @Test
+    public void testCatchUpAndPastDeadlines() {
+        for (int i = 0; i < 1000; i++) {
+            wheel.schedule("key" + i, start + (i % 50 + 1) * TICK_MS);
+        }
+        wheel.schedule("late", start - 10 * TICK_MS);
+
+        // One call covering many ticks fires everything that came due
+        assertEquals(1001, wheel.advance(start + 100 * TICK_MS));
+        assertEquals(0, wheel.size());
+    }
+}
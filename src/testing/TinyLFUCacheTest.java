@@ -0,0 +1,73 @@
+package testing;
+
+import org.junit.Test;
+
+import app_kvServer.kvCache.CountMinSketch;
+import app_kvServer.kvCache.LRUCache;
+import app_kvServer.kvCache.TinyLFUCache;
+import junit.framework.TestCase;
+
+public class TinyLFUCacheTest extends TestCase {
+    @Test
+    public void testScanDoesNotEvictHotKeys() {
+        TinyLFUCache cache = new TinyLFUCache(100);
+        for (int i = 0; i < 90; i++) {
+            cache.write("hot" + i, "value");
+            for (int reads = 0; reads < 3; reads++) {
+                cache.read("hot" + i);
+            }
+        }
+        // A transfer streams through many keys that are never read
+        for (int i = 0; i < 10000; i++) {
+            cache.write("scan" + i, "value");
+        }
+        for (int i = 0; i < 90; i++) {
+            assertTrue("hot" + i, cache.inCache("hot" + i));
+        }
+        assertEquals(100, cache.getCurrentLoad());
+    }
+
+    @Test
+    public void testReadWriteDelete() {
+        TinyLFUCache cache = new TinyLFUCache(10);
+        cache.write("a", "1");
+        assertEquals("1", cache.read("a"));
+        cache.write("a", "2");
+        assertEquals("2", cache.read("a"));
+        assertNull(cache.read("missing"));
+
+        cache.delete("a");
+        assertFalse(cache.inCache("a"));
+        assertEquals(0, cache.getCurrentLoad());
+
+        cache.write("b", "1");
+        cache.clearCache();
+        assertFalse(cache.inCache("b"));
+        assertEquals(0, cache.getFrequency("b"));
+    }
+
+    @Test
+    public void testSketchAges() {
+        CountMinSketch sketch = new CountMinSketch(16);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("popular");
+        }
+        assertEquals(10, sketch.frequency("popular"));
+        assertEquals(0, sketch.frequency("unseen"));
+
+        // Enough other traffic to trigger aging halves the old count
+        for (int i = 0; i < 150; i++) {
+            sketch.increment("other" + i);
+        }
+        assertTrue(sketch.frequency("popular") <= 5);
+        assertTrue(sketch.frequency("popular") >= 2);
+    }
+
+    @Test
+    public void testZipfBeatsLRU() {
+        int[] trace = CachePerformanceTest.zipfTrace(10000, 0.99, 200000, 7);
+        double tinyLfu = CachePerformanceTest.hitRatio(new TinyLFUCache(500), trace, 2);
+        double lru = CachePerformanceTest.hitRatio(new LRUCache(500), trace, 2);
+        assertTrue(tinyLfu + " vs " + lru, tinyLfu > lru);
+    }
+}
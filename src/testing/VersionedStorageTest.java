@@ -0,0 +1,226 @@
+package testing;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.LogStructuredStorage;
+import persistent_storage.VersionedStorage;
+
+public class VersionedStorageTest extends TestCase {
+    private File directory;
+    private LogStructuredStorage backend;
+    private VersionedStorage storage;
+
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "versioned-storage-test-" + System.nanoTime());
+        backend = new LogStructuredStorage("localhost:50000", directory.getPath(),
+                LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES);
+        storage = new VersionedStorage(backend);
+    }
+
+    public void tearDown() {
+        backend.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static Map<String, String> drain(Iterator<Map.Entry<String, String>> entries) {
+        Map<String, String> drained = new HashMap<String, String>();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            drained.put(entry.getKey(), entry.getValue());
+        }
+        return drained;
+    }
+
+    @Test
+    public void testSnapshotIsolation() throws Exception {
+        storage.put("kept", "1");
+        storage.put("updated", "old");
+        storage.put("deleted", "gone soon");
+        VersionedStorage.Snapshot snapshot = storage.openSnapshot();
+
+        storage.put("updated", "new");
+        storage.put("updated", "newer");
+        storage.delete("deleted");
+        storage.put("created", "after");
+        Map<String, String> batch = new HashMap<String, String>();
+        batch.put("kept", "");
+        storage.applyBatch(batch);
+
+        // Clients see every write
+        assertEquals("newer", storage.get("updated"));
+        assertNull(storage.get("deleted"));
+        assertNull(storage.get("kept"));
+
+        // The snapshot sees none of them
+        assertEquals("1", snapshot.get("kept"));
+        assertEquals("old", snapshot.get("updated"));
+        assertEquals("gone soon", snapshot.get("deleted"));
+        assertNull(snapshot.get("created"));
+        assertTrue(snapshot.modifiedSince("updated"));
+        assertFalse(snapshot.modifiedSince("unknown"));
+
+        Map<String, String> all = drain(snapshot.entryIterator());
+        assertEquals(3, all.size());
+        assertEquals("1", all.get("kept"));
+        assertEquals("old", all.get("updated"));
+        assertEquals("gone soon", all.get("deleted"));
+
+        assertTrue(storage.getHistorySize() > 0);
+        snapshot.release();
+        assertEquals(0, storage.getHistorySize());
+        // No history is kept without an open snapshot
+        storage.put("updated", "newest");
+        assertEquals(0, storage.getHistorySize());
+    }
+
+    @Test
+    public void testRangeIterator() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        BigInteger begin = storage.MD5Hash("key10");
+        BigInteger end = storage.MD5Hash("key20");
+        Map<String, String> expected = storage.hashReachable(begin, end);
+        Map<String, String> outside = storage.hashUnreachable(begin, end);
+
+        VersionedStorage.Snapshot snapshot = storage.openSnapshot();
+        for (int i = 0; i < 100; i++) {
+            if (i % 2 == 0) {
+                storage.delete("key" + i);
+            } else {
+                storage.put("key" + i, "changed");
+            }
+            storage.put("extra" + i, "new");
+        }
+        assertEquals(expected, drain(snapshot.rangeIterator(begin, end, true)));
+        assertEquals(outside, drain(snapshot.rangeIterator(begin, end, false)));
+        snapshot.release();
+    }
+
+    @Test
+    public void testNestedSnapshots() throws Exception {
+        storage.put("key", "v1");
+        VersionedStorage.Snapshot first = storage.openSnapshot();
+        storage.put("key", "v2");
+        VersionedStorage.Snapshot second = storage.openSnapshot();
+        storage.put("key", "v3");
+
+        assertEquals("v1", first.get("key"));
+        assertEquals("v2", second.get("key"));
+        first.release();
+        // Pre-images the second snapshot needs survive the first release
+        assertEquals("v2", second.get("key"));
+        assertEquals("v3", storage.get("key"));
+        second.release();
+        assertEquals(0, storage.getHistorySize());
+    }
+
+    @Test
+    public void testWritersDuringSnapshotWalk() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            storage.put("key" + i, "before");
+        }
+        VersionedStorage.Snapshot snapshot = storage.openSnapshot();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        storage.put("key" + i, "after");
+                        if (i % 3 == 0) {
+                            storage.delete("key" + i);
+                        }
+                    }
+                } catch (Exception e) {
+                    fail(e.getMessage());
+                }
+            }
+        });
+        writer.start();
+        Map<String, String> walked = drain(snapshot.entryIterator());
+        writer.join();
+
+        assertEquals(1000, walked.size());
+        for (String value : walked.values()) {
+            assertEquals("before", value);
+        }
+        snapshot.release();
+    }
+
+    @Test
+    public void testBatchWritesOutsideTheLock() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        LogStructuredStorage slowBackend = new LogStructuredStorage("localhost:50001", directory.getPath(),
+                LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES) {
+            @Override
+            public boolean applyBatch(Map<String, String> batch) {
+                writing.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return super.applyBatch(batch);
+            }
+        };
+        final VersionedStorage slow = new VersionedStorage(slowBackend);
+        slow.put("batched", "old");
+        final VersionedStorage.Snapshot before = slow.openSnapshot();
+
+        final Map<String, String> batch = new HashMap<String, String>();
+        batch.put("batched", "from batch");
+        Thread batchWriter = new Thread(new Runnable() {
+            public void run() {
+                slow.applyBatch(batch);
+            }
+        });
+        batchWriter.start();
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+        // Other keys are not held up by the batch's backend write
+        slow.put("other", "1");
+        assertEquals("1", slow.get("other"));
+        assertEquals("old", before.get("batched"));
+
+        // A write to a batched key waits for the batch and lands after it
+        final VersionedStorage.Snapshot[] during = new VersionedStorage.Snapshot[1];
+        Thread keyWriter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    slow.put("batched", "from client");
+                    during[0] = slow.openSnapshot();
+                } catch (Exception e) {
+                    fail(e.getMessage());
+                }
+            }
+        });
+        keyWriter.start();
+        keyWriter.join(200);
+        assertTrue(keyWriter.isAlive());
+
+        finish.countDown();
+        batchWriter.join();
+        keyWriter.join();
+        assertEquals("from client", slow.get("batched"));
+        assertEquals("old", before.get("batched"));
+        assertEquals("from client", during[0].get("batched"));
+        before.release();
+        during[0].release();
+        slowBackend.close();
+    }
+}
@@ -0,0 +1,98 @@
+package testing;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import persistent_storage.DurabilityMode;
+import persistent_storage.LogRecord;
+import persistent_storage.LogSegment;
+import persistent_storage.WriteAheadLog;
+
+public class WriteAheadLogTest extends TestCase {
+    private File file;
+
+    public void setUp() throws Exception {
+        file = File.createTempFile("wal-test", ".data");
+    }
+
+    public void tearDown() {
+        file.delete();
+    }
+
+    private Set<String> replayKeys() throws Exception {
+        final Set<String> keys = new HashSet<String>();
+        LogSegment segment = new LogSegment(file, 0);
+        segment.replay(new LogSegment.RecordVisitor() {
+            public void visit(LogRecord record, long offset, int length) {
+                keys.add(record.getKey());
+            }
+        });
+        segment.close();
+        return keys;
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final WriteAheadLog wal = new WriteAheadLog(new LogSegment(file, 0), DurabilityMode.FSYNC_BATCH, 1000);
+        final int threads = 8;
+        final int perThread = 200;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            writers[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        try {
+                            wal.append(LogRecord.encode("key" + id + "-" + i, "value"));
+                        } catch (Exception e) {
+                            fail(e.getMessage());
+                        }
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(threads * perThread, wal.getRecordCount());
+        // Concurrent writers share batches
+        assertTrue(wal.getBatchCount() < wal.getRecordCount());
+        wal.close();
+        assertEquals(threads * perThread, replayKeys().size());
+    }
+
+    @Test
+    public void testOffsetsAndReset() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(new LogSegment(file, 0), DurabilityMode.OS_BUFFERED, 1000);
+        long first = wal.append(LogRecord.encode("a", "1"));
+        long second = wal.append(LogRecord.encode("b", "2"));
+        assertEquals(0, first);
+        assertEquals(LogRecord.encode("a", "1").limit(), second);
+
+        wal.reset();
+        assertEquals(0, wal.size());
+        wal.append(LogRecord.encode("c", "3"));
+        wal.close();
+
+        Set<String> keys = replayKeys();
+        assertEquals(1, keys.size());
+        assertTrue(keys.contains("c"));
+    }
+
+    @Test
+    public void testPeriodicSync() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(new LogSegment(file, 0), DurabilityMode.FSYNC_PERIODIC, 10);
+        for (int i = 0; i < 10; i++) {
+            wal.append(LogRecord.encode("key" + i, "value"));
+        }
+        wal.sync();
+        wal.close();
+        assertEquals(10, replayKeys().size());
+    }
+}